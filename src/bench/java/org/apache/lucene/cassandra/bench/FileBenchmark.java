@@ -0,0 +1,127 @@
+package org.apache.lucene.cassandra.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.cassandra.ACassandraFile;
+import org.apache.lucene.store.IOContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The read, write and seek paths of {@link ACassandraFile}, for a file of
+ * {@link #FILE_LENGTH} bytes, across block sizes.
+ *
+ * <p>
+ * Files are written in chunks of {@link #CHUNK_SIZE} bytes, the size
+ * Lucene's buffered outputs flush, and read in chunks of the same size.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FileBenchmark {
+
+    static final int FILE_LENGTH = 1 << 20;
+
+    static final int CHUNK_SIZE = 8192;
+
+    @Param({ "4096", "16384", "65536" })
+    int blockSize;
+
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    private ACassandraFile readFile;
+
+    private long[] seekPositions;
+
+    private int nextSeek;
+
+    private int written;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StandInCassandra.getInstance();
+        new Random(42).nextBytes(chunk);
+        String name = "read-" + blockSize;
+        write(name);
+        readFile = open(name, IOContext.READ);
+        Random random = new Random(42);
+        seekPositions = new long[1024];
+        for (int i = 0; i < seekPositions.length; i++) {
+            seekPositions[i] = random.nextInt(FILE_LENGTH - CHUNK_SIZE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        readFile.close();
+        readFile.delete();
+    }
+
+    private ACassandraFile open(String name, IOContext mode) {
+        return new ACassandraFile("/bench", name, mode, true,
+                StandInCassandra.KEYSPACE, StandInCassandra.COLUMN_FAMILY,
+                blockSize);
+    }
+
+    private void write(String name) throws IOException {
+        ACassandraFile file = open(name, IOContext.DEFAULT);
+        for (int offset = 0; offset < FILE_LENGTH; offset += CHUNK_SIZE) {
+            file.write(chunk, 0, CHUNK_SIZE);
+        }
+        file.close();
+    }
+
+    /**
+     * Write a whole file and close it, so the time includes the flush of
+     * its last blocks and of its descriptor.
+     */
+    @Benchmark
+    public void write() throws IOException {
+        String name = "write-" + blockSize + "-" + written++;
+        write(name);
+        open(name, IOContext.DEFAULT).delete();
+    }
+
+    /**
+     * Read the whole file from the start.
+     */
+    @Benchmark
+    public long read() throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        readFile.seek(0);
+        long total = 0;
+        int read;
+        while ((read = readFile.read(buffer, 0, CHUNK_SIZE)) > 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Seek to a random position and read a chunk there.
+     */
+    @Benchmark
+    public int seekAndRead() throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        readFile.seek(seekPositions[nextSeek++ & (seekPositions.length - 1)]);
+        return readFile.read(buffer, 0, CHUNK_SIZE);
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.apache.lucene.cassandra.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.cassandra.FileBlock;
+import org.apache.lucene.cassandra.FileDescriptor;
+import org.apache.lucene.cassandra.FileDescriptorUtils;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The (de)serialization of {@link FileDescriptor}s, in the binary and the
+ * JSON formats, and {@link FileDescriptorUtils#seekBlock}, for descriptors of
+ * a growing number of blocks. None of these talk to the store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FileDescriptorBenchmark {
+
+    static final int BLOCK_SIZE = 16384;
+
+    @Param({ "10", "1000", "100000" })
+    int blocks;
+
+    private FileDescriptor descriptor;
+
+    private byte[] binary;
+
+    private byte[] json;
+
+    private long[] filePointers;
+
+    private int nextPointer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        descriptor = new FileDescriptor("/bench/_0.cfs", BLOCK_SIZE);
+        descriptor.setAppendOnly(true);
+        descriptor.setLength((long) blocks * BLOCK_SIZE - BLOCK_SIZE / 2);
+        descriptor.layOutFixedStride();
+        binary = FileDescriptorUtils.toBinary(descriptor);
+        json = FileDescriptorUtils.toString(descriptor).getBytes();
+        Random random = new Random(42);
+        filePointers = new long[1024];
+        for (int i = 0; i < filePointers.length; i++) {
+            filePointers[i] = (long) (random.nextDouble() * descriptor
+                    .getLength());
+        }
+    }
+
+    @Benchmark
+    public byte[] toBinary() throws IOException {
+        return FileDescriptorUtils.toBinary(descriptor);
+    }
+
+    @Benchmark
+    public FileDescriptor fromBinary() throws IOException {
+        return FileDescriptorUtils.fromBytes(binary, BLOCK_SIZE);
+    }
+
+    @Benchmark
+    public JSONObject toJSON() throws IOException {
+        return FileDescriptorUtils.toJSON(descriptor);
+    }
+
+    @Benchmark
+    public FileDescriptor fromJSON() throws IOException {
+        return FileDescriptorUtils.fromBytes(json, BLOCK_SIZE);
+    }
+
+    @Benchmark
+    public FileBlock seekBlock() {
+        return FileDescriptorUtils.seekBlock(descriptor,
+                filePointers[nextPointer++ & (filePointers.length - 1)]);
+    }
+
+}
@@ -0,0 +1,146 @@
+package org.apache.lucene.cassandra.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.cassandra.CassandraFile;
+import org.apache.lucene.cassandra.SimpleCassandraDirectory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lucene end to end on a {@link SimpleCassandraDirectory}: indexing a batch
+ * of documents and committing it, and searching an index of
+ * {@link #DOCUMENTS} documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+    static final int BLOCK_SIZE = 16384;
+
+    static final int DOCUMENTS = 10000;
+
+    // the documents added between two commits of the indexing benchmark.
+    static final int BATCH_SIZE = 1000;
+
+    private static final String[] WORDS = { "lucene", "cassandra", "block",
+            "descriptor", "column", "segment", "commit", "search", "index",
+            "term", "thrift", "keyspace", "row", "file", "buffer", "cache" };
+
+    private final Random random = new Random(42);
+
+    private SimpleCassandraDirectory searchDirectory;
+
+    private DirectoryReader reader;
+
+    private IndexSearcher searcher;
+
+    private SimpleCassandraDirectory writeDirectory;
+
+    private IndexWriter writer;
+
+    private int nextQuery;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StandInCassandra.getInstance();
+        searchDirectory = open("/search/");
+        IndexWriter searchWriter = newWriter(searchDirectory);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            searchWriter.addDocument(newDocument(i));
+        }
+        searchWriter.close();
+        reader = DirectoryReader.open(searchDirectory);
+        searcher = new IndexSearcher(reader);
+
+        writeDirectory = open("/write/");
+        writer = newWriter(writeDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writer.close();
+        reader.close();
+        writeDirectory.close();
+        searchDirectory.close();
+    }
+
+    private static SimpleCassandraDirectory open(String path)
+            throws IOException {
+        CassandraFile directory =
+                new CassandraFile(path, "dir", IOContext.DEFAULT, true,
+                        StandInCassandra.KEYSPACE,
+                        StandInCassandra.COLUMN_FAMILY, BLOCK_SIZE);
+        return new SimpleCassandraDirectory(directory, IOContext.DEFAULT, null,
+                StandInCassandra.KEYSPACE, StandInCassandra.COLUMN_FAMILY,
+                BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    private static IndexWriter newWriter(SimpleCassandraDirectory directory)
+            throws IOException {
+        return new IndexWriter(directory, new IndexWriterConfig(
+                Version.LUCENE_48, new StandardAnalyzer(Version.LUCENE_48)));
+    }
+
+    private Document newDocument(int id) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        Document document = new Document();
+        document.add(new StringField("id", Integer.toString(id),
+                Field.Store.YES));
+        document.add(new TextField("body", body.toString(), Field.Store.NO));
+        return document;
+    }
+
+    /**
+     * Add a batch of documents and commit them, which writes and syncs the
+     * files of a new segment and a new segments_N.
+     */
+    @Benchmark
+    public long addDocumentsAndCommit() throws IOException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            writer.addDocument(newDocument(i));
+        }
+        writer.commit();
+        return writer.maxDoc();
+    }
+
+    @Benchmark
+    public TopDocs search() throws IOException {
+        String word = WORDS[nextQuery++ % WORDS.length];
+        return searcher.search(new TermQuery(new Term("body", word)), 10);
+    }
+
+}
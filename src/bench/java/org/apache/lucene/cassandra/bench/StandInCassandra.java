@@ -0,0 +1,437 @@
+package org.apache.lucene.cassandra.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.cassandra.thrift.AuthenticationRequest;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.CfDef;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.Compression;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.CqlResult;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.IndexClause;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.KsDef;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.NotFoundException;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * An in-process stand-in for a single Cassandra node, which keeps its rows in
+ * memory and speaks just enough of the thrift API for the directory to run
+ * against it: slices by name and by range, range scans, batch mutations and
+ * the schema calls made when a pool connects.
+ *
+ * <p>
+ * It is meant for benchmarks, so that they measure the client side of the
+ * directory, i.e. serialization, caching and framing, without the noise of a
+ * real node. Rows are kept per column family, whatever the keyspace, in the
+ * order of their keys (as with the ByteOrderedPartitioner), and requests are
+ * served one at a time.
+ * </p>
+ */
+public class StandInCassandra implements Cassandra.Iface {
+
+    // the keyspace and column family the benchmarks keep their files in.
+    public static final String KEYSPACE = "lucene0";
+
+    public static final String COLUMN_FAMILY = "bench";
+
+    // the rows of every column family, by key and then by column name.
+    private final Map<String, NavigableMap<ByteBuffer, NavigableMap<ByteBuffer, Column>>> columnFamilies =
+            new HashMap<String, NavigableMap<ByteBuffer, NavigableMap<ByteBuffer, Column>>>();
+
+    private final Map<String, KsDef> keyspaces = new HashMap<String, KsDef>();
+
+    private TServer server;
+
+    private int port;
+
+    private static StandInCassandra instance;
+
+    /**
+     * Return the stand-in of this JVM, starting it on first use. The pools
+     * read the host and port once, so every benchmark of a fork shares it.
+     */
+    public static synchronized StandInCassandra getInstance()
+            throws TTransportException {
+        if (instance == null) {
+            StandInCassandra standIn = new StandInCassandra();
+            standIn.start();
+            instance = standIn;
+        }
+        return instance;
+    }
+
+    /**
+     * Start serving on a free port of the loopback interface, with framed
+     * transport, and point the directory at it through the
+     * <code>lucene.cassandra.host</code> and <code>lucene.cassandra.port</code>
+     * system properties. This has to happen before the first pool is created.
+     *
+     * @return the port the stand-in listens on
+     */
+    public int start() throws TTransportException {
+        TServerSocket socket = new TServerSocket(0);
+        port = socket.getServerSocket().getLocalPort();
+        server =
+                new TThreadPoolServer(new TThreadPoolServer.Args(socket)
+                        .processor(new Cassandra.Processor(this))
+                        .transportFactory(new TFramedTransport.Factory())
+                        .protocolFactory(new TBinaryProtocol.Factory()));
+        Thread thread = new Thread("stand-in cassandra on port " + port) {
+            @Override
+            public void run() {
+                server.serve();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        System.setProperty("lucene.cassandra.host", "127.0.0.1");
+        System.setProperty("lucene.cassandra.port", Integer.toString(port));
+        return port;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private NavigableMap<ByteBuffer, NavigableMap<ByteBuffer, Column>> rows(
+            String columnFamily) {
+        NavigableMap<ByteBuffer, NavigableMap<ByteBuffer, Column>> rows =
+                columnFamilies.get(columnFamily);
+        if (rows == null) {
+            rows = new TreeMap<ByteBuffer, NavigableMap<ByteBuffer, Column>>();
+            columnFamilies.put(columnFamily, rows);
+        }
+        return rows;
+    }
+
+    // the columns of the given row the predicate selects.
+    private static List<ColumnOrSuperColumn> slice(
+            NavigableMap<ByteBuffer, Column> row, SlicePredicate predicate) {
+        List<ColumnOrSuperColumn> columns = new ArrayList<ColumnOrSuperColumn>();
+        if (row == null) {
+            return columns;
+        }
+        if (predicate.isSetColumn_names()) {
+            for (ByteBuffer name : predicate.getColumn_names()) {
+                Column column = row.get(name);
+                if (column != null) {
+                    columns.add(new ColumnOrSuperColumn().setColumn(column));
+                }
+            }
+            return columns;
+        }
+        SliceRange range = predicate.getSlice_range();
+        NavigableMap<ByteBuffer, Column> selected =
+                range.reversed ? row.descendingMap() : row;
+        if (range.start.hasRemaining()) {
+            selected = selected.tailMap(range.start, true);
+        }
+        if (range.finish.hasRemaining()) {
+            selected = selected.headMap(range.finish, true);
+        }
+        for (Column column : selected.values()) {
+            if (columns.size() >= range.count) {
+                break;
+            }
+            columns.add(new ColumnOrSuperColumn().setColumn(column));
+        }
+        return columns;
+    }
+
+    // the values are copied, since thrift reuses the buffers it reads into.
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    @Override
+    public void login(AuthenticationRequest auth_request) {
+    }
+
+    @Override
+    public void set_keyspace(String keyspace) {
+    }
+
+    @Override
+    public synchronized List<ColumnOrSuperColumn> get_slice(ByteBuffer key,
+            ColumnParent column_parent, SlicePredicate predicate,
+            ConsistencyLevel consistency_level) {
+        return slice(rows(column_parent.getColumn_family()).get(key),
+                predicate);
+    }
+
+    @Override
+    public synchronized Map<ByteBuffer, List<ColumnOrSuperColumn>> multiget_slice(
+            List<ByteBuffer> keys, ColumnParent column_parent,
+            SlicePredicate predicate, ConsistencyLevel consistency_level) {
+        NavigableMap<ByteBuffer, NavigableMap<ByteBuffer, Column>> rows =
+                rows(column_parent.getColumn_family());
+        Map<ByteBuffer, List<ColumnOrSuperColumn>> slices =
+                new HashMap<ByteBuffer, List<ColumnOrSuperColumn>>();
+        for (ByteBuffer key : keys) {
+            slices.put(key, slice(rows.get(key), predicate));
+        }
+        return slices;
+    }
+
+    @Override
+    public synchronized List<KeySlice> get_range_slices(
+            ColumnParent column_parent, SlicePredicate predicate,
+            KeyRange range, ConsistencyLevel consistency_level) {
+        SortedMap<ByteBuffer, NavigableMap<ByteBuffer, Column>> rows =
+                rows(column_parent.getColumn_family());
+        if (range.isSetStart_key() && range.start_key.hasRemaining()) {
+            rows = rows.tailMap(range.start_key);
+        }
+        List<KeySlice> slices = new ArrayList<KeySlice>();
+        for (Map.Entry<ByteBuffer, NavigableMap<ByteBuffer, Column>> row : rows
+                .entrySet()) {
+            if (slices.size() >= range.count) {
+                break;
+            }
+            slices.add(new KeySlice(row.getKey(), slice(row.getValue(),
+                    predicate)));
+        }
+        return slices;
+    }
+
+    @Override
+    public synchronized void batch_mutate(
+            Map<ByteBuffer, Map<String, List<Mutation>>> mutation_map,
+            ConsistencyLevel consistency_level) {
+        for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> mutations : mutation_map
+                .entrySet()) {
+            ByteBuffer key = copy(mutations.getKey());
+            for (Map.Entry<String, List<Mutation>> columnFamily : mutations
+                    .getValue().entrySet()) {
+                NavigableMap<ByteBuffer, NavigableMap<ByteBuffer, Column>> rows =
+                        rows(columnFamily.getKey());
+                NavigableMap<ByteBuffer, Column> row = rows.get(key);
+                if (row == null) {
+                    row = new TreeMap<ByteBuffer, Column>();
+                    rows.put(key, row);
+                }
+                for (Mutation mutation : columnFamily.getValue()) {
+                    if (mutation.isSetColumn_or_supercolumn()) {
+                        Column column = mutation.getColumn_or_supercolumn()
+                                .getColumn();
+                        Column stored =
+                                new Column(copy(column.name)).setValue(
+                                        copy(column.value)).setTimestamp(
+                                        column.timestamp);
+                        row.put(stored.name, stored);
+                    } else {
+                        Deletion deletion = mutation.getDeletion();
+                        if (deletion.isSetPredicate()
+                                && deletion.getPredicate().isSetColumn_names()) {
+                            for (ByteBuffer name : deletion.getPredicate()
+                                    .getColumn_names()) {
+                                row.remove(name);
+                            }
+                        } else {
+                            row.clear();
+                        }
+                    }
+                }
+                if (row.isEmpty()) {
+                    rows.remove(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void truncate(String cfname) {
+        rows(cfname).clear();
+    }
+
+    @Override
+    public synchronized List<KsDef> describe_keyspaces() {
+        return new ArrayList<KsDef>(keyspaces.values());
+    }
+
+    @Override
+    public synchronized KsDef describe_keyspace(String keyspace)
+            throws NotFoundException {
+        KsDef ksDef = keyspaces.get(keyspace);
+        if (ksDef == null) {
+            throw new NotFoundException();
+        }
+        return ksDef;
+    }
+
+    @Override
+    public synchronized String system_add_keyspace(KsDef ks_def) {
+        keyspaces.put(ks_def.getName(), ks_def);
+        return "stand-in";
+    }
+
+    @Override
+    public synchronized String system_add_column_family(CfDef cf_def) {
+        KsDef ksDef = keyspaces.get(cf_def.getKeyspace());
+        if (ksDef != null) {
+            ksDef.addToCf_defs(cf_def);
+        }
+        return "stand-in";
+    }
+
+    @Override
+    public String describe_cluster_name() {
+        return "Stand-in Cluster";
+    }
+
+    @Override
+    public String describe_version() {
+        return "19.20.0";
+    }
+
+    @Override
+    public String describe_partitioner() {
+        return "org.apache.cassandra.dht.ByteOrderedPartitioner";
+    }
+
+    @Override
+    public String describe_snitch() {
+        return "org.apache.cassandra.locator.SimpleSnitch";
+    }
+
+    @Override
+    public List<TokenRange> describe_ring(String keyspace) {
+        // a single node owns every token, from the minimum token round to it.
+        return Collections.singletonList(new TokenRange("", "", Collections
+                .singletonList("127.0.0.1")));
+    }
+
+    @Override
+    public Map<String, List<String>> describe_schema_versions() {
+        return Collections.singletonMap("stand-in",
+                Collections.singletonList("127.0.0.1"));
+    }
+
+    // what follows is not used by the directory.
+
+    @Override
+    public ColumnOrSuperColumn get(ByteBuffer key, ColumnPath column_path,
+            ConsistencyLevel consistency_level) throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public int get_count(ByteBuffer key, ColumnParent column_parent,
+            SlicePredicate predicate, ConsistencyLevel consistency_level)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public Map<ByteBuffer, Integer> multiget_count(List<ByteBuffer> keys,
+            ColumnParent column_parent, SlicePredicate predicate,
+            ConsistencyLevel consistency_level) throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public List<KeySlice> get_indexed_slices(ColumnParent column_parent,
+            IndexClause index_clause, SlicePredicate column_predicate,
+            ConsistencyLevel consistency_level) throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public void insert(ByteBuffer key, ColumnParent column_parent,
+            Column column, ConsistencyLevel consistency_level)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public void add(ByteBuffer key, ColumnParent column_parent,
+            CounterColumn column, ConsistencyLevel consistency_level)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public void remove(ByteBuffer key, ColumnPath column_path, long timestamp,
+            ConsistencyLevel consistency_level) throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public void remove_counter(ByteBuffer key, ColumnPath path,
+            ConsistencyLevel consistency_level) throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public List<String> describe_splits(String cfName, String start_token,
+            String end_token, int keys_per_split)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public String system_drop_column_family(String column_family)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public String system_drop_keyspace(String keyspace)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public String system_update_keyspace(KsDef ks_def)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public String system_update_column_family(CfDef cf_def)
+            throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+    @Override
+    public CqlResult execute_cql_query(ByteBuffer query,
+            Compression compression) throws InvalidRequestException {
+        throw new InvalidRequestException("not supported by the stand-in");
+    }
+
+}
@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystem;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
@@ -23,12 +24,13 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.lucene.cassandra.nio.CassandraFileSystem;
 import org.apache.lucene.cassandra.nio.CassandraFileSystemProvider;
 import org.apache.lucene.store.IOContext;
 import org.apache.monitor.Counter;
 import org.apache.monitor.JmxMonitor;
+import org.apache.monitor.MetricGroup;
+import org.apache.monitor.MetricsRegistry;
 import org.apache.monitor.MonitorType;
 import org.apache.monitor.OpentrackerClientMonitor;
 import org.slf4j.Logger;
@@ -58,7 +60,7 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
     private static Logger logger = LoggerFactory
             .getLogger(ACassandraFile.class);
 
-    private CassandraClient cassandraClient = null;
+    private BlockStore blockStore = null;
 
     private ColumnOrientedDirectory columnOrientedDirectory;
 
@@ -68,11 +70,15 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
 
     private boolean isModeMerge = false;
 
+    // the contents of the partially filled last block of an append-only
+    // file, or null if it has not been read yet.
+    private byte[] tail = null;
+
     private OpentrackerClientMonitor monitor;
 
-    public static int getDNCount = 0;
+    // the metrics of the directory, for the context the file was opened in.
+    private MetricGroup metrics;
 
-    public static long getDNTime = 0;
     
     private volatile transient Path filePath;
     
@@ -85,14 +91,13 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
     @Override
 
     public File get(File directory, String name) {
-        getDNCount++;
-        long ms = System.currentTimeMillis();
+        long start = System.nanoTime();
 
         try {
             ACassandraFile acf =
                     new ACassandraFile(directory.getCanonicalPath(), name,
                             IOContext.DEFAULT, true, "lucene0", "index0", 16384);
-            getDNTime += System.currentTimeMillis() - ms;
+            metrics.recordSince("file.get", start);
             return acf;
         } catch (IOException e) {
             logger.error("File get didnt work", e);
@@ -106,18 +111,14 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         return new ACassandraFile(canonicalPath);
     }
 
-    public static int getRAFCount = 0;
-
-    public static long getRAFTime = 0;
     @Override
     public RandomAccessFile getRandomAccessFile(File fullFile,
             String permissions) throws FileNotFoundException {
-        getRAFCount++;
-        long ms = System.currentTimeMillis();
+        long start = System.nanoTime();
 
         ACassandraRandomAccessFile araf = new ACassandraRandomAccessFile(fullFile, IOContext.DEFAULT,
                 true, "lucene0", "index0", 16384);
-        getRAFTime += System.currentTimeMillis() - ms;
+        metrics.recordSince("file.getRandomAccessFile", start);
         return araf;
     }
 
@@ -144,6 +145,8 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         this.blockSize = 16384;
         this.keyspace = "lucene0";
         this.columnFamily = "index0";
+        this.metrics =
+                MetricsRegistry.getGroup(keyspace, columnFamily, mode.context);
         this.cassandraDirectory = directory;
         //logger.info("cassandraDirectory {} name {}", cassandraDirectory, name);
         this.fs = new CassandraFileSystem(provider, cassandraDirectory);
@@ -153,12 +156,13 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         storage.put("keyspace", this.keyspace);
         storage.put("columnFamily", this.columnFamily);
         try {
-            cassandraClient =
-                    new CassandraClient("localhost", 9160, true, keyspace,
-                            columnFamily, blockSize);
+            blockStore =
+                    BlockStores.getStore(true, keyspace, columnFamily,
+                            blockSize);
             this.columnOrientedDirectory =
-                    new ColumnOrientedDirectory(cassandraClient, blockSize);
-            this.columnOrientedFile = new ColumnOrientedFile(cassandraClient);
+                    new ColumnOrientedDirectory(blockStore, blockSize);
+            this.columnOrientedFile = new ColumnOrientedFile(blockStore);
+            this.columnOrientedFile.setMetrics(metrics);
             if (mode == null
                     || mode.context == IOContext.Context.DEFAULT
                     || mode.context == IOContext.Context.FLUSH
@@ -193,15 +197,10 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         }
     }
     
-    public static int getACFCount = 0;
-
-    public static long getACFTime = 0;
-
     public ACassandraFile(String directory, String name, IOContext mode,
             boolean frameMode, String keyspace, String columnFamily,
             int blockSize) {
-        getACFCount++;
-        long ms = System.currentTimeMillis();
+        long start = System.nanoTime();
         logger.trace("ACassandraFile String directory {}, String name {}",
                 directory, name);
         logger.trace("ACassandraFile IOContext mode {}, boolean frameMode {}",
@@ -225,6 +224,9 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         this.keyspace = keyspace;
         this.columnFamily = columnFamily;
         this.cassandraDirectory = directory;
+        this.metrics =
+                MetricsRegistry.getGroup(keyspace, columnFamily,
+                        mode == null ? null : mode.context);
         //logger.info("cassandraDirectory {} name {}", cassandraDirectory, name);
         this.fs = new CassandraFileSystem(provider, cassandraDirectory);
         boolean readOnly = true;
@@ -233,12 +235,13 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         storage.put("keyspace", this.keyspace);
         storage.put("columnFamily", this.columnFamily);
         try {
-            cassandraClient =
-                    new CassandraClient("localhost", 9160, frameMode, keyspace,
-                            columnFamily, blockSize);
+            blockStore =
+                    BlockStores.getStore(frameMode, keyspace, columnFamily,
+                            blockSize);
             this.columnOrientedDirectory =
-                    new ColumnOrientedDirectory(cassandraClient, blockSize);
-            this.columnOrientedFile = new ColumnOrientedFile(cassandraClient);
+                    new ColumnOrientedDirectory(blockStore, blockSize);
+            this.columnOrientedFile = new ColumnOrientedFile(blockStore);
+            this.columnOrientedFile.setMetrics(metrics);
             if (mode == null
                     || mode.context == IOContext.Context.DEFAULT
                     || mode.context == IOContext.Context.FLUSH
@@ -272,7 +275,7 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
             e.printStackTrace();
         }
         logger.trace("done {}", this.name);
-        getACFTime += System.currentTimeMillis() - ms;
+        metrics.recordSince("file.open", start);
 
     }
     
@@ -294,13 +297,8 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
      * @return if file descriptor exists.
      */
 
-    public static int existsCount = 0;
-
-    public static long existsTime = 0;
-
     public boolean exists() {
-        existsCount++;
-        long ms = System.currentTimeMillis();
+        long start = System.nanoTime();
         FileDescriptor descriptor = null;
         boolean isExists = false;
         try {
@@ -317,7 +315,7 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
             isExists = true;
         }
         logger.trace("called exists {} for file {}", isExists, name);
-        existsTime += System.currentTimeMillis() - ms;
+        metrics.recordSince("file.exists", start);
         return isExists;
     }
 
@@ -326,13 +324,8 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         return true;
     }
 
-    public static int listCount = 0;
-
-    public static long listTime = 0;
-
     public String[] list(java.io.FilenameFilter filenameFilter) {
-        listCount++;
-        long ms = System.currentTimeMillis();
+        long start = System.nanoTime();
 
         String[] files = {};
         try {
@@ -344,24 +337,19 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         } catch (IOException e) {
             logger.error("unable to list ", e);
         }
-        listTime += System.currentTimeMillis() - ms;
+        metrics.recordSince("file.list", start);
         return files;
     }
 
-    public static int emptyListCount = 0;
-
-    public static long emptyListTime = 0;
-
     public String[] list() {
-        emptyListCount++;
-        long ms = System.currentTimeMillis();
+        long start = System.nanoTime();
         String[] files = {};
         try {
             files = columnOrientedDirectory.getFileNames();
         } catch (IOException e) {
             logger.error("unable to list ", e);
         }
-        emptyListTime += System.currentTimeMillis() - ms;
+        metrics.recordSince("file.list", start);
         return files;
     }
 
@@ -386,29 +374,27 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
 
     // delete this file in cassandra and return true if it deleted , any thing
     // else, return false;
-    public static int deleteCount = 0;
-
-    public static long deleteTime = 0;
-
     public boolean delete() {
-        deleteCount++;
-        long ms = System.currentTimeMillis();
+        long start = System.nanoTime();
 
         logger.trace("deleting file {}", name);
         if (fd != null) {
             try {
+                columnOrientedFile.invalidateFile(fd);
+                // the reaper's grace period starts now.
+                fd.setLastModified(System.currentTimeMillis());
                 fd.setDeleted(true);
+                // the blocks stay until the reaper removes them, along with
+                // the descriptor.
                 columnOrientedDirectory.setFileDescriptor(fd);
-                cassandraClient.setColumns(ByteBufferUtil.bytes(fd.getName()),
-                        null);
             } catch (IOException e) {
                 logger.error("unable to delete file " + name, e);
-                deleteTime += System.currentTimeMillis() - ms;
+                metrics.recordSince("file.delete", start);
 
                 return false;
             }
         }
-        deleteTime += System.currentTimeMillis() - ms;
+        metrics.recordSince("file.delete", start);
 
         return true;
     }
@@ -429,13 +415,8 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         return lastModified;
     }
 
-    public static int createCount = 0;
-
-    public static long createTime = 0;
-
     public boolean createNewFile() throws IOException {
-        createCount++;
-        long ms = System.currentTimeMillis();
+        long start = System.nanoTime();
         logger.trace("creating {}", name);
         try {
             FileDescriptor fd =
@@ -446,7 +427,7 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
             logger.error("unable to create a new file " + name, e);
             throw new IOException("unable to create a new file " + name);
         }
-        createTime += System.currentTimeMillis() - ms;
+        metrics.recordSince("file.create", start);
         return true;
     }
 
@@ -475,12 +456,8 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
      * @exception IOException
      *                if an I/O error occurs.
      */
-    public static int writeCount = 0;
-    public static long writeTime = 0;
-
     public void write(byte[] b, int off, int len) throws IOException {
-        long ms = System.currentTimeMillis();
-        writeCount++;
+        long start = System.nanoTime();
         if (b == null) {
             throw new NullPointerException("array b is null");
         }
@@ -514,6 +491,14 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
                         Util.debugBytesToHex(b), off, len);
         logger.trace(debug);
 
+        if (fd.isAppendOnly()) {
+            // the fragments written below would not keep to the fixed strides.
+            append(b, off, len);
+            metrics.counter("file.writeBytes").addAndGet(len);
+            metrics.recordSince("file.write", start);
+            return;
+        }
+
         BlockMap blocksToFlush = new BlockMap();
 
         if (currentBlock.getDataPosition() > 0) {
@@ -626,20 +611,91 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         }
         fd.setLastAccessed(now);
         fd.setLastModified(now);
-        logger.trace("file descriptor {}", FileDescriptorUtils.toString(fd));
+        if (logger.isTraceEnabled()) {
+            logger.trace("file descriptor {}", FileDescriptorUtils.toString(fd));
+        }
         logger.trace("blocksToFlush size {}", blocksToFlush.size());
         if (blocksToFlush.size() > 1) {
             for (Entry<byte[], byte[]> entry : blocksToFlush.entrySet()) {
                 logger.trace("flushing block {} ", new String(entry.getKey()));
             }
         }
-        columnOrientedFile.writeFileBlocks(fd, blocksToFlush);
+        columnOrientedFile.bufferFileBlocks(fd, blocksToFlush);
         if (bytesLeftToWrite > 0) {
             logger.error("did not write fully as expected, remaining {}",
                     bytesLeftToWrite);
         }
-        writeTime += System.currentTimeMillis() - ms;
+        metrics.counter("file.writeBytes").addAndGet(len - bytesLeftToWrite);
+        metrics.recordSince("file.write", start);
+
+    }
+
+    /**
+     * Append to an append-only file, filling its last block up before
+     * starting the next one, and leave the file pointer at its end. The
+     * partially filled last block is written out again in full, since a
+     * column can only be replaced as a whole.
+     */
+    private void append(byte[] b, int off, int len) throws IOException {
+        long fileLength = fd.getLength();
+        long filePointer = fd.getBlockStart(fd.indexOf(currentBlock))
+                + currentBlock.getDataPosition();
+        if (filePointer != fileLength) {
+            throw new IOException("cannot write at " + filePointer
+                    + " of append-only file " + name + " of length "
+                    + fileLength);
+        }
+        long stride = fd.getBlockSize();
+        int blockNumber = (int) (fileLength / stride);
+        int tailLength = (int) (fileLength % stride);
+        if (tailLength > 0 && tail == null) {
+            ByteBuffer lastBlock =
+                    columnOrientedFile.readFileBlocks(fd, blockNumber,
+                            blockNumber)[0];
+            if (lastBlock == null || lastBlock.remaining() < tailLength) {
+                throw new IOException("last block of " + name + " is missing");
+            }
+            tail = new byte[tailLength];
+            lastBlock.duplicate().get(tail);
+        }
+
+        BlockMap blocksToFlush = new BlockMap();
+        while (len > 0) {
+            int dataLength = (int) Math.min(stride - tailLength, len);
+            byte[] block = new byte[tailLength + dataLength];
+            if (tailLength > 0) {
+                System.arraycopy(tail, 0, block, 0, tailLength);
+            }
+            System.arraycopy(b, off, block, tailLength, dataLength);
+            blocksToFlush.put(FileBlock.createBlockName(blockNumber), block);
+            off += dataLength;
+            len -= dataLength;
+            fileLength += dataLength;
+            if (block.length == stride) {
+                blockNumber++;
+                tailLength = 0;
+                tail = null;
+            } else {
+                tailLength = block.length;
+                tail = block;
+            }
+        }
+
+        length = fileLength;
+        long now = new java.util.Date().getTime();
+        fd.setLength(fileLength);
+        fd.layOutFixedStride();
+        fd.setLastAccessed(now);
+        fd.setLastModified(now);
+        moveToEnd();
+        columnOrientedFile.bufferFileBlocks(fd, blocksToFlush);
+    }
 
+    // set the file pointer to the end of the file, past its last byte.
+    private void moveToEnd() {
+        currentBlock = fd.getLastBlock();
+        currentBlock.setBlockOffset(fd.getBlockStart(fd.indexOf(currentBlock)));
+        currentBlock.setDataPosition(currentBlock.getDataLength());
     }
 
     /**
@@ -879,77 +935,69 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         for (FileBlock blockToBeRead : blocksToBeRead) {
             // logger.trace("reading fileblock {} of its length {}",
             // blockToBeRead.getBlockName(), blockToBeRead.getDataLength());
-            for (Map.Entry<byte[], byte[]> columnEntry : blockMap.entrySet()) {
-                String columnName = new String(columnEntry.getKey());
-                byte[] columnValue = columnEntry.getValue();
-                if (columnName.equals(blockToBeRead.getBlockName())) {
-                    // logger.trace("reading columnName {}, columnValue {}",
-                    // columnName , Util.debugBytesToHex(columnValue));
-                    // If src (columnValue) is null, then a NullPointerException
-                    // is thrown and the destination array is not modified.
-                    if (columnValue == null) {
-                        throw new NullPointerException("columnValue is null");
-                    }
-                    // int bytesToReadFromBlock = (int) Math.min(bytesToBeRead,
-                    // (blockToBeRead.getDataLength() +
-                    // blockToBeRead.getDataPosition()));
-                    int bytesToReadFromBlock =
-                            (int) Math.min(bytesToBeRead,
-                                    blockToBeRead.getDataLength());
-                    // logger.trace("bytesToBeRead {} blockToBeRead.getDataLength {}",
-                    // bytesToBeRead, blockToBeRead.getDataLength());
-                    // logger.trace("blockToBeRead.getDataPosition {}",
-                    // blockToBeRead.getDataPosition());
-                    int remain =
-                            blockToBeRead.getDataLength()
-                                    - blockToBeRead.getDataPosition();
-                    if (resetPosition) {
-                        blockToBeRead.setDataPosition(0);
-                    }
-                    if (!resetPosition && bytesToReadFromBlock > remain) {
-                        if (remain > 0) {
-                            // logger.trace("remain = {}", remain);
-                            bytesToReadFromBlock = remain;
+            byte[] columnValue = blockMap.get(blockToBeRead.getBlockName());
+            if (columnValue != null) {
+                // logger.trace("reading columnName {}, columnValue {}",
+                // columnName , Util.debugBytesToHex(columnValue));
+                // int bytesToReadFromBlock = (int) Math.min(bytesToBeRead,
+                // (blockToBeRead.getDataLength() +
+                // blockToBeRead.getDataPosition()));
+                int bytesToReadFromBlock =
+                        (int) Math.min(bytesToBeRead,
+                                blockToBeRead.getDataLength());
+                // logger.trace("bytesToBeRead {} blockToBeRead.getDataLength {}",
+                // bytesToBeRead, blockToBeRead.getDataLength());
+                // logger.trace("blockToBeRead.getDataPosition {}",
+                // blockToBeRead.getDataPosition());
+                int remain =
+                        blockToBeRead.getDataLength()
+                                - blockToBeRead.getDataPosition();
+                if (resetPosition) {
+                    blockToBeRead.setDataPosition(0);
+                }
+                if (!resetPosition && bytesToReadFromBlock > remain) {
+                    if (remain > 0) {
+                        // logger.trace("remain = {}", remain);
+                        bytesToReadFromBlock = remain;
 
-                        }
                     }
-                    // logger.trace("blockToBeRead.getDataLength {} blockToBeRead.getDataPosition {}",
-                    // blockToBeRead.getDataLength(),
-                    // blockToBeRead.getDataPosition());
-                    // logger.trace(String.format("off %s bytesToReadFromBlock %s ",
-                    // off, bytesToReadFromBlock));
-                    int srcPos = blockToBeRead.getDataPosition();
-                    try {
-                        if (resetPosition) {
-                            srcPos = 0;
-                        }
-                        // logger.trace("reading current block {} of length {}",
-                        // columnName, bytesToReadFromBlock);
-                        // logger.trace(String.format("copying from columnValue of its length %s starting from srcPos %s with copy length %s => buffer array b.length %s off %s file %s",
-                        // columnValue.length, srcPos, bytesToReadFromBlock,
-                        // b.length, off, name));
-                        System.arraycopy(columnValue, srcPos, b, off,
-                                bytesToReadFromBlock);
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        String whatHappened =
-                                String.format(
-                                        "columnValue length %s srcPos %s b length %s off %s bytesToBeRead %s",
-                                        columnValue.length, srcPos, b.length,
-                                        off, bytesToBeRead);
-                        logger.error(whatHappened, e);
-                        throw new IOException("unable to copy " + name);
+                }
+                // logger.trace("blockToBeRead.getDataLength {} blockToBeRead.getDataPosition {}",
+                // blockToBeRead.getDataLength(),
+                // blockToBeRead.getDataPosition());
+                // logger.trace(String.format("off %s bytesToReadFromBlock %s ",
+                // off, bytesToReadFromBlock));
+                int srcPos = blockToBeRead.getDataPosition();
+                try {
+                    if (resetPosition) {
+                        srcPos = 0;
                     }
-                    // logger.trace("bytes read {}", Util.debugBytesToHex(b));
-                    bytesToBeRead -= bytesToReadFromBlock;
-                    totalRead += bytesToReadFromBlock;
-                    off += bytesToReadFromBlock;
-                    blockToBeRead.setDataPosition(blockToBeRead
-                            .getDataPosition() + bytesToReadFromBlock);
-                    // logger.trace(String.format("bytesToBeRead %s offset %s bytesToReadFromBlock %s blockToBeRead.getDataPosition() %s",
-                    // bytesToBeRead, off, bytesToReadFromBlock,
-                    // blockToBeRead.getDataPosition()));
-                    resetPosition = true;
+                    // logger.trace("reading current block {} of length {}",
+                    // columnName, bytesToReadFromBlock);
+                    // logger.trace(String.format("copying from columnValue of its length %s starting from srcPos %s with copy length %s => buffer array b.length %s off %s file %s",
+                    // columnValue.length, srcPos, bytesToReadFromBlock,
+                    // b.length, off, name));
+                    System.arraycopy(columnValue, srcPos, b, off,
+                            bytesToReadFromBlock);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    String whatHappened =
+                            String.format(
+                                    "columnValue length %s srcPos %s b length %s off %s bytesToBeRead %s",
+                                    columnValue.length, srcPos, b.length,
+                                    off, bytesToBeRead);
+                    logger.error(whatHappened, e);
+                    throw new IOException("unable to copy " + name);
                 }
+                // logger.trace("bytes read {}", Util.debugBytesToHex(b));
+                bytesToBeRead -= bytesToReadFromBlock;
+                totalRead += bytesToReadFromBlock;
+                off += bytesToReadFromBlock;
+                blockToBeRead.setDataPosition(blockToBeRead
+                        .getDataPosition() + bytesToReadFromBlock);
+                // logger.trace(String.format("bytesToBeRead %s offset %s bytesToReadFromBlock %s blockToBeRead.getDataPosition() %s",
+                // bytesToBeRead, off, bytesToReadFromBlock,
+                // blockToBeRead.getDataPosition()));
+                resetPosition = true;
             }
         }
 
@@ -979,13 +1027,41 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
                     len, totalRead);
         }
 
+        metrics.counter("file.readBytes").addAndGet(totalRead);
         return totalRead;
     }
 
+    /**
+     * Persist the blocks and the descriptor changes that are still held back
+     * by the write-behind buffer.
+     * 
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        if (columnOrientedFile != null) {
+            columnOrientedFile.syncFileBlocks();
+        }
+    }
+
+    /**
+     * @return true if this file has writes that were not persisted yet
+     */
+    public boolean hasPendingWrites() {
+        return columnOrientedFile != null
+                && columnOrientedFile.hasPendingWrites();
+    }
+
     @Override
-    public void close() {
-        cassandraClient.close();
-        cassandraClient = null;
+    public void close() throws IOException {
+        if (blockStore == null) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            blockStore.close();
+            blockStore = null;
+        }
     }
 
     public FileDescriptor getFD() {
@@ -1031,8 +1107,98 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         return this.mode;
     }
 
-    public CassandraClient getCassandraClient() {
-        return cassandraClient;
+    /**
+     * @return the metrics of the directory, for the context the file was
+     *         opened in
+     */
+    public MetricGroup getMetrics() {
+        return metrics;
+    }
+
+    public BlockStore getBlockStore() {
+        return blockStore;
+    }
+
+    /**
+     * Read several ranges of this file at once, without moving the file
+     * pointer, as the positional scattering reads of its channel do: every
+     * buffer is filled from its own position, with as many bytes as it has
+     * remaining or the file has left. The blocks of an append-only file that
+     * cover all the ranges are fetched with one request; the ranges of other
+     * files are read one after the other, and are serialized.
+     *
+     * @return the total number of bytes read, or -1 if every range starts at
+     *         or past the end of the file
+     * @throws IOException
+     *             if a position is negative, or the blocks cannot be read
+     * @see ColumnOrientedFile#readFileRanges
+     */
+    public long read(long[] positions, ByteBuffer[] dsts, int offset,
+            int length) throws IOException {
+        if (fd == null) {
+            throw new IOException("cannot read " + name + ", it does not exist");
+        }
+        if (fd.isAppendOnly()) {
+            return columnOrientedFile.readFileRanges(fd, positions, dsts,
+                    offset, length);
+        }
+        long total = 0;
+        boolean eof = length > 0;
+        synchronized (this) {
+            // the ranges are read through the file pointer, which is put back
+            // where it was once they have been.
+            FileBlock block = currentBlock;
+            long blockOffset = block.getBlockOffset();
+            int dataPosition = block.getDataPosition();
+            try {
+                for (int i = offset; i < offset + length; i++) {
+                    if (positions[i] < 0) {
+                        throw new IOException("position cannot be negative");
+                    }
+                    if (positions[i] >= fd.getLength()) {
+                        continue;
+                    }
+                    eof = false;
+                    int toRead = (int) Math.min(dsts[i].remaining(),
+                            fd.getLength() - positions[i]);
+                    byte[] b = new byte[toRead];
+                    seek(positions[i]);
+                    int read = 0;
+                    while (read < toRead) {
+                        int n = read(b, read, toRead - read);
+                        if (n < 0) {
+                            break;
+                        }
+                        read += n;
+                    }
+                    dsts[i].put(b, 0, read);
+                    total += read;
+                }
+            } finally {
+                currentBlock = block;
+                block.setBlockOffset(blockOffset);
+                block.setDataPosition(dataPosition);
+            }
+        }
+        return eof ? -1 : total;
+    }
+
+    /**
+     * Map the given range of this file, which must be append-only, with its
+     * blocks faulted into the {@link PagePool} of the directory as they are
+     * read.
+     *
+     * @throws IOException
+     *             if the file is not append-only, or the range is not within
+     *             the file
+     * @see CassandraFile#map(long, long)
+     */
+    public MappedBlocks map(long position, long size) throws IOException {
+        if (fd == null) {
+            throw new IOException("cannot map " + name + ", it does not exist");
+        }
+        return new MappedBlocks(columnOrientedFile, fd,
+                PagePool.getInstance(keyspace, columnFamily), position, size);
     }
 
     @Override
@@ -1187,7 +1353,10 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
         int off = 0;
         byte[] src = {(byte)b};
         
-        if (append) {
+        if (append && fd.isAppendOnly()) {
+            moveToEnd();
+            append(src, off, src.length);
+        } else if (append) {
             currentBlock = fd.getLastBlock();
             
             if (currentBlock.getDataPosition() > 0) {
@@ -1294,14 +1463,16 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
             }
             fd.setLastAccessed(now);
             fd.setLastModified(now);
-            logger.trace("file descriptor {}", FileDescriptorUtils.toString(fd));
+            if (logger.isTraceEnabled()) {
+                logger.trace("file descriptor {}", FileDescriptorUtils.toString(fd));
+            }
             logger.trace("blocksToFlush size {}", blocksToFlush.size());
             if (blocksToFlush.size() > 1) {
                 for (Entry<byte[], byte[]> entry : blocksToFlush.entrySet()) {
                     logger.trace("flushing block {} ", new String(entry.getKey()));
                 }
             }
-            columnOrientedFile.writeFileBlocks(fd, blocksToFlush);
+            columnOrientedFile.bufferFileBlocks(fd, blocksToFlush);
             if (bytesLeftToWrite > 0) {
                 logger.error("did not write fully as expected, remaining {}",
                         bytesLeftToWrite);
@@ -1417,14 +1588,16 @@ public class ACassandraFile implements File, Closeable, MonitorType, Path {
             }
             fd.setLastAccessed(now);
             fd.setLastModified(now);
-            logger.trace("file descriptor {}", FileDescriptorUtils.toString(fd));
+            if (logger.isTraceEnabled()) {
+                logger.trace("file descriptor {}", FileDescriptorUtils.toString(fd));
+            }
             logger.trace("blocksToFlush size {}", blocksToFlush.size());
             if (blocksToFlush.size() > 1) {
                 for (Entry<byte[], byte[]> entry : blocksToFlush.entrySet()) {
                     logger.trace("flushing block {} ", new String(entry.getKey()));
                 }
             }
-            columnOrientedFile.writeFileBlocks(fd, blocksToFlush);
+            columnOrientedFile.bufferFileBlocks(fd, blocksToFlush);
             if (bytesLeftToWrite > 0) {
                 logger.error("did not write fully as expected, remaining {}",
                         bytesLeftToWrite);
@@ -3,7 +3,9 @@ package org.apache.lucene.cassandra;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import org.apache.lucene.cassandra.nio.FileChannelImpl;
 import org.apache.lucene.store.IOContext;
@@ -73,15 +75,12 @@ public class ACassandraRandomAccessFile implements RandomAccessFile,
 
     // Writes n bytes from the specified byte array starting at offset to this
     // file.
-    public static int writeCount = 0;
-    public static long writeTime = 0;
     public void write(byte[] b, int offset, int n) throws IOException {
        synchronized (lock) {
-            long ms = System.currentTimeMillis();
-            writeCount++;
+            long start = System.nanoTime();
             logger.trace("called write");
             file.write(b, offset, n);
-            writeTime += System.currentTimeMillis() - ms;
+            file.getMetrics().recordSince("randomAccessFile.write", start);
         }
     }
 
@@ -92,15 +91,12 @@ public class ACassandraRandomAccessFile implements RandomAccessFile,
      * change the file length. The file length will change only by writing after
      * the offset has been set beyond the end of the file.
      */
-    public static int seekCount = 0;
-    public static long seekTime = 0;
     public void seek(long pos) throws IOException {
         synchronized (lock) {
-            long ms = System.currentTimeMillis();
-            seekCount++;
+            long start = System.nanoTime();
             logger.trace("called seek {}", pos);
             file.seek(pos);
-            seekTime += System.currentTimeMillis() - ms;
+            file.getMetrics().recordSince("randomAccessFile.seek", start);
         }
     }
 
@@ -111,21 +107,15 @@ public class ACassandraRandomAccessFile implements RandomAccessFile,
     }
 
     // http://docs.oracle.com/javase/7/docs/api/java/io/RandomAccessFile.html#read%28byte[],%20int,%20int%29
-    public static int readCount = 0;
-    public static long readTime = 0;
     public int read(byte[] b, int off, int len) throws IOException {
-        String debug =
-                String.format(
-                        "reading a length of %s from this file %s into byte array  %s with starting offset %s",
-                        len, file.getName(), Util.debugBytesToHex(b), off);
-        // logger.trace(debug);
         synchronized (lock) {
-            long ms = System.currentTimeMillis();
-            readCount++;
+            long start = System.nanoTime();
             int read = file.read(b, off, len);
-            logger.info("read {} off {} ", read, off);
-            logger.info("Util.bytesToHex({})", Util.bytesToHex(b));
-            readTime += System.currentTimeMillis() - ms;
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("read %s of %s bytes from %s into %s at offset %s",
+                        read, len, file.getName(), Util.debugBytesToHex(b), off));
+            }
+            file.getMetrics().recordSince("randomAccessFile.read", start);
             return read;
         }
     }
@@ -161,33 +151,35 @@ public class ACassandraRandomAccessFile implements RandomAccessFile,
      *                synchronized with physical media.
      * @since JDK1.1
      */
-    public static int syncCount = 0;
-    public static long syncTime = 0;
-
     public void getFDsync() throws IOException {
         logger.trace("called getFDsync");
         synchronized (lock) {
-            syncCount++;
-            long ms = System.currentTimeMillis();
+            long start = System.nanoTime();
 
             FileDescriptor fd = file.getFD();
 
-            String existingFD = FileDescriptorUtils.toString(fd);
+            if (file.hasPendingWrites()) {
+                // write-behind: the stored descriptor is expected to lag.
+                file.sync();
+                file.getMetrics().recordSince("randomAccessFile.sync", start);
+                return;
+            }
+
+            byte[] existingFD = FileDescriptorUtils.toBinary(fd);
 
             ColumnOrientedFile cof =
-                    new ColumnOrientedFile(file.getCassandraClient());
+                    new ColumnOrientedFile(file.getBlockStore());
             FileDescriptor cassandraFD =
                     cof.getFileDescriptor(file.getAbsolutePath(), file.getBlockSize());
 
-            logger.info("cassandra file "  + cassandraFD.getName());
-            logger.info("existing file "  + fd.getName());
-
             if (cassandraFD != null) {
+                logger.trace("cassandra file {}", cassandraFD.getName());
+                logger.trace("existing file {}", fd.getName());
 
-                String cassandraFDString =
-                        FileDescriptorUtils.toString(cassandraFD);
+                byte[] cassandraFDBytes =
+                        FileDescriptorUtils.toBinary(cassandraFD);
 
-                if (!cassandraFDString.equals(existingFD)) {
+                if (!Arrays.equals(cassandraFDBytes, existingFD)) {
                     logger.error("existing fd {}", FileDescriptorUtils.toString(fd));
                     logger.error("cassandra fd {}",
                             FileDescriptorUtils.toString(cassandraFD));
@@ -195,11 +187,31 @@ public class ACassandraRandomAccessFile implements RandomAccessFile,
             }
 
             cof.setFileDescriptor(file.getAbsolutePath(), fd);
-            syncTime += System.currentTimeMillis() - ms;
+            file.getMetrics().recordSince("randomAccessFile.sync", start);
 
         }
     }
 
+    /**
+     * Read several ranges of this file at once, without moving the file
+     * pointer.
+     *
+     * @see ACassandraFile#read(long[], ByteBuffer[], int, int)
+     */
+    public long read(long[] positions, ByteBuffer[] dsts, int offset,
+            int length) throws IOException {
+        return file.read(positions, dsts, offset, length);
+    }
+
+    /**
+     * Map the given range of this file, as {@link FileChannel#map} does.
+     *
+     * @see ACassandraFile#map(long, long)
+     */
+    public MappedBlocks map(long position, long size) throws IOException {
+        return file.map(position, size);
+    }
+
     /**
      * Tests if this file descriptor object is valid.
      * 
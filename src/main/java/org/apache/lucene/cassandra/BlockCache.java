@@ -0,0 +1,368 @@
+package org.apache.lucene.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.monitor.Counter;
+import org.apache.monitor.JmxMonitor;
+import org.apache.monitor.MonitorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>BlockCache</code> keeps recently read file blocks on the client,
+ * so that repeated lookups into the same few blocks (e.g. of the term
+ * dictionary or the postings) do not go back to Cassandra every time.
+ *
+ * <p>
+ * There is one cache per directory (i.e. per keyspace and column family),
+ * shared by all the files in it. Blocks are keyed by file name and block name,
+ * and tagged with the version (i.e. the last modified timestamp) of the
+ * descriptor they were read under, so that a reader never picks up a block
+ * cached for a different version of the file. Writers and deletes invalidate
+ * the blocks they touch. The cache is bounded by the total number of bytes it
+ * holds, and evicts the least recently used blocks first.
+ * </p>
+ *
+ * <p>
+ * Readers that copy the block into a buffer of their own anyway can use
+ * {@link #getBuffer(String, String, long)}, which hands out the cached
+ * contents themselves rather than a copy.
+ * </p>
+ *
+ * <p>
+ * The cache is sized through the system property
+ * <code>lucene.cassandra.blockCache.size</code> (in bytes, 0 turns it off),
+ * and keeps its blocks in direct buffers outside of the java heap if
+ * <code>lucene.cassandra.blockCache.offHeap</code> is set. Hits, misses,
+ * evictions and the number of cached bytes are published through the
+ * {@link JmxMonitor}.
+ * </p>
+ */
+public class BlockCache implements MonitorType {
+
+    private static Logger logger = LoggerFactory.getLogger(BlockCache.class);
+
+    // The maximum number of bytes a cache may hold.
+    public static final long DEFAULT_CACHE_SIZE = Long.getLong(
+            "lucene.cassandra.blockCache.size", 64L * 1024 * 1024);
+
+    // Whether cached blocks are kept in direct (off-heap) buffers.
+    public static final boolean DEFAULT_OFF_HEAP = Boolean
+            .parseBoolean(System.getProperty(
+                    "lucene.cassandra.blockCache.offHeap", "false"));
+
+    // The shared caches, keyed by keyspace and column family.
+    private static final ConcurrentMap<String, BlockCache> caches =
+            new ConcurrentHashMap<String, BlockCache>();
+
+    private final String name;
+
+    private final long capacity;
+
+    private final boolean offHeap;
+
+    // The cached blocks, least recently used first.
+    private final LinkedHashMap<Key, Entry> entries =
+            new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+
+    // The keys of the cached blocks of every file, used to drop a whole file.
+    private final Map<String, Set<Key>> keysByFile =
+            new HashMap<String, Set<Key>>();
+
+    private long size = 0;
+
+    private final Map<Counter, AtomicLong> counters =
+            new EnumMap<Counter, AtomicLong>(Counter.class);
+
+    /**
+     * The name of a block within a file.
+     */
+    static final class Key {
+        final String fileName;
+
+        final String blockName;
+
+        Key(String fileName, String blockName) {
+            this.fileName = fileName;
+            this.blockName = blockName;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fileName.hashCode() + blockName.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return fileName.equals(other.fileName)
+                    && blockName.equals(other.blockName);
+        }
+    }
+
+    /**
+     * The contents of a block, as of the given descriptor version.
+     */
+    static final class Entry {
+        final long version;
+
+        final byte[] heapData;
+
+        final ByteBuffer directData;
+
+        final int length;
+
+        Entry(long version, ByteBuffer data, boolean offHeap) {
+            this.version = version;
+            this.length = data.remaining();
+            if (offHeap) {
+                this.heapData = null;
+                this.directData = ByteBuffer.allocateDirect(length);
+                this.directData.put(data.duplicate());
+                this.directData.flip();
+            } else {
+                this.heapData = new byte[length];
+                data.duplicate().get(heapData);
+                this.directData = null;
+            }
+        }
+
+        byte[] getData() {
+            if (heapData != null) {
+                return heapData.clone();
+            }
+            byte[] data = new byte[length];
+            directData.duplicate().get(data);
+            return data;
+        }
+
+        ByteBuffer getBuffer() {
+            return heapData != null ? ByteBuffer.wrap(heapData) : directData
+                    .duplicate();
+        }
+    }
+
+    /**
+     * Construct a block cache that holds up to the given number of bytes.
+     *
+     * @param name
+     *            the name under which the cache is monitored
+     * @param capacity
+     *            the maximum number of bytes to hold
+     * @param offHeap
+     *            whether to keep the blocks outside of the java heap
+     */
+    public BlockCache(String name, long capacity, boolean offHeap) {
+        this.name = name;
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+        counters.put(Counter.BLOCK_CACHE_HITS, new AtomicLong());
+        counters.put(Counter.BLOCK_CACHE_MISSES, new AtomicLong());
+        counters.put(Counter.BLOCK_CACHE_EVICTIONS, new AtomicLong());
+        counters.put(Counter.BLOCK_CACHE_BYTES, new AtomicLong());
+    }
+
+    /**
+     * Return the cache shared by all the files in the given directory,
+     * creating it on first use.
+     *
+     * @return the shared cache, or null if block caching is turned off
+     */
+    public static BlockCache getInstance(String keyspace, String columnFamily) {
+        if (DEFAULT_CACHE_SIZE <= 0) {
+            return null;
+        }
+        String key = keyspace + "/" + columnFamily;
+        BlockCache cache = caches.get(key);
+        if (cache == null) {
+            BlockCache newCache =
+                    new BlockCache(keyspace + "_" + columnFamily,
+                            DEFAULT_CACHE_SIZE, DEFAULT_OFF_HEAP);
+            cache = caches.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+                JmxMonitor.getInstance().getCassandraMonitor(cache);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Return a copy of the given block, if it is cached for the given
+     * descriptor version.
+     *
+     * @return the block data, or null on a miss
+     */
+    public synchronized byte[] get(String fileName, String blockName,
+            long version) {
+        Entry entry = entries.get(new Key(fileName, blockName));
+        if (entry == null || entry.version != version) {
+            counters.get(Counter.BLOCK_CACHE_MISSES).incrementAndGet();
+            return null;
+        }
+        counters.get(Counter.BLOCK_CACHE_HITS).incrementAndGet();
+        return entry.getData();
+    }
+
+    /**
+     * Return the given block itself, rather than a copy of it, if it is
+     * cached for the given descriptor version. The buffer must not be
+     * written to.
+     *
+     * @return the block data, or null on a miss
+     */
+    public synchronized ByteBuffer getBuffer(String fileName,
+            String blockName, long version) {
+        Entry entry = entries.get(new Key(fileName, blockName));
+        if (entry == null || entry.version != version) {
+            counters.get(Counter.BLOCK_CACHE_MISSES).incrementAndGet();
+            return null;
+        }
+        counters.get(Counter.BLOCK_CACHE_HITS).incrementAndGet();
+        return entry.getBuffer();
+    }
+
+    /**
+     * Cache the given block as read under the given descriptor version,
+     * evicting the least recently used blocks if need be.
+     */
+    public void put(String fileName, String blockName, long version,
+            byte[] data) {
+        put(fileName, blockName, version,
+                data == null ? null : ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Cache the remaining bytes of the given buffer as the given block.
+     *
+     * @see #put(String, String, long, byte[])
+     */
+    public synchronized void put(String fileName, String blockName,
+            long version, ByteBuffer data) {
+        if (data == null || data.remaining() > capacity) {
+            return;
+        }
+        Key key = new Key(fileName, blockName);
+        Entry previous = entries.put(key, new Entry(version, data, offHeap));
+        if (previous != null) {
+            size -= previous.length;
+        } else {
+            Set<Key> keys = keysByFile.get(fileName);
+            if (keys == null) {
+                keys = new HashSet<Key>();
+                keysByFile.put(fileName, keys);
+            }
+            keys.add(key);
+        }
+        size += data.remaining();
+
+        Iterator<Map.Entry<Key, Entry>> iterator =
+                entries.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue().length;
+            forgetKey(eldest.getKey());
+            counters.get(Counter.BLOCK_CACHE_EVICTIONS).incrementAndGet();
+        }
+        counters.get(Counter.BLOCK_CACHE_BYTES).set(size);
+    }
+
+    /**
+     * Drop the given block of the given file, e.g. because it was rewritten.
+     */
+    public synchronized void invalidate(String fileName, String blockName) {
+        Key key = new Key(fileName, blockName);
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.length;
+            forgetKey(key);
+            counters.get(Counter.BLOCK_CACHE_BYTES).set(size);
+        }
+    }
+
+    /**
+     * Drop every block of the given file, e.g. because it was deleted.
+     */
+    public synchronized void invalidate(String fileName) {
+        Set<Key> keys = keysByFile.remove(fileName);
+        if (keys == null) {
+            return;
+        }
+        logger.trace("invalidating {} blocks of {}", keys.size(), fileName);
+        for (Key key : keys) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                size -= entry.length;
+            }
+        }
+        counters.get(Counter.BLOCK_CACHE_BYTES).set(size);
+    }
+
+    /**
+     * Drop every cached block.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        keysByFile.clear();
+        size = 0;
+        counters.get(Counter.BLOCK_CACHE_BYTES).set(0);
+    }
+
+    private void forgetKey(Key key) {
+        Set<Key> keys = keysByFile.get(key.fileName);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByFile.remove(key.fileName);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes currently cached
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return counters.get(Counter.BLOCK_CACHE_HITS).get();
+    }
+
+    public long getMisses() {
+        return counters.get(Counter.BLOCK_CACHE_MISSES).get();
+    }
+
+    public long getEvictions() {
+        return counters.get(Counter.BLOCK_CACHE_EVICTIONS).get();
+    }
+
+    @Override
+    public String getMonitorName() {
+        return "BlockCache_" + name;
+    }
+
+    @Override
+    public Map<Counter, AtomicLong> getCounters() {
+        return counters;
+    }
+
+}
@@ -0,0 +1,263 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyError;
+
+/**
+ * A <code>BlockCodec</code> compresses the values of file blocks before they
+ * are sent to Cassandra, and decompresses them when they are read back (see
+ * {@link BlockCompression}).
+ *
+ * <p>
+ * Every codec has a name, by which a directory is configured to use it, and an
+ * id, which is stored with every block it compressed so that the block can be
+ * read back whatever codec the directory uses by then. The built-in codecs are
+ * <code>none</code>, <code>snappy</code>, <code>deflate</code> and
+ * <code>lz4</code>; others can be added through {@link #register(BlockCodec)},
+ * as long as their ids stay the same from one run to the next.
+ * </p>
+ */
+public abstract class BlockCodec {
+
+    // The registered codecs, by name and by id.
+    private static final ConcurrentMap<String, BlockCodec> codecsByName =
+            new ConcurrentHashMap<String, BlockCodec>();
+
+    private static final BlockCodec[] codecsById = new BlockCodec[256];
+
+    public static final BlockCodec NONE = new NoneCodec();
+
+    public static final BlockCodec SNAPPY = new SnappyCodec();
+
+    public static final BlockCodec DEFLATE = new DeflateCodec();
+
+    public static final BlockCodec LZ4 = new LZ4Codec();
+
+    static {
+        register(NONE);
+        register(SNAPPY);
+        register(DEFLATE);
+        register(LZ4);
+    }
+
+    /**
+     * @return the id stored with every block compressed by this codec
+     */
+    public abstract byte getId();
+
+    /**
+     * @return the name a directory is configured with to use this codec
+     */
+    public abstract String getName();
+
+    /**
+     * @return the largest number of bytes the given number of bytes may be
+     *         compressed into
+     */
+    public abstract int maxCompressedLength(int length);
+
+    /**
+     * Compress the given bytes.
+     *
+     * @param dst
+     *            the buffer to compress into, which has room for at least
+     *            {@link #maxCompressedLength(int)} bytes
+     * @return the number of bytes the data was compressed into
+     * @throws IOException
+     */
+    public abstract int compress(byte[] src, int srcOff, int srcLen,
+            byte[] dst, int dstOff) throws IOException;
+
+    /**
+     * Decompress the given bytes.
+     *
+     * @param dstLen
+     *            the number of bytes the data was compressed from
+     * @throws IOException
+     *             if the data is corrupt
+     */
+    public abstract void decompress(byte[] src, int srcOff, int srcLen,
+            byte[] dst, int dstOff, int dstLen) throws IOException;
+
+    /**
+     * Make the given codec available by its name and id.
+     *
+     * @throws IllegalArgumentException
+     *             if another codec has the same id
+     */
+    public static synchronized void register(BlockCodec codec) {
+        int id = codec.getId() & 0xFF;
+        if (codecsById[id] != null && codecsById[id] != codec) {
+            throw new IllegalArgumentException("codec id " + id
+                    + " is already used by " + codecsById[id].getName());
+        }
+        codecsById[id] = codec;
+        codecsByName.put(codec.getName().toLowerCase(), codec);
+    }
+
+    /**
+     * @return the codec of the given name, or null if there is none
+     */
+    public static BlockCodec forName(String name) {
+        return codecsByName.get(name.toLowerCase());
+    }
+
+    /**
+     * @return the codec of the given id, or null if there is none
+     */
+    public static synchronized BlockCodec forId(byte id) {
+        return codecsById[id & 0xFF];
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * Leaves blocks as they are.
+     */
+    static class NoneCodec extends BlockCodec {
+        public byte getId() {
+            return 0;
+        }
+
+        public String getName() {
+            return "none";
+        }
+
+        public int maxCompressedLength(int length) {
+            return length;
+        }
+
+        public int compress(byte[] src, int srcOff, int srcLen, byte[] dst,
+                int dstOff) {
+            System.arraycopy(src, srcOff, dst, dstOff, srcLen);
+            return srcLen;
+        }
+
+        public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst,
+                int dstOff, int dstLen) throws IOException {
+            if (srcLen != dstLen) {
+                throw new IOException("expected " + dstLen + " bytes, got "
+                        + srcLen);
+            }
+            System.arraycopy(src, srcOff, dst, dstOff, srcLen);
+        }
+    }
+
+    /**
+     * Compresses blocks with snappy, whose native library may not load on
+     * every platform.
+     */
+    static class SnappyCodec extends BlockCodec {
+        public byte getId() {
+            return 1;
+        }
+
+        public String getName() {
+            return "snappy";
+        }
+
+        public int maxCompressedLength(int length) {
+            // snappy's worst case, without loading the native library.
+            return 32 + length + length / 6;
+        }
+
+        public int compress(byte[] src, int srcOff, int srcLen, byte[] dst,
+                int dstOff) throws IOException {
+            try {
+                return Snappy.compress(src, srcOff, srcLen, dst, dstOff);
+            } catch (SnappyError | NoClassDefFoundError e) {
+                throw new IOException("snappy is not available", e);
+            }
+        }
+
+        public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst,
+                int dstOff, int dstLen) throws IOException {
+            try {
+                int length = Snappy.uncompress(src, srcOff, srcLen, dst, dstOff);
+                if (length != dstLen) {
+                    throw new IOException("expected " + dstLen
+                            + " bytes, got " + length);
+                }
+            } catch (SnappyError | NoClassDefFoundError e) {
+                throw new IOException("snappy is not available", e);
+            }
+        }
+    }
+
+    /**
+     * Compresses blocks with the deflate algorithm of java.util.zip, which is
+     * slower than the others, but compresses better.
+     */
+    static class DeflateCodec extends BlockCodec {
+        public byte getId() {
+            return 2;
+        }
+
+        public String getName() {
+            return "deflate";
+        }
+
+        public int maxCompressedLength(int length) {
+            // the worst case of zlib's deflateBound, plus the header.
+            return length + (length >> 12) + (length >> 14) + (length >> 25)
+                    + 13 + 6;
+        }
+
+        public int compress(byte[] src, int srcOff, int srcLen, byte[] dst,
+                int dstOff) throws IOException {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(src, srcOff, srcLen);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    int room = dst.length - dstOff - length;
+                    if (room == 0) {
+                        throw new IOException("no room to deflate into");
+                    }
+                    length += deflater.deflate(dst, dstOff + length, room);
+                }
+                return length;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst,
+                int dstOff, int dstLen) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(src, srcOff, srcLen);
+                int length = 0;
+                while (length < dstLen && !inflater.finished()) {
+                    int inflated =
+                            inflater.inflate(dst, dstOff + length, dstLen
+                                    - length);
+                    if (inflated == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != dstLen) {
+                    throw new IOException("expected " + dstLen
+                            + " bytes, got " + length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt deflated block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+}
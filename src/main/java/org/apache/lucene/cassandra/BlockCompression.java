@@ -0,0 +1,281 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.monitor.Counter;
+import org.apache.monitor.JmxMonitor;
+import org.apache.monitor.MonitorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>BlockCompression</code> of a directory compresses the blocks of its
+ * files with the {@link BlockCodec} it is configured with, before they are
+ * sent to Cassandra.
+ *
+ * <p>
+ * The blocks of a file are only ever compressed if its descriptor says so
+ * (see {@link FileDescriptor#isCompressed()}), which is decided when the file
+ * is created, so the blocks of older files are read as they always were. Every
+ * block of a compressed file starts with the id of the codec it was
+ * compressed with, followed by its uncompressed length unless it was stored as
+ * it is, which it is when it is smaller than the threshold or does not
+ * compress. Blocks written with different codecs can thus live side by side,
+ * and a partially filled block may be written out again with another codec
+ * without confusing readers that still hold an older descriptor.
+ * </p>
+ *
+ * <p>
+ * The codec is configured through the system property
+ * <code>lucene.cassandra.compression.codec</code> (one of <code>none</code>,
+ * <code>snappy</code>, <code>deflate</code> or <code>lz4</code>), which can be
+ * overridden for a single directory with
+ * <code>lucene.cassandra.compression.codec.&lt;keyspace&gt;.&lt;columnFamily&gt;</code>.
+ * Blocks smaller than <code>lucene.cassandra.compression.threshold</code>
+ * bytes are never compressed. The number of bytes before and after
+ * compression, and the time spent compressing and decompressing, are
+ * published through the {@link JmxMonitor}.
+ * </p>
+ */
+public class BlockCompression implements MonitorType {
+
+    private static Logger logger = LoggerFactory
+            .getLogger(BlockCompression.class);
+
+    // The name of the codec new files are compressed with.
+    public static final String DEFAULT_CODEC = System.getProperty(
+            "lucene.cassandra.compression.codec", "none");
+
+    // Blocks smaller than this many bytes are stored as they are.
+    public static final int DEFAULT_THRESHOLD = Integer.getInteger(
+            "lucene.cassandra.compression.threshold", 1024);
+
+    // The instances shared by the files of a directory, keyed by keyspace and
+    // column family.
+    private static final ConcurrentMap<String, BlockCompression> instances =
+            new ConcurrentHashMap<String, BlockCompression>();
+
+    private final String name;
+
+    private final BlockCodec codec;
+
+    private final int threshold;
+
+    private final Map<Counter, AtomicLong> counters =
+            new EnumMap<Counter, AtomicLong>(Counter.class);
+
+    /**
+     * Construct the compression of a directory.
+     *
+     * @param name
+     *            the name under which the compression is monitored
+     * @param codec
+     *            the codec to compress blocks with
+     * @param threshold
+     *            the size under which blocks are stored as they are
+     */
+    public BlockCompression(String name, BlockCodec codec, int threshold) {
+        this.name = name;
+        this.codec = codec;
+        this.threshold = threshold;
+        counters.put(Counter.COMPRESSED_BLOCKS, new AtomicLong());
+        counters.put(Counter.COMPRESSION_INPUT_BYTES, new AtomicLong());
+        counters.put(Counter.COMPRESSION_OUTPUT_BYTES, new AtomicLong());
+        counters.put(Counter.COMPRESSION_NANOS, new AtomicLong());
+        counters.put(Counter.DECOMPRESSION_NANOS, new AtomicLong());
+    }
+
+    /**
+     * Return the compression shared by all the files in the given directory,
+     * creating it on first use.
+     */
+    public static BlockCompression getInstance(String keyspace,
+            String columnFamily) {
+        String key = keyspace + "/" + columnFamily;
+        BlockCompression compression = instances.get(key);
+        if (compression == null) {
+            String codecName =
+                    System.getProperty("lucene.cassandra.compression.codec."
+                            + keyspace + "." + columnFamily, DEFAULT_CODEC);
+            BlockCodec codec = BlockCodec.forName(codecName);
+            if (codec == null) {
+                logger.warn("unknown codec {}, not compressing {}", codecName,
+                        key);
+                codec = BlockCodec.NONE;
+            }
+            BlockCompression newCompression =
+                    new BlockCompression(keyspace + "_" + columnFamily, codec,
+                            DEFAULT_THRESHOLD);
+            compression = instances.putIfAbsent(key, newCompression);
+            if (compression == null) {
+                compression = newCompression;
+                JmxMonitor.getInstance().getCassandraMonitor(compression);
+            }
+        }
+        return compression;
+    }
+
+    /**
+     * @return the codec blocks are compressed with
+     */
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return whether new files are compressed at all
+     */
+    public boolean isEnabled() {
+        return codec != BlockCodec.NONE;
+    }
+
+    /**
+     * Turn the given block into the value to store for it, compressed if
+     * that is worth it.
+     *
+     * @param block
+     *            the data of the block
+     * @return the codec id and the (compressed) data
+     */
+    public byte[] encode(byte[] block) {
+        counters.get(Counter.COMPRESSION_INPUT_BYTES).addAndGet(block.length);
+        if (isEnabled() && block.length >= threshold) {
+            long start = System.nanoTime();
+            byte[] value =
+                    new byte[1 + 5 + codec.maxCompressedLength(block.length)];
+            value[0] = codec.getId();
+            int offset = writeVInt(block.length, value, 1);
+            try {
+                int length =
+                        offset
+                                + codec.compress(block, 0, block.length, value,
+                                        offset);
+                if (length < block.length + 1) {
+                    counters.get(Counter.COMPRESSION_NANOS).addAndGet(
+                            System.nanoTime() - start);
+                    counters.get(Counter.COMPRESSED_BLOCKS).incrementAndGet();
+                    counters.get(Counter.COMPRESSION_OUTPUT_BYTES).addAndGet(
+                            length);
+                    return Arrays.copyOf(value, length);
+                }
+            } catch (IOException e) {
+                logger.warn("unable to compress with " + codec, e);
+            }
+            counters.get(Counter.COMPRESSION_NANOS).addAndGet(
+                    System.nanoTime() - start);
+        }
+        byte[] value = new byte[block.length + 1];
+        value[0] = BlockCodec.NONE.getId();
+        System.arraycopy(block, 0, value, 1, block.length);
+        counters.get(Counter.COMPRESSION_OUTPUT_BYTES).addAndGet(value.length);
+        return value;
+    }
+
+    /**
+     * Turn the given stored value back into the data of its block. Blocks
+     * that were stored as they are are not copied.
+     *
+     * @param value
+     *            the value stored for the block
+     * @return the data of the block
+     * @throws IOException
+     *             if the block was compressed with an unknown codec, or is
+     *             corrupt
+     */
+    public ByteBuffer decode(ByteBuffer value) throws IOException {
+        if (!value.hasRemaining()) {
+            throw new IOException("block carries no codec");
+        }
+        int position = value.position();
+        byte id = value.get(position);
+        if (id == BlockCodec.NONE.getId()) {
+            ByteBuffer block = value.duplicate();
+            block.position(position + 1);
+            return block.slice();
+        }
+        BlockCodec blockCodec = BlockCodec.forId(id);
+        if (blockCodec == null) {
+            throw new IOException("block was compressed with unknown codec "
+                    + id);
+        }
+        long start = System.nanoTime();
+        byte[] src;
+        int srcOff;
+        if (value.hasArray()) {
+            src = value.array();
+            srcOff = value.arrayOffset() + position;
+        } else {
+            src = new byte[value.remaining()];
+            value.duplicate().get(src);
+            srcOff = 0;
+        }
+        int srcEnd = srcOff + value.remaining();
+        int length = 0;
+        int offset = srcOff + 1;
+        for (int shift = 0;; shift += 7) {
+            if (offset >= srcEnd || shift > 28) {
+                throw new IOException("corrupt block length");
+            }
+            byte b = src[offset++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        byte[] block = new byte[length];
+        blockCodec.decompress(src, offset, srcEnd - offset, block, 0, length);
+        counters.get(Counter.DECOMPRESSION_NANOS).addAndGet(
+                System.nanoTime() - start);
+        return ByteBuffer.wrap(block);
+    }
+
+    /**
+     * @see #decode(ByteBuffer)
+     */
+    public byte[] decode(byte[] value) throws IOException {
+        ByteBuffer block = decode(ByteBuffer.wrap(value));
+        if (block.arrayOffset() == 0 && block.remaining() == block.capacity()) {
+            return block.array();
+        }
+        byte[] data = new byte[block.remaining()];
+        block.get(data);
+        return data;
+    }
+
+    private static int writeVInt(int i, byte[] b, int offset) {
+        while ((i & ~0x7F) != 0) {
+            b[offset++] = (byte) ((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        b[offset++] = (byte) i;
+        return offset;
+    }
+
+    /**
+     * @return the number of bytes stored for every byte written so far
+     */
+    public double getCompressionRatio() {
+        long input = counters.get(Counter.COMPRESSION_INPUT_BYTES).get();
+        return input == 0 ? 1.0 : (double) counters.get(
+                Counter.COMPRESSION_OUTPUT_BYTES).get()
+                / input;
+    }
+
+    @Override
+    public String getMonitorName() {
+        return "BlockCompression_" + name;
+    }
+
+    @Override
+    public Map<Counter, AtomicLong> getCounters() {
+        return counters;
+    }
+
+}
@@ -0,0 +1,196 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import org.apache.monitor.MetricGroup;
+
+/**
+ * The <code>BlockStore</code> is what {@link ColumnOrientedFile} and
+ * {@link ColumnOrientedDirectory} keep their rows in: a sorted map of rows,
+ * each of which is a sorted map of named columns, within one keyspace and
+ * column family. A file is a row whose columns are its blocks and its
+ * descriptor.
+ *
+ * <p>
+ * The {@link CassandraClient} stores the rows in Cassandra over thrift, and
+ * the {@link MemoryBlockStore} keeps them in the memory of this JVM, e.g. to
+ * test or benchmark the directory without a cluster. {@link BlockStores}
+ * picks one of them.
+ * </p>
+ *
+ * <p>
+ * Implementations are thread-safe. Row keys are ordered as with the
+ * ByteOrderedPartitioner and column names as bytes, both unsigned. The
+ * <code>...Async</code> methods run the very same operation in the
+ * background; use {@link CassandraClient#await(Future)} to get its result.
+ * </p>
+ */
+public interface BlockStore {
+
+    /**
+     * @return the keyspace of the rows
+     */
+    public String getKeyspace();
+
+    /**
+     * @return the column family of the rows
+     */
+    public String getColumnFamily();
+
+    /**
+     * @return the metrics the requests to this store are recorded in
+     */
+    public MetricGroup getMetrics();
+
+    /**
+     * Return the keys of the rows that have the given columns, skipping the
+     * rows whose descriptor marks a deleted file unless told otherwise.
+     *
+     * @param columnNames
+     *            the names of the columns
+     * @param count
+     *            the maximum number of rows to look at
+     * @param getAll
+     *            whether to return the rows of deleted files too
+     * @return the keys of those rows
+     * @throws IOException
+     */
+    public byte[][] getKeys(List<byte[]> columnNames, int count, boolean getAll)
+            throws IOException;
+
+    /**
+     * Get a page of the rows that have the given column, along with the value
+     * of that column, in row key order.
+     *
+     * @param columnName
+     *            the name of the column to fetch
+     * @param startKey
+     *            the key of the first row to fetch, or an empty array to start
+     *            at the first row
+     * @param count
+     *            the maximum number of rows to fetch
+     * @return the values of the column, by row key; rows that do not have
+     *         the column map to null
+     * @throws IOException
+     */
+    public LinkedHashMap<String, byte[]> getColumnOfRows(byte[] columnName,
+            byte[] startKey, int count) throws IOException;
+
+    /**
+     * @return all the columns of the given row
+     * @throws IOException
+     */
+    public Map<byte[], byte[]> getColumns(byte[] key) throws IOException;
+
+    /**
+     * @see #getColumns(byte[])
+     */
+    public Future<Map<byte[], byte[]>> getColumnsAsync(byte[] key)
+            throws IOException;
+
+    /**
+     * @return the given columns of the given row, leaving out those that do
+     *         not exist
+     * @throws IOException
+     */
+    public Map<byte[], byte[]> getColumns(byte[] key, Set<byte[]> columnNames)
+            throws IOException;
+
+    /**
+     * @see #getColumns(byte[], Set)
+     */
+    public Future<Map<byte[], byte[]>> getColumnsAsync(byte[] key,
+            Set<byte[]> columnNames) throws IOException;
+
+    /**
+     * Get the values of the given columns of the given row, in the order of
+     * the names. The values must not be written to.
+     *
+     * @return the value of every column, or null for the columns that do not
+     *         exist
+     * @throws IOException
+     */
+    public ByteBuffer[] getColumnValues(byte[] key, List<ByteBuffer> names)
+            throws IOException;
+
+    /**
+     * Get a page of the columns of the given row, in column name order.
+     *
+     * @param start
+     *            the name of the first column to fetch, or an empty array to
+     *            start at the beginning of the row
+     * @param count
+     *            the maximum number of columns to fetch
+     * @throws IOException
+     */
+    public BlockMap getColumns(byte[] key, byte[] start, int count)
+            throws IOException;
+
+    /**
+     * @return the value of the given column of the given row, or null
+     * @throws IOException
+     */
+    public byte[] getColumn(byte[] key, byte[] columnName) throws IOException;
+
+    /**
+     * @see #getColumn(byte[], byte[])
+     */
+    public Future<byte[]> getColumnAsync(byte[] key, byte[] columnName)
+            throws IOException;
+
+    /**
+     * Get the value of the given column in each of the given rows.
+     *
+     * @return the values of the column, by row key; rows that do not have
+     *         the column map to null
+     * @throws IOException
+     */
+    public Map<String, byte[]> getColumnOfKeys(Collection<byte[]> keys,
+            byte[] columnName) throws IOException;
+
+    /**
+     * Set the values for the given columns in the given row. A null value
+     * deletes its column, and no columns at all delete the row.
+     *
+     * @throws IOException
+     */
+    public void setColumns(ByteBuffer key, Map<byte[], byte[]> columnValues)
+            throws IOException;
+
+    /**
+     * Set the values for the given columns in several rows at once, as with
+     * {@link #setColumns(ByteBuffer, Map)}.
+     *
+     * @throws IOException
+     */
+    public void setColumns(Map<ByteBuffer, Map<byte[], byte[]>> rows)
+            throws IOException;
+
+    /**
+     * The column values must not be changed until the returned future is
+     * done.
+     *
+     * @see #setColumns(ByteBuffer, Map)
+     */
+    public Future<Void> setColumnsAsync(ByteBuffer key,
+            Map<byte[], byte[]> columnValues) throws IOException;
+
+    /**
+     * @see #setColumns(Map)
+     */
+    public Future<Void> setColumnsAsync(
+            Map<ByteBuffer, Map<byte[], byte[]>> rows) throws IOException;
+
+    /**
+     * Release the resources of this store. Shared stores ignore this.
+     */
+    public void close();
+
+}
@@ -0,0 +1,53 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+
+/**
+ * Hands out the {@link BlockStore} of a keyspace and column family, which is
+ * shared by the directory and every file it opens.
+ *
+ * <p>
+ * The kind of store is chosen through the system property
+ * <code>lucene.cassandra.store</code>: <code>thrift</code> (the default)
+ * keeps the rows in Cassandra, through the pooled {@link CassandraClient} of
+ * <code>lucene.cassandra.host</code> and <code>lucene.cassandra.port</code>,
+ * and <code>memory</code> keeps them in a {@link MemoryBlockStore}.
+ * </p>
+ */
+public final class BlockStores {
+
+    public static final String THRIFT = "thrift";
+
+    public static final String MEMORY = "memory";
+
+    // The kind of store the directories keep their files in.
+    public static final String DEFAULT_STORE = System.getProperty(
+            "lucene.cassandra.store", THRIFT);
+
+    private BlockStores() {
+    }
+
+    /**
+     * Return the shared store of the given keyspace and column family.
+     *
+     * @param framed
+     *            whether thrift connections use the framed transport
+     * @throws IOException
+     *             if the store cannot be reached
+     */
+    public static BlockStore getStore(boolean framed, String keyspace,
+            String columnFamily, int blockSize) throws IOException {
+        if (MEMORY.equals(DEFAULT_STORE)) {
+            return MemoryBlockStore.getInstance(keyspace, columnFamily,
+                    blockSize);
+        }
+        if (!THRIFT.equals(DEFAULT_STORE)) {
+            throw new IOException("unknown lucene.cassandra.store "
+                    + DEFAULT_STORE);
+        }
+        return CassandraClientPool.getClient(CassandraClientPool.DEFAULT_HOST,
+                CassandraClientPool.DEFAULT_PORT, framed, keyspace,
+                columnFamily, blockSize);
+    }
+
+}
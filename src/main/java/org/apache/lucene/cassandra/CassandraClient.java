@@ -1,103 +1,219 @@
 package org.apache.lucene.cassandra;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import org.apache.cassandra.auth.IAuthenticator;
-import org.apache.cassandra.thrift.AuthenticationRequest;
 import org.apache.cassandra.thrift.Cassandra;
-import org.apache.cassandra.thrift.CfDef;
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ColumnOrSuperColumn;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.Deletion;
-import org.apache.cassandra.thrift.InvalidRequestException;
 import org.apache.cassandra.thrift.KeyRange;
 import org.apache.cassandra.thrift.KeySlice;
-import org.apache.cassandra.thrift.KsDef;
 import org.apache.cassandra.thrift.Mutation;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.cassandra.thrift.SliceRange;
 import org.apache.cassandra.utils.ByteBufferUtil;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.transport.TFramedTransport;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.transport.TTransport;
+import org.apache.lucene.cassandra.ConsistencyLevels.OperationType;
+import org.apache.monitor.MetricGroup;
+import org.apache.monitor.MetricsRegistry;
+import org.apache.thrift.TException;
 import org.apache.thrift.transport.TTransportException;
 
-public class CassandraClient {
-    protected Cassandra.Client thriftClient;
+/**
+ * The <code>CassandraClient</code> encapsulates the low-level interactions with
+ * the (remote) Cassandra server, and is the {@link BlockStore} the directory
+ * uses unless told otherwise. Every operation borrows a thrift connection
+ * from a {@link CassandraClientPool} and hands it back when done, so a single
+ * client may be shared by the directory and all of the files it opens.
+ *
+ * <p>
+ * The reads and writes of columns come in two flavours: the usual blocking
+ * methods, and <code>...Async</code> methods that run the very same operation
+ * on one of the pool's worker threads and return a {@link Future}, so that
+ * callers can prefetch blocks or fill their next buffer while a request is in
+ * flight. Use {@link #await(Future)} to get the result of such a future with
+ * the same exceptions the blocking method would have thrown.
+ * </p>
+ *
+ * <p>
+ * Every request runs at the consistency level its pool configures for its
+ * class of operation (see {@link ConsistencyLevels}): descriptor reads, block
+ * reads, block writes, descriptor writes and listings.
+ * </p>
+ *
+ * <p>
+ * Requests about a single row are sent to a replica of that row, as found by
+ * the {@link TokenRing} of the pool, and the other requests to the fastest
+ * live host. A request that fails with a transport error marks its host down
+ * and is sent to the next host, until every host has been tried.
+ * </p>
+ *
+ * <p>
+ * The latency of every request, and the number of requests that were retried
+ * or failed, are recorded by request in the metrics of the directory (see
+ * {@link MetricsRegistry}).
+ * </p>
+ */
+public class CassandraClient implements BlockStore {
+    // The maximum number of rows read by a single multiget.
+    private static final int MULTIGET_BATCH_SIZE = 256;
+    // The column that holds the descriptor of a file.
+    private static final byte[] descriptorColumn = "DESCRIPTOR".getBytes();
+
     String keyspace;
     String columnFamily;
     int blockSize;
-    private TTransport transport = null;
-    
+    private final CassandraClientPool pool;
+    // the metrics of the requests to the directory.
+    private final MetricGroup metrics;
+    // shared clients belong to their pool and ignore close().
+    private boolean shared = false;
 
     public CassandraClient(String host, int port, boolean framed, String keyspace, String columnFamily, int blockSize)
             throws IOException {
+        this(new CassandraClientPool(host, port, framed, keyspace,
+                columnFamily, blockSize, CassandraClientPool.DEFAULT_MAX_ACTIVE,
+                CassandraClientPool.DEFAULT_MAX_IDLE_MILLIS), keyspace,
+                columnFamily, blockSize);
+        // open the first connection eagerly so that a bad host fails here.
+        pool.release(pool.borrow(), false);
+    }
+
+    CassandraClient(CassandraClientPool pool, String keyspace,
+            String columnFamily, int blockSize) {
+        this.pool = pool;
         this.keyspace = keyspace;
         this.columnFamily = columnFamily;
         this.blockSize = blockSize;
-        TSocket socket = new TSocket(host, port);
-        socket.getSocket().setReuseAddress(true);
-        socket.getSocket().setSoLinger(true, 0);
-        socket.getSocket().setKeepAlive(true);
-        transport = framed ? new TFramedTransport(socket) : socket;
-        try {
-            transport.open();
-            thriftClient =
-                    new Cassandra.Client(new TBinaryProtocol(transport));
-            Map<String, String> credentials = new HashMap<String, String>();
-            credentials.put(IAuthenticator.USERNAME_KEY, "");
-            credentials.put(IAuthenticator.PASSWORD_KEY, "");
-            List<KsDef> keyspaces = thriftClient.describe_keyspaces();
-            boolean createKeyspace = true;
-            boolean createColumnFamily = true;
-
-            for (KsDef ks : keyspaces) {
-                if (ks.name.equals(keyspace)) {
-                    createKeyspace = false;
-                    for (CfDef cf : ks.getCf_defs()) {
-                        if (cf.getName().equals(columnFamily)) {
-                            createColumnFamily = false;
-                        }
+        this.metrics = MetricsRegistry.getGroup(keyspace + "/" + columnFamily,
+                MetricsRegistry.ANY_CONTEXT);
+    }
+
+    void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    public String getKeyspace() {
+        return keyspace;
+    }
+
+    public String getColumnFamily() {
+        return columnFamily;
+    }
+
+    /**
+     * @return the pool this client borrows its connections from
+     */
+    public CassandraClientPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return the metrics of the requests sent by this client
+     */
+    public MetricGroup getMetrics() {
+        return metrics;
+    }
+
+    // the consistency levels of the pool this client belongs to.
+    private ConsistencyLevels levels() {
+        return pool.getConsistencyLevels();
+    }
+
+    /**
+     * A single request to the server, run on a borrowed connection, either
+     * in the calling thread or on one of the pool's worker threads. Requests
+     * are idempotent (mutations carry their timestamps along), so one that
+     * fails with a transport error is simply sent again to another host.
+     */
+    abstract class Operation<T> implements Callable<T> {
+
+        // the name the request is monitored under.
+        private final String name;
+
+        // the row the request is about, or null if it spans rows.
+        private final ByteBuffer key;
+
+        Operation(String name, ByteBuffer key) {
+            this.name = name;
+            this.key = key;
+        }
+
+        abstract T execute(Cassandra.Client client) throws Exception;
+
+        // the message of the exception thrown if the request fails.
+        abstract String getFailureMessage();
+
+        @Override
+        public T call() throws IOException {
+            TokenRing ring = pool.getRing();
+            int attempts = 0;
+            while (true) {
+                CassandraClientPool.Connection connection = pool.borrow(key);
+                boolean broken = false;
+                long start = System.nanoTime();
+                try {
+                    T result = execute(connection.client);
+                    long nanos = System.nanoTime() - start;
+                    ring.recordLatency(connection.host, nanos);
+                    metrics.histogram("client." + name).record(nanos);
+                    return result;
+                } catch (TTransportException e) {
+                    broken = true;
+                    ring.markDown(connection.host);
+                    metrics.counter("client." + name + ".retries")
+                            .incrementAndGet();
+                    if (++attempts >= ring.getAllHosts().size()) {
+                        metrics.counter("client." + name + ".errors")
+                                .incrementAndGet();
+                        throw new IOException(getFailureMessage(), e);
                     }
-                    break;
+                } catch (Exception e) {
+                    broken = e instanceof TException;
+                    metrics.counter("client." + name + ".errors")
+                            .incrementAndGet();
+                    throw new IOException(getFailureMessage(), e);
+                } finally {
+                    pool.release(connection, broken);
                 }
             }
+        }
+    }
 
-            if (createKeyspace) {
-                List<CfDef> cfDefs = new ArrayList<CfDef>();
-                cfDefs.add(new CfDef(keyspace, columnFamily));
-                KsDef ksDef =
-                        new KsDef(
-                                keyspace,
-                                "org.apache.cassandra.locator.SimpleStrategy",
-                                cfDefs);
-                ksDef.putToStrategy_options("replication_factor", "1");
-                thriftClient.system_add_keyspace(ksDef);
-            }
-            thriftClient.set_keyspace(keyspace);
-            try {
-                if (createColumnFamily) {
-                    CfDef cfDef = new CfDef(keyspace, columnFamily);
-                    thriftClient.system_add_column_family(cfDef);
-                }
-            } catch (InvalidRequestException e) {
-                e.printStackTrace();
+    /**
+     * Wait for the result of an asynchronous operation.
+     *
+     * @return the result of the operation
+     * @throws IOException
+     *             the exception the operation failed with, or an
+     *             {@link InterruptedIOException} if interrupted while waiting
+     */
+    public static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for cassandra");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
-            thriftClient.login(new AuthenticationRequest(credentials));
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new IOException("Unable to open connection to keyspace "
-                    + keyspace, e);
+            throw new IOException(e.getCause());
         }
     }
 
@@ -110,44 +226,101 @@ public class CassandraClient {
      * @return the rows that contain those columns
      * @throws IOException
      */
-    public byte[][] getKeys(List<byte[]> columnNames, int count, boolean getAll) throws IOException {
+    public byte[][] getKeys(List<byte[]> columnNames, final int count,
+            final boolean getAll) throws IOException {
+        final List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
+        for (byte[] b : columnNames) {
+            converter.add(ByteBuffer.wrap(b));
+        }
+        return new Operation<byte[][]>("getKeys", null) {
+            @Override
+            byte[][] execute(Cassandra.Client client) throws Exception {
+                List<KeySlice> keySlices =
+                        client.get_range_slices(
+                                new ColumnParent()
+                                        .setColumn_family(columnFamily),
+                                new SlicePredicate()
+                                        .setColumn_names(converter),
+                                new KeyRange(count).setStart_key(
+                                        ByteBufferUtil.EMPTY_BYTE_BUFFER).setEnd_key(
+                                        ByteBufferUtil.EMPTY_BYTE_BUFFER),
+                                levels().get(OperationType.LISTING));
+                List<byte[]> keys = new ArrayList<byte[]>();
+                for (KeySlice keySlice : keySlices) {
+                    List<ColumnOrSuperColumn> coscs = keySlice.getColumns();
+                    if (coscs != null && coscs.size() == 1) {
+                        ColumnOrSuperColumn cosc = coscs.get(0);
+                        Column column = cosc.getColumn();
+                        FileDescriptor fileDescriptor =
+                                FileDescriptorUtils.fromBytes(
+                                        column.getValue(), blockSize);
+                        if ((fileDescriptor == null || fileDescriptor.isDeleted()) && !getAll) {
+                            continue;
+                        }
+                        keys.add(ByteBufferUtil.getArray(keySlice.key));
+                    }
+                }
+                return keys.toArray(new byte[][] {});
+            }
 
-        try {
-            List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
-            for (byte[] b : columnNames) {
-                converter.add(ByteBuffer.wrap(b));
+            @Override
+            String getFailureMessage() {
+                return "Unable to list all files in " + keyspace;
             }
-            List<KeySlice> keySlices =
-                    thriftClient
-                            .get_range_slices(
-                                    new ColumnParent()
-                                            .setColumn_family(columnFamily),
-                                    new SlicePredicate()
-                                            .setColumn_names(converter),
-                                    new KeyRange(count).setStart_key(
-                                            ByteBufferUtil.EMPTY_BYTE_BUFFER).setEnd_key(
-                                            ByteBufferUtil.EMPTY_BYTE_BUFFER),
-                                    ConsistencyLevel.ALL);
-            List<byte[]> keys = new ArrayList<byte[]>();
-            for (KeySlice keySlice : keySlices) {
-                List<ColumnOrSuperColumn> coscs = keySlice.getColumns();
-                if (coscs != null && coscs.size() == 1) {
-                    ColumnOrSuperColumn cosc = coscs.get(0);
-                    Column column = cosc.getColumn();
-                    FileDescriptor fileDescriptor =
-                            FileDescriptorUtils
-                                    .fromBytes(column.getValue(), this.blockSize);
-                    if ((fileDescriptor == null || fileDescriptor.isDeleted()) && !getAll) {
-                        continue;
+        }.call();
+    }
+
+    /**
+     * Get a page of the rows that have the given column, along with the value
+     * of that column, in the order of the partitioner.
+     * 
+     * @param columnName
+     *            the name of the column to fetch
+     * @param startKey
+     *            the key of the first row to fetch, or an empty array to start
+     *            at the beginning of the column family
+     * @param count
+     *            the maximum number of rows to fetch
+     * @return the values of the column, by row key, in the order of the
+     *         partitioner; rows that do not have the column map to null
+     * @throws IOException
+     */
+    public LinkedHashMap<String, byte[]> getColumnOfRows(byte[] columnName,
+            final byte[] startKey, final int count) throws IOException {
+        final List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
+        converter.add(ByteBuffer.wrap(columnName));
+        return new Operation<LinkedHashMap<String, byte[]>>(
+                "getColumnOfRows", null) {
+            @Override
+            LinkedHashMap<String, byte[]> execute(Cassandra.Client client)
+                    throws Exception {
+                List<KeySlice> keySlices =
+                        client.get_range_slices(
+                                new ColumnParent().setColumn_family(columnFamily),
+                                new SlicePredicate().setColumn_names(converter),
+                                new KeyRange(count).setStart_key(startKey)
+                                        .setEnd_key(ByteBufferUtil.EMPTY_BYTE_BUFFER),
+                                levels().get(OperationType.LISTING));
+                LinkedHashMap<String, byte[]> rows =
+                        new LinkedHashMap<String, byte[]>();
+                for (KeySlice keySlice : keySlices) {
+                    List<ColumnOrSuperColumn> coscs = keySlice.getColumns();
+                    // deleted rows come back without any column.
+                    byte[] value = null;
+                    if (coscs != null && coscs.size() == 1) {
+                        value = coscs.get(0).getColumn().getValue();
                     }
-                    keys.add(ByteBufferUtil.getArray(keySlice.key));
+                    rows.put(new String(ByteBufferUtil.getArray(keySlice.key)),
+                            value);
                 }
+                return rows;
             }
-            return keys.toArray(new byte[][] {});
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new IOException("Unable to list all files in " + keyspace);
-        }
+
+            @Override
+            String getFailureMessage() {
+                return "Unable to list the rows in " + keyspace;
+            }
+        }.call();
     }
 
     /**
@@ -161,25 +334,48 @@ public class CassandraClient {
      * @throws IOException
      */
     public Map<byte[], byte[]> getColumns(byte[] key) throws IOException {
-        try {
-            SliceRange sliceRange = new SliceRange();
-            sliceRange.setStart(new byte[0]);
-            sliceRange.setFinish(new byte[0]);
-            List<ColumnOrSuperColumn> coscs =
-                    thriftClient.get_slice(ByteBuffer.wrap(key),
-                            new ColumnParent(columnFamily),
-                            new SlicePredicate().setSlice_range(sliceRange),
-                            ConsistencyLevel.ALL);
-            Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
-            for (ColumnOrSuperColumn cosc : coscs) {
-                Column column = cosc.getColumn();
-                columns.put(column.getName(), column.getValue());
+        return getColumnsOperation(key).call();
+    }
+
+    /**
+     * Asynchronously get all the columns which belong to the key.
+     *
+     * @see #getColumns(byte[])
+     */
+    public Future<Map<byte[], byte[]>> getColumnsAsync(byte[] key)
+            throws IOException {
+        return pool.submit(getColumnsOperation(key));
+    }
+
+    private Operation<Map<byte[], byte[]>> getColumnsOperation(
+            final byte[] key) {
+        return new Operation<Map<byte[], byte[]>>("getColumns",
+                ByteBuffer.wrap(key)) {
+            @Override
+            Map<byte[], byte[]> execute(Cassandra.Client client)
+                    throws Exception {
+                SliceRange sliceRange = new SliceRange();
+                sliceRange.setStart(new byte[0]);
+                sliceRange.setFinish(new byte[0]);
+                List<ColumnOrSuperColumn> coscs =
+                        client.get_slice(ByteBuffer.wrap(key),
+                                new ColumnParent(columnFamily),
+                                new SlicePredicate().setSlice_range(sliceRange),
+                                levels().get(OperationType.BLOCK_READ));
+                Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
+                for (ColumnOrSuperColumn cosc : coscs) {
+                    Column column = cosc.getColumn();
+                    columns.put(column.getName(), column.getValue());
+                }
+                return columns;
             }
-            return columns;
-        } catch (Exception e) {
-            throw new IOException("Could not read from columns for file "
-                    + Util.hexToAscii(Util.bytesToHex(key)), e);
-        }
+
+            @Override
+            String getFailureMessage() {
+                return "Could not read from columns for file "
+                        + Util.hexToAscii(Util.bytesToHex(key));
+            }
+        };
     }
 
     /**
@@ -197,28 +393,164 @@ public class CassandraClient {
      */
     public Map<byte[], byte[]> getColumns(byte[] key,
             Set<byte[]> columnNames) throws IOException {
-        try {
-            List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
-            for (byte[] b : columnNames) {
-                converter.add(ByteBuffer.wrap(b));
-            }
-            List<ColumnOrSuperColumn> coscs =
-                    thriftClient
-                            .get_slice(ByteBuffer.wrap(key),
+        return getColumnsOperation(key, columnNames).call();
+    }
+
+    /**
+     * Asynchronously get the given set of columns for the row specified by
+     * the given key, e.g. to prefetch blocks the reader will need next.
+     *
+     * @see #getColumns(byte[], Set)
+     */
+    public Future<Map<byte[], byte[]>> getColumnsAsync(byte[] key,
+            Set<byte[]> columnNames) throws IOException {
+        return pool.submit(getColumnsOperation(key, columnNames));
+    }
+
+    private Operation<Map<byte[], byte[]>> getColumnsOperation(
+            final byte[] key, Set<byte[]> columnNames) {
+        final List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
+        for (byte[] b : columnNames) {
+            converter.add(ByteBuffer.wrap(b));
+        }
+        return new Operation<Map<byte[], byte[]>>("getColumns",
+                ByteBuffer.wrap(key)) {
+            @Override
+            Map<byte[], byte[]> execute(Cassandra.Client client)
+                    throws Exception {
+                List<ColumnOrSuperColumn> coscs =
+                        client.get_slice(ByteBuffer.wrap(key),
+                                new ColumnParent(columnFamily),
+                                new SlicePredicate().setColumn_names(converter),
+                                levels().get(OperationType.BLOCK_READ));
+                // the replica may have missed some of the blocks, ask again.
+                ConsistencyLevel retryLevel =
+                        levels().getRetryLevel(OperationType.BLOCK_READ);
+                if (coscs.size() < converter.size() && retryLevel != null) {
+                    coscs =
+                            client.get_slice(ByteBuffer.wrap(key),
                                     new ColumnParent(columnFamily),
                                     new SlicePredicate()
                                             .setColumn_names(converter),
-                                    ConsistencyLevel.ALL);
-            Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
-            for (ColumnOrSuperColumn cosc : coscs) {
-                Column column = cosc.getColumn();
-                columns.put(column.getName(), column.getValue());
+                                    retryLevel);
+                }
+                Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
+                for (ColumnOrSuperColumn cosc : coscs) {
+                    Column column = cosc.getColumn();
+                    columns.put(column.getName(), column.getValue());
+                }
+                return columns;
             }
-            return columns;
-        } catch (Exception e) {
-            throw new IOException("Could not read from columns for file "
-                    + Util.hexToAscii(Util.bytesToHex(key)), e);
-        }
+
+            @Override
+            String getFailureMessage() {
+                return "Could not read from columns for file "
+                        + Util.hexToAscii(Util.bytesToHex(key));
+            }
+        };
+    }
+
+    /**
+     * Get the values of the given columns of the row specified by the given
+     * key, in the order of the names. The values are the buffers thrift read
+     * them into, and are not copied out into arrays of their own.
+     *
+     * @param key
+     *            the key to the row to read from
+     * @param names
+     *            the names of the columns to read
+     * @return the value of every column, or null for the columns that do not
+     *         exist
+     * @throws IOException
+     */
+    public ByteBuffer[] getColumnValues(final byte[] key,
+            final List<ByteBuffer> names) throws IOException {
+        return new Operation<ByteBuffer[]>("getColumnValues",
+                ByteBuffer.wrap(key)) {
+            @Override
+            ByteBuffer[] execute(Cassandra.Client client) throws Exception {
+                List<ColumnOrSuperColumn> coscs =
+                        client.get_slice(ByteBuffer.wrap(key),
+                                new ColumnParent(columnFamily),
+                                new SlicePredicate().setColumn_names(names),
+                                levels().get(OperationType.BLOCK_READ));
+                // the replica may have missed some of the blocks, ask again.
+                ConsistencyLevel retryLevel =
+                        levels().getRetryLevel(OperationType.BLOCK_READ);
+                if (coscs.size() < names.size() && retryLevel != null) {
+                    coscs =
+                            client.get_slice(ByteBuffer.wrap(key),
+                                    new ColumnParent(columnFamily),
+                                    new SlicePredicate().setColumn_names(names),
+                                    retryLevel);
+                }
+                // the columns come back in comparator order.
+                Map<ByteBuffer, Integer> indexes =
+                        new HashMap<ByteBuffer, Integer>(names.size() * 2);
+                for (int i = 0; i < names.size(); i++) {
+                    indexes.put(names.get(i), i);
+                }
+                ByteBuffer[] values = new ByteBuffer[names.size()];
+                for (ColumnOrSuperColumn cosc : coscs) {
+                    Column column = cosc.getColumn();
+                    Integer index = indexes.get(column.bufferForName());
+                    if (index != null) {
+                        values[index] = column.bufferForValue();
+                    }
+                }
+                return values;
+            }
+
+            @Override
+            String getFailureMessage() {
+                return "Could not read from columns for file "
+                        + Util.hexToAscii(Util.bytesToHex(key));
+            }
+        }.call();
+    }
+
+    /**
+     * Get a page of the columns of the row specified by the given key, in
+     * column name order.
+     * 
+     * @param key
+     *            the key to the row to read from
+     * @param start
+     *            the name of the first column to fetch, or an empty array to
+     *            start at the beginning of the row
+     * @param count
+     *            the maximum number of columns to fetch
+     * @return the names and values of the columns, in column name order
+     * @throws IOException
+     */
+    public BlockMap getColumns(final byte[] key, byte[] start, int count)
+            throws IOException {
+        final SliceRange sliceRange = new SliceRange();
+        sliceRange.setStart(start);
+        sliceRange.setFinish(new byte[0]);
+        sliceRange.setCount(count);
+        return new Operation<BlockMap>("getColumns", ByteBuffer.wrap(key)) {
+            @Override
+            BlockMap execute(Cassandra.Client client) throws Exception {
+                List<ColumnOrSuperColumn> coscs =
+                        client.get_slice(ByteBuffer.wrap(key),
+                                new ColumnParent(columnFamily),
+                                new SlicePredicate().setSlice_range(sliceRange),
+                                levels().get(OperationType.LISTING));
+                BlockMap columns = new BlockMap();
+                for (ColumnOrSuperColumn cosc : coscs) {
+                    Column column = cosc.getColumn();
+                    columns.put(column.getName(), column.getValue());
+                }
+                return columns;
+            }
+
+            @Override
+            String getFailureMessage() {
+                return "Could not read from columns for file "
+                        + Util.hexToAscii(Util.bytesToHex(key));
+            }
+        }.call();
     }
 
     /**
@@ -233,28 +565,144 @@ public class CassandraClient {
      */
     public byte[] getColumn(byte[] fileName, byte[] columnName)
             throws IOException {
-        try {
-            List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
-            converter.add(ByteBuffer.wrap(columnName));
-            List<ColumnOrSuperColumn> coscs =
-                    thriftClient
-                            .get_slice(
-                                    ByteBuffer.wrap(fileName),
+        return getColumnOperation(fileName, columnName).call();
+    }
+
+    /**
+     * Asynchronously get the column value for the row specified by the given
+     * key and columnName.
+     *
+     * @see #getColumn(byte[], byte[])
+     */
+    public Future<byte[]> getColumnAsync(byte[] fileName, byte[] columnName)
+            throws IOException {
+        return pool.submit(getColumnOperation(fileName, columnName));
+    }
+
+    private Operation<byte[]> getColumnOperation(final byte[] fileName,
+            final byte[] columnName) {
+        return new Operation<byte[]>("getColumn",
+                ByteBuffer.wrap(fileName)) {
+            @Override
+            byte[] execute(Cassandra.Client client) throws Exception {
+                List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
+                converter.add(ByteBuffer.wrap(columnName));
+                List<ColumnOrSuperColumn> coscs =
+                        client.get_slice(
+                                ByteBuffer.wrap(fileName),
+                                new ColumnParent()
+                                        .setColumn_family(columnFamily),
+                                new SlicePredicate()
+                                        .setColumn_names(converter),
+                                levels().get(OperationType.DESCRIPTOR_READ));
+                // the replica may have missed the write, ask again.
+                ConsistencyLevel retryLevel =
+                        levels().getRetryLevel(OperationType.DESCRIPTOR_READ);
+                if (coscs.isEmpty() && retryLevel != null) {
+                    coscs =
+                            client.get_slice(ByteBuffer.wrap(fileName),
                                     new ColumnParent()
                                             .setColumn_family(columnFamily),
                                     new SlicePredicate()
                                             .setColumn_names(converter),
-                                    ConsistencyLevel.ALL);
-            if (!coscs.isEmpty()) {
-                ColumnOrSuperColumn cosc = coscs.get(0);
-                Column column = cosc.getColumn();
-                return column.getValue();
+                                    retryLevel);
+                }
+                if (!coscs.isEmpty()) {
+                    ColumnOrSuperColumn cosc = coscs.get(0);
+                    Column column = cosc.getColumn();
+                    return column.getValue();
+                }
+                return null;
             }
-            return null;
-        } catch (Exception e) {
-            throw new IOException("Unable to read file descriptor for "
-                    + Util.hexToAscii(Util.bytesToHex(fileName)), e);
+
+            @Override
+            String getFailureMessage() {
+                return "Unable to read file descriptor for "
+                        + Util.hexToAscii(Util.bytesToHex(fileName));
+            }
+        };
+    }
+
+    /**
+     * Get the value of the given column in each of the given rows, in a
+     * single round trip per batch of rows.
+     * 
+     * @param keys
+     *            the keys of the rows to read from
+     * @param columnName
+     *            the name of the column to fetch
+     * @return the values of the column, by row key; rows that do not have
+     *         the column map to null
+     * @throws IOException
+     */
+    public Map<String, byte[]> getColumnOfKeys(Collection<byte[]> keys,
+            byte[] columnName) throws IOException {
+        final List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
+        converter.add(ByteBuffer.wrap(columnName));
+        Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+        List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+        for (byte[] key : keys) {
+            batch.add(ByteBuffer.wrap(key));
+            if (batch.size() == MULTIGET_BATCH_SIZE) {
+                values.putAll(getColumnOfKeysOperation(batch, converter).call());
+                batch = new ArrayList<ByteBuffer>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            values.putAll(getColumnOfKeysOperation(batch, converter).call());
         }
+        return values;
+    }
+
+    private Operation<Map<String, byte[]>> getColumnOfKeysOperation(
+            final List<ByteBuffer> keys, final List<ByteBuffer> columnNames) {
+        return new Operation<Map<String, byte[]>>("getColumnOfKeys", null) {
+            @Override
+            Map<String, byte[]> execute(Cassandra.Client client)
+                    throws Exception {
+                Map<String, byte[]> values =
+                        getValues(client.multiget_slice(keys, new ColumnParent(
+                                columnFamily), new SlicePredicate()
+                                .setColumn_names(columnNames), levels().get(
+                                OperationType.DESCRIPTOR_READ)));
+                // the replica may have missed some of the writes, ask again.
+                ConsistencyLevel retryLevel =
+                        levels().getRetryLevel(OperationType.DESCRIPTOR_READ);
+                if (retryLevel != null && values.containsValue(null)) {
+                    List<ByteBuffer> missing = new ArrayList<ByteBuffer>();
+                    for (ByteBuffer key : keys) {
+                        if (values.get(toString(key)) == null) {
+                            missing.add(key);
+                        }
+                    }
+                    values.putAll(getValues(client.multiget_slice(missing,
+                            new ColumnParent(columnFamily), new SlicePredicate()
+                                    .setColumn_names(columnNames), retryLevel)));
+                }
+                return values;
+            }
+
+            private Map<String, byte[]> getValues(
+                    Map<ByteBuffer, List<ColumnOrSuperColumn>> rows) {
+                Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+                for (ByteBuffer key : keys) {
+                    List<ColumnOrSuperColumn> coscs = rows.get(key);
+                    values.put(toString(key), coscs == null || coscs.isEmpty()
+                            ? null : coscs.get(0).getColumn().getValue());
+                }
+                return values;
+            }
+
+            private String toString(ByteBuffer key) {
+                return new String(ByteBufferUtil.getArray(key));
+            }
+
+            @Override
+            String getFailureMessage() {
+                return "Unable to read the file descriptors of " + keys.size()
+                        + " files";
+            }
+        };
     }
 
     /**
@@ -268,16 +716,105 @@ public class CassandraClient {
      */
     public void setColumns(ByteBuffer key,
             Map<byte[], byte[]> columnValues) throws IOException {
-        Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap =
+        setColumnsOperation(singleRow(key, columnValues)).call();
+    }
+
+    /**
+     * Set the values for the given columns in several rows at once, in a
+     * single batch mutation. A row mapped to no columns at all is deleted.
+     * 
+     * @param rows
+     *            the values for the columns being updated, by row key
+     * @throws IOException
+     */
+    public void setColumns(Map<ByteBuffer, Map<byte[], byte[]>> rows)
+            throws IOException {
+        setColumnsOperation(rows).call();
+    }
+
+    /**
+     * Asynchronously set the values for the given columns in the given row,
+     * e.g. so that a writer can fill its next buffer in the meantime. The
+     * column values must not be changed until the returned future is done.
+     *
+     * @see #setColumns(ByteBuffer, Map)
+     */
+    public Future<Void> setColumnsAsync(ByteBuffer key,
+            Map<byte[], byte[]> columnValues) throws IOException {
+        return pool.submit(setColumnsOperation(singleRow(key, columnValues)));
+    }
+
+    /**
+     * Asynchronously set the values for the given columns in several rows at
+     * once, in a single batch mutation.
+     *
+     * @see #setColumns(Map)
+     */
+    public Future<Void> setColumnsAsync(
+            Map<ByteBuffer, Map<byte[], byte[]>> rows) throws IOException {
+        return pool.submit(setColumnsOperation(rows));
+    }
+
+    private static Map<ByteBuffer, Map<byte[], byte[]>> singleRow(
+            ByteBuffer key, Map<byte[], byte[]> columnValues) {
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        rows.put(key, columnValues);
+        return rows;
+    }
+
+    private Operation<Void> setColumnsOperation(
+            final Map<ByteBuffer, Map<byte[], byte[]>> rows) {
+        final Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap =
                 new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        for (Map.Entry<ByteBuffer, Map<byte[], byte[]>> row : rows.entrySet()) {
+            Map<String, List<Mutation>> cfMutation =
+                    new HashMap<String, List<Mutation>>();
+            cfMutation.put(columnFamily, getMutations(row.getValue()));
+            mutationMap.put(row.getKey(), cfMutation);
+        }
+        // a batch that spans rows goes to any host.
+        ByteBuffer key = rows.size() == 1 ? rows.keySet().iterator().next() : null;
+        final OperationType type = getWriteType(rows);
+        return new Operation<Void>("setColumns", key) {
+            @Override
+            Void execute(Cassandra.Client client) throws Exception {
+                client.batch_mutate(mutationMap, levels().get(type));
+                return null;
+            }
+
+            @Override
+            String getFailureMessage() {
+                List<String> keys = new ArrayList<String>();
+                for (ByteBuffer key : rows.keySet()) {
+                    keys.add(new String(ByteBufferUtil.getArray(key),
+                            Charset.forName("UTF-8")));
+                }
+                return "Unable to mutate columns for file "
+                        + (keys.size() == 1 ? keys.get(0) : keys.toString());
+            }
+        };
+    }
 
-        Map<String, List<Mutation>> cfMutation =
-                new HashMap<String, List<Mutation>>();
-        // System.out.println("key => " + ByteBufferUtil.string(key));
-        mutationMap.put(key, cfMutation);
+    // the class of a write, i.e. whether it carries a descriptor or deletes a
+    // row, and with it a file.
+    static OperationType getWriteType(Map<ByteBuffer, Map<byte[], byte[]>> rows) {
+        for (Map<byte[], byte[]> columnValues : rows.values()) {
+            if (columnValues == null || columnValues.isEmpty()) {
+                return OperationType.DESCRIPTOR_WRITE;
+            }
+            for (byte[] column : columnValues.keySet()) {
+                if (Arrays.equals(descriptorColumn, column)) {
+                    return OperationType.DESCRIPTOR_WRITE;
+                }
+            }
+        }
+        return OperationType.BLOCK_WRITE;
+    }
 
+    // the mutations that set (or, for null values, delete) the given columns.
+    private List<Mutation> getMutations(Map<byte[], byte[]> columnValues) {
         List<Mutation> mutationList = new ArrayList<Mutation>();
-        cfMutation.put(columnFamily, mutationList);
 
         if (columnValues == null || columnValues.size() == 0) {
             Mutation mutation = new Mutation();
@@ -355,25 +892,32 @@ public class CassandraClient {
                 mutationList.add(mutation);
             }
         }
-        try {
-            thriftClient.batch_mutate(mutationMap, ConsistencyLevel.ALL);
-        } catch (Exception e) {
-            throw new IOException("Unable to mutate columns for file "
-                    + new String(key.array(), "UTF-8"), e);
-        }
+        return mutationList;
     }
     
     public boolean truncate(String cfname) throws IOException {
+        CassandraClientPool.Connection connection = pool.borrow();
+        boolean broken = false;
         try {
-            thriftClient.truncate(cfname);
+            connection.client.truncate(cfname);
             return true;
         } catch (Exception e) {
+            broken = e instanceof TException;
             return false;
+        } finally {
+            pool.release(connection, broken);
         }
     }
     
+    /**
+     * Close the connections of this client. Clients handed out by
+     * {@link CassandraClientPool#getClient} are shared, so closing them is a
+     * no-op.
+     */
     public void close()  {
-        transport.close();
+        if (!shared) {
+            pool.close();
+        }
     }
     
     // dont know why always get broken pipe although already set socket to keep
@@ -0,0 +1,636 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.auth.IAuthenticator;
+import org.apache.cassandra.thrift.AuthenticationRequest;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.CfDef;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.KsDef;
+import org.apache.lucene.cassandra.TokenRing.Host;
+import org.apache.monitor.JmxMonitor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>CassandraClientPool</code> keeps a bounded set of thrift
+ * connections to one keyspace and column family, so that the directory and
+ * every file it opens can share them instead of each opening a socket of its
+ * own.
+ *
+ * <p>
+ * The connections may go to any host of the cluster. The pool starts out
+ * with the host it is created for and the seeds of its {@link TokenRing},
+ * learns about the other hosts from the ring, and opens connections to the
+ * host the ring prefers for the row a request is about, i.e. the fastest live
+ * replica of that row. Idle connections are kept per host.
+ * </p>
+ *
+ * <p>
+ * The keyspace and column family are checked (and created if missing) once
+ * per pool, when the first connection is opened. Connections that have been
+ * idle for a while are validated before they are handed out again, and
+ * connections that stay idle longer than the configured limit are closed by a
+ * background evictor. Connections that saw a transport error are discarded
+ * rather than returned to the pool.
+ * </p>
+ *
+ * <p>
+ * Each pool also owns a small set of worker threads, started on first use,
+ * which run the asynchronous operations of its {@link CassandraClient} on
+ * pooled connections.
+ * </p>
+ *
+ * <p>
+ * The consistency level of each class of operation is configured through
+ * {@link ConsistencyLevels}, and adjusted to the replication strategy of the
+ * keyspace when the schema is checked.
+ * </p>
+ *
+ * <p>
+ * The limits can be tuned through the system properties
+ * <code>lucene.cassandra.pool.maxActive</code>,
+ * <code>lucene.cassandra.pool.maxIdleMillis</code>,
+ * <code>lucene.cassandra.pool.validateAfterMillis</code>,
+ * <code>lucene.cassandra.pool.borrowTimeoutMillis</code> and
+ * <code>lucene.cassandra.pool.asyncThreads</code>. The host and port used by
+ * the directories that do not name one are read from
+ * <code>lucene.cassandra.host</code> and <code>lucene.cassandra.port</code>.
+ * </p>
+ */
+public class CassandraClientPool {
+
+    private static Logger logger = LoggerFactory
+            .getLogger(CassandraClientPool.class);
+
+    // The host to connect to, unless told otherwise.
+    public static final String DEFAULT_HOST = System.getProperty(
+            "lucene.cassandra.host", "localhost");
+
+    // The thrift port to connect to, unless told otherwise.
+    public static final int DEFAULT_PORT = Integer.getInteger(
+            "lucene.cassandra.port", 9160);
+
+    // The maximum number of connections a pool may have open at once.
+    public static final int DEFAULT_MAX_ACTIVE = Integer.getInteger(
+            "lucene.cassandra.pool.maxActive", 16);
+
+    // Idle connections older than this are closed by the evictor.
+    public static final long DEFAULT_MAX_IDLE_MILLIS = Long.getLong(
+            "lucene.cassandra.pool.maxIdleMillis", 60000L);
+
+    // Idle connections older than this are pinged before being reused.
+    public static final long DEFAULT_VALIDATE_AFTER_MILLIS = Long.getLong(
+            "lucene.cassandra.pool.validateAfterMillis", 5000L);
+
+    // How long a caller waits for a free connection before giving up.
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = Long.getLong(
+            "lucene.cassandra.pool.borrowTimeoutMillis", 30000L);
+
+    // The number of threads that run the asynchronous operations of a pool.
+    public static final int DEFAULT_ASYNC_THREADS = Integer.getInteger(
+            "lucene.cassandra.pool.asyncThreads", DEFAULT_MAX_ACTIVE);
+
+    // The shared pools, keyed by host, port, keyspace and column family.
+    private static final ConcurrentMap<String, CassandraClientPool> pools =
+            new ConcurrentHashMap<String, CassandraClientPool>();
+
+    // A single daemon thread that evicts idle connections from all pools.
+    private static ScheduledExecutorService evictor = null;
+
+    private final String host;
+
+    private final int port;
+
+    private final boolean framed;
+
+    private final String keyspace;
+
+    private final String columnFamily;
+
+    private final int maxActive;
+
+    private final long maxIdleMillis;
+
+    private final Semaphore permits;
+
+    // Idle connections by host, most recently used first.
+    private final ConcurrentMap<Host, LinkedBlockingDeque<Connection>> idle =
+            new ConcurrentHashMap<Host, LinkedBlockingDeque<Connection>>();
+
+    // The hosts of the cluster, and the replicas of every row.
+    private final TokenRing ring;
+
+    // The client facade handed out to the directory and its files.
+    private final CassandraClient client;
+
+    // The consistency level of every class of operation, adjusted to the
+    // keyspace when the schema is checked.
+    private final ConsistencyLevels consistencyLevels = new ConsistencyLevels();
+
+    // Runs the asynchronous operations, created on first use.
+    private ExecutorService executor = null;
+
+    private volatile boolean schemaChecked = false;
+
+    private volatile boolean closed = false;
+
+    /**
+     * A single thrift connection, together with the host it goes to and the
+     * time it was last returned to the pool.
+     */
+    static class Connection {
+        final Host host;
+
+        final TTransport transport;
+
+        final Cassandra.Client client;
+
+        long lastUsed;
+
+        Connection(Host host, TTransport transport, Cassandra.Client client) {
+            this.host = host;
+            this.transport = transport;
+            this.client = client;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        void close() {
+            try {
+                transport.close();
+            } catch (Exception e) {
+                logger.debug("unable to close transport", e);
+            }
+        }
+    }
+
+    /**
+     * Construct a pool of connections to the given keyspace and column family
+     * on the cluster the given host belongs to. Pools built this way are private to the caller; use
+     * {@link #getClient} to get a client backed by a shared pool.
+     *
+     * @param host
+     *            the host where the cassandra server is located
+     * @param port
+     *            the port where the cassandra server is listening
+     * @param framed
+     *            whether to use a framed transport
+     * @param keyspace
+     *            the keyspace to connect to
+     * @param columnFamily
+     *            the column family that denotes the directory
+     * @param blockSize
+     *            the size of the file block
+     * @param maxActive
+     *            the maximum number of connections open at once
+     * @param maxIdleMillis
+     *            how long a connection may stay idle before it is closed
+     */
+    public CassandraClientPool(String host, int port, boolean framed,
+            String keyspace, String columnFamily, int blockSize,
+            int maxActive, long maxIdleMillis) {
+        this.host = host;
+        this.port = port;
+        this.framed = framed;
+        this.keyspace = keyspace;
+        this.columnFamily = columnFamily;
+        this.maxActive = maxActive;
+        this.maxIdleMillis = maxIdleMillis;
+        this.permits = new Semaphore(maxActive, true);
+        this.ring = new TokenRing(host, port, keyspace, columnFamily);
+        this.client =
+                new CassandraClient(this, keyspace, columnFamily, blockSize);
+    }
+
+    /**
+     * Return a client backed by the shared pool for the given host, keyspace
+     * and column family, creating the pool on first use. Closing the returned
+     * client has no effect; the pool stays open until {@link #closeAll()}.
+     * No connection is opened here: the first operation of the client opens
+     * one, and fails if no host can be reached.
+     *
+     * @return a shared, thread-safe client
+     * @throws IOException
+     */
+    public static CassandraClient getClient(String host, int port,
+            boolean framed, String keyspace, String columnFamily,
+            int blockSize) throws IOException {
+        String key =
+                host + ":" + port + "/" + keyspace + "/" + columnFamily + "/"
+                        + blockSize;
+        CassandraClientPool pool = pools.get(key);
+        if (pool == null) {
+            CassandraClientPool newPool =
+                    new CassandraClientPool(host, port, framed, keyspace,
+                            columnFamily, blockSize, DEFAULT_MAX_ACTIVE,
+                            DEFAULT_MAX_IDLE_MILLIS);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+                pool.client.setShared(true);
+                JmxMonitor.getInstance().getCassandraMonitor(pool.ring);
+                scheduleEviction();
+            }
+        }
+        return pool.client;
+    }
+
+    /**
+     * Close every shared pool and all of their connections.
+     */
+    public static void closeAll() {
+        Iterator<CassandraClientPool> it = pools.values().iterator();
+        while (it.hasNext()) {
+            CassandraClientPool pool = it.next();
+            it.remove();
+            pool.close();
+        }
+    }
+
+    /**
+     * @return the client facade backed by this pool
+     */
+    public CassandraClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return the consistency level of every class of operation run through
+     *         this pool
+     */
+    public ConsistencyLevels getConsistencyLevels() {
+        return consistencyLevels;
+    }
+
+    /**
+     * @return the hosts of the cluster this pool connects to
+     */
+    public TokenRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Take a connection to any host out of the pool.
+     *
+     * @see #borrow(ByteBuffer)
+     */
+    Connection borrow() throws IOException {
+        return borrow(null);
+    }
+
+    /**
+     * Take a connection out of the pool, to the host the ring prefers for the
+     * given row, opening a new one if none is idle. Hosts that cannot be
+     * reached are marked down, and the next one is tried. Waits for a
+     * connection to be returned if the pool is at its limit.
+     *
+     * @param key
+     *            the key of the row the connection is for, or null
+     * @return a connection that must be handed back through {@link #release}
+     * @throws IOException
+     *             if no connection could be obtained
+     */
+    Connection borrow(ByteBuffer key) throws IOException {
+        if (closed) {
+            throw new IOException("connection pool to " + host + ":" + port
+                    + " is closed");
+        }
+        try {
+            if (!permits.tryAcquire(DEFAULT_BORROW_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS)) {
+                throw new IOException("timed out waiting for a connection to "
+                        + host + ":" + port);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for a connection to "
+                    + host + ":" + port, e);
+        }
+        try {
+            IOException failure = null;
+            for (Host host : ring.getHosts(key)) {
+                Connection connection;
+                while ((connection = getIdle(host).pollFirst()) != null) {
+                    if (validate(connection)) {
+                        return refreshRing(connection);
+                    }
+                    connection.close();
+                }
+                try {
+                    return refreshRing(open(host));
+                } catch (IOException e) {
+                    ring.markDown(host);
+                    failure = e;
+                }
+            }
+            if (failure == null) {
+                throw new IOException("no live host to connect to for "
+                        + host + ":" + port);
+            }
+            throw failure;
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hand a connection back to the pool.
+     *
+     * @param connection
+     *            the connection obtained from {@link #borrow()}
+     * @param broken
+     *            true if the connection saw a transport error and must not be
+     *            reused
+     */
+    void release(Connection connection, boolean broken) {
+        try {
+            if (broken || closed || !connection.transport.isOpen()) {
+                connection.close();
+            } else {
+                connection.lastUsed = System.currentTimeMillis();
+                getIdle(connection.host).offerFirst(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    // the idle connections to the given host.
+    private LinkedBlockingDeque<Connection> getIdle(Host host) {
+        LinkedBlockingDeque<Connection> connections = idle.get(host);
+        if (connections == null) {
+            LinkedBlockingDeque<Connection> newConnections =
+                    new LinkedBlockingDeque<Connection>();
+            connections = idle.putIfAbsent(host, newConnections);
+            if (connections == null) {
+                connections = newConnections;
+            }
+        }
+        return connections;
+    }
+
+    // describe the ring again if it is due, on the connection being lent.
+    private Connection refreshRing(Connection connection) {
+        if (ring.needsRefresh()) {
+            ring.refresh(connection.client);
+        }
+        return connection;
+    }
+
+    /**
+     * Run the given operation on one of the worker threads of this pool.
+     *
+     * @return the future result of the operation
+     * @throws IOException
+     *             if the pool is closed
+     */
+    <T> Future<T> submit(Callable<T> operation) throws IOException {
+        return getExecutor().submit(operation);
+    }
+
+    private synchronized ExecutorService getExecutor() throws IOException {
+        if (closed) {
+            throw new IOException("connection pool to " + host + ":" + port
+                    + " is closed");
+        }
+        if (executor == null) {
+            executor =
+                    Executors.newFixedThreadPool(DEFAULT_ASYNC_THREADS,
+                            new ThreadFactory() {
+                                private final AtomicInteger count =
+                                        new AtomicInteger();
+
+                                public Thread newThread(Runnable r) {
+                                    Thread thread =
+                                            new Thread(r, "cassandra-client-"
+                                                    + columnFamily + "-"
+                                                    + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+        }
+        return executor;
+    }
+
+    /**
+     * Close the connections that have been idle longer than the limit.
+     *
+     * @return the number of connections closed
+     */
+    public int evictIdle() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (LinkedBlockingDeque<Connection> connections : idle.values()) {
+            Connection connection;
+            // the oldest connections are at the tail of the deque.
+            while ((connection = connections.peekLast()) != null
+                    && now - connection.lastUsed > maxIdleMillis) {
+                if (connections.removeLastOccurrence(connection)) {
+                    connection.close();
+                    evicted++;
+                }
+            }
+        }
+        if (evicted > 0) {
+            logger.debug("evicted {} idle connections of {}", evicted,
+                    columnFamily);
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the number of connections currently sitting idle
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (LinkedBlockingDeque<Connection> connections : idle.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of connections currently borrowed
+     */
+    public int getActiveCount() {
+        return maxActive - permits.availablePermits();
+    }
+
+    /**
+     * Close the pool and every idle connection in it. Connections that are
+     * borrowed are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            // operations still queued fail once they try to borrow a connection.
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        for (LinkedBlockingDeque<Connection> connections : idle.values()) {
+            Connection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Ping a connection that has been idle for a while.
+     */
+    private boolean validate(Connection connection) {
+        if (!connection.transport.isOpen()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - connection.lastUsed < DEFAULT_VALIDATE_AFTER_MILLIS) {
+            return true;
+        }
+        try {
+            connection.client.describe_cluster_name();
+            return true;
+        } catch (Exception e) {
+            logger.debug("discarding stale connection to " + connection.host, e);
+            return false;
+        }
+    }
+
+    /**
+     * Open a new connection, make sure the schema is in place the first time
+     * round, and then switch it to the keyspace.
+     */
+    private Connection open(Host host) throws IOException {
+        TTransport transport = null;
+        try {
+            TSocket socket = new TSocket(host.getAddress(), host.getPort());
+            socket.getSocket().setReuseAddress(true);
+            socket.getSocket().setSoLinger(true, 0);
+            socket.getSocket().setKeepAlive(true);
+            transport = framed ? new TFramedTransport(socket) : socket;
+            transport.open();
+            Cassandra.Client thriftClient =
+                    new Cassandra.Client(new TBinaryProtocol(transport));
+            if (!schemaChecked) {
+                ensureSchema(thriftClient);
+            }
+            thriftClient.set_keyspace(keyspace);
+            Map<String, String> credentials = new HashMap<String, String>();
+            credentials.put(IAuthenticator.USERNAME_KEY, "");
+            credentials.put(IAuthenticator.PASSWORD_KEY, "");
+            thriftClient.login(new AuthenticationRequest(credentials));
+            return new Connection(host, transport, thriftClient);
+        } catch (Exception e) {
+            if (transport != null) {
+                transport.close();
+            }
+            throw new IOException("Unable to open connection to keyspace "
+                    + keyspace + " on " + host, e);
+        }
+    }
+
+    /**
+     * Create the keyspace and column family if they do not exist yet. This is
+     * done once for the lifetime of the pool.
+     */
+    private synchronized void ensureSchema(Cassandra.Client thriftClient)
+            throws Exception {
+        if (schemaChecked) {
+            return;
+        }
+        List<KsDef> keyspaces = thriftClient.describe_keyspaces();
+        boolean createKeyspace = true;
+        boolean createColumnFamily = true;
+
+        for (KsDef ks : keyspaces) {
+            if (ks.name.equals(keyspace)) {
+                createKeyspace = false;
+                consistencyLevels.initConsistencyLevels(ks);
+                for (CfDef cf : ks.getCf_defs()) {
+                    if (cf.getName().equals(columnFamily)) {
+                        createColumnFamily = false;
+                    }
+                }
+                break;
+            }
+        }
+
+        if (createKeyspace) {
+            List<CfDef> cfDefs = new ArrayList<CfDef>();
+            cfDefs.add(new CfDef(keyspace, columnFamily));
+            KsDef ksDef =
+                    new KsDef(keyspace,
+                            "org.apache.cassandra.locator.SimpleStrategy",
+                            cfDefs);
+            ksDef.putToStrategy_options("replication_factor", "1");
+            thriftClient.system_add_keyspace(ksDef);
+            consistencyLevels.initConsistencyLevels(ksDef);
+        } else if (createColumnFamily) {
+            thriftClient.set_keyspace(keyspace);
+            try {
+                thriftClient.system_add_column_family(new CfDef(keyspace,
+                        columnFamily));
+            } catch (InvalidRequestException e) {
+                // another client beat us to it.
+                logger.debug("column family {} already exists", columnFamily);
+            }
+        }
+        ring.refresh(thriftClient);
+        schemaChecked = true;
+    }
+
+    private static synchronized void scheduleEviction() {
+        if (evictor != null) {
+            return;
+        }
+        evictor =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread =
+                                new Thread(r, "cassandra-client-pool-evictor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        long period = Math.max(1000L, DEFAULT_MAX_IDLE_MILLIS / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for (CassandraClientPool pool : pools.values()) {
+                    try {
+                        pool.evictIdle();
+                    } catch (RuntimeException e) {
+                        logger.warn("unable to evict idle connections", e);
+                    }
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -24,11 +24,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
 
+import org.apache.lucene.codecs.lucene46.Lucene46SegmentInfoFormat;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.BaseDirectory;
 import org.apache.lucene.store.BufferedIndexInput;
 import org.apache.lucene.store.BufferedIndexOutput;
@@ -36,7 +43,9 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
 import org.apache.lucene.store.LockFactory;
+import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.ThreadInterruptedException;
 import org.slf4j.Logger;
@@ -119,6 +128,21 @@ import static java.util.Collections.synchronizedSet;
  * NativeFSLockFactory}, but can be changed by
  * passing in a custom {@link LockFactory} instance.
  *
+ * <p>The first time a commit is opened, the descriptors of all
+ * of its files are fetched in bulk into the {@link DescriptorCache},
+ * so that opening a reader does not cost a round trip per file.
+ * This can be turned off with
+ * <code>lucene.cassandra.descriptorCache.prewarm=false</code>.
+ *
+ * <p>Files copied to another directory in the same keyspace and
+ * column family, e.g. by {@link org.apache.lucene.index.IndexWriter#addIndexes(Directory...)},
+ * are streamed from row to row within Cassandra; see
+ * {@link ColumnOrientedFile#copyFile(FileDescriptor, String)}.
+ *
+ * <p>The latest commit can be snapshotted under a name with
+ * {@link #snapshot(String)}, and restored with {@link #restoreSnapshot(String)},
+ * neither of which copies any block; see {@link DirectorySnapshots}.
+ *
  * @see Directory
  */
 public abstract class CassandraDirectory extends BaseDirectory {
@@ -138,8 +162,15 @@ public abstract class CassandraDirectory extends BaseDirectory {
   @Deprecated
   public static final int DEFAULT_READ_CHUNK_SIZE = 8192;
 
+  // Whether opening a commit fetches the descriptors of all of its files in bulk.
+  public static final boolean DEFAULT_PREWARM = Boolean.parseBoolean(System.getProperty("lucene.cassandra.descriptorCache.prewarm", "true"));
+
   protected final CassandraFile directory; // The underlying filesystem directory
   protected final Set<String> staleFiles = synchronizedSet(new HashSet<String>()); // Files written, but not yet sync'ed
+  protected final DescriptorCache descriptorCache; // Descriptors of recently used files, null if turned off
+  protected final Set<String> prewarmedCommits = synchronizedSet(new HashSet<String>()); // Commits whose descriptors were fetched in bulk
+  private ColumnOrientedDirectory columnOrientedDirectory; // Reads descriptors on a cache miss
+  private DirectorySnapshots snapshots; // The snapshots of the column family
   private int chunkSize = DEFAULT_READ_CHUNK_SIZE;
 
   // returns the canonical version of the directory, creating it if it doesn't exist.
@@ -165,6 +196,8 @@ public abstract class CassandraDirectory extends BaseDirectory {
     this.blockSize = blockSize;
     this.bufferSize = bufferSize;
     this.mode = mode;
+    this.descriptorCache = DescriptorCache.getInstance(keyspace, columnFamily);
+    FileReaper.start(keyspace, columnFamily, blockSize);
     directory = getCanonicalPath(path, mode, keyspace, columnFamily, blockSize);
     logger.trace("path is {}", path.getName());
 
@@ -271,7 +304,16 @@ public abstract class CassandraDirectory extends BaseDirectory {
             }
         });
         */
-        String[] result = dir.list();
+        // the rows of the column family are keyed by path, so keep the files
+        // of this directory and strip them down to their names.
+        String path = Util.getCassandraPath(dir);
+        List<String> names = new ArrayList<String>();
+        for (String file : dir.list()) {
+            if (file.startsWith(path) && file.indexOf('/', path.length()) < 0) {
+                names.add(file.substring(path.length()));
+            }
+        }
+        String[] result = names.toArray(new String[names.size()]);
         
         logger.info("listAll result length " + result.length);
         
@@ -297,10 +339,12 @@ public abstract class CassandraDirectory extends BaseDirectory {
   public boolean fileExists(String name) {
     ensureOpen();
     logger.trace("fileExists {}", name);
-    CassandraFile file = new CassandraFile(Util.getCassandraPath(directory), name, IOContext.READ, true, this.keyspace, this.columnFamily, this.blockSize);
-    boolean isFileExists = file.exists(); 
-    file.close();
-    return isFileExists;
+    try {
+      return getFileDescriptor(name) != null;
+    } catch (IOException e) {
+      logger.error("unable to check if file " + name + " exists", e);
+      return false;
+    }
   }
 
   /** Returns the length in bytes of a file in the directory. */
@@ -308,15 +352,11 @@ public abstract class CassandraDirectory extends BaseDirectory {
   public long fileLength(String name) throws IOException {
     ensureOpen();
     logger.trace("fileLength {}", name);
-    CassandraFile file = new CassandraFile(Util.getCassandraPath(directory), name, IOContext.READ, true, keyspace, columnFamily, this.blockSize);
-    final long len = file.length();
-    file.close();
-    if (len == 0 && !file.exists()) {
-      logger.error(String.format("file %s with len %s is exists %s", file.getName(), len, file.exists()));
+    FileDescriptor fd = getFileDescriptor(name);
+    if (fd == null) {
       throw new FileNotFoundException(name);
-    } else {
-      return len;
     }
+    return fd.getLength();
   }
 
   /** Removes an existing file in the directory. */
@@ -324,14 +364,235 @@ public abstract class CassandraDirectory extends BaseDirectory {
   public void deleteFile(String name) throws IOException {
     ensureOpen();
     logger.trace("deleteFile {}", name);
-    // do not create the descriptor file during deleting, just does not make sense.
-    // hence, mode is set to r only.
-    CassandraFile file = new CassandraFile(Util.getCassandraPath(directory), name, IOContext.DEFAULT, true, keyspace, columnFamily, this.blockSize);
-    boolean isDeleted = file.delete();
-    file.close();
-    if (!isDeleted)
-      throw new IOException("Cannot delete " + file);
+    if (getFileDescriptor(name) != null) {
+      // do not create the descriptor file during deleting, just does not make sense.
+      // hence, mode is set to r only.
+      CassandraFile file = new CassandraFile(Util.getCassandraPath(directory), name, IOContext.DEFAULT, true, keyspace, columnFamily, this.blockSize);
+      boolean isDeleted = file.delete();
+      file.close();
+      if (!isDeleted)
+        throw new IOException("Cannot delete " + file);
+    }
+    if (descriptorCache != null) {
+      descriptorCache.put(getCassandraFileName(name), null);
+    }
     staleFiles.remove(name);
+    prewarmedCommits.remove(name);
+  }
+
+  /**
+   * Copies the given file to a directory in the same keyspace and column
+   * family within Cassandra, by streaming its blocks from one row to the
+   * other, rather than through an input and an output on the client.
+   * Copies to any other directory are done the usual way.
+   */
+  @Override
+  public void copy(Directory to, String src, String dest, IOContext context) throws IOException {
+    if (!(to instanceof CassandraDirectory)
+        || !keyspace.equals(((CassandraDirectory) to).keyspace)
+        || !columnFamily.equals(((CassandraDirectory) to).columnFamily)) {
+      super.copy(to, src, dest, context);
+      return;
+    }
+    ensureOpen();
+    CassandraDirectory target = (CassandraDirectory) to;
+    logger.trace("copy {} to {}", src, dest);
+    FileDescriptor fd = getFileDescriptor(src);
+    if (fd == null) {
+      throw new FileNotFoundException(src);
+    }
+    target.ensureCanWrite(dest);
+    ColumnOrientedFile file = new ColumnOrientedFile(BlockStores.getStore(true, keyspace, columnFamily, blockSize));
+    FileDescriptor copy = file.copyFile(fd, target.getCassandraFileName(dest));
+    if (target.descriptorCache != null) {
+      target.descriptorCache.put(copy.getName(), copy);
+    }
+  }
+
+  /**
+   * Takes a snapshot of the latest commit of this directory under the given
+   * name, i.e. pins its segments file and the descriptors of all of its
+   * files, without copying their blocks. The commit must not be deleted
+   * while the snapshot is being taken.
+   *
+   * @return the name of the segments file of the snapshot
+   * @see DirectorySnapshots
+   */
+  public String snapshot(String name) throws IOException {
+    ensureOpen();
+    SegmentInfos segmentInfos = new SegmentInfos();
+    segmentInfos.read(this);
+    List<String> fileNames = new ArrayList<String>();
+    for (String file : segmentInfos.files(this, true)) {
+      fileNames.add(getCassandraFileName(file));
+    }
+    getSnapshots().create(name, fileNames);
+    return segmentInfos.getSegmentsFileName();
+  }
+
+  /** Returns the names of the snapshots taken of this directory. */
+  public List<String> listSnapshots() throws IOException {
+    ensureOpen();
+    return getSnapshots().list();
+  }
+
+  /**
+   * Restores the commit of the given snapshot, by pointing the descriptors
+   * of its files back to the blocks they had when it was taken, and deletes
+   * the files that are not in it, so that it is the latest commit again. The
+   * write lock of this directory is held meanwhile, so no IndexWriter may
+   * have it open.
+   *
+   * <p>
+   * The newer commit points are deleted first, and the other files that are
+   * not in the snapshot last, so that a restore that fails midway never
+   * leaves a newer commit on top of restored files. It may leave files of
+   * both commits behind, though, until it is run again, which completes it.
+   * </p>
+   */
+  public void restoreSnapshot(String name) throws IOException {
+    ensureOpen();
+    Lock lock = makeLock(IndexWriter.WRITE_LOCK_NAME);
+    if (!lock.obtain()) {
+      throw new LockObtainFailedException("cannot restore snapshot " + name + ": " + lock);
+    }
+    try {
+      Map<String, FileDescriptor> snapshot = getSnapshots().get(name);
+      if (snapshot == null) {
+        throw new IOException("no snapshot " + name);
+      }
+      // the directory is listed among its own files.
+      String self = Util.getFileName(directory);
+      List<String> stale = new ArrayList<String>();
+      for (String file : listAll()) {
+        if (!snapshot.containsKey(getCassandraFileName(file)) && !IndexWriter.WRITE_LOCK_NAME.equals(file) && !self.equals(file)) {
+          stale.add(file);
+        }
+      }
+      for (String file : stale) {
+        if (file.startsWith(IndexFileNames.SEGMENTS)) {
+          deleteFile(file);
+        }
+      }
+      Map<String, FileDescriptor> restored = getSnapshots().restore(name);
+      if (descriptorCache != null) {
+        for (String fileName : restored.keySet()) {
+          descriptorCache.invalidate(fileName);
+        }
+      }
+      for (String file : stale) {
+        if (!file.startsWith(IndexFileNames.SEGMENTS)) {
+          deleteFile(file);
+        }
+      }
+      prewarmedCommits.clear();
+    } finally {
+      lock.close();
+    }
+  }
+
+  /**
+   * Deletes the given snapshot, along with the blocks that only it still
+   * referred to.
+   */
+  public void deleteSnapshot(String name) throws IOException {
+    ensureOpen();
+    getSnapshots().delete(name);
+  }
+
+  /**
+   * Return the descriptor of the given file, from the descriptor cache if it
+   * holds a fresh entry for it, or from cassandra otherwise.
+   *
+   * @return the descriptor, or null if the file does not exist
+   */
+  protected FileDescriptor getFileDescriptor(String name) throws IOException {
+    String fileName = getCassandraFileName(name);
+    if (descriptorCache != null) {
+      DescriptorCache.Entry entry = descriptorCache.get(fileName);
+      if (entry != null) {
+        return entry.getDescriptor();
+      }
+    }
+    FileDescriptor fd = getColumnOrientedDirectory().getFileDescriptor(fileName);
+    if (descriptorCache != null) {
+      descriptorCache.load(fileName, fd);
+    }
+    return fd;
+  }
+
+  /**
+   * Fetch the descriptors of all the files of the given commit in bulk, the
+   * first time it is opened. The segments file and the segment infos go
+   * first, so that reading the commit to find out its other files is served
+   * from the cache as well.
+   *
+   * @param name the name of the file being opened
+   */
+  protected void prewarmCommit(String name) {
+    if (descriptorCache == null || !DEFAULT_PREWARM
+        || !name.startsWith(IndexFileNames.SEGMENTS + "_")
+        || !prewarmedCommits.add(name)) {
+      return;
+    }
+    try {
+      List<String> segmentInfoFiles = new ArrayList<String>();
+      segmentInfoFiles.add(name);
+      for (String file : listAll()) {
+        if (file.endsWith("." + Lucene46SegmentInfoFormat.SI_EXTENSION)) {
+          segmentInfoFiles.add(file);
+        }
+      }
+      prewarmDescriptors(segmentInfoFiles);
+      // opening the commit below does not prewarm it again.
+      SegmentInfos segmentInfos = new SegmentInfos();
+      segmentInfos.read(this, name);
+      Set<String> files = new HashSet<String>(segmentInfos.files(this, true));
+      files.removeAll(segmentInfoFiles);
+      prewarmDescriptors(files);
+    } catch (IOException e) {
+      // the files are simply opened one by one then.
+      logger.warn("unable to prewarm the descriptors of " + name, e);
+    }
+  }
+
+  /**
+   * Fetch the descriptors of the given files in bulk into the descriptor
+   * cache.
+   */
+  public void prewarmDescriptors(Collection<String> names) throws IOException {
+    if (descriptorCache == null || names.isEmpty()) {
+      return;
+    }
+    List<String> fileNames = new ArrayList<String>();
+    for (String name : names) {
+      fileNames.add(getCassandraFileName(name));
+    }
+    for (Map.Entry<String, FileDescriptor> fd : getColumnOrientedDirectory().getFileDescriptors(fileNames).entrySet()) {
+      descriptorCache.load(fd.getKey(), fd.getValue());
+    }
+  }
+
+  // the name under which the descriptor of the given file is stored.
+  private String getCassandraFileName(String name) {
+    return Util.getCassandraPath(directory) + name;
+  }
+
+  private synchronized DirectorySnapshots getSnapshots() throws IOException {
+    if (snapshots == null) {
+      BlockStore store = BlockStores.getStore(true, keyspace, columnFamily, blockSize);
+      snapshots = new DirectorySnapshots(store, blockSize);
+    }
+    return snapshots;
+  }
+
+  private synchronized ColumnOrientedDirectory getColumnOrientedDirectory() throws IOException {
+    if (columnOrientedDirectory == null) {
+      // the pooled client is shared and thread-safe, and is never closed by us.
+      BlockStore store = BlockStores.getStore(true, keyspace, columnFamily, blockSize);
+      columnOrientedDirectory = new ColumnOrientedDirectory(store, blockSize);
+    }
+    return columnOrientedDirectory;
   }
 
   /** Creates an IndexOutput for the file with the given name. */
@@ -349,12 +610,25 @@ public abstract class CassandraDirectory extends BaseDirectory {
       if (!directory.mkdirs())
         throw new IOException("Cannot create directory: " + directory);
 
+    if (getFileDescriptor(name) == null) {
+      return;
+    }
     CassandraFile file = new CassandraFile(Util.getCassandraPath(directory), name, IOContext.DEFAULT, true, keyspace, columnFamily, this.blockSize);
     if (file.exists() && !file.delete()) {          // delete existing, if any
       file.close();
       throw new IOException("Cannot overwrite: " + file);
     }
     file.close();
+    if (descriptorCache != null) {
+      descriptorCache.put(getCassandraFileName(name), null);
+    }
+  }
+
+  protected void onIndexOutputOpened(FSIndexOutput io) {
+      logger.trace("onIndexOutputOpened {}", io.name);
+      if (descriptorCache != null) {
+        descriptorCache.put(getCassandraFileName(io.name), io.file.getFD());
+      }
   }
 
   protected void onIndexOutputClosed(FSIndexOutput io) {
@@ -362,6 +636,14 @@ public abstract class CassandraDirectory extends BaseDirectory {
       staleFiles.add(io.name);
   }
 
+  // called once the output has been written out, so that its final descriptor is cached.
+  protected void onIndexOutputFlushed(FSIndexOutput io) {
+      logger.trace("onIndexOutputFlushed {}", io.name);
+      if (descriptorCache != null) {
+        descriptorCache.put(getCassandraFileName(io.name), io.file.getFD());
+      }
+  }
+
   @Override
   public void sync(Collection<String> names) throws IOException {
     ensureOpen();
@@ -470,6 +752,7 @@ public abstract class CassandraDirectory extends BaseDirectory {
             this.name = name;
             file = new CassandraRandomAccessFile(new CassandraFile(Util.getCassandraPath(parent.directory), name, parent.mode, true, parent.keyspace, parent.columnFamily, parent.blockSize), parent.mode, true, parent.keyspace, parent.columnFamily, parent.blockSize);
             isOpen = true;
+            parent.onIndexOutputOpened(this);
         }
 
         @Override
@@ -500,6 +783,7 @@ public abstract class CassandraDirectory extends BaseDirectory {
                 } finally {
                     isOpen = false;
                     IOUtils.closeWhileHandlingException(priorE, file);
+                    parent.onIndexOutputFlushed(this);
                 }
             }
         }
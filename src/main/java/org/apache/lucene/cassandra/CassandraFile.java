@@ -3,6 +3,7 @@ package org.apache.lucene.cassandra;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.EnumMap;
@@ -13,7 +14,6 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.lucene.store.IOContext;
 import org.apache.monitor.Counter;
 import org.apache.monitor.JmxMonitor;
@@ -24,6 +24,10 @@ import org.slf4j.LoggerFactory;
 
 public class CassandraFile implements Closeable, MonitorType {
 
+    // Whether new files are laid out in fixed strides and only appended to.
+    // Writers that rewrite a file in place need this off, so it is opt-in.
+    public static final boolean DEFAULT_APPEND_ONLY = Boolean.parseBoolean(System.getProperty("lucene.cassandra.appendOnly", "false"));
+
     private String name = null;
     private String keyspace = null;
     private String columnFamily = null;
@@ -36,12 +40,17 @@ public class CassandraFile implements Closeable, MonitorType {
     private FileBlock currentBlock = null;
     
     private static Logger logger = LoggerFactory.getLogger(CassandraFile.class);
-    private CassandraClient cassandraClient = null;
+    private BlockStore blockStore = null;
     private ColumnOrientedDirectory columnOrientedDirectory;
     private FileDescriptor fd = null;
     private ColumnOrientedFile columnOrientedFile = null;
     private boolean isModeMerge = false;
     private OpentrackerClientMonitor monitor;
+    // the file pointer of an append-only file.
+    private long position = 0;
+    // the contents of the partially filled last block of an append-only
+    // file, or null if it has not been read yet.
+    private byte[] tail = null;
     
     public CassandraFile(String directory, String name, IOContext mode, boolean frameMode, String keyspace, String columnFamily, int blockSize) {
         logger.trace("CassandraFile called 3 {} mode {}", name, mode);
@@ -58,17 +67,21 @@ public class CassandraFile implements Closeable, MonitorType {
         boolean readOnly = true;
         monitor = JmxMonitor.getInstance().getCassandraMonitor(this);
         try {
-            cassandraClient = new CassandraClient("localhost", 9160, frameMode, keyspace, columnFamily, blockSize);
-            this.columnOrientedDirectory = new ColumnOrientedDirectory(cassandraClient, blockSize);
-            this.columnOrientedFile = new ColumnOrientedFile(cassandraClient);
+            blockStore = BlockStores.getStore(frameMode, keyspace, columnFamily, blockSize);
+            this.columnOrientedDirectory = new ColumnOrientedDirectory(blockStore, blockSize);
+            this.columnOrientedFile = new ColumnOrientedFile(blockStore);
             if (mode == null || mode.context == IOContext.Context.DEFAULT || mode.context == IOContext.Context.FLUSH 
                     || mode.context == IOContext.Context.MERGE 
                     || (mode.context == IOContext.Context.READ && name.equals("segments.gen"))) {
                 // when mode == null when writing write.lock
                 this.fd = this.columnOrientedDirectory.getFileDescriptor(this.name, true);
                 readOnly = false;
+                if (DEFAULT_APPEND_ONLY && fd != null && fd.getLength() == 0) {
+                    // lucene writes every file once, from start to end.
+                    fd.setAppendOnly(true);
+                }
             } else if (mode.context == IOContext.Context.READ) {
-                this.fd = this.columnOrientedDirectory.getFileDescriptor(this.name);
+                this.fd = getReadFileDescriptor();
                 readOnly = true;
             }
             if (fd == null) {
@@ -89,6 +102,32 @@ public class CassandraFile implements Closeable, MonitorType {
         logger.trace("done {}", this.name);
     }
 
+    /**
+     * Return the descriptor of a file opened for reading, from the
+     * descriptor cache of the directory if it holds a fresh entry for it
+     * (e.g. one fetched in bulk when the commit was opened).
+     * 
+     * Reads move the data positions of the blocks of the descriptor, so every
+     * file gets a copy of the cached one, as if it had read it from the row.
+     */
+    private FileDescriptor getReadFileDescriptor() throws IOException {
+        DescriptorCache cache = DescriptorCache.getInstance(keyspace, columnFamily);
+        if (cache != null) {
+            DescriptorCache.Entry entry = cache.get(this.name);
+            if (entry != null) {
+                FileDescriptor descriptor = entry.getDescriptor();
+                return descriptor == null ? null : FileDescriptorUtils
+                        .fromBytes(FileDescriptorUtils.toBytes(descriptor),
+                                blockSize);
+            }
+        }
+        FileDescriptor descriptor = this.columnOrientedDirectory.getFileDescriptor(this.name);
+        if (cache != null) {
+            cache.load(this.name, descriptor);
+        }
+        return descriptor;
+    }
+
     public CassandraFile getFile() {
         logger.trace("CassandraFile getFile ");
         return this;
@@ -159,9 +198,13 @@ public class CassandraFile implements Closeable, MonitorType {
         logger.trace("deleting file {}", name);
         if (fd != null) {
             try {
+                columnOrientedFile.invalidateFile(fd);
+                // the reaper's grace period starts now.
+                fd.setLastModified(System.currentTimeMillis());
                 fd.setDeleted(true);
+                // the blocks stay until the reaper removes them, along with
+                // the descriptor.
                 columnOrientedDirectory.setFileDescriptor(fd);
-                cassandraClient.setColumns(ByteBufferUtil.bytes(fd.getName()), null);
             } catch (IOException e) {
                 logger.error("unable to delete file " + name, e);
                 return false;
@@ -247,6 +290,11 @@ public class CassandraFile implements Closeable, MonitorType {
             monitor.setCounter(Counter.METRIC_MODE_MERGE, len);
         }
 
+        if (fd.isAppendOnly()) {
+            append(b, off, len);
+            return;
+        }
+
         String debug = String.format("flushing buffer.. bytes %s offset %s length %s", Util.debugBytesToHex(b), off, len);            
         logger.trace(debug);
 
@@ -341,19 +389,75 @@ public class CassandraFile implements Closeable, MonitorType {
         }
         fd.setLastAccessed(now);
         fd.setLastModified(now);
-        logger.trace("file descriptor {}", FileDescriptorUtils.toString(fd));
+        if (logger.isTraceEnabled()) {
+            logger.trace("file descriptor {}", FileDescriptorUtils.toString(fd));
+        }
         logger.trace("blocksToFlush size {}", blocksToFlush.size());
         if (blocksToFlush.size() > 1) {
             for (Entry<byte[], byte[]> entry  : blocksToFlush.entrySet()) {
                 logger.trace("flushing block {} ", new String(entry.getKey()));
             }
         }
-        columnOrientedFile.writeFileBlocks(fd, blocksToFlush);
+        columnOrientedFile.bufferFileBlocks(fd, blocksToFlush);
         if (bytesLeftToWrite > 0) {
             logger.error("did not write fully as expected, remaining {}", bytesLeftToWrite);
         }
     }
     
+    /**
+     * Append to an append-only file, filling its last block up before
+     * starting the next one. The partially filled last block is written out
+     * again in full, since a column can only be replaced as a whole.
+     */
+    private void append(byte[] b, int off, int len) throws IOException {
+        long fileLength = fd.getLength();
+        if (position != fileLength) {
+            throw new IOException("cannot write at " + position + " of append-only file " + name + " of length " + fileLength);
+        }
+        long stride = fd.getBlockSize();
+        int blockNumber = (int) (fileLength / stride);
+        int tailLength = (int) (fileLength % stride);
+        if (tailLength > 0 && tail == null) {
+            ByteBuffer lastBlock = columnOrientedFile.readFileBlocks(fd, blockNumber, blockNumber)[0];
+            if (lastBlock == null || lastBlock.remaining() < tailLength) {
+                throw new IOException("last block of " + name + " is missing");
+            }
+            tail = new byte[tailLength];
+            lastBlock.duplicate().get(tail);
+        }
+
+        BlockMap blocksToFlush = new BlockMap();
+        while (len > 0) {
+            int dataLength = (int) Math.min(stride - tailLength, len);
+            byte[] block = new byte[tailLength + dataLength];
+            if (tailLength > 0) {
+                System.arraycopy(tail, 0, block, 0, tailLength);
+            }
+            System.arraycopy(b, off, block, tailLength, dataLength);
+            blocksToFlush.put(FileBlock.createBlockName(blockNumber), block);
+            off += dataLength;
+            len -= dataLength;
+            fileLength += dataLength;
+            if (block.length == stride) {
+                blockNumber++;
+                tailLength = 0;
+                tail = null;
+            } else {
+                tailLength = block.length;
+                tail = block;
+            }
+        }
+
+        position = fileLength;
+        length = fileLength;
+        long now = System.currentTimeMillis();
+        fd.setLength(fileLength);
+        fd.layOutFixedStride();
+        fd.setLastAccessed(now);
+        fd.setLastModified(now);
+        columnOrientedFile.bufferFileBlocks(fd, blocksToFlush);
+    }
+
     /**
      * In the event the file pointer is currently positioned at the exact
      * end of the data range in the current block, then reposition to the
@@ -403,6 +507,13 @@ public class CassandraFile implements Closeable, MonitorType {
             logger.error("seek {} out of the bound 2147483647", pos);
         }
         //logger.trace("called seek {}", pos);
+        if (fd.isAppendOnly()) {
+            if (pos > fd.getLength()) {
+                throw new IOException("cannot seek to " + pos + " past the end of " + name);
+            }
+            position = pos;
+            return;
+        }
         currentBlock = FileDescriptorUtils.seekBlock(fd, pos);
         if (currentBlock == null) {
             throw new IOException("currentBlock is null");
@@ -476,23 +587,19 @@ public class CassandraFile implements Closeable, MonitorType {
         String debug = String.format("buffer '%s' offset %s len %s", Util.debugBytesToHex(b), off, len);
         logger.trace(debug);
         
-        if (b == null) {
-            throw new NullPointerException("array b is null");
-        }
-        
-        if (off < 0 ) {
-            throw new IndexOutOfBoundsException("buffer offset must not be negative");
-        }
-        if (len < 0) {
-            throw new IndexOutOfBoundsException("read length must not be negative");
-        }
-        if (len > b.length - off) {
-            throw new IndexOutOfBoundsException("read length must not greater than buffer length minus buffer offset");
-        }
+        checkBounds(b, off, len);
         
         if (len == 0) {
             return 0;
         }
+
+        if (fd.isAppendOnly()) {
+            int read = readFixedStride(position, b, off, len);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
         
         // contain unique block name to be read.
         // block-0, block-1 ... block-N
@@ -550,53 +657,46 @@ public class CassandraFile implements Closeable, MonitorType {
         boolean resetPosition = false;
         for (FileBlock blockToBeRead : blocksToBeRead) {
             //logger.trace("reading fileblock {} of its length {}", blockToBeRead.getBlockName(), blockToBeRead.getDataLength());
-            for (Map.Entry<byte[], byte[]> columnEntry : blockMap.entrySet()) {
-                String columnName = new String(columnEntry.getKey());
-                byte[] columnValue = columnEntry.getValue();
-                if (columnName.equals(blockToBeRead.getBlockName())) {
-                    //logger.trace("reading columnName {}, columnValue {}", columnName , Util.debugBytesToHex(columnValue));
-                    // If src (columnValue) is null, then a NullPointerException is thrown and the destination array is not modified.
-                    if (columnValue == null) {
-                        throw new NullPointerException("columnValue is null");
+            byte[] columnValue = blockMap.get(blockToBeRead.getBlockName());
+            if (columnValue != null) {
+                //logger.trace("reading columnName {}, columnValue {}", columnName , Util.debugBytesToHex(columnValue));
+                //int bytesToReadFromBlock = (int) Math.min(bytesToBeRead, (blockToBeRead.getDataLength() + blockToBeRead.getDataPosition()));
+                int bytesToReadFromBlock = (int) Math.min(bytesToBeRead, blockToBeRead.getDataLength());
+                //logger.trace("bytesToBeRead {} blockToBeRead.getDataLength {}", bytesToBeRead, blockToBeRead.getDataLength());
+                //logger.trace("blockToBeRead.getDataPosition {}", blockToBeRead.getDataPosition());
+                int remain = blockToBeRead.getDataLength() - blockToBeRead.getDataPosition();
+                if (resetPosition) {
+                    blockToBeRead.setDataPosition(0);
+                }
+                if (!resetPosition && bytesToReadFromBlock > remain) {
+                    if (remain > 0) {
+                        //logger.trace("remain = {}", blockToBeRead.getDataLength() - blockToBeRead.getDataPosition());
+                        bytesToReadFromBlock = remain;
+                        
                     }
-                    //int bytesToReadFromBlock = (int) Math.min(bytesToBeRead, (blockToBeRead.getDataLength() + blockToBeRead.getDataPosition()));
-                    int bytesToReadFromBlock = (int) Math.min(bytesToBeRead, blockToBeRead.getDataLength());
-                    //logger.trace("bytesToBeRead {} blockToBeRead.getDataLength {}", bytesToBeRead, blockToBeRead.getDataLength());
-                    //logger.trace("blockToBeRead.getDataPosition {}", blockToBeRead.getDataPosition());
-                    int remain = blockToBeRead.getDataLength() - blockToBeRead.getDataPosition();
+                }
+                //logger.trace("blockToBeRead.getDataLength {} blockToBeRead.getDataPosition {}", blockToBeRead.getDataLength(), blockToBeRead.getDataPosition());
+                //logger.trace(String.format("off %s bytesToReadFromBlock %s ", off, bytesToReadFromBlock));
+                int srcPos = blockToBeRead.getDataPosition();
+                try {
                     if (resetPosition) {
-                        blockToBeRead.setDataPosition(0);
-                    }
-                    if (!resetPosition && bytesToReadFromBlock > remain) {
-                        if (remain > 0) {
-                            //logger.trace("remain = {}", blockToBeRead.getDataLength() - blockToBeRead.getDataPosition());
-                            bytesToReadFromBlock = remain;
-                            
-                        }
+                        srcPos = 0;
                     }
-                    //logger.trace("blockToBeRead.getDataLength {} blockToBeRead.getDataPosition {}", blockToBeRead.getDataLength(), blockToBeRead.getDataPosition());
-                    //logger.trace(String.format("off %s bytesToReadFromBlock %s ", off, bytesToReadFromBlock));
-                    int srcPos = blockToBeRead.getDataPosition();
-                    try {
-                        if (resetPosition) {
-                            srcPos = 0;
-                        }
-                        //logger.trace("reading current block {} of length {}", columnName, bytesToReadFromBlock);
-                        //logger.trace(String.format("copying from columnValue of its length %s starting from srcPos %s with copy length %s => buffer array b.length %s off %s file %s", columnValue.length, srcPos, bytesToReadFromBlock, b.length, off, name));
-                        System.arraycopy(columnValue, srcPos, b, off, bytesToReadFromBlock);
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        String whatHappened = String.format("columnValue length %s srcPos %s b length %s off %s bytesToBeRead %s", columnValue.length, srcPos, b.length, off, bytesToBeRead);
-                        logger.error(whatHappened, e);
-                        throw new IOException("unable to copy " + name);
-                    }
-                    //logger.trace("bytes read {}", Util.debugBytesToHex(b));
-                    bytesToBeRead -= bytesToReadFromBlock;
-                    totalRead += bytesToReadFromBlock;
-                    off += bytesToReadFromBlock;
-                    blockToBeRead.setDataPosition(blockToBeRead.getDataPosition() + bytesToReadFromBlock);
-                    //logger.trace(String.format("bytesToBeRead %s offset %s bytesToReadFromBlock %s blockToBeRead.getDataPosition() %s", bytesToBeRead, off, bytesToReadFromBlock, blockToBeRead.getDataPosition()));
-                    resetPosition = true;
+                    //logger.trace("reading current block {} of length {}", columnName, bytesToReadFromBlock);
+                    //logger.trace(String.format("copying from columnValue of its length %s starting from srcPos %s with copy length %s => buffer array b.length %s off %s file %s", columnValue.length, srcPos, bytesToReadFromBlock, b.length, off, name));
+                    System.arraycopy(columnValue, srcPos, b, off, bytesToReadFromBlock);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    String whatHappened = String.format("columnValue length %s srcPos %s b length %s off %s bytesToBeRead %s", columnValue.length, srcPos, b.length, off, bytesToBeRead);
+                    logger.error(whatHappened, e);
+                    throw new IOException("unable to copy " + name);
                 }
+                //logger.trace("bytes read {}", Util.debugBytesToHex(b));
+                bytesToBeRead -= bytesToReadFromBlock;
+                totalRead += bytesToReadFromBlock;
+                off += bytesToReadFromBlock;
+                blockToBeRead.setDataPosition(blockToBeRead.getDataPosition() + bytesToReadFromBlock);
+                //logger.trace(String.format("bytesToBeRead %s offset %s bytesToReadFromBlock %s blockToBeRead.getDataPosition() %s", bytesToBeRead, off, bytesToReadFromBlock, blockToBeRead.getDataPosition()));
+                resetPosition = true;
             }
         }
 
@@ -622,10 +722,155 @@ public class CassandraFile implements Closeable, MonitorType {
         return totalRead;
     }
 
+    /**
+     * Reads up to <code>len</code> bytes of data from the given position of
+     * this file into an array of bytes, without moving the file pointer, as
+     * {@link java.nio.channels.FileChannel#read(ByteBuffer, long)} does.
+     * <p>
+     * The columns of an append-only file follow from the position alone, so
+     * these reads share no state but the descriptor, and any number of
+     * threads may read the same file at once. The reads of other files go
+     * through {@link #seek(long)} and {@link #read(byte[], int, int)}, and
+     * are serialized.
+     *
+     * @param      pos   the position in the file to read from.
+     * @param      b     the buffer into which the data is read.
+     * @param      off   the start offset in array <code>b</code>
+     *                   at which the data is written.
+     * @param      len   the maximum number of bytes read.
+     * @return     the total number of bytes read into the buffer, or
+     *             <code>-1</code> if the position is at or past the end of
+     *             the file.
+     * @exception  IOException If <code>pos</code> is negative or the blocks
+     * cannot be read.
+     */
+    public int read(long pos, byte[] b, int off, int len) throws IOException {
+        if (pos < 0) {
+            throw new IOException("position cannot be negative");
+        }
+        checkBounds(b, off, len);
+        if (len == 0) {
+            return 0;
+        }
+        if (fd.isAppendOnly()) {
+            return readFixedStride(pos, b, off, len);
+        }
+        synchronized (this) {
+            seek(pos);
+            return read(b, off, len);
+        }
+    }
+
+    /**
+     * Map the given range of this file, which must be append-only, the way
+     * {@link java.nio.channels.FileChannel#map} maps a local file: its blocks
+     * are faulted in as they are read, into the {@link PagePool} of the
+     * directory.
+     *
+     * @param position the position in the file at which the mapping starts.
+     * @param size     the number of bytes to map.
+     * @return a mapping of the range, for the calling thread to read.
+     * @exception IOException If the file is not append-only, or the range is
+     * not within the file.
+     */
+    public MappedBlocks map(long position, long size) throws IOException {
+        if (fd == null) {
+            throw new IOException("cannot map " + name + ", it does not exist");
+        }
+        return new MappedBlocks(columnOrientedFile, fd,
+                PagePool.getInstance(keyspace, columnFamily), position, size);
+    }
+
+    private static void checkBounds(byte[] b, int off, int len) {
+        if (b == null) {
+            throw new NullPointerException("array b is null");
+        }
+        
+        if (off < 0 ) {
+            throw new IndexOutOfBoundsException("buffer offset must not be negative");
+        }
+        if (len < 0) {
+            throw new IndexOutOfBoundsException("read length must not be negative");
+        }
+        if (len > b.length - off) {
+            throw new IndexOutOfBoundsException("read length must not greater than buffer length minus buffer offset");
+        }
+    }
+
+    /**
+     * Read from the given position of an append-only file, whose columns
+     * follow from the position alone. The blocks are copied straight from
+     * the buffers they were read into, once.
+     */
+    private int readFixedStride(long pos, byte[] b, int off, int len) throws IOException {
+        long fileLength = fd.getLength();
+        if (pos >= fileLength) {
+            return -1;
+        }
+        long stride = fd.getBlockSize();
+        int toRead = (int) Math.min(len, fileLength - pos);
+        int first = (int) (pos / stride);
+        int last = (int) ((pos + toRead - 1) / stride);
+        ByteBuffer[] blocks = columnOrientedFile.readFileBlocks(fd, first, last);
+
+        int totalRead = 0;
+        for (int blockNumber = first; blockNumber <= last; blockNumber++) {
+            ByteBuffer block = blocks[blockNumber - first];
+            int srcPos = (int) (pos - blockNumber * stride);
+            int bytesToReadFromBlock = (int) Math.min(toRead - totalRead, stride - srcPos);
+            if (block == null || block.remaining() < srcPos + bytesToReadFromBlock) {
+                throw new IOException("block " + blockNumber + " of " + name + " is missing or short");
+            }
+            copy(block, srcPos, b, off + totalRead, bytesToReadFromBlock);
+            totalRead += bytesToReadFromBlock;
+            pos += bytesToReadFromBlock;
+        }
+        return totalRead;
+    }
+
+    // copy len bytes at the given offset of the remaining bytes of src,
+    // without moving its position.
+    static void copy(ByteBuffer src, int srcPos, byte[] b, int off, int len) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + src.position() + srcPos, b, off, len);
+        } else {
+            ByteBuffer source = src.duplicate();
+            source.position(source.position() + srcPos);
+            source.get(b, off, len);
+        }
+    }
+
+    /**
+     * Persist the blocks and the descriptor changes that are still held back
+     * by the write-behind buffer.
+     * 
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        if (columnOrientedFile != null) {
+            columnOrientedFile.syncFileBlocks();
+        }
+    }
+
+    /**
+     * @return true if this file has writes that were not persisted yet
+     */
+    public boolean hasPendingWrites() {
+        return columnOrientedFile != null
+                && columnOrientedFile.hasPendingWrites();
+    }
+
     @Override
-    public void close() {
-        cassandraClient.close();
-        cassandraClient = null;
+    public void close() throws IOException {
+        if (blockStore == null) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            blockStore.close();
+            blockStore = null;
+        }
     }
 
     public FileDescriptor getFD() {
@@ -659,8 +904,8 @@ public class CassandraFile implements Closeable, MonitorType {
         return this.mode;
     }
     
-    public CassandraClient getCassandraClient() {
-        return cassandraClient;
+    public BlockStore getBlockStore() {
+        return blockStore;
     }
 
     @Override
@@ -4,6 +4,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.SyncFailedException;
+import java.util.Arrays;
 
 import org.apache.lucene.store.IOContext;
 import org.slf4j.Logger;
@@ -62,14 +63,32 @@ public class CassandraRandomAccessFile implements Serializable {
 
     //http://docs.oracle.com/javase/7/docs/api/java/io/RandomAccessFile.html#read%28byte[],%20int,%20int%29
     public int read(byte[] b, int off, int len) throws IOException { 
-        String debug = String.format("reading a length of %s from this file %s into byte array  %s with starting offset %s", len, file.getName() , Util.debugBytesToHex(b), off);
-        //logger.trace(debug);
         int read = file.read(b, off, len);
-        logger.info("read {} off {} ", read, off);
-        logger.info("Util.bytesToHex({})", Util.bytesToHex(b));
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("read %s of %s bytes from %s into %s at offset %s",
+                    read, len, file.getName(), Util.debugBytesToHex(b), off));
+        }
         return read;
     }
     
+    /**
+     * Reads up to len bytes from the given position of this file, without
+     * moving the file pointer, so that the clones of an input can read the
+     * same file at once.
+     *
+     * @see CassandraFile#read(long, byte[], int, int)
+     */
+    public int read(long pos, byte[] b, int off, int len) throws IOException {
+        return file.read(pos, b, off, len);
+    }
+    
+    /**
+     * @return the descriptor of this file, as last written by this file
+     */
+    public FileDescriptor getFD() {
+        return file.getFD();
+    }
+
     // don't actually need this method.
     public Closeable getFile() {
         logger.trace("called getFile");
@@ -109,14 +128,20 @@ public class CassandraRandomAccessFile implements Serializable {
         
         FileDescriptor fd = file.getFD();
         
-        String existingFD = FileDescriptorUtils.toString(fd);
+        if (file.hasPendingWrites()) {
+            // write-behind: the stored descriptor is expected to lag.
+            file.sync();
+            return;
+        }
+        
+        byte[] existingFD = FileDescriptorUtils.toBinary(fd);
         
-        ColumnOrientedFile cof = new ColumnOrientedFile(file.getCassandraClient());
+        ColumnOrientedFile cof = new ColumnOrientedFile(file.getBlockStore());
         FileDescriptor cassandraFD = cof.getFileDescriptor(file.getName(), file.getBlockSize());
 
-        String cassandraFDString = FileDescriptorUtils.toString(cassandraFD);
+        byte[] cassandraFDBytes = FileDescriptorUtils.toBinary(cassandraFD);
         
-        if (!cassandraFDString.equals(existingFD)) {
+        if (!Arrays.equals(cassandraFDBytes, existingFD)) {
             logger.error("existing fd {}", FileDescriptorUtils.toString(fd));
             logger.error("cassandra fd {}", FileDescriptorUtils.toString(cassandraFD));
         }
@@ -1,8 +1,15 @@
 package org.apache.lucene.cassandra;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.slf4j.Logger;
@@ -14,12 +21,37 @@ import org.slf4j.LoggerFactory;
  * treats each row in the column family as a file underneath the directory.
  * 
  * <p>
- * This class in turn relies on the {@link CassandraClient} for all
- * low-level gets and puts to the Cassandra server. More importantly, it
- * does not require that the {@link CassandraClient} to be familiar with the
- * notion of Lucene directories. Rather, it transparently translates those
- * notions to column families. In so doing, it ends up hiding the Cassandra
- * layer from its consumers.
+ * This class in turn relies on a {@link BlockStore}, usually the
+ * {@link CassandraClient}, for all low-level gets and puts to the Cassandra
+ * server. More importantly, it does not require that the store be familiar
+ * with the notion of Lucene directories. Rather, it transparently translates
+ * those notions to column families. In so doing, it ends up hiding the
+ * Cassandra layer from its consumers.
+ * </p>
+ *
+ * <p>
+ * The live files of the directory are also listed in a manifest row, which
+ * holds one column per file with its length and last modified timestamp.
+ * The manifest column of a file is sent in the same batch mutation as its
+ * descriptor, and removed along with it, so that {@link #getFileNames()} is a
+ * slice of a single row rather than a scan over every row (live or deleted)
+ * in the column family. Cassandra applies a batch atomically within each row
+ * only, so a write that fails midway may leave the manifest and the
+ * descriptor of a file apart until the file is written or deleted again; the
+ * descriptor is the one to trust. A column family written before the
+ * manifest existed is scanned once, on the first listing, to build it. The
+ * manifest can be turned off with <code>lucene.cassandra.manifest=false</code>,
+ * in which case every process writing to the directory must turn it off.
+ * </p>
+ *
+ * <p>
+ * With <code>lucene.cassandra.contentRows=true</code>, new files keep their
+ * blocks in a content row of their own, keyed by the name of the file and a
+ * random suffix, rather than in the row of the file. Renaming a file then only
+ * moves its descriptor, which points to the same content row under the new
+ * name. Their descriptors are written in a format that older readers refuse,
+ * so this is off by default, and new files keep their blocks in their own
+ * row, as files written before always do.
  * </p>
  */
 public class ColumnOrientedDirectory {
@@ -34,15 +66,158 @@ public class ColumnOrientedDirectory {
     static {
         systemColumns.add(descriptorColumn.getBytes());
     }
+
+    // Whether the live files are listed in a manifest row.
+    public static final boolean DEFAULT_MANIFEST = Boolean
+            .parseBoolean(System.getProperty("lucene.cassandra.manifest",
+                    "true"));
+
+    // Whether new files keep their blocks in a content row of their own.
+    public static final boolean DEFAULT_CONTENT_ROWS = Boolean
+            .parseBoolean(System.getProperty("lucene.cassandra.contentRows",
+                    "false"));
+
+    // The key of the row that lists the live files of the directory.
+    protected static final String manifestRow = "__MANIFEST__";
+
+    // The manifest column present once the manifest lists every live file.
+    protected static final String manifestCompleteColumn = ".";
+
+    // The number of manifest columns (or rows) read per slice.
+    private static final int MANIFEST_PAGE_SIZE = 1024;
+
+    /**
+     * The length and last modified timestamp of a file, as listed in the
+     * manifest.
+     */
+    public static final class ManifestEntry {
+        private final long length;
+
+        private final long lastModified;
+
+        ManifestEntry(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
     
-    CassandraClient cassandraClient;
+    BlockStore blockStore;
     int blockSize;
     
-    public ColumnOrientedDirectory(CassandraClient cassandraClient, int blockSize) {
-        this.cassandraClient = cassandraClient;
+    public ColumnOrientedDirectory(BlockStore blockStore, int blockSize) {
+        this.blockStore = blockStore;
         this.blockSize = blockSize;
     }
     
+    /**
+     * Return the names of the live files in this directory, from the
+     * manifest if it is enabled.
+     * 
+     * @return the names of the files in this directory
+     * @throws IOException
+     */
+    public String[] getFileNames() throws IOException {
+        if (!DEFAULT_MANIFEST) {
+            return scanFileNames();
+        }
+        return getManifest().keySet().toArray(new String[] {});
+    }
+
+    /**
+     * Return the live files in this directory along with their length and
+     * last modified timestamp, as listed in the manifest, building the
+     * manifest first if need be.
+     * 
+     * @return the manifest entries, by file name
+     * @throws IOException
+     */
+    public Map<String, ManifestEntry> getManifest() throws IOException {
+        Map<String, ManifestEntry> entries =
+                new LinkedHashMap<String, ManifestEntry>();
+        boolean complete = false;
+        byte[] start = new byte[0];
+        while (true) {
+            BlockMap columns =
+                    blockStore.getColumns(manifestRow.getBytes(), start,
+                            MANIFEST_PAGE_SIZE);
+            for (Map.Entry<byte[], byte[]> column : columns.entrySet()) {
+                String fileName = new String(column.getKey());
+                if (manifestCompleteColumn.equals(fileName)) {
+                    complete = true;
+                } else {
+                    ByteBuffer value = ByteBuffer.wrap(column.getValue());
+                    entries.put(fileName,
+                            new ManifestEntry(value.getLong(), value.getLong()));
+                }
+            }
+            if (columns.size() < MANIFEST_PAGE_SIZE) {
+                break;
+            }
+            // the next slice starts at (and returns again) the last column.
+            start = columns.lastKey();
+            entries.remove(new String(start));
+        }
+        if (!complete) {
+            return rebuildManifest();
+        }
+        return entries;
+    }
+
+    /**
+     * Build the manifest from the descriptors of all the files in the column
+     * family, for directories that were written without one.
+     *
+     * <p>
+     * A file may be deleted while the manifest is being built, and its
+     * deletion unlists it before the rebuild lists it. The live files are thus
+     * listed first, and their descriptors read again afterwards: the ones
+     * deleted by then are unlisted in the write that marks the manifest
+     * complete, and the ones deleted later unlist themselves.
+     * </p>
+     */
+    private Map<String, ManifestEntry> rebuildManifest() throws IOException {
+        logger.info("building the manifest of {}/{}",
+                blockStore.getKeyspace(), blockStore.getColumnFamily());
+        Map<String, ManifestEntry> entries =
+                new LinkedHashMap<String, ManifestEntry>();
+        BlockMap columns = new BlockMap();
+        for (FileDescriptor fileDescriptor : getFileDescriptors(
+                Arrays.asList(scanFileNames())).values()) {
+            if (fileDescriptor != null) {
+                String fileName = fileDescriptor.getName();
+                columns.put(fileName, toManifestValue(fileDescriptor));
+                entries.put(fileName, new ManifestEntry(fileDescriptor.getLength(),
+                        fileDescriptor.getLastModified()));
+            }
+        }
+        if (!columns.isEmpty()) {
+            blockStore.setColumns(ByteBufferUtil.bytes(manifestRow), columns);
+        }
+
+        Map<byte[], byte[]> complete = new HashMap<byte[], byte[]>();
+        for (Map.Entry<String, FileDescriptor> fileDescriptor : getFileDescriptors(
+                new ArrayList<String>(entries.keySet())).entrySet()) {
+            if (fileDescriptor.getValue() == null) {
+                logger.debug("{} was deleted while building the manifest",
+                        fileDescriptor.getKey());
+                complete.put(fileDescriptor.getKey().getBytes(), null);
+                entries.remove(fileDescriptor.getKey());
+            }
+        }
+        complete.put(manifestCompleteColumn.getBytes(), ByteBuffer.allocate(8)
+                .putLong(System.currentTimeMillis()).array());
+        blockStore.setColumns(ByteBufferUtil.bytes(manifestRow), complete);
+        return entries;
+    }
+
     /**
      * Note, count in cassandra is of type int, should it should be possible to list
      * Integer.MAX_VALUE but when that value is specified, cassandra throw 
@@ -51,8 +226,8 @@ public class ColumnOrientedDirectory {
      * @return the names of the files in this directory
      * @throws IOException
      */
-    public String[] getFileNames() throws IOException {
-        byte[][] keys = cassandraClient.getKeys(systemColumns, 131072, false);
+    private String[] scanFileNames() throws IOException {
+        byte[][] keys = blockStore.getKeys(systemColumns, 131072, false);
         List<String> fileNames = new ArrayList<String>();
         for (byte[] key : keys) {
             fileNames.add(new String(key));
@@ -60,6 +235,58 @@ public class ColumnOrientedDirectory {
         return fileNames.toArray(new String[] {});
     }
 
+    /**
+     * Add the change the given descriptor makes to the manifest to the given
+     * batch of rows, i.e. list the file if it is live, or unlist it if it was
+     * deleted. This is a no-op if the manifest is turned off.
+     * 
+     * @param rows
+     *            the batch of rows being written along with the descriptor
+     * @param fileDescriptor
+     *            the descriptor being written
+     */
+    static void addManifestColumn(Map<ByteBuffer, Map<byte[], byte[]>> rows,
+            FileDescriptor fileDescriptor) {
+        if (!DEFAULT_MANIFEST) {
+            return;
+        }
+        manifestColumns(rows).put(fileDescriptor.getName().getBytes(),
+                fileDescriptor.isDeleted() ? null
+                        : toManifestValue(fileDescriptor));
+    }
+
+    /**
+     * Add the removal of the given file from the manifest to the given batch
+     * of rows. This is a no-op if the manifest is turned off.
+     */
+    static void removeManifestColumn(Map<ByteBuffer, Map<byte[], byte[]>> rows,
+            String fileName) {
+        if (!DEFAULT_MANIFEST) {
+            return;
+        }
+        manifestColumns(rows).put(fileName.getBytes(), null);
+    }
+
+    // the manifest columns of the given batch, so that a batch may list and
+    // unlist several files.
+    private static Map<byte[], byte[]> manifestColumns(
+            Map<ByteBuffer, Map<byte[], byte[]>> rows) {
+        ByteBuffer key = ByteBufferUtil.bytes(manifestRow);
+        Map<byte[], byte[]> columns = rows.get(key);
+        if (columns == null) {
+            columns = new HashMap<byte[], byte[]>();
+            rows.put(key, columns);
+        }
+        return columns;
+    }
+
+    private static byte[] toManifestValue(FileDescriptor fileDescriptor) {
+        ByteBuffer value = ByteBuffer.allocate(16);
+        value.putLong(fileDescriptor.getLength());
+        value.putLong(fileDescriptor.getLastModified());
+        return value.array();
+    }
+
     /**
      * Return the file descriptor for the file of the given name. If the
      * file cannot be found, then return null, instead of trying to create
@@ -88,21 +315,51 @@ public class ColumnOrientedDirectory {
     protected FileDescriptor getFileDescriptor(String fileName,
             boolean createIfNotFound) throws IOException {
         logger.trace("fileName {} createIfNotFound {}", fileName, createIfNotFound);
-        if (cassandraClient == null) logger.error("cassandraClient is null");
+        if (blockStore == null) logger.error("blockStore is null");
         if (fileName == null) {
             return null;
         }
+        byte[] descriptorBytes =
+                blockStore.getColumn(fileName.getBytes(),
+                        descriptorColumn.getBytes());
         FileDescriptor fileDescriptor =
-                FileDescriptorUtils.fromBytes(cassandraClient.getColumn(
-                        fileName.getBytes(), descriptorColumn.getBytes()), blockSize);
+                FileDescriptorUtils.fromBytes(descriptorBytes, blockSize);
         if (fileDescriptor == null && createIfNotFound) {
             logger.trace("creating empty fd");
-            fileDescriptor = new FileDescriptor(fileName, blockSize);
+            // the row of a deleted file may still be pinned by a snapshot.
+            fileDescriptor = newFileDescriptor(fileName, descriptorBytes != null);
             setFileDescriptor(fileDescriptor);
         }
         return fileDescriptor;
     }
 
+    /**
+     * Return the file descriptors of the given files, fetched in bulk rather
+     * than one round trip per file, e.g. to open all the files of a commit at
+     * once.
+     *
+     * @param fileNames
+     *            the names of the files
+     * @return the descriptors of the given files, by file name; files that
+     *         cannot be found (or were deleted) map to null
+     * @throws IOException
+     */
+    public Map<String, FileDescriptor> getFileDescriptors(
+            Collection<String> fileNames) throws IOException {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (String fileName : fileNames) {
+            keys.add(fileName.getBytes());
+        }
+        Map<String, FileDescriptor> fileDescriptors =
+                new LinkedHashMap<String, FileDescriptor>();
+        for (Map.Entry<String, byte[]> row : blockStore.getColumnOfKeys(
+                keys, descriptorColumn.getBytes()).entrySet()) {
+            fileDescriptors.put(row.getKey(),
+                    FileDescriptorUtils.fromBytes(row.getValue(), blockSize));
+        }
+        return fileDescriptors;
+    }
+
     /**
      * Save the given file descriptor.
      * 
@@ -113,10 +370,78 @@ public class ColumnOrientedDirectory {
     public void setFileDescriptor(FileDescriptor fileDescriptor)
             throws IOException {
         BlockMap blockMap = new BlockMap();
-        blockMap.put(descriptorColumn,
-                FileDescriptorUtils.toString(fileDescriptor));
-        cassandraClient.setColumns(
-                ByteBufferUtil.bytes(fileDescriptor.getName()), blockMap);
+        blockMap.put(descriptorColumn, ColumnOrientedFile.toDescriptorBytes(
+                blockStore, fileDescriptor));
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        rows.put(ByteBufferUtil.bytes(fileDescriptor.getName()), blockMap);
+        addManifestColumn(rows, fileDescriptor);
+        blockStore.setColumns(rows);
+    }
+
+    /**
+     * Return the descriptors of the files that were deleted, but whose rows
+     * still hold a descriptor (and possibly blocks).
+     * 
+     * @return the descriptors of the deleted files
+     * @throws IOException
+     */
+    public List<FileDescriptor> getDeletedFileDescriptors() throws IOException {
+        List<FileDescriptor> fileDescriptors = new ArrayList<FileDescriptor>();
+        byte[] start = new byte[0];
+        while (true) {
+            LinkedHashMap<String, byte[]> rows =
+                    blockStore.getColumnOfRows(descriptorColumn.getBytes(),
+                            start, MANIFEST_PAGE_SIZE);
+            String lastKey = null;
+            for (Map.Entry<String, byte[]> row : rows.entrySet()) {
+                lastKey = row.getKey();
+                // the first row of every page but the first one was seen already.
+                if (start.length > 0 && lastKey.equals(new String(start))) {
+                    continue;
+                }
+                FileDescriptor fileDescriptor =
+                        FileDescriptorUtils.fromBytes(row.getValue(), blockSize, true);
+                if (fileDescriptor != null && fileDescriptor.isDeleted()) {
+                    fileDescriptors.add(fileDescriptor);
+                }
+            }
+            if (rows.size() < MANIFEST_PAGE_SIZE) {
+                break;
+            }
+            start = lastKey.getBytes();
+        }
+        return fileDescriptors;
+    }
+
+    /**
+     * Return the descriptor for the file of the given name, even if the file
+     * was deleted.
+     * 
+     * @return the descriptor, or null if there is none
+     * @throws IOException
+     */
+    public FileDescriptor getFileDescriptorIncludingDeleted(String fileName)
+            throws IOException {
+        return FileDescriptorUtils.fromBytes(blockStore.getColumn(
+                fileName.getBytes(), descriptorColumn.getBytes()), blockSize,
+                true);
+    }
+
+    /**
+     * Remove the descriptor of the given file, after which the file is
+     * entirely gone from the column family.
+     * 
+     * @throws IOException
+     */
+    public void removeFileDescriptor(String fileName) throws IOException {
+        Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
+        columns.put(descriptorColumn.getBytes(), null);
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        rows.put(ByteBufferUtil.bytes(fileName), columns);
+        removeManifestColumn(rows, fileName);
+        blockStore.setColumns(rows);
     }
 
     /**
@@ -132,14 +457,40 @@ public class ColumnOrientedDirectory {
     protected FileDescriptor resetFileDescriptor(String fileName)
             throws IOException {
         logger.trace("fileName {}", fileName);
-        if (cassandraClient == null)
-            logger.error("cassandraClient is null");
+        if (blockStore == null)
+            logger.error("blockStore is null");
         if (fileName == null) {
             return null;
         }
-        FileDescriptor fileDescriptor = new FileDescriptor(fileName, blockSize);
+        FileDescriptor fileDescriptor = newFileDescriptor(fileName, true);
         setFileDescriptor(fileDescriptor);
         return fileDescriptor;
     }
 
+    // the descriptor of a new file, compressed and content-addressed if the
+    // directory says so, with a content row of its own if the directory says
+    // so, or if the row of the file is reused and a snapshot pins it.
+    private FileDescriptor newFileDescriptor(String fileName, boolean reused)
+            throws IOException {
+        FileDescriptor fileDescriptor = new FileDescriptor(fileName, blockSize);
+        fileDescriptor.setCompressed(BlockCompression.getInstance(
+                blockStore.getKeyspace(), blockStore.getColumnFamily())
+                .isEnabled());
+        if (DEFAULT_CONTENT_ROWS
+                || (reused && DirectorySnapshots.isPinned(blockStore, fileName))) {
+            fileDescriptor.setContentRow(newContentRow(fileName));
+        }
+        fileDescriptor.setContentAddressed(ContentAddressedBlocks
+                .getInstance(blockStore).isEnabled());
+        return fileDescriptor;
+    }
+
+    /**
+     * @return the key of a new content row for the blocks of the given file,
+     *         which no other file uses
+     */
+    static String newContentRow(String fileName) {
+        return fileName + "@" + UUID.randomUUID();
+    }
+
 }
@@ -2,15 +2,19 @@ package org.apache.lucene.cassandra;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.utils.ByteBufferUtil;
-import org.apache.thrift.transport.TTransportException;
+import org.apache.monitor.MetricGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,12 +27,66 @@ import org.slf4j.LoggerFactory;
  * potentially disparate, clients).
  * 
  * <p>
- * This class in turn relies on the {@link CassandraClient} for all
- * low-level gets and puts to the Cassandra server. More importantly, it
- * does not require that the {@link CassandraClient} be familiar with the
- * notion of Lucene files. Rather, it transparently translates those notions
- * to rows within the column family denoting the directory. In so doing, it
- * ends up hiding the Cassandra layer from its consumers.
+ * This class in turn relies on a {@link BlockStore}, usually the
+ * {@link CassandraClient}, for all low-level gets and puts to the Cassandra
+ * server. More importantly, it does not require that the store be familiar
+ * with the notion of Lucene files. Rather, it transparently translates those
+ * notions to rows within the column family denoting the directory. In so
+ * doing, it ends up hiding the Cassandra layer from its consumers.
+ * </p>
+ *
+ * <p>
+ * Sequential writers may go through {@link #bufferFileBlocks} instead of
+ * {@link #writeFileBlocks}. In that (write-behind) mode, data blocks are
+ * batched until <code>lucene.cassandra.writeBehind.batchBytes</code> have
+ * accumulated, and the descriptor is only persisted by
+ * {@link #syncFileBlocks()}, which the owning file calls on close and sync.
+ * If <code>lucene.cassandra.writeBehind.crashSafe</code> is turned off, the
+ * descriptor is also persisted every
+ * <code>lucene.cassandra.writeBehind.descriptorIntervalMillis</code>, which
+ * makes partially written files visible to other readers. Write-behind can be
+ * disabled altogether with <code>lucene.cassandra.writeBehind=false</code>.
+ * Batches of data blocks are sent asynchronously, so that the writer fills its
+ * next batch while the previous one is in flight; at most one batch is in
+ * flight at a time, and it always lands before the descriptor that references
+ * it. <code>lucene.cassandra.writeBehind.async=false</code> sends them
+ * synchronously instead.
+ * </p>
+ *
+ * <p>
+ * Blocks read through {@link #readFileBlocks} are served from the directory's
+ * {@link BlockCache} when possible, and the blocks this class writes or
+ * deletes are dropped from it. The pages the {@link MappedBlocks} of a file
+ * faulted into the {@link PagePool} are dropped along with the file.
+ * </p>
+ *
+ * <p>
+ * The blocks of files whose descriptor says so are compressed by the
+ * directory's {@link BlockCompression} on their way to Cassandra, and
+ * decompressed on their way back, before they are cached.
+ * </p>
+ *
+ * <p>
+ * The blocks of a file live in its content row (see
+ * {@link FileDescriptor#getContentRow()}), and are cached under it. The
+ * descriptor always lives in the row named after the file. Files with a
+ * content row of their own are renamed by moving their descriptor only;
+ * other files, and copies, are streamed block by block by
+ * {@link #copyFile(FileDescriptor, String)}, which never holds more than a
+ * couple of batches of blocks on the client.
+ * </p>
+ *
+ * <p>
+ * The content rows of files whose descriptor says so hold the hashes of their
+ * blocks, which are stored in the directory's {@link ContentAddressedBlocks}.
+ * Copying such a file copies the hashes only, and deleting its blocks lists
+ * the hashes they held as candidates for collection.
+ * </p>
+ *
+ * <p>
+ * The rows pinned by a snapshot (see {@link DirectorySnapshots}), be they
+ * content rows or the rows of files without one, never lose their blocks, nor
+ * are they written over by copies.
  * </p>
  */
 public class ColumnOrientedFile {
@@ -37,10 +95,107 @@ public class ColumnOrientedFile {
     
     // The name of the column that holds the file descriptor.
     protected static final String descriptorColumn = "DESCRIPTOR";
-    private CassandraClient cassandraClient = null;
+
+    // The number of columns read per slice when deleting a whole row.
+    private static final int DELETE_PAGE_SIZE = 1024;
+
+    // Whether buffered writes are batched and the descriptor deferred.
+    public static final boolean DEFAULT_WRITE_BEHIND = Boolean
+            .parseBoolean(System.getProperty("lucene.cassandra.writeBehind",
+                    "true"));
+
+    // Pending data blocks are sent once they add up to this many bytes.
+    public static final int DEFAULT_WRITE_BEHIND_BATCH_BYTES = Integer
+            .getInteger("lucene.cassandra.writeBehind.batchBytes",
+                    1024 * 1024);
+
+    // When set, the descriptor is only persisted on sync, so a partially
+    // written file never becomes visible.
+    public static final boolean DEFAULT_CRASH_SAFE = Boolean
+            .parseBoolean(System.getProperty(
+                    "lucene.cassandra.writeBehind.crashSafe", "true"));
+
+    // Whether batches of data blocks are sent without waiting for them.
+    public static final boolean DEFAULT_ASYNC_FLUSH = Boolean
+            .parseBoolean(System.getProperty(
+                    "lucene.cassandra.writeBehind.async", "true"));
+
+    // How often the descriptor is persisted when crash safety is off.
+    public static final long DEFAULT_DESCRIPTOR_INTERVAL_MILLIS = Long
+            .getLong("lucene.cassandra.writeBehind.descriptorIntervalMillis",
+                    1000L);
+
+    private BlockStore blockStore = null;
+
+    // The block cache shared by the files of this directory, if enabled.
+    private BlockCache blockCache = null;
+
+    // The page pool of the mappings of the files of this directory, if enabled.
+    private PagePool pagePool = null;
+
+    // The compression of the blocks of the files of this directory.
+    private BlockCompression compression = null;
+
+    // The store of the blocks of the content-addressed files of this directory.
+    private ContentAddressedBlocks contentAddressedBlocks = null;
+
+    // the metrics the reads and writes of blocks are recorded in.
+    private MetricGroup metrics = null;
+
+    private boolean writeBehind = DEFAULT_WRITE_BEHIND;
+
+    private int batchBytes = DEFAULT_WRITE_BEHIND_BATCH_BYTES;
+
+    private boolean crashSafe = DEFAULT_CRASH_SAFE;
+
+    private long descriptorIntervalMillis = DEFAULT_DESCRIPTOR_INTERVAL_MILLIS;
+
+    private boolean asyncFlush = DEFAULT_ASYNC_FLUSH;
+
+    // The batch of data blocks still in flight, if any.
+    private Future<Void> inFlightFlush = null;
+
+    // Blocks written through bufferFileBlocks that are not yet in cassandra.
+    private BlockMap pendingBlocks = new BlockMap();
+
+    private int pendingBytes = 0;
+
+    // The descriptor whose changes have not been persisted yet, if any.
+    private FileDescriptor pendingDescriptor = null;
+
+    private long lastDescriptorWrite = System.currentTimeMillis();
     
-    public ColumnOrientedFile(CassandraClient cassandraClient) {
-        this.cassandraClient = cassandraClient;
+    public ColumnOrientedFile(BlockStore blockStore) {
+        this.blockStore = blockStore;
+        this.blockCache =
+                BlockCache.getInstance(blockStore.getKeyspace(),
+                        blockStore.getColumnFamily());
+        this.pagePool =
+                PagePool.getInstance(blockStore.getKeyspace(),
+                        blockStore.getColumnFamily());
+        this.compression =
+                BlockCompression.getInstance(blockStore.getKeyspace(),
+                        blockStore.getColumnFamily());
+        this.contentAddressedBlocks =
+                ContentAddressedBlocks.getInstance(blockStore);
+        this.metrics = blockStore.getMetrics();
+    }
+
+    /**
+     * Keep the blocks of content-addressed files in the given store, e.g. one
+     * that is not shared with other files.
+     */
+    public void setContentAddressedBlocks(
+            ContentAddressedBlocks contentAddressedBlocks) {
+        this.contentAddressedBlocks = contentAddressedBlocks;
+    }
+
+    /**
+     * Record the reads and writes of blocks in the given metrics, e.g. those
+     * of the IOContext the file was opened in.
+     */
+    public void setMetrics(MetricGroup metrics) {
+        this.metrics = metrics;
     }
     
     /**
@@ -60,17 +215,255 @@ public class ColumnOrientedFile {
         logger.trace("writeFileBlocks {}", fileDescriptor.getName());
         // System.out.println("The file descriptor saved was " +
         // FileDescriptorUtils.toJSON(fileDescriptor));
+        invalidateCachedBlocks(fileDescriptor.getContentRow(), blocksToBeWritten);
+        encodeBlocks(fileDescriptor, blocksToBeWritten);
+        recordWrites(blocksToBeWritten);
+        storeBlocks(fileDescriptor, blocksToBeWritten);
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        if (fileDescriptor.hasContentRow()) {
+            // an empty row of columns would delete the content row.
+            if (!blocksToBeWritten.isEmpty()) {
+                rows.put(ByteBufferUtil.bytes(fileDescriptor.getContentRow()),
+                        blocksToBeWritten);
+            }
+            blocksToBeWritten = new BlockMap();
+        }
         blocksToBeWritten.put(descriptorColumn,
-                FileDescriptorUtils.toString(fileDescriptor));
-        cassandraClient.setColumns(
-                ByteBufferUtil.bytes(fileDescriptor.getName()),
+                toDescriptorBytes(blockStore, fileDescriptor));
+        rows.put(ByteBufferUtil.bytes(fileDescriptor.getName()),
                 blocksToBeWritten);
+        ColumnOrientedDirectory.addManifestColumn(rows, fileDescriptor);
+        blockStore.setColumns(rows);
+    }
+
+    /**
+     * Write the given blocks in the file referenced by the given descriptor,
+     * deferring the round trip when write-behind is enabled. The blocks are
+     * kept until enough data has accumulated, and the descriptor until
+     * {@link #syncFileBlocks()} is called (or the descriptor interval elapses
+     * when crash safety is off).
+     * 
+     * @param fileDescriptor
+     *            the descriptor of the file being written to
+     * @param blocksToBeWritten
+     *            the map of block names to values
+     * @throws IOException
+     */
+    public void bufferFileBlocks(FileDescriptor fileDescriptor,
+            BlockMap blocksToBeWritten) throws IOException {
+        if (!writeBehind) {
+            writeFileBlocks(fileDescriptor, blocksToBeWritten);
+            return;
+        }
+        if (pendingDescriptor != null
+                && !pendingDescriptor.getName().equals(fileDescriptor.getName())) {
+            syncFileBlocks();
+        }
+        for (Entry<byte[], byte[]> entry : blocksToBeWritten.entrySet()) {
+            byte[] previous = pendingBlocks.put(entry.getKey(), entry.getValue());
+            pendingBytes += entry.getValue().length;
+            if (previous != null) {
+                pendingBytes -= previous.length;
+            }
+        }
+        invalidateCachedBlocks(fileDescriptor.getContentRow(), blocksToBeWritten);
+        pendingDescriptor = fileDescriptor;
+
+        if (!crashSafe
+                && System.currentTimeMillis() - lastDescriptorWrite >= descriptorIntervalMillis) {
+            syncFileBlocks();
+        } else if (pendingBytes >= batchBytes) {
+            flushPendingBlocks();
+        }
+    }
+
+    /**
+     * Persist the blocks held back by {@link #bufferFileBlocks} together with
+     * the descriptor that references them, in a single mutation. This is a
+     * no-op if nothing is pending.
+     * 
+     * @throws IOException
+     */
+    public void syncFileBlocks() throws IOException {
+        awaitInFlightFlush();
+        if (pendingDescriptor == null) {
+            return;
+        }
+        logger.trace("syncFileBlocks {} pending bytes {}",
+                pendingDescriptor.getName(), pendingBytes);
+        BlockMap blocksToBeWritten = pendingBlocks;
+        FileDescriptor fileDescriptor = pendingDescriptor;
+        pendingBlocks = new BlockMap();
+        pendingBytes = 0;
+        pendingDescriptor = null;
+        writeFileBlocks(fileDescriptor, blocksToBeWritten);
+        lastDescriptorWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if there are blocks or descriptor changes that have not
+     *         been persisted yet
+     */
+    public boolean hasPendingWrites() {
+        return pendingDescriptor != null;
+    }
+
+    // compress the given blocks, if the blocks of the file are compressed.
+    private void encodeBlocks(FileDescriptor fileDescriptor, BlockMap blocks) {
+        if (!fileDescriptor.isCompressed()) {
+            return;
+        }
+        for (Entry<byte[], byte[]> block : blocks.entrySet()) {
+            block.setValue(compression.encode(block.getValue()));
+        }
+    }
+
+    // store the given blocks by their hash, and replace them with it, if the
+    // blocks of the file are content-addressed.
+    private void storeBlocks(FileDescriptor fileDescriptor, BlockMap blocks)
+            throws IOException {
+        if (fileDescriptor.isContentAddressed()) {
+            contentAddressedBlocks.putBlocks(fileDescriptor.getContentRow(),
+                    blocks);
+        }
+    }
+
+    private void recordWrites(BlockMap blocks) {
+        long bytes = 0;
+        for (byte[] value : blocks.values()) {
+            bytes += value.length;
+        }
+        metrics.counter("block.writes").addAndGet(blocks.size());
+        metrics.counter("block.writeBytes").addAndGet(bytes);
+    }
+
+    // the bytes of the given descriptor, whose size is recorded in the
+    // metrics of the directory.
+    static byte[] toDescriptorBytes(BlockStore blockStore,
+            FileDescriptor fileDescriptor) throws IOException {
+        byte[] bytes = FileDescriptorUtils.toBytes(fileDescriptor);
+        blockStore.getMetrics().histogram("descriptor.bytes")
+                .record(bytes.length);
+        return bytes;
+    }
+
+    private void invalidateCachedBlocks(String contentRow, BlockMap blocks) {
+        if (blockCache == null) {
+            return;
+        }
+        for (byte[] blockName : blocks.keySet()) {
+            blockCache.invalidate(contentRow, new String(blockName));
+        }
+    }
+
+    /**
+     * Forget everything held on the client for the given file, i.e. its
+     * pending writes, cached blocks and pooled pages, e.g. because it is
+     * being deleted.
+     */
+    public void invalidateFile(FileDescriptor fileDescriptor) {
+        if (pendingDescriptor != null
+                && pendingDescriptor.getName().equals(fileDescriptor.getName())) {
+            discardPendingWrites();
+        }
+        if (blockCache != null) {
+            blockCache.invalidate(fileDescriptor.getContentRow());
+        }
+        if (pagePool != null) {
+            pagePool.invalidate(fileDescriptor.getContentRow());
+        }
+    }
+
+    /**
+     * Forget the blocks and descriptor changes that have not been persisted
+     * yet, e.g. because the file is being deleted.
+     */
+    public void discardPendingWrites() {
+        pendingBlocks.clear();
+        pendingBytes = 0;
+        pendingDescriptor = null;
         try {
-            cassandraClient.flush();
-        } catch (TTransportException e) {
-            e.printStackTrace();
-            throw new IOException(e.getMessage());
+            // let the batch in flight land before whatever comes next.
+            awaitInFlightFlush();
+        } catch (IOException e) {
+            logger.debug("discarded batch failed", e);
+        }
+    }
+
+    /**
+     * Send the pending data blocks without the descriptor, so that they do
+     * not become visible to other readers until the next sync.
+     */
+    private void flushPendingBlocks() throws IOException {
+        if (pendingBlocks.isEmpty()) {
+            return;
+        }
+        logger.trace("flushPendingBlocks {} pending bytes {}",
+                pendingDescriptor.getName(), pendingBytes);
+        BlockMap blocksToBeWritten = pendingBlocks;
+        pendingBlocks = new BlockMap();
+        pendingBytes = 0;
+        encodeBlocks(pendingDescriptor, blocksToBeWritten);
+        recordWrites(blocksToBeWritten);
+        storeBlocks(pendingDescriptor, blocksToBeWritten);
+        awaitInFlightFlush();
+        if (asyncFlush) {
+            inFlightFlush =
+                    blockStore.setColumnsAsync(
+                            ByteBufferUtil.bytes(pendingDescriptor.getContentRow()),
+                            blocksToBeWritten);
+        } else {
+            blockStore.setColumns(
+                    ByteBufferUtil.bytes(pendingDescriptor.getContentRow()),
+                    blocksToBeWritten);
+        }
+    }
+
+    /**
+     * Wait for the batch of data blocks in flight, if any, and rethrow its
+     * failure.
+     */
+    private void awaitInFlightFlush() throws IOException {
+        if (inFlightFlush != null) {
+            Future<Void> flush = inFlightFlush;
+            inFlightFlush = null;
+            CassandraClient.await(flush);
+        }
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) throws IOException {
+        if (!writeBehind) {
+            syncFileBlocks();
+        }
+        this.writeBehind = writeBehind;
+    }
+
+    public boolean isCrashSafe() {
+        return crashSafe;
+    }
+
+    public void setCrashSafe(boolean crashSafe) {
+        this.crashSafe = crashSafe;
+    }
+
+    public void setBatchBytes(int batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    public void setDescriptorIntervalMillis(long descriptorIntervalMillis) {
+        this.descriptorIntervalMillis = descriptorIntervalMillis;
+    }
+
+    public void setAsyncFlush(boolean asyncFlush) throws IOException {
+        if (!asyncFlush) {
+            awaitInFlightFlush();
         }
+        this.asyncFlush = asyncFlush;
     }
 
     /**
@@ -87,22 +480,255 @@ public class ColumnOrientedFile {
     public BlockMap readFileBlocks(FileDescriptor fileDescriptor,
             Set<byte[]> blockNames) throws IOException {
         logger.trace("readFileBlocks {}", fileDescriptor.getName());
-        Map<byte[], byte[]> columns = cassandraClient.getColumns(fileDescriptor.getName().getBytes(), blockNames);
+        if (pendingDescriptor != null
+                && pendingDescriptor.getName().equals(fileDescriptor.getName())) {
+            flushPendingBlocks();
+            awaitInFlightFlush();
+        }
+        if (blockCache == null) {
+            Map<byte[], byte[]> columns = getStoredBlocks(fileDescriptor, blockNames);
+            BlockMap blockMap = new BlockMap();
+            for (Entry<byte[], byte[]> column : columns.entrySet()) {
+                recordRead(column.getValue());
+                blockMap.put(column.getKey(), decodeBlock(fileDescriptor, column.getValue()));
+            }
+            return blockMap;
+        }
+
+        String fileName = fileDescriptor.getContentRow();
+        long version = fileDescriptor.getLastModified();
         BlockMap blockMap = new BlockMap();
-        blockMap.putAll(columns);
+        Set<byte[]> missingBlockNames = new HashSet<byte[]>();
+        for (byte[] blockName : blockNames) {
+            byte[] data = blockCache.get(fileName, new String(blockName), version);
+            if (data != null) {
+                metrics.counter("block.cacheHits").incrementAndGet();
+                blockMap.put(blockName, data);
+            } else {
+                missingBlockNames.add(blockName);
+            }
+        }
+        if (!missingBlockNames.isEmpty()) {
+            Map<byte[], byte[]> columns = getStoredBlocks(fileDescriptor, missingBlockNames);
+            for (Entry<byte[], byte[]> column : columns.entrySet()) {
+                recordRead(column.getValue());
+                byte[] data = decodeBlock(fileDescriptor, column.getValue());
+                blockMap.put(column.getKey(), data);
+                blockCache.put(fileName, new String(column.getKey()), version, data);
+            }
+        }
         return blockMap;
     }
-    
+
+    /**
+     * Read a range of blocks of an append-only file, i.e. a file whose block
+     * <i>i</i> is named after <i>i</i>. The blocks are not copied: they are
+     * the buffers the cache holds them in or thrift read them into, and must
+     * not be written to.
+     *
+     * @param fileDescriptor
+     *            the descriptor of the file being read
+     * @param firstBlock
+     *            the number of the first block to read
+     * @param lastBlock
+     *            the number of the last block to read
+     * @return the blocks, indexed by their number less the first block
+     *         number, or null for the blocks that do not exist
+     * @throws IOException
+     */
+    public ByteBuffer[] readFileBlocks(FileDescriptor fileDescriptor,
+            int firstBlock, int lastBlock) throws IOException {
+        int[] blockNumbers = new int[lastBlock - firstBlock + 1];
+        for (int i = 0; i < blockNumbers.length; i++) {
+            blockNumbers[i] = firstBlock + i;
+        }
+        return readFileBlocks(fileDescriptor, blockNumbers);
+    }
+
+    /**
+     * Read the given blocks of an append-only file, with one request for all
+     * the blocks that are not cached.
+     *
+     * @param fileDescriptor
+     *            the descriptor of the file being read
+     * @param blockNumbers
+     *            the numbers of the blocks to read
+     * @return the blocks, in the order of their numbers, or null for the
+     *         blocks that do not exist
+     * @throws IOException
+     * @see #readFileBlocks(FileDescriptor, int, int)
+     */
+    public ByteBuffer[] readFileBlocks(FileDescriptor fileDescriptor,
+            int[] blockNumbers) throws IOException {
+        if (pendingDescriptor != null
+                && pendingDescriptor.getName().equals(fileDescriptor.getName())) {
+            flushPendingBlocks();
+            awaitInFlightFlush();
+        }
+        String fileName = fileDescriptor.getContentRow();
+        long version = fileDescriptor.getLastModified();
+        ByteBuffer[] blocks = new ByteBuffer[blockNumbers.length];
+        List<ByteBuffer> missingBlockNames = new ArrayList<ByteBuffer>(blocks.length);
+        for (int i = 0; i < blocks.length; i++) {
+            String blockName = FileBlock.createBlockName(blockNumbers[i]);
+            if (blockCache != null) {
+                blocks[i] = blockCache.getBuffer(fileName, blockName, version);
+            }
+            if (blocks[i] == null) {
+                missingBlockNames.add(ByteBufferUtil.bytes(blockName));
+            } else {
+                metrics.counter("block.cacheHits").incrementAndGet();
+            }
+        }
+        if (missingBlockNames.isEmpty()) {
+            return blocks;
+        }
+        ByteBuffer[] values =
+                blockStore.getColumnValues(fileName.getBytes(), missingBlockNames);
+        if (fileDescriptor.isContentAddressed()) {
+            values = contentAddressedBlocks.getBlocks(values);
+        }
+        int missing = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] == null) {
+                blocks[i] = values[missing++];
+                if (blocks[i] != null) {
+                    metrics.counter("block.reads").incrementAndGet();
+                    metrics.counter("block.readBytes").addAndGet(blocks[i].remaining());
+                }
+                if (blocks[i] != null && fileDescriptor.isCompressed()) {
+                    blocks[i] = compression.decode(blocks[i]);
+                }
+                if (blockCache != null && blocks[i] != null) {
+                    blockCache.put(fileName, FileBlock.createBlockName(blockNumbers[i]), version, blocks[i]);
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Read several ranges of an append-only file at once, e.g. the parts of a
+     * compound file that a reader needs. Every buffer is filled from its own
+     * position in the file, with as many bytes as it has remaining or as the
+     * file has left, and its position is moved past them. The blocks that
+     * cover all the ranges are fetched with one request.
+     *
+     * @param fileDescriptor
+     *            the descriptor of the file being read
+     * @param positions
+     *            the position in the file of every buffer
+     * @param dsts
+     *            the buffers to read into
+     * @param offset
+     *            the index of the first buffer to read into
+     * @param length
+     *            the number of buffers to read into
+     * @return the total number of bytes read, or -1 if every range starts at
+     *         or past the end of the file
+     * @throws IOException
+     *             if the file is not append-only, or its blocks are missing
+     */
+    public long readFileRanges(FileDescriptor fileDescriptor, long[] positions,
+            ByteBuffer[] dsts, int offset, int length) throws IOException {
+        String fileName = fileDescriptor.getName();
+        if (!fileDescriptor.isAppendOnly()) {
+            throw new IOException("cannot read ranges of " + fileName
+                    + ", its blocks are not laid out at a fixed stride");
+        }
+        long fileLength = fileDescriptor.getLength();
+        long stride = fileDescriptor.getBlockSize();
+        Set<Integer> covering = new TreeSet<Integer>();
+        boolean eof = length > 0;
+        for (int i = offset; i < offset + length; i++) {
+            long pos = positions[i];
+            if (pos < 0) {
+                throw new IOException("position cannot be negative");
+            }
+            if (pos >= fileLength) {
+                continue;
+            }
+            eof = false;
+            long end = Math.min(fileLength, pos + dsts[i].remaining());
+            if (end > pos) {
+                for (long block = pos / stride; block <= (end - 1) / stride; block++) {
+                    covering.add((int) block);
+                }
+            }
+        }
+        if (eof) {
+            return -1;
+        }
+
+        int[] blockNumbers = new int[covering.size()];
+        int next = 0;
+        for (Integer blockNumber : covering) {
+            blockNumbers[next++] = blockNumber;
+        }
+        ByteBuffer[] blocks = readFileBlocks(fileDescriptor, blockNumbers);
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            long pos = positions[i];
+            long toRead = Math.max(0, Math.min(dsts[i].remaining(), fileLength - pos));
+            while (toRead > 0) {
+                int blockNumber = (int) (pos / stride);
+                ByteBuffer block = blocks[Arrays.binarySearch(blockNumbers, blockNumber)];
+                int srcPos = (int) (pos - blockNumber * stride);
+                int chunk = (int) Math.min(toRead, stride - srcPos);
+                if (block == null || block.remaining() < srcPos + chunk) {
+                    throw new IOException("block " + blockNumber + " of "
+                            + fileName + " is missing or short");
+                }
+                ByteBuffer src = block.duplicate();
+                src.position(src.position() + srcPos);
+                src.limit(src.position() + chunk);
+                dsts[i].put(src);
+                pos += chunk;
+                toRead -= chunk;
+                total += chunk;
+            }
+        }
+        return total;
+    }
+
+    // the given blocks of the file, as they are stored.
+    private Map<byte[], byte[]> getStoredBlocks(FileDescriptor fileDescriptor,
+            Set<byte[]> blockNames) throws IOException {
+        Map<byte[], byte[]> columns =
+                blockStore.getColumns(fileDescriptor.getContentRow()
+                        .getBytes(), blockNames);
+        return fileDescriptor.isContentAddressed() ? contentAddressedBlocks
+                .getBlocks(columns) : columns;
+    }
+
+    private void recordRead(byte[] value) {
+        if (value != null) {
+            metrics.counter("block.reads").incrementAndGet();
+            metrics.counter("block.readBytes").addAndGet(value.length);
+        }
+    }
+
+    private byte[] decodeBlock(FileDescriptor fileDescriptor, byte[] value)
+            throws IOException {
+        return fileDescriptor.isCompressed() && value != null ? compression
+                .decode(value) : value;
+    }
+
     public FileDescriptor getFileDescriptor(String fileName, int blockSize) throws IOException {
-        byte[] fd = cassandraClient.getColumn(fileName.getBytes(), descriptorColumn.getBytes());
+        byte[] fd = blockStore.getColumn(fileName.getBytes(), descriptorColumn.getBytes());
         return FileDescriptorUtils.fromBytes(fd, blockSize);
     }
     
     public void setFileDescriptor(String fileName, FileDescriptor fileDescriptor) throws IOException {
         ByteBuffer key = ByteBufferUtil.bytes(fileName);
         Map<byte[], byte[]> column = new HashMap<byte[], byte[]>();
-        column.put(descriptorColumn.getBytes(), FileDescriptorUtils.toBytes(fileDescriptor));
-        cassandraClient.setColumns(key, column);
+        column.put(descriptorColumn.getBytes(), toDescriptorBytes(blockStore, fileDescriptor));
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        rows.put(key, column);
+        ColumnOrientedDirectory.addManifestColumn(rows, fileDescriptor);
+        blockStore.setColumns(rows);
     }
 
     /**
@@ -116,41 +742,124 @@ public class ColumnOrientedFile {
      *            descriptor. if false, it will remove all the file blocks
      *            except file descriptor.
      *
+     * @return the number of bytes held by the deleted blocks, or the length
+     *         of the file if only the blocks of its descriptor were deleted.
+     *
      * @throws IOException
      */
-    public void deleteFileBlocks(FileDescriptor fileDescriptor,
+    public long deleteFileBlocks(FileDescriptor fileDescriptor,
             boolean onlyDeleteFileBlocksWithinFileDescriptor)
             throws IOException {
 
-        if (onlyDeleteFileBlocksWithinFileDescriptor) {
+        // the blocks are about to go away, so do not send or serve them later.
+        invalidateFile(fileDescriptor);
+        if (isPinned(fileDescriptor.getContentRow())) {
+            // a snapshot still refers to the blocks.
+            return 0;
+        }
+        ByteBuffer key = ByteBufferUtil.bytes(fileDescriptor.getContentRow());
 
-            List<FileBlock> fileBlocks = fileDescriptor.getBlocks();
+        if (onlyDeleteFileBlocksWithinFileDescriptor) {
 
-            for (FileBlock fileBlock : fileBlocks) {
-                Map<byte[], byte[]> column = new HashMap<>();
-                column.put(fileBlock.getBlockName().getBytes(), null);
-                cassandraClient.setColumns(
-                        ByteBufferUtil.bytes(fileDescriptor.getName()), column);
+            Map<byte[], byte[]> columns = new HashMap<>();
+            for (FileBlock fileBlock : fileDescriptor.getBlocks()) {
+                columns.put(fileBlock.getBlockName().getBytes(), null);
             }
+            if (!columns.isEmpty()) {
+                if (fileDescriptor.isContentAddressed()) {
+                    contentAddressedBlocks.release(blockStore.getColumns(
+                            fileDescriptor.getContentRow().getBytes(),
+                            columns.keySet()).values());
+                }
+                blockStore.setColumns(key, columns);
+            }
+            return fileDescriptor.getLength();
 
-        } else {
-
-            Map<byte[], byte[]> fileBlocks =
-                    cassandraClient.getColumns(fileDescriptor.getName()
-                            .getBytes());
+        }
 
+        // page through the row, so that rows with many blocks are deleted
+        // entirely, one mutation per page.
+        long deletedBytes = 0;
+        byte[] start = new byte[0];
+        while (true) {
+            BlockMap fileBlocks =
+                    blockStore.getColumns(fileDescriptor.getContentRow()
+                            .getBytes(), start, DELETE_PAGE_SIZE);
+            Map<byte[], byte[]> columns = new HashMap<>();
+            List<byte[]> hashes = new ArrayList<byte[]>();
             for (Entry<byte[], byte[]> fileBlock : fileBlocks.entrySet()) {
-                String fileName = new String(fileBlock.getKey());
-                if (descriptorColumn.equals(fileName)) {
+                String blockName = new String(fileBlock.getKey());
+                if (descriptorColumn.equals(blockName)) {
                     continue;
                 }
-                Map<byte[], byte[]> column = new HashMap<>();
-                column.put(fileBlock.getKey(), null);
-                cassandraClient.setColumns(
-                        ByteBufferUtil.bytes(fileDescriptor.getName()), column);
+                columns.put(fileBlock.getKey(), null);
+                deletedBytes += fileBlock.getValue().length;
+                hashes.add(fileBlock.getValue());
+            }
+            if (!columns.isEmpty()) {
+                if (fileDescriptor.isContentAddressed()) {
+                    contentAddressedBlocks.release(hashes);
+                }
+                blockStore.setColumns(key, columns);
+            }
+            if (fileBlocks.size() < DELETE_PAGE_SIZE) {
+                break;
             }
+            // the next slice starts at (and returns again) the last column,
+            // which is deleted by now, so it does not show up again.
+            start = fileBlocks.lastKey();
+        }
+        return deletedBytes;
+    }
+
+    /**
+     * Delete the content row of the given file, unless it has none, or a
+     * snapshot pins it (see {@link DirectorySnapshots}).
+     * 
+     * @param fileDescriptor
+     *            the descriptor of the file being deleted
+     * @throws IOException
+     */
+    public void deleteContentRow(FileDescriptor fileDescriptor)
+            throws IOException {
+        if (!fileDescriptor.hasContentRow()
+                || isPinned(fileDescriptor.getContentRow())) {
+            return;
+        }
+        releaseBlocks(fileDescriptor);
+        blockStore.setColumns(
+                ByteBufferUtil.bytes(fileDescriptor.getContentRow()), null);
+    }
 
+    // list the blocks the content row of the given file refers to as
+    // candidates for collection, if the file is content-addressed.
+    private void releaseBlocks(FileDescriptor fileDescriptor)
+            throws IOException {
+        if (!fileDescriptor.isContentAddressed()) {
+            return;
         }
+        byte[] start = new byte[0];
+        while (true) {
+            BlockMap hashes =
+                    blockStore.getColumns(fileDescriptor.getContentRow()
+                            .getBytes(), start, DELETE_PAGE_SIZE);
+            // the first column of every page but the first one was released
+            // already, which does no harm.
+            contentAddressedBlocks.release(hashes.values());
+            if (hashes.size() < DELETE_PAGE_SIZE) {
+                break;
+            }
+            start = hashes.lastKey();
+        }
+    }
+
+    /**
+     * @return whether a snapshot pins the given row, be it the content row of
+     *         a file or the row of a file without one
+     * @throws IOException
+     */
+    public boolean isPinned(String contentRow) throws IOException {
+        return DirectorySnapshots.isPinned(blockStore, contentRow);
     }
 
     /**
@@ -158,6 +867,14 @@ public class ColumnOrientedFile {
      * <code>currentFileDescriptor</code> except filename to
      * <code>nextFileDescriptor</code>.
      * 
+     * <p>
+     * If the current file has a content row of its own, only its descriptor
+     * moves: the next descriptor points to the same content row, and is
+     * written in the same batch that deletes the current one. Otherwise, the
+     * blocks are streamed over to the next file by {@link #copyFile}. Either
+     * way, whatever blocks the next file held are dropped.
+     * </p>
+     * 
      * @param currentFileDescriptor
      *            the current file descriptor which is about to rename.
      * 
@@ -171,46 +888,188 @@ public class ColumnOrientedFile {
      */
     public boolean renameFile(FileDescriptor currentFileDescriptor,
             FileDescriptor nextFileDescriptor) throws IOException {
+        syncFileBlocks();
 
-        try {
-
-            // get all data
-            List<FileBlock> blocks = currentFileDescriptor.getBlocks();
-            long blockSize = currentFileDescriptor.getBlockSize();
-            long lastAccessed = currentFileDescriptor.getLastAccessed();
-            long lastModified = currentFileDescriptor.getLastModified();
-            long length = currentFileDescriptor.getLength();
-            boolean isDeleted = currentFileDescriptor.isDeleted();
-
-            Set<byte[]> columnNames = new HashSet<byte[]>();
-            for (FileBlock block : blocks) {
-                columnNames.add(block.getBlockName().getBytes());
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        if (currentFileDescriptor.hasContentRow()) {
+            // drop the blocks of the next file, which are not referenced
+            // any more.
+            invalidateFile(nextFileDescriptor);
+            if (nextFileDescriptor.hasContentRow()) {
+                if (!isPinned(nextFileDescriptor.getContentRow())) {
+                    releaseBlocks(nextFileDescriptor);
+                    rows.put(ByteBufferUtil.bytes(nextFileDescriptor
+                            .getContentRow()), null);
+                }
+            } else {
+                deleteFileBlocks(nextFileDescriptor, false);
             }
+            copyAttributes(currentFileDescriptor, nextFileDescriptor);
+            nextFileDescriptor.setContentRow(currentFileDescriptor
+                    .getContentRow());
+            BlockMap descriptor = new BlockMap();
+            descriptor.put(descriptorColumn,
+                    toDescriptorBytes(blockStore, nextFileDescriptor));
+            rows.put(ByteBufferUtil.bytes(nextFileDescriptor.getName()),
+                    descriptor);
+            ColumnOrientedDirectory.addManifestColumn(rows,
+                    nextFileDescriptor);
+        } else {
+            FileDescriptor copy =
+                    copyFile(currentFileDescriptor,
+                            nextFileDescriptor.getName());
+            copyAttributes(copy, nextFileDescriptor);
+            nextFileDescriptor.setContentRow(copy.getContentRow());
+            // the blocks stay cached under the row they were read from.
+            invalidateFile(currentFileDescriptor);
+        }
 
-            BlockMap currentFileBlocks =
-                    readFileBlocks(currentFileDescriptor, columnNames);
-
-            // copy to another new rowkey
-            nextFileDescriptor.setBlockSize(blockSize);
-            nextFileDescriptor.setLastAccessed(lastAccessed);
-            nextFileDescriptor.setLastModified(lastModified);
-            nextFileDescriptor.setLastModified(length);
-            nextFileDescriptor.setDeleted(isDeleted);
-            nextFileDescriptor.setBlocks(blocks);
+        // delete the previous row, and unlist it, but not the content
+        // row, which the next file points to now.
+        if (pendingDescriptor != null
+                && pendingDescriptor.getName().equals(
+                        currentFileDescriptor.getName())) {
+            discardPendingWrites();
+        }
+        currentFileDescriptor.setDeleted(true);
+        if (!currentFileDescriptor.hasContentRow()
+                && isPinned(currentFileDescriptor.getName())) {
+            // a snapshot still refers to the blocks of the row, which
+            // the reaper removes once none does.
+            currentFileDescriptor.setLastModified(System
+                    .currentTimeMillis());
+            BlockMap descriptor = new BlockMap();
+            descriptor.put(descriptorColumn,
+                    toDescriptorBytes(blockStore, currentFileDescriptor));
+            rows.put(ByteBufferUtil.bytes(currentFileDescriptor.getName()),
+                    descriptor);
+        } else {
+            rows.put(ByteBufferUtil.bytes(currentFileDescriptor.getName()),
+                    null);
+        }
+        ColumnOrientedDirectory.removeManifestColumn(rows,
+                currentFileDescriptor.getName());
+        blockStore.setColumns(rows);
 
-            writeFileBlocks(nextFileDescriptor, currentFileBlocks);
+        return true;
+    }
 
-            // delete the previous row.
-            currentFileDescriptor.setDeleted(true);
-            cassandraClient
-                    .setColumns(ByteBufferUtil.bytes(currentFileDescriptor
-                            .getName()), null);
+    /**
+     * Copy the file of the given descriptor to a new file of the given name,
+     * which is overwritten if it exists. The blocks are streamed from one row
+     * to the other as they are stored, i.e. without being decompressed, in
+     * chunks of about <code>lucene.cassandra.writeBehind.batchBytes</code>:
+     * every chunk is sent asynchronously while the next one is read, and at
+     * most one chunk is in flight at a time. The descriptor of the copy is
+     * written last, once all of its blocks have landed, so that a copy is
+     * never visible half done.
+     * 
+     * @param sourceFileDescriptor
+     *            the descriptor of the file to copy
+     * @param targetFileName
+     *            the name of the copy
+     * @return the descriptor of the copy
+     * @throws IOException
+     */
+    public FileDescriptor copyFile(FileDescriptor sourceFileDescriptor,
+            String targetFileName) throws IOException {
+        syncFileBlocks();
+        logger.trace("copyFile {} to {}", sourceFileDescriptor.getName(),
+                targetFileName);
+        FileDescriptor targetFileDescriptor =
+                new FileDescriptor(targetFileName,
+                        sourceFileDescriptor.getBlockSize());
+        copyAttributes(sourceFileDescriptor, targetFileDescriptor);
+        // a pinned row is never written over.
+        if (sourceFileDescriptor.hasContentRow()
+                || ColumnOrientedDirectory.DEFAULT_CONTENT_ROWS
+                || isPinned(targetFileName)) {
+            targetFileDescriptor.setContentRow(ColumnOrientedDirectory
+                    .newContentRow(targetFileName));
+        }
+        // whatever the target held is not referenced any more.
+        FileDescriptor previous =
+                getFileDescriptor(targetFileName, (int) sourceFileDescriptor
+                        .getBlockSize());
+        if (previous != null) {
+            invalidateFile(previous);
+            deleteFileBlocks(previous, false);
+        }
+        copyBlocks(sourceFileDescriptor, targetFileDescriptor);
+        writeFileBlocks(targetFileDescriptor, new BlockMap());
+        return targetFileDescriptor;
+    }
 
-            return true;
+    // stream the blocks of the source file to the content row of the target.
+    private void copyBlocks(FileDescriptor sourceFileDescriptor,
+            FileDescriptor targetFileDescriptor) throws IOException {
+        byte[] sourceRow = sourceFileDescriptor.getContentRow().getBytes();
+        ByteBuffer targetRow =
+                ByteBufferUtil.bytes(targetFileDescriptor.getContentRow());
+        // the columns of content-addressed files are (40 byte) hashes.
+        long columnSize =
+                sourceFileDescriptor.isContentAddressed() ? 40
+                        : sourceFileDescriptor.getBlockSize();
+        int chunkBlocks = (int) Math.max(1, batchBytes / columnSize);
+        List<FileBlock> blocks = sourceFileDescriptor.getBlocks();
+        Future<Void> inFlight = null;
+        try {
+            for (int first = 0; first < blocks.size(); first += chunkBlocks) {
+                Set<byte[]> blockNames = new HashSet<byte[]>();
+                for (FileBlock block : blocks.subList(first,
+                        Math.min(blocks.size(), first + chunkBlocks))) {
+                    blockNames.add(block.getBlockName().getBytes());
+                }
+                Map<byte[], byte[]> chunk =
+                        blockStore.getColumns(sourceRow, blockNames);
+                if (chunk.size() < blockNames.size()) {
+                    throw new IOException("blocks of "
+                            + sourceFileDescriptor.getName() + " are missing");
+                }
+                BlockMap blocksToBeWritten = new BlockMap();
+                for (Entry<byte[], byte[]> block : chunk.entrySet()) {
+                    recordRead(block.getValue());
+                    blocksToBeWritten.put(block.getKey(), block.getValue());
+                }
+                recordWrites(blocksToBeWritten);
+                if (targetFileDescriptor.isContentAddressed()) {
+                    // the blocks are the hashes, which the copy refers to too.
+                    contentAddressedBlocks.addReferences(
+                            targetFileDescriptor.getContentRow(),
+                            blocksToBeWritten);
+                }
+                if (inFlight != null) {
+                    CassandraClient.await(inFlight);
+                }
+                inFlight = blockStore.setColumnsAsync(targetRow,
+                        blocksToBeWritten);
+            }
+        } finally {
+            if (inFlight != null) {
+                CassandraClient.await(inFlight);
+            }
+        }
+    }
 
-        } catch (Exception e) {
-            throw new IOException(e.getMessage());
+    // copy every attribute of the source descriptor but its name and content
+    // row to the target.
+    private static void copyAttributes(FileDescriptor source,
+            FileDescriptor target) {
+        target.setBlockSize(source.getBlockSize());
+        target.setLastAccessed(source.getLastAccessed());
+        target.setLastModified(source.getLastModified());
+        target.setLength(source.getLength());
+        target.setDeleted(source.isDeleted());
+        // the blocks belong to their descriptor, which may still be in use.
+        List<FileBlock> blocks = new ArrayList<FileBlock>();
+        for (FileBlock block : source.getBlocks()) {
+            blocks.add((FileBlock) block.clone());
         }
+        target.setBlocks(blocks);
+        target.setAppendOnly(source.isAppendOnly());
+        target.setCompressed(source.isCompressed());
+        target.setContentAddressed(source.isContentAddressed());
     }
 
 }
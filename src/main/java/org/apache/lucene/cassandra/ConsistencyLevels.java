@@ -0,0 +1,126 @@
+package org.apache.lucene.cassandra;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KsDef;
+
+/**
+ * The <code>ConsistencyLevels</code> holds the consistency level at which
+ * each class of operation on a directory is run.
+ *
+ * <p>
+ * The levels are read from the system properties
+ * <code>lucene.cassandra.consistency.descriptorRead</code>,
+ * <code>lucene.cassandra.consistency.blockRead</code>,
+ * <code>lucene.cassandra.consistency.blockWrite</code>,
+ * <code>lucene.cassandra.consistency.descriptorWrite</code> and
+ * <code>lucene.cassandra.consistency.listing</code>, all of which default to
+ * QUORUM. As in <code>CassandraFileSystemThriftStore</code>, QUORUM is turned
+ * into LOCAL_QUORUM for keyspaces that use the NetworkTopologyStrategy, so
+ * that a slow remote data center does not stall every request; conversely,
+ * LOCAL_QUORUM is turned into QUORUM for keyspaces that do not, since
+ * Cassandra rejects it there.
+ * </p>
+ *
+ * <p>
+ * Blocks of immutable segment files are safe to read at ONE once their
+ * descriptor has been read at a quorum. Reads done at ONE that come back
+ * incomplete are retried at the descriptor read level, see
+ * {@link #getRetryLevel(OperationType)}. Writes that carry a descriptor, or
+ * delete a file, run at the descriptor write level rather than the block
+ * write one, so that lowering the latter never weakens the quorum that makes
+ * reading blocks at ONE safe.
+ * </p>
+ */
+public class ConsistencyLevels {
+
+    /**
+     * The classes of operations that each have their own consistency level.
+     */
+    public enum OperationType {
+        // reads of file descriptors.
+        DESCRIPTOR_READ("descriptorRead"),
+        // reads of file blocks.
+        BLOCK_READ("blockRead"),
+        // writes of file blocks alone.
+        BLOCK_WRITE("blockWrite"),
+        // writes that carry a file descriptor, or delete a file.
+        DESCRIPTOR_WRITE("descriptorWrite"),
+        // listings of the files of a directory.
+        LISTING("listing");
+
+        private final String propertyName;
+
+        private OperationType(String propertyName) {
+            this.propertyName = propertyName;
+        }
+
+        /**
+         * @return the consistency level configured for this operation type
+         */
+        ConsistencyLevel getDefaultLevel() {
+            return ConsistencyLevel.valueOf(System.getProperty(
+                    "lucene.cassandra.consistency." + propertyName, "QUORUM"));
+        }
+    }
+
+    private final Map<OperationType, ConsistencyLevel> levels =
+            new EnumMap<OperationType, ConsistencyLevel>(OperationType.class);
+
+    /**
+     * Construct the consistency levels configured through the system
+     * properties, before they are adjusted to the keyspace.
+     */
+    public ConsistencyLevels() {
+        for (OperationType type : OperationType.values()) {
+            levels.put(type, type.getDefaultLevel());
+        }
+    }
+
+    /**
+     * Adjust the consistency levels to the replication strategy of the given
+     * keyspace.
+     *
+     * @param ks
+     *            Keyspace definition
+     */
+    public synchronized void initConsistencyLevels(KsDef ks) {
+        boolean networkTopology =
+                ks.getStrategy_class().contains("NetworkTopologyStrategy");
+        for (OperationType type : OperationType.values()) {
+            ConsistencyLevel level = levels.get(type);
+            if (networkTopology && level.equals(ConsistencyLevel.QUORUM)) {
+                levels.put(type, ConsistencyLevel.LOCAL_QUORUM);
+            } else if (!networkTopology
+                    && level.equals(ConsistencyLevel.LOCAL_QUORUM)) {
+                levels.put(type, ConsistencyLevel.QUORUM);
+            }
+        }
+    }
+
+    public synchronized ConsistencyLevel get(OperationType type) {
+        return levels.get(type);
+    }
+
+    public synchronized void set(OperationType type, ConsistencyLevel level) {
+        levels.put(type, level);
+    }
+
+    /**
+     * Return the level at which to retry a read of the given type that came
+     * back incomplete, e.g. because it went to a replica that missed a write.
+     *
+     * @return the level to retry at, or null if the read must not be retried
+     */
+    public synchronized ConsistencyLevel getRetryLevel(OperationType type) {
+        if (!levels.get(type).equals(ConsistencyLevel.ONE)) {
+            return null;
+        }
+        ConsistencyLevel retryLevel = levels.get(OperationType.DESCRIPTOR_READ);
+        return retryLevel.equals(ConsistencyLevel.ONE) ? ConsistencyLevel.QUORUM
+                : retryLevel;
+    }
+
+}
@@ -0,0 +1,534 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.monitor.MetricGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>ContentAddressedBlocks</code> of a directory keep the blocks of
+ * its files in a column family of their own, keyed by the hash of their
+ * contents, so that identical blocks are stored once, however many files
+ * they belong to.
+ *
+ * <p>
+ * The blocks of a file are only ever content-addressed if its descriptor says
+ * so (see {@link FileDescriptor#isContentAddressed()}), which is decided when
+ * the file is created. The columns of the content row of such a file hold the
+ * (hex encoded SHA-1) hashes of its blocks, as they are stored (i.e. after
+ * compression), rather than the blocks themselves. The row of a hash in the
+ * block column family holds the block, in its <code>DATA</code> column, and
+ * one column per reference to it, named after the content row and the block
+ * that refers to it. A block is thus referenced as many times as it has
+ * reference columns, and copying a file only adds the reference columns of
+ * the copy, while renaming it does not touch the block column family at all.
+ * </p>
+ *
+ * <p>
+ * References are dropped lazily, rather than counted down. Whenever a content
+ * row may stop referring to a block, because the block is overwritten or the
+ * content row deleted, the hash of the block is listed as a candidate in the
+ * <code>__CANDIDATES__</code> row of the block column family. The
+ * {@link FileReaper} of the directory calls {@link #collect(long)} to check
+ * the references of the candidates only against the content rows they name,
+ * removes those that no longer hold, and deletes the blocks that have not been
+ * referenced for its grace period, so that a pass costs as much as what was
+ * deleted, whatever the number of blocks stored. Unverified references younger
+ * than the grace period keep their block, as the block is written before the
+ * content row that refers to it. {@link #sweep()} lists every block as a
+ * candidate, e.g. for blocks written before candidates were listed.
+ * </p>
+ *
+ * <p>
+ * A block is deleted column by column, rather than as a row, and its row is
+ * read again afterwards: if the block was written again in the meantime, its
+ * new references are there, and the block is put back. As blocks are named
+ * after their contents, putting one back can never overwrite a newer one.
+ * </p>
+ *
+ * <p>
+ * New files are content-addressed if the system property
+ * <code>lucene.cassandra.dedup</code> is turned on, in which case the blocks
+ * live in the column family named after that of the directory followed by
+ * <code>_blocks</code>. The files written before stay as they are, and
+ * content-addressed files remain readable after dedup is turned off, although
+ * their blocks are no longer collected.
+ * </p>
+ */
+public class ContentAddressedBlocks {
+
+    private static Logger logger = LoggerFactory
+            .getLogger(ContentAddressedBlocks.class);
+
+    // Whether new files keep their blocks in the block column family.
+    public static final boolean DEFAULT_ENABLED = Boolean
+            .parseBoolean(System.getProperty("lucene.cassandra.dedup", "false"));
+
+    // The suffix of the column family that holds the blocks of a directory.
+    public static final String BLOCKS_SUFFIX = "_blocks";
+
+    // The name of the column that holds the block.
+    protected static final String dataColumn = "DATA";
+
+    // The name of the column that holds the time a block lost its last
+    // reference.
+    protected static final String orphanedColumn = "ORPHANED";
+
+    // The key of the row that lists the blocks that may have lost a reference.
+    protected static final String candidatesRow = "__CANDIDATES__";
+
+    // Separates the content row from the block name in a reference column.
+    private static final char REFERENCE_SEPARATOR = '/';
+
+    // The number of blocks (or rows) read per slice when collecting.
+    private static final int COLLECT_PAGE_SIZE = 1024;
+
+    // The instances shared by the files of a directory, keyed by keyspace and
+    // column family.
+    private static final ConcurrentMap<String, ContentAddressedBlocks> instances =
+            new ConcurrentHashMap<String, ContentAddressedBlocks>();
+
+    private final BlockStore fileStore;
+
+    private final boolean enabled;
+
+    private final MetricGroup metrics;
+
+    // The store of the block column family, connected to on first use.
+    private BlockStore blockStore;
+
+    /**
+     * Construct the content-addressed blocks of a directory.
+     *
+     * @param fileStore
+     *            the store of the directory, which holds the content rows
+     * @param blockStore
+     *            the store of the block column family, or null to connect
+     *            to it on first use
+     * @param enabled
+     *            whether new files are content-addressed
+     */
+    public ContentAddressedBlocks(BlockStore fileStore, BlockStore blockStore,
+            boolean enabled) {
+        this.fileStore = fileStore;
+        this.blockStore = blockStore;
+        this.enabled = enabled;
+        this.metrics = fileStore.getMetrics();
+    }
+
+    /**
+     * Return the content-addressed blocks shared by all the files in the
+     * directory kept in the given store, creating them on first use.
+     */
+    public static ContentAddressedBlocks getInstance(BlockStore fileStore) {
+        String key = fileStore.getKeyspace() + "/" + fileStore.getColumnFamily();
+        ContentAddressedBlocks blocks = instances.get(key);
+        if (blocks == null) {
+            ContentAddressedBlocks newBlocks =
+                    new ContentAddressedBlocks(fileStore, null, DEFAULT_ENABLED);
+            blocks = instances.putIfAbsent(key, newBlocks);
+            if (blocks == null) {
+                blocks = newBlocks;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * @return whether new files are content-addressed
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private synchronized BlockStore getBlockStore() throws IOException {
+        if (blockStore == null) {
+            blockStore =
+                    BlockStores.getStore(true, fileStore.getKeyspace(),
+                            fileStore.getColumnFamily() + BLOCKS_SUFFIX, 0);
+        }
+        return blockStore;
+    }
+
+    /**
+     * Store the given blocks of the given content row, along with a reference
+     * to each of them, and replace every block in the map with its hash,
+     * which is what the content row holds instead. The blocks the content row
+     * held under the same names are listed as candidates for collection.
+     *
+     * @param contentRow
+     *            the content row the blocks belong to
+     * @param blocks
+     *            the blocks, as they are stored, by block name
+     * @throws IOException
+     */
+    public void putBlocks(String contentRow, BlockMap blocks)
+            throws IOException {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        byte[] now = timestamp(System.currentTimeMillis());
+        Map<String, byte[]> previous = new HashMap<String, byte[]>();
+        for (Entry<byte[], byte[]> column : fileStore.getColumns(
+                contentRow.getBytes(),
+                new HashSet<byte[]>(blocks.keySet())).entrySet()) {
+            previous.put(new String(column.getKey()), column.getValue());
+        }
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        Map<byte[], byte[]> candidates = new HashMap<byte[], byte[]>();
+        for (Entry<byte[], byte[]> block : blocks.entrySet()) {
+            String hash = hash(block.getValue());
+            byte[] overwritten = previous.get(new String(block.getKey()));
+            if (overwritten != null
+                    && !Arrays.equals(overwritten, hash.getBytes())) {
+                candidates.put(overwritten, now);
+            }
+            ByteBuffer key = ByteBufferUtil.bytes(hash);
+            Map<byte[], byte[]> columns = rows.get(key);
+            if (columns == null) {
+                columns = new HashMap<byte[], byte[]>();
+                columns.put(dataColumn.getBytes(), block.getValue());
+                // a block referenced again is no longer orphaned.
+                columns.put(orphanedColumn.getBytes(), null);
+                rows.put(key, columns);
+            }
+            columns.put(referenceColumn(contentRow, block.getKey()), now);
+            block.setValue(hash.getBytes());
+        }
+        metrics.counter("dedup.blockWrites").addAndGet(blocks.size());
+        metrics.counter("dedup.uniqueBlockWrites").addAndGet(rows.size());
+        if (!candidates.isEmpty()) {
+            rows.put(ByteBufferUtil.bytes(candidatesRow), candidates);
+        }
+        getBlockStore().setColumns(rows);
+    }
+
+    /**
+     * List the blocks with the given hashes as candidates for collection,
+     * e.g. because the content row that referred to them is being deleted.
+     *
+     * @param hashes
+     *            the hashes of the blocks
+     * @throws IOException
+     */
+    public void release(Collection<byte[]> hashes) throws IOException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        byte[] now = timestamp(System.currentTimeMillis());
+        Map<byte[], byte[]> candidates = new HashMap<byte[], byte[]>();
+        for (byte[] hash : hashes) {
+            candidates.put(hash, now);
+        }
+        getBlockStore().setColumns(ByteBufferUtil.bytes(candidatesRow),
+                candidates);
+    }
+
+    /**
+     * Add a reference from the given content row to every one of the given
+     * blocks, which are already stored, e.g. because the content row is that
+     * of a copy.
+     *
+     * @param contentRow
+     *            the content row that refers to the blocks
+     * @param hashes
+     *            the hashes of the blocks, by block name
+     * @throws IOException
+     */
+    public void addReferences(String contentRow, Map<byte[], byte[]> hashes)
+            throws IOException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        byte[] now = timestamp(System.currentTimeMillis());
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        for (Entry<byte[], byte[]> hash : hashes.entrySet()) {
+            ByteBuffer key = ByteBuffer.wrap(hash.getValue());
+            Map<byte[], byte[]> columns = rows.get(key);
+            if (columns == null) {
+                columns = new HashMap<byte[], byte[]>();
+                columns.put(orphanedColumn.getBytes(), null);
+                rows.put(key, columns);
+            }
+            columns.put(referenceColumn(contentRow, hash.getKey()), now);
+        }
+        getBlockStore().setColumns(rows);
+    }
+
+    /**
+     * Return the blocks with the given hashes, with one request.
+     *
+     * @param hashes
+     *            the hashes of the blocks, by block name
+     * @return the blocks, as they are stored, by block name, leaving out
+     *         those that do not exist
+     * @throws IOException
+     */
+    public Map<byte[], byte[]> getBlocks(Map<byte[], byte[]> hashes)
+            throws IOException {
+        Map<byte[], byte[]> blocks = new HashMap<byte[], byte[]>();
+        if (hashes.isEmpty()) {
+            return blocks;
+        }
+        List<byte[]> keys = new ArrayList<byte[]>(hashes.values());
+        Map<String, byte[]> values =
+                getBlockStore().getColumnOfKeys(keys, dataColumn.getBytes());
+        for (Entry<byte[], byte[]> hash : hashes.entrySet()) {
+            byte[] block = values.get(new String(hash.getValue()));
+            if (block != null) {
+                blocks.put(hash.getKey(), block);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Return the blocks with the given hashes, with one request.
+     *
+     * @param hashes
+     *            the hashes of the blocks, or null for blocks that do not
+     *            exist
+     * @return the blocks, as they are stored, in the order of their hashes,
+     *         or null for the blocks that do not exist
+     * @throws IOException
+     */
+    public ByteBuffer[] getBlocks(ByteBuffer[] hashes) throws IOException {
+        List<byte[]> keys = new ArrayList<byte[]>(hashes.length);
+        for (ByteBuffer hash : hashes) {
+            if (hash != null) {
+                keys.add(ByteBufferUtil.getArray(hash));
+            }
+        }
+        ByteBuffer[] blocks = new ByteBuffer[hashes.length];
+        if (keys.isEmpty()) {
+            return blocks;
+        }
+        Map<String, byte[]> values =
+                getBlockStore().getColumnOfKeys(keys, dataColumn.getBytes());
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != null) {
+                byte[] block = values.get(ByteBufferUtil.string(hashes[i]));
+                blocks[i] = block == null ? null : ByteBuffer.wrap(block);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Drop the references to the candidates for collection that no longer
+     * hold, and delete the candidates that have not been referenced for the
+     * given grace period.
+     *
+     * @param graceMillis
+     *            how long a block stays unreferenced before it is deleted,
+     *            and an unverified reference is trusted after it was made
+     * @return the number of bytes reclaimed
+     * @throws IOException
+     */
+    public synchronized long collect(long graceMillis) throws IOException {
+        BlockStore store = getBlockStore();
+        long now = System.currentTimeMillis();
+        long reclaimed = 0;
+        byte[] start = new byte[0];
+        while (true) {
+            BlockMap candidates =
+                    store.getColumns(candidatesRow.getBytes(), start,
+                            COLLECT_PAGE_SIZE);
+            for (byte[] hash : candidates.keySet()) {
+                // the first column of every page but the first one was seen
+                // already.
+                if (start.length > 0 && Arrays.equals(hash, start)) {
+                    continue;
+                }
+                reclaimed += collectBlock(store, new String(hash), now,
+                        graceMillis);
+            }
+            if (candidates.size() < COLLECT_PAGE_SIZE) {
+                break;
+            }
+            start = candidates.lastKey();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * List every block as a candidate for collection, so that the next
+     * {@link #collect(long)} checks all of them. This scans the whole block
+     * column family.
+     *
+     * @return the number of blocks listed
+     * @throws IOException
+     */
+    public synchronized long sweep() throws IOException {
+        BlockStore store = getBlockStore();
+        long swept = 0;
+        byte[] start = new byte[0];
+        while (true) {
+            LinkedHashMap<String, byte[]> rows =
+                    store.getColumnOfRows(dataColumn.getBytes(), start,
+                            COLLECT_PAGE_SIZE);
+            List<byte[]> hashes = new ArrayList<byte[]>();
+            String lastKey = null;
+            for (Entry<String, byte[]> row : rows.entrySet()) {
+                lastKey = row.getKey();
+                // the first row of every page but the first one was seen
+                // already, and rows without a block are not blocks.
+                if ((start.length == 0 || !lastKey.equals(new String(start)))
+                        && row.getValue() != null) {
+                    hashes.add(lastKey.getBytes());
+                }
+            }
+            release(hashes);
+            swept += hashes.size();
+            if (rows.size() < COLLECT_PAGE_SIZE) {
+                break;
+            }
+            start = lastKey.getBytes();
+        }
+        return swept;
+    }
+
+    // check the references to the given candidate, and delete it if it has
+    // been orphaned for the grace period.
+    private long collectBlock(BlockStore store, String hash, long now,
+            long graceMillis) throws IOException {
+        Map<byte[], byte[]> columns = store.getColumns(hash.getBytes());
+        Map<byte[], byte[]> mutation = new HashMap<byte[], byte[]>();
+        byte[] data = null;
+        boolean referenced = false;
+        boolean pending = false;
+        long orphanedSince = -1;
+        for (Entry<byte[], byte[]> column : columns.entrySet()) {
+            String name = new String(column.getKey());
+            if (dataColumn.equals(name)) {
+                data = column.getValue();
+            } else if (orphanedColumn.equals(name)) {
+                orphanedSince = ByteBuffer.wrap(column.getValue()).getLong();
+            } else if (isReferenced(name, hash)) {
+                referenced = true;
+            } else if (now - ByteBuffer.wrap(column.getValue()).getLong() < graceMillis) {
+                // the content row may not have been written yet.
+                pending = true;
+            } else {
+                mutation.put(column.getKey(), null);
+            }
+        }
+        ByteBuffer key = ByteBufferUtil.bytes(hash);
+        if (data == null || referenced) {
+            // the block is gone already, or still in use.
+            if (referenced && orphanedSince >= 0) {
+                mutation.put(orphanedColumn.getBytes(), null);
+            }
+            settle(store, hash, mutation);
+            return 0;
+        }
+        if (!pending && orphanedSince < 0) {
+            mutation.put(orphanedColumn.getBytes(), timestamp(now));
+        }
+        if (pending || orphanedSince < 0 || now - orphanedSince < graceMillis) {
+            // the candidate is checked again on the next pass.
+            if (!mutation.isEmpty()) {
+                store.setColumns(key, mutation);
+            }
+            return 0;
+        }
+        mutation.put(dataColumn.getBytes(), null);
+        mutation.put(orphanedColumn.getBytes(), null);
+        store.setColumns(key, mutation);
+        if (hasReferences(store.getColumns(hash.getBytes()))) {
+            // the block was written again meanwhile.
+            logger.debug("putting back block {}", hash);
+            Map<byte[], byte[]> block = new HashMap<byte[], byte[]>();
+            block.put(dataColumn.getBytes(), data);
+            store.setColumns(key, block);
+            return 0;
+        }
+        settle(store, hash, new HashMap<byte[], byte[]>());
+        logger.debug("collected block {} of {} bytes", hash, data.length);
+        metrics.counter("dedup.collectedBlocks").incrementAndGet();
+        metrics.counter("dedup.collectedBytes").addAndGet(data.length);
+        return data.length;
+    }
+
+    // unlist the given candidate, until it loses a reference again, along
+    // with the given mutation of its row.
+    private static void settle(BlockStore store, String hash,
+            Map<byte[], byte[]> mutation) throws IOException {
+        Map<byte[], byte[]> candidate = new HashMap<byte[], byte[]>();
+        candidate.put(hash.getBytes(), null);
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        rows.put(ByteBufferUtil.bytes(candidatesRow), candidate);
+        if (!mutation.isEmpty()) {
+            rows.put(ByteBufferUtil.bytes(hash), mutation);
+        }
+        store.setColumns(rows);
+    }
+
+    // whether the given columns of a block row hold a reference.
+    private static boolean hasReferences(Map<byte[], byte[]> columns) {
+        for (byte[] column : columns.keySet()) {
+            String name = new String(column);
+            if (!dataColumn.equals(name) && !orphanedColumn.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // whether the content row named by the given reference column still
+    // refers to the given block.
+    private boolean isReferenced(String referenceColumn, String hash)
+            throws IOException {
+        int separator = referenceColumn.lastIndexOf(REFERENCE_SEPARATOR);
+        if (separator < 0) {
+            return false;
+        }
+        byte[] value =
+                fileStore.getColumn(referenceColumn.substring(0, separator)
+                        .getBytes(), referenceColumn.substring(separator + 1)
+                        .getBytes());
+        return value != null && Arrays.equals(value, hash.getBytes());
+    }
+
+    private static byte[] referenceColumn(String contentRow, byte[] blockName) {
+        return (contentRow + REFERENCE_SEPARATOR + new String(blockName))
+                .getBytes();
+    }
+
+    private static byte[] timestamp(long millis) {
+        return ByteBuffer.allocate(8).putLong(millis).array();
+    }
+
+    /**
+     * @return the hex encoded SHA-1 hash of the given block
+     */
+    static String hash(byte[] block) {
+        try {
+            return Util.bytesToHex(MessageDigest.getInstance("SHA-1").digest(
+                    block));
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package org.apache.lucene.cassandra;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.monitor.Counter;
+import org.apache.monitor.JmxMonitor;
+import org.apache.monitor.MonitorType;
+
+/**
+ * The <code>DescriptorCache</code> keeps the descriptors of recently used
+ * files on the client, so that metadata calls such as
+ * {@link CassandraDirectory#fileExists(String)} and
+ * {@link CassandraDirectory#fileLength(String)} do not read the descriptor
+ * column from Cassandra every time.
+ *
+ * <p>
+ * There is one cache per directory (i.e. per keyspace and column family).
+ * The directory writes through it whenever it creates, closes or deletes a
+ * file, and a file that is known not to exist is cached as such. Since other
+ * writers may change the directory behind our back, every entry is only
+ * trusted for a limited time after it was loaded or written; after that, it
+ * is read from Cassandra again. Descriptors loaded from Cassandra never
+ * replace an entry that was written through in the meantime, and a
+ * written-through descriptor never replaces one with a later last modified
+ * timestamp.
+ * </p>
+ *
+ * <p>
+ * The time an entry is trusted is set through the system property
+ * <code>lucene.cassandra.descriptorCache.ttlMillis</code> (0 turns the cache
+ * off), and the number of entries it holds through
+ * <code>lucene.cassandra.descriptorCache.maxEntries</code>.
+ * </p>
+ */
+public class DescriptorCache implements MonitorType {
+
+    // How long a cached descriptor is trusted, in milliseconds.
+    public static final long DEFAULT_TTL_MILLIS = Long.getLong(
+            "lucene.cassandra.descriptorCache.ttlMillis", 1000);
+
+    // The maximum number of descriptors a cache may hold.
+    public static final int DEFAULT_MAX_ENTRIES = Integer.getInteger(
+            "lucene.cassandra.descriptorCache.maxEntries", 10000);
+
+    // The shared caches, keyed by keyspace and column family.
+    private static final ConcurrentMap<String, DescriptorCache> caches =
+            new ConcurrentHashMap<String, DescriptorCache>();
+
+    private final String name;
+
+    private final long ttlMillis;
+
+    private final int maxEntries;
+
+    // The cached descriptors, least recently used first.
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final Map<Counter, AtomicLong> counters =
+            new EnumMap<Counter, AtomicLong>(Counter.class);
+
+    /**
+     * The descriptor of a file, or null if the file does not exist, as of the
+     * given time.
+     */
+    public static final class Entry {
+        private final FileDescriptor descriptor;
+
+        private final long cachedAt;
+
+        Entry(FileDescriptor descriptor, long cachedAt) {
+            this.descriptor = descriptor;
+            this.cachedAt = cachedAt;
+        }
+
+        /**
+         * @return the descriptor, or null if the file does not exist
+         */
+        public FileDescriptor getDescriptor() {
+            return descriptor;
+        }
+
+        public boolean exists() {
+            return descriptor != null;
+        }
+    }
+
+    /**
+     * Construct a descriptor cache.
+     *
+     * @param name
+     *            the name under which the cache is monitored
+     * @param ttlMillis
+     *            how long an entry is trusted, in milliseconds
+     * @param maxEntries
+     *            the maximum number of entries to hold
+     */
+    public DescriptorCache(String name, long ttlMillis, final int maxEntries) {
+        this.name = name;
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        counters.put(Counter.DESCRIPTOR_CACHE_HITS, new AtomicLong());
+        counters.put(Counter.DESCRIPTOR_CACHE_MISSES, new AtomicLong());
+    }
+
+    /**
+     * Return the cache shared by all the files in the given directory,
+     * creating it on first use.
+     *
+     * @return the shared cache, or null if descriptor caching is turned off
+     */
+    public static DescriptorCache getInstance(String keyspace,
+            String columnFamily) {
+        if (DEFAULT_TTL_MILLIS <= 0 || DEFAULT_MAX_ENTRIES <= 0) {
+            return null;
+        }
+        String key = keyspace + "/" + columnFamily;
+        DescriptorCache cache = caches.get(key);
+        if (cache == null) {
+            DescriptorCache newCache =
+                    new DescriptorCache(keyspace + "_" + columnFamily,
+                            DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+            cache = caches.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+                JmxMonitor.getInstance().getCassandraMonitor(cache);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Return the cached entry of the given file, if it has not expired yet.
+     *
+     * @return the entry, or null on a miss
+     */
+    public synchronized Entry get(String fileName) {
+        Entry entry = entries.get(fileName);
+        if (entry != null
+                && System.currentTimeMillis() - entry.cachedAt >= ttlMillis) {
+            entries.remove(fileName);
+            entry = null;
+        }
+        if (entry == null) {
+            counters.get(Counter.DESCRIPTOR_CACHE_MISSES).incrementAndGet();
+            return null;
+        }
+        counters.get(Counter.DESCRIPTOR_CACHE_HITS).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Cache the descriptor just read from Cassandra for the given file,
+     * unless the file was written through the cache while it was being read.
+     *
+     * @param descriptor
+     *            the descriptor, or null if the file does not exist
+     */
+    public synchronized void load(String fileName, FileDescriptor descriptor) {
+        Entry entry = entries.get(fileName);
+        long now = System.currentTimeMillis();
+        if (entry == null || now - entry.cachedAt >= ttlMillis) {
+            entries.put(fileName, new Entry(descriptor, now));
+        }
+    }
+
+    /**
+     * Write the descriptor of the given file through the cache, e.g. because
+     * the file was created or closed.
+     *
+     * @param descriptor
+     *            the descriptor, or null if the file was deleted
+     */
+    public synchronized void put(String fileName, FileDescriptor descriptor) {
+        Entry entry = entries.get(fileName);
+        if (descriptor != null && entry != null && entry.descriptor != null
+                && entry.descriptor != descriptor
+                && entry.descriptor.getLastModified() > descriptor
+                        .getLastModified()) {
+            return;
+        }
+        entries.put(fileName, new Entry(descriptor, System.currentTimeMillis()));
+    }
+
+    /**
+     * Forget the given file, so that it is read from Cassandra next time.
+     */
+    public synchronized void invalidate(String fileName) {
+        entries.remove(fileName);
+    }
+
+    /**
+     * Forget every file.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of cached entries, including expired ones
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return counters.get(Counter.DESCRIPTOR_CACHE_HITS).get();
+    }
+
+    public long getMisses() {
+        return counters.get(Counter.DESCRIPTOR_CACHE_MISSES).get();
+    }
+
+    @Override
+    public String getMonitorName() {
+        return "DescriptorCache_" + name;
+    }
+
+    @Override
+    public Map<Counter, AtomicLong> getCounters() {
+        return counters;
+    }
+
+}
@@ -0,0 +1,326 @@
+package org.apache.lucene.cassandra;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>DirectorySnapshots</code> of a directory are named, point-in-time
+ * sets of descriptors of its files, typically those of a commit, which can be
+ * restored later on. Taking, restoring and deleting a snapshot costs a few
+ * requests per file, whatever the size of the files, as no block is copied:
+ * a snapshot refers to the rows that hold the blocks of the files, i.e. their
+ * content rows, or their own rows for files without one (see
+ * {@link FileDescriptor#getContentRow()}), and pins them, so that they
+ * survive the files being deleted, renamed or reaped. Restoring a snapshot
+ * writes its descriptors back, which thus point to the pinned rows again.
+ *
+ * <p>
+ * The snapshots of a directory are listed in the row
+ * <code>__SNAPSHOTS__</code>, and the descriptors of a snapshot are kept in
+ * the row <code>__SNAPSHOT__&lt;name&gt;</code>, one column per file. Every
+ * content row that a snapshot pins has a row
+ * <code>__PINS__&lt;content row&gt;</code> listing the snapshots that pin
+ * it, which {@link ColumnOrientedFile#deleteContentRow(FileDescriptor)} and
+ * {@link ColumnOrientedFile#deleteFileBlocks(FileDescriptor, boolean)} look
+ * at before deleting anything. None of these rows has a descriptor, so they
+ * are never mistaken for files. The {@link FileReaper} leaves the deleted
+ * files whose row is pinned alone, and reaps them once the last snapshot that
+ * pins it is deleted. A file created under the name of a pinned row, e.g.
+ * after the file of that name was deleted, gets a content row of its own, so
+ * that it never writes over the blocks of a snapshot.
+ * </p>
+ *
+ * <p>
+ * The files of a snapshot must not be deleted while it is being taken, e.g.
+ * because the commit is held by a
+ * {@link org.apache.lucene.index.SnapshotDeletionPolicy}.
+ * </p>
+ */
+public class DirectorySnapshots {
+
+    private static Logger logger = LoggerFactory
+            .getLogger(DirectorySnapshots.class);
+
+    // The name of the column that holds the file descriptor.
+    protected static final String descriptorColumn = "DESCRIPTOR";
+
+    // The key of the row that lists the snapshots of the directory.
+    protected static final String snapshotsRow = "__SNAPSHOTS__";
+
+    // The prefix of the key of the row that holds the descriptors of a
+    // snapshot.
+    protected static final String snapshotRowPrefix = "__SNAPSHOT__";
+
+    // The prefix of the key of the row that lists the snapshots pinning a
+    // content row.
+    protected static final String pinRowPrefix = "__PINS__";
+
+    // The number of snapshots read per slice.
+    private static final int LIST_PAGE_SIZE = 1024;
+
+    private final BlockStore blockStore;
+
+    private final int blockSize;
+
+    private final ColumnOrientedDirectory columnOrientedDirectory;
+
+    private final ColumnOrientedFile columnOrientedFile;
+
+    public DirectorySnapshots(BlockStore blockStore, int blockSize) {
+        this.blockStore = blockStore;
+        this.blockSize = blockSize;
+        this.columnOrientedDirectory =
+                new ColumnOrientedDirectory(blockStore, blockSize);
+        this.columnOrientedFile = new ColumnOrientedFile(blockStore);
+    }
+
+    /**
+     * @return the key of the row that lists the snapshots pinning the given
+     *         content row
+     */
+    static String pinRow(String contentRow) {
+        return pinRowPrefix + contentRow;
+    }
+
+    /**
+     * @return whether a snapshot pins the given row, be it the content row of
+     *         a file or the row of a file without one
+     * @throws IOException
+     */
+    static boolean isPinned(BlockStore blockStore, String row)
+            throws IOException {
+        return !blockStore.getColumns(pinRow(row).getBytes(), new byte[0], 1)
+                .isEmpty();
+    }
+
+    /**
+     * Take a snapshot of the given files under the given name.
+     *
+     * @param name
+     *            the name of the snapshot, which must not exist yet
+     * @param fileNames
+     *            the names of the files
+     * @return the descriptors of the files in the snapshot, by file name
+     * @throws FileNotFoundException
+     *             if one of the files does not exist
+     * @throws IOException
+     *             if the snapshot exists already
+     */
+    public Map<String, FileDescriptor> create(String name,
+            Collection<String> fileNames) throws IOException {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("a snapshot needs a name");
+        }
+        if (blockStore.getColumn(snapshotsRow.getBytes(), name.getBytes()) != null) {
+            throw new IOException("snapshot " + name + " exists already");
+        }
+        Map<String, FileDescriptor> snapshot =
+                new TreeMap<String, FileDescriptor>();
+        byte[] now = timestamp(System.currentTimeMillis());
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        BlockMap descriptors = new BlockMap();
+        for (Map.Entry<String, FileDescriptor> file : columnOrientedDirectory
+                .getFileDescriptors(fileNames).entrySet()) {
+            FileDescriptor fileDescriptor = file.getValue();
+            if (fileDescriptor == null) {
+                throw new FileNotFoundException(file.getKey());
+            }
+            descriptors.put(fileDescriptor.getName(),
+                    ColumnOrientedFile.toDescriptorBytes(blockStore,
+                            fileDescriptor));
+            rows.put(ByteBufferUtil.bytes(pinRow(fileDescriptor.getContentRow())),
+                    column(name, now));
+            snapshot.put(fileDescriptor.getName(), fileDescriptor);
+        }
+        if (!descriptors.isEmpty()) {
+            rows.put(ByteBufferUtil.bytes(snapshotRowPrefix + name), descriptors);
+        }
+        rows.put(ByteBufferUtil.bytes(snapshotsRow), column(name, now));
+        blockStore.setColumns(rows);
+        logger.info("took snapshot {} of {} files", name, snapshot.size());
+        return snapshot;
+    }
+
+    /**
+     * @return the names of the snapshots of the directory
+     * @throws IOException
+     */
+    public List<String> list() throws IOException {
+        List<String> names = new ArrayList<String>();
+        byte[] start = new byte[0];
+        while (true) {
+            BlockMap columns =
+                    blockStore.getColumns(snapshotsRow.getBytes(), start,
+                            LIST_PAGE_SIZE);
+            for (byte[] column : columns.keySet()) {
+                // the first column of every page but the first one was seen already.
+                if (start.length == 0 || !Arrays.equals(column, start)) {
+                    names.add(new String(column));
+                }
+            }
+            if (columns.size() < LIST_PAGE_SIZE) {
+                break;
+            }
+            start = columns.lastKey();
+        }
+        return names;
+    }
+
+    /**
+     * @return the descriptors of the files in the given snapshot, by file
+     *         name, or null if there is no such snapshot
+     * @throws IOException
+     */
+    public Map<String, FileDescriptor> get(String name) throws IOException {
+        if (blockStore.getColumn(snapshotsRow.getBytes(), name.getBytes()) == null) {
+            return null;
+        }
+        Map<String, FileDescriptor> snapshot =
+                new TreeMap<String, FileDescriptor>();
+        for (Map.Entry<byte[], byte[]> column : blockStore.getColumns(
+                (snapshotRowPrefix + name).getBytes()).entrySet()) {
+            snapshot.put(new String(column.getKey()),
+                    FileDescriptorUtils.fromBytes(column.getValue(), blockSize));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Restore the files in the given snapshot, by writing their descriptors
+     * back. The blocks the files had in the meantime are deleted first,
+     * unless another snapshot pins them. The other files of the directory
+     * are left alone.
+     *
+     * <p>
+     * The descriptors are written in one batch mutation, which Cassandra
+     * does not apply atomically across rows, so a restore that fails midway
+     * may leave some files restored and others not. Restoring is idempotent,
+     * and running it again completes it.
+     * </p>
+     *
+     * @return the descriptors of the restored files, by file name
+     * @throws IOException
+     *             if there is no such snapshot
+     */
+    public Map<String, FileDescriptor> restore(String name) throws IOException {
+        Map<String, FileDescriptor> snapshot = get(name);
+        if (snapshot == null) {
+            throw new IOException("no snapshot " + name);
+        }
+        Map<String, FileDescriptor> current =
+                columnOrientedDirectory.getFileDescriptors(snapshot.keySet());
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        for (FileDescriptor fileDescriptor : snapshot.values()) {
+            FileDescriptor live = current.get(fileDescriptor.getName());
+            if (live != null
+                    && !live.getContentRow().equals(
+                            fileDescriptor.getContentRow())) {
+                // the file no longer refers to the blocks it has now, which
+                // go first, so that running the restore again finds no
+                // trace of them.
+                columnOrientedFile.invalidateFile(live);
+                if (live.hasContentRow()) {
+                    columnOrientedFile.deleteContentRow(live);
+                } else {
+                    columnOrientedFile.deleteFileBlocks(live, false);
+                }
+            }
+            fileDescriptor.setDeleted(false);
+            BlockMap descriptor = new BlockMap();
+            descriptor.put(descriptorColumn, ColumnOrientedFile
+                    .toDescriptorBytes(blockStore, fileDescriptor));
+            rows.put(ByteBufferUtil.bytes(fileDescriptor.getName()), descriptor);
+            ColumnOrientedDirectory.addManifestColumn(rows, fileDescriptor);
+        }
+        if (!rows.isEmpty()) {
+            blockStore.setColumns(rows);
+        }
+        logger.info("restored snapshot {} of {} files", name, snapshot.size());
+        return snapshot;
+    }
+
+    /**
+     * Delete the given snapshot, along with the blocks that neither another
+     * snapshot nor a file refers to. The blocks of deleted files are left to
+     * the reaper, which has left them alone until now.
+     *
+     * @throws IOException
+     *             if there is no such snapshot
+     */
+    public void delete(String name) throws IOException {
+        Map<String, FileDescriptor> snapshot = get(name);
+        if (snapshot == null) {
+            throw new IOException("no snapshot " + name);
+        }
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        for (FileDescriptor fileDescriptor : snapshot.values()) {
+            rows.put(ByteBufferUtil.bytes(pinRow(fileDescriptor.getContentRow())),
+                    column(name, null));
+        }
+        rows.put(ByteBufferUtil.bytes(snapshotRowPrefix + name), null);
+        rows.put(ByteBufferUtil.bytes(snapshotsRow), column(name, null));
+        blockStore.setColumns(rows);
+
+        Set<String> referenced = new HashSet<String>();
+        for (FileDescriptor fileDescriptor : columnOrientedDirectory
+                .getFileDescriptors(
+                        Arrays.asList(columnOrientedDirectory.getFileNames()))
+                .values()) {
+            if (fileDescriptor != null) {
+                referenced.add(fileDescriptor.getContentRow());
+            }
+        }
+        for (FileDescriptor fileDescriptor : snapshot.values()) {
+            if (referenced.contains(fileDescriptor.getContentRow())) {
+                continue;
+            }
+            FileDescriptor deleted =
+                    columnOrientedDirectory
+                            .getFileDescriptorIncludingDeleted(fileDescriptor
+                                    .getName());
+            if (deleted != null
+                    && deleted.getContentRow().equals(
+                            fileDescriptor.getContentRow())) {
+                // the reaper removes the file along with its blocks.
+                continue;
+            }
+            columnOrientedFile.invalidateFile(fileDescriptor);
+            if (fileDescriptor.hasContentRow()) {
+                columnOrientedFile.deleteContentRow(fileDescriptor);
+            } else {
+                // the row may hold the descriptor of a newer file.
+                columnOrientedFile.deleteFileBlocks(fileDescriptor, true);
+            }
+        }
+        logger.info("deleted snapshot {}", name);
+    }
+
+    private static Map<byte[], byte[]> column(String name, byte[] value) {
+        Map<byte[], byte[]> columns = new LinkedHashMap<byte[], byte[]>();
+        columns.put(name.getBytes(), value);
+        return columns;
+    }
+
+    private static byte[] timestamp(long millis) {
+        return ByteBuffer.allocate(8).putLong(millis).array();
+    }
+
+}
@@ -53,6 +53,10 @@ public class FileBlock implements Cloneable {
     // The position of the file pointer relative to this block, assuming that
     // pointer is currently inside this block to begin with.
     private int dataPosition;
+
+    // The descriptor this block belongs to, which indexes the data offsets of
+    // its blocks and needs to hear about length changes.
+    private FileDescriptor descriptor;
     
     protected static final String BLOCK_COLUMN_NAME_PREFIX = "BLOCK-";
 
@@ -188,6 +192,9 @@ public class FileBlock implements Cloneable {
      */
     public void setDataLength(int dataLength) {
         //logger.trace("setDataLength ");
+        if (descriptor != null && dataLength != this.dataLength) {
+            descriptor.invalidateDataEnds();
+        }
         this.dataLength = dataLength;
     }
 
@@ -229,6 +236,10 @@ public class FileBlock implements Cloneable {
         return getDataOffset() + getDataPosition();
     }
 
+    void setDescriptor(FileDescriptor descriptor) {
+        this.descriptor = descriptor;
+    }
+
     /**
      * Create a readable name of the block, derived from it's block number.
      * 
@@ -236,7 +247,7 @@ public class FileBlock implements Cloneable {
      *            the number of the block to use in the name
      * @return
      */
-    private static String createBlockName(int blockNumber) {
+    static String createBlockName(int blockNumber) {
         //logger.trace("createBlockName ");
         return BLOCK_COLUMN_NAME_PREFIX + blockNumber;
     }
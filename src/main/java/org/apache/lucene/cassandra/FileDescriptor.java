@@ -1,7 +1,10 @@
 package org.apache.lucene.cassandra;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -23,6 +26,30 @@ import org.slf4j.LoggerFactory;
  * which the (random) file pointer maps, and then positioning the file
  * pointer within the in-memory block.
  * </p>
+ * 
+ * <p>
+ * The blocks are kept in an array, next to an identity index from block to
+ * position and a table of cumulative data lengths. This makes moving to the
+ * next block O(1) and mapping a file pointer to its block (see
+ * {@link #findBlockIndex(long)}) O(log n). Both are maintained incrementally
+ * for appends and rebuilt lazily after other structural changes, or after a
+ * block's data length changes.
+ * </p>
+ * 
+ * <p>
+ * A file may also be append-only (see {@link #isAppendOnly()}), in which case
+ * its blocks are laid out in fixed strides: block <i>i</i> is always named
+ * after <i>i</i> and holds the bytes [<i>i</i>&middot;B, (<i>i</i>+1)&middot;B)
+ * of the file, B being the block size. The column holding any file offset is
+ * then known without looking at the blocks at all.
+ * </p>
+ * 
+ * <p>
+ * The blocks of a file are kept in its content row (see
+ * {@link #getContentRow()}), which is the row of the file itself unless the
+ * file was created with a content row of its own. Renaming such a file only
+ * moves its descriptor, and leaves its blocks where they are.
+ * </p>
  */
 public class FileDescriptor {
     
@@ -47,6 +74,22 @@ public class FileDescriptor {
     // will.
     private boolean deleted;
 
+    // Whether the file is laid out in fixed strides and may only be appended
+    // to.
+    private boolean appendOnly;
+
+    // Whether the values of the blocks carry the codec they were compressed
+    // with, see {@link BlockCompression}.
+    private boolean compressed;
+
+    // The key of the row that holds the blocks of the file, or null if it is
+    // the row of the file itself.
+    private String contentRow;
+
+    // Whether the columns of the content row hold the hashes of the blocks,
+    // see {@link ContentAddressedBlocks}.
+    private boolean contentAddressed;
+
     // The timestamp at which the file was last modified.
     private long lastModified;
 
@@ -57,7 +100,24 @@ public class FileDescriptor {
     private long blockSize;
 
     // The ordered list of blocks in this file.
-    private LinkedList<FileBlock> blocks;
+    private ArrayList<FileBlock> blocks;
+
+    // A read-only view of {@link #blocks} handed out to callers.
+    private List<FileBlock> blocksView;
+
+    // The position of every block in {@link #blocks}, keyed by identity.
+    private final IdentityHashMap<FileBlock, Integer> blockIndexes =
+            new IdentityHashMap<FileBlock, Integer>();
+
+    // Whether {@link #blockIndexes} reflects the current list of blocks.
+    private boolean blockIndexesValid = true;
+
+    // The cumulative data length of the blocks, i.e. dataEnds[i] is the file
+    // offset just past the data held by blocks 0 to i.
+    private long[] dataEnds = new long[0];
+
+    // Whether {@link #dataEnds} reflects the current blocks and lengths.
+    private boolean dataEndsValid = false;
 
     // The number to use for the next block that will be allocated. If it is
     // uninitialized (i.e., -1), then it forces the descriptor to reset it
@@ -93,7 +153,7 @@ public class FileDescriptor {
         setLastAccessed(now.getTime());
         setLastModified(now.getTime());
         setBlockSize(blockSize);
-        setBlocks(new LinkedList<FileBlock>());
+        setBlocks(new ArrayList<FileBlock>());
         String debug = String.format("fileName = '%s' blockSize = '%s'", fileName, blockSize);
         //logger.debug(debug);
     }
@@ -117,6 +177,53 @@ public class FileDescriptor {
         this.name = name;
     }
 
+    /**
+     * @return the key of the row that holds the blocks of the file, i.e. its
+     *         own name unless it has a content row of its own
+     */
+    public String getContentRow() {
+        return contentRow != null ? contentRow : name;
+    }
+
+    /**
+     * @return whether the blocks of the file are kept in a row other than
+     *         that of the file itself
+     */
+    public boolean hasContentRow() {
+        return contentRow != null && !contentRow.equals(name);
+    }
+
+    /**
+     * Keep the blocks of the file in the given row. This may only change
+     * while the file has no blocks.
+     * 
+     * @param contentRow
+     *            the key of the row, or null for the row of the file itself
+     */
+    public void setContentRow(String contentRow) {
+        this.contentRow = contentRow;
+    }
+
+    /**
+     * @return true if the columns of the content row of the file hold the
+     *         hashes of its blocks rather than the blocks themselves
+     */
+    public boolean isContentAddressed() {
+        return contentAddressed;
+    }
+
+    /**
+     * Keep the blocks of the file in the block store of the directory, keyed
+     * by their hash (or not). This may only change while the file has no
+     * blocks in Cassandra.
+     * 
+     * @param contentAddressed
+     *            are the blocks of the file content-addressed?
+     */
+    public void setContentAddressed(boolean contentAddressed) {
+        this.contentAddressed = contentAddressed;
+    }
+
     /**
      * @return the current length of the file
      */
@@ -155,6 +262,45 @@ public class FileDescriptor {
         this.deleted = deleted;
     }
 
+    /**
+     * @return true if the file is laid out in fixed strides, and may only be
+     *         appended to
+     */
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    /**
+     * Mark the file as append-only (or not). The blocks of an append-only
+     * file must be laid out by {@link #layOutFixedStride()}.
+     * 
+     * @param appendOnly
+     *            should the file be laid out in fixed strides?
+     */
+    public void setAppendOnly(boolean appendOnly) {
+        this.appendOnly = appendOnly;
+    }
+
+    /**
+     * @return true if the values of the blocks of the file carry the codec
+     *         they were compressed with
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Mark the values of the blocks of the file as carrying the codec they
+     * were compressed with (or not). This may only change while the file has
+     * no blocks in Cassandra.
+     * 
+     * @param compressed
+     *            are the blocks of the file compressed?
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
     /**
      * @return the timestamp at which the file was last modified
      */
@@ -213,11 +359,12 @@ public class FileDescriptor {
     }
 
     /**
-     * @return the ordered list of file blocks
+     * @return the ordered list of file blocks, which may not be modified
+     *         directly
      */
     public List<FileBlock> getBlocks() {
         //logger.trace("getBlocks {}", blocks.size());
-        return blocks;
+        return blocksView;
     }
 
     /**
@@ -227,11 +374,28 @@ public class FileDescriptor {
      *            the ordered list of file blocks
      */
     public void setBlocks(List<FileBlock> blocks) {
-        if (LinkedList.class.isAssignableFrom(blocks.getClass())) {
-            this.blocks = (LinkedList<FileBlock>) blocks;
-        } else {
-            this.blocks = new LinkedList<FileBlock>(blocks);
+        this.blocks = new ArrayList<FileBlock>(blocks);
+        this.blocksView = Collections.unmodifiableList(this.blocks);
+        for (FileBlock block : this.blocks) {
+            block.setDescriptor(this);
         }
+        invalidateBlockIndexes();
+    }
+
+    /**
+     * @return the number of blocks in the file
+     */
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    /**
+     * @param index
+     *            the position of the block in the file
+     * @return the block at the given position
+     */
+    public FileBlock getBlock(int index) {
+        return blocks.get(index);
     }
 
     /**
@@ -240,9 +404,9 @@ public class FileDescriptor {
     public FileBlock getFirstBlock() {
         //logger.trace("getFirstBlock");
         if (blocks.isEmpty()) {
-            blocks.add(createBlock());
+            appendBlock(createBlock());
         }
-        return blocks.getFirst();
+        return blocks.get(0);
     }
 
     /**
@@ -251,9 +415,9 @@ public class FileDescriptor {
     public FileBlock getLastBlock() {
         //logger.trace("getLastBlock");
         if (blocks.isEmpty()) {
-            blocks.add(createBlock());
+            appendBlock(createBlock());
         }
-        return blocks.getLast();
+        return blocks.get(blocks.size() - 1);
     }
 
     /**
@@ -272,6 +436,25 @@ public class FileDescriptor {
         return getLastBlock().equals(nextBlock);
     }
 
+    /**
+     * Return the position of the given block in the file.
+     * 
+     * @param block
+     *            an existing file block
+     * @return the position of the block, or -1 if it is not in this file
+     */
+    public int indexOf(FileBlock block) {
+        if (!blockIndexesValid) {
+            blockIndexes.clear();
+            for (int i = 0; i < blocks.size(); i++) {
+                blockIndexes.put(blocks.get(i), i);
+            }
+            blockIndexesValid = true;
+        }
+        Integer index = blockIndexes.get(block);
+        return index == null ? -1 : index;
+    }
+
     /**
      * Return the block that logically follows the given block.
      * 
@@ -280,25 +463,104 @@ public class FileDescriptor {
      * @return the block that logically follows the given block
      */
     public FileBlock getNextBlock(FileBlock block) {
-        int blockIndex = blocks.indexOf(block);
+        int blockIndex = indexOf(block);
         logger.trace("get next block {}", blockIndex);
         return (blockIndex != -1 && blockIndex < (blocks.size() - 1))
                 ? blocks.get(blockIndex + 1) : null;
     }
     
     public FileBlock getPreviousBlock(FileBlock block) {
-        int blockIndex = blocks.indexOf(block);
+        int blockIndex = indexOf(block);
         logger.trace("get previous block {}", blockIndex);
         
-        if (blockIndex != -1 && blockIndex < (blocks.size() -1)) {
-            // found and return currentblock + 1
+        if (blockIndex > 0) {
+            // found and return currentblock - 1
             return blocks.get(blockIndex - 1);
         } else {
-            // not found, return null
+            // not found or first block, return null
             return null;
         }
     }
 
+    /**
+     * Find the block that holds the byte at the given file offset, by
+     * binary searching the cumulative data lengths of the blocks.
+     * 
+     * @param filePointer
+     *            an offset in the file
+     * @return the position of the block, or -1 if the offset lies outside
+     *         the data held by the blocks
+     */
+    public int findBlockIndex(long filePointer) {
+        if (filePointer < 0) {
+            return -1;
+        }
+        long[] ends = getDataEnds();
+        int size = blocks.size();
+        if (size == 0 || filePointer >= ends[size - 1]) {
+            return -1;
+        }
+        // find the first block whose data ends past the file pointer.
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] > filePointer) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param index
+     *            the position of a block in the file
+     * @return the file offset at which the data of that block starts
+     */
+    public long getBlockStart(int index) {
+        return index == 0 ? 0 : getDataEnds()[index - 1];
+    }
+
+    private long[] getDataEnds() {
+        if (!dataEndsValid) {
+            int size = blocks.size();
+            if (dataEnds.length < size) {
+                dataEnds = Arrays.copyOf(dataEnds, Math.max(size, dataEnds.length * 2));
+            }
+            long end = 0;
+            for (int i = 0; i < size; i++) {
+                end += blocks.get(i).getDataLength();
+                dataEnds[i] = end;
+            }
+            dataEndsValid = true;
+        }
+        return dataEnds;
+    }
+
+    /**
+     * Called by a block of this file when its data length changes, which
+     * shifts the offsets of every block after it.
+     */
+    void invalidateDataEnds() {
+        dataEndsValid = false;
+    }
+
+    private void invalidateBlockIndexes() {
+        blockIndexesValid = false;
+        dataEndsValid = false;
+    }
+
+    private void appendBlock(FileBlock newBlock) {
+        newBlock.setDescriptor(this);
+        blocks.add(newBlock);
+        if (blockIndexesValid) {
+            blockIndexes.put(newBlock, blocks.size() - 1);
+        }
+        dataEndsValid = false;
+    }
+
     /**
      * Add the given block as the last block in the file.
      * 
@@ -307,7 +569,7 @@ public class FileDescriptor {
      */
     public void addLastBlock(FileBlock newBlock) {
         //logger.trace("addLastBlock");
-        blocks.addLast(newBlock);
+        appendBlock(newBlock);
     }
 
     /**
@@ -318,7 +580,9 @@ public class FileDescriptor {
      */
     public void addFirstBlock(FileBlock newBlock) {
         //logger.trace("addFirstBlock");
-        blocks.addFirst(newBlock);
+        newBlock.setDescriptor(this);
+        blocks.add(0, newBlock);
+        invalidateBlockIndexes();
     }
 
     /**
@@ -336,22 +600,25 @@ public class FileDescriptor {
     public void insertBlock(FileBlock existingBlock, FileBlock newBlock,
             boolean insertAfter) {
         //logger.trace("insertBlock");
-        int existingIndex = blocks.indexOf(existingBlock);
+        int existingIndex = indexOf(existingBlock);
         if (existingIndex == -1) {
-            blocks.add(newBlock);
+            appendBlock(newBlock);
         } else {
-            if (insertAfter) {
-                blocks.add(existingIndex + 1, newBlock);
+            int newIndex = insertAfter ? existingIndex + 1 : existingIndex;
+            if (newIndex == blocks.size()) {
+                appendBlock(newBlock);
             } else {
-                // reverse the order.
-                // the result become [ ... , block-1, block-0, ... ]
-                blocks.add(existingIndex, newBlock);
+                // when inserting before, the result becomes
+                // [ ... , block-1, block-0, ... ]
+                newBlock.setDescriptor(this);
+                blocks.add(newIndex, newBlock);
+                invalidateBlockIndexes();
             }
         }
     }
     
     public void addBlock(FileBlock fileBlock) {
-        blocks.add(fileBlock);
+        appendBlock(fileBlock);
     }
 
     /**
@@ -364,10 +631,13 @@ public class FileDescriptor {
      */
     public void replaceBlock(FileBlock existingBlock, FileBlock newBlock) {
         //logger.trace("replaceBlock");
-        int existingIndex = blocks.indexOf(existingBlock);
+        int existingIndex = indexOf(existingBlock);
         if (existingIndex != -1) {
-            blocks.remove(existingIndex);
-            blocks.add(existingIndex, newBlock);
+            newBlock.setDescriptor(this);
+            blocks.set(existingIndex, newBlock);
+            blockIndexes.remove(existingBlock);
+            blockIndexes.put(newBlock, existingIndex);
+            dataEndsValid = false;
         }
     }
 
@@ -380,13 +650,44 @@ public class FileDescriptor {
      */
     public int removeBlock(FileBlock existingBlock) {
         //logger.trace("removeBlock");
-        int existingIndex = blocks.indexOf(existingBlock);
+        int existingIndex = indexOf(existingBlock);
         if (existingIndex != -1) {
-            blocks.remove(existingBlock);
+            blocks.remove(existingIndex);
+            if (existingIndex == blocks.size()) {
+                blockIndexes.remove(existingBlock);
+                dataEndsValid = false;
+            } else {
+                invalidateBlockIndexes();
+            }
         }
         return existingIndex;
     }
 
+    /**
+     * Lay the blocks of an append-only file out in fixed strides up to its
+     * current length, so that block <i>i</i> is named after <i>i</i> and
+     * holds the bytes [<i>i</i>&middot;B, (<i>i</i>+1)&middot;B). The blocks
+     * before the last one are assumed to be laid out already, which keeps
+     * appending cheap.
+     */
+    public void layOutFixedStride() {
+        int count = (int) ((length + blockSize - 1) / blockSize);
+        for (int i = Math.max(0, blocks.size() - 1); i < count; i++) {
+            FileBlock block;
+            if (i < blocks.size()) {
+                block = blocks.get(i);
+            } else {
+                block = new FileBlock();
+                block.setBlockName(i);
+                block.setBlockSize(blockSize);
+                appendBlock(block);
+            }
+            block.setDataOffset(0);
+            block.setDataLength((int) Math.min(blockSize, length - i * blockSize));
+        }
+        nextBlockNumber = Math.max(nextBlockNumber, blocks.size() - 1);
+    }
+
     /**
      * Create a file block with no data in it. The block number assigned to
      * new blocks is set to auto-increment.
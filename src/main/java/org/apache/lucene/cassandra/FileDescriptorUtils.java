@@ -1,10 +1,16 @@
 package org.apache.lucene.cassandra;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.OutputStreamDataOutput;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -14,12 +20,74 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A utility for serializing (and deserialize) the file descriptor to (and
- * from) JSON objects.
+ * from) bytes.
+ * 
+ * <p>
+ * Descriptors are written in a compact, versioned binary format: a magic
+ * byte, a version byte, the file attributes, and then the blocks, where block
+ * numbers are delta-encoded against the previous block and all numbers are
+ * variable-length. Descriptors written in the older JSON format are still
+ * read transparently, since JSON always starts with '{' which is never the
+ * magic byte. Setting the system property
+ * <code>lucene.cassandra.descriptor.format</code> to <code>json</code> keeps
+ * writing JSON, for clusters that still have older readers.
+ * </p>
+ * 
+ * <p>
+ * The blocks of an append-only file follow from its length and block size,
+ * so its binary descriptor leaves them out altogether. Such descriptors are
+ * written as {@link #FIXED_STRIDE_VERSION}, which older readers refuse rather
+ * than mistake for an empty file. Likewise, the descriptors of files whose
+ * blocks are compressed (see {@link BlockCompression}) are written as
+ * {@link #CODEC_VERSION}, so that older readers do not mistake compressed
+ * blocks for data, and the descriptors of files whose blocks live in a
+ * content row of their own as {@link #CONTENT_ROW_VERSION}, so that older
+ * readers do not look for the blocks in the row of the file. The descriptors
+ * of files whose blocks are content-addressed (see
+ * {@link ContentAddressedBlocks}) are written as
+ * {@link #CONTENT_ADDRESSED_VERSION}, so that older readers do not mistake
+ * the hashes of the blocks for data.
+ * </p>
  */
 public class FileDescriptorUtils {
     
     private static Logger logger = LoggerFactory.getLogger(FileDescriptorUtils.class);
     
+    // The first byte of every binary descriptor.
+    public static final byte BINARY_MAGIC = (byte) 0xFD;
+
+    // The current version of the binary descriptor format.
+    public static final byte BINARY_VERSION = 1;
+
+    // The version of binary descriptors of append-only files, which carry no
+    // blocks.
+    public static final byte FIXED_STRIDE_VERSION = 2;
+
+    // The version of binary descriptors of files with compressed blocks.
+    public static final byte CODEC_VERSION = 3;
+
+    // The version of binary descriptors of files with a content row of their
+    // own.
+    public static final byte CONTENT_ROW_VERSION = 4;
+
+    // The version of binary descriptors of files with content-addressed
+    // blocks.
+    public static final byte CONTENT_ADDRESSED_VERSION = 5;
+
+    // Per block flags in the binary format.
+    private static final int FLAG_CUSTOM_NAME = 0x01;
+    private static final int FLAG_CUSTOM_BLOCK_SIZE = 0x02;
+
+    // Per descriptor flags in the binary format.
+    private static final int FLAG_DELETED = 0x01;
+    private static final int FLAG_APPEND_ONLY = 0x02;
+    private static final int FLAG_COMPRESSED = 0x04;
+    private static final int FLAG_CONTENT_ROW = 0x08;
+    private static final int FLAG_CONTENT_ADDRESSED = 0x10;
+
+    private static final boolean writeJSON = "json".equalsIgnoreCase(System
+            .getProperty("lucene.cassandra.descriptor.format", "binary"));
+
     /**
      * Convert the given file descriptor to bytes.
      * 
@@ -29,7 +97,164 @@ public class FileDescriptorUtils {
      */
     public static byte[] toBytes(FileDescriptor fileDescriptor)
             throws IOException {
-        return toString(fileDescriptor).getBytes();
+        if (writeJSON) {
+            return toString(fileDescriptor).getBytes();
+        }
+        return toBinary(fileDescriptor);
+    }
+
+    /**
+     * Convert the given file descriptor to the binary format.
+     * 
+     * @param fileDescriptor
+     * @return
+     * @throws IOException
+     */
+    public static byte[] toBinary(FileDescriptor fileDescriptor)
+            throws IOException {
+        List<FileBlock> blocks = fileDescriptor.getBlocks();
+        ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(32 + blocks.size() * 6);
+        DataOutput out = new OutputStreamDataOutput(bytes);
+        out.writeByte(BINARY_MAGIC);
+        boolean appendOnly = fileDescriptor.isAppendOnly();
+        boolean compressed = fileDescriptor.isCompressed();
+        boolean contentRow = fileDescriptor.hasContentRow();
+        boolean contentAddressed = fileDescriptor.isContentAddressed();
+        out.writeByte(contentAddressed ? CONTENT_ADDRESSED_VERSION
+                : (contentRow ? CONTENT_ROW_VERSION
+                        : (compressed ? CODEC_VERSION
+                                : (appendOnly ? FIXED_STRIDE_VERSION
+                                        : BINARY_VERSION))));
+        out.writeString(fileDescriptor.getName());
+        out.writeVLong(fileDescriptor.getLength());
+        out.writeByte((byte) ((fileDescriptor.isDeleted() ? FLAG_DELETED : 0)
+                | (appendOnly ? FLAG_APPEND_ONLY : 0)
+                | (compressed ? FLAG_COMPRESSED : 0)
+                | (contentRow ? FLAG_CONTENT_ROW : 0)
+                | (contentAddressed ? FLAG_CONTENT_ADDRESSED : 0)));
+        if (contentRow) {
+            out.writeString(fileDescriptor.getContentRow());
+        }
+        out.writeVLong(fileDescriptor.getLastModified());
+        writeZLong(out, fileDescriptor.getLastAccessed()
+                - fileDescriptor.getLastModified());
+        long blockSize = fileDescriptor.getBlockSize();
+        out.writeVLong(blockSize);
+        if (appendOnly) {
+            return bytes.toByteArray();
+        }
+        out.writeVInt(blocks.size());
+        int previousBlockNumber = 0;
+        for (FileBlock fileBlock : blocks) {
+            int blockNumber = fileBlock.getBlockNumber();
+            boolean customName =
+                    !FileBlock.createBlockName(blockNumber).equals(
+                            fileBlock.getBlockName());
+            boolean customBlockSize = fileBlock.getBlockSize() != blockSize;
+            out.writeByte((byte) ((customName ? FLAG_CUSTOM_NAME : 0)
+                    | (customBlockSize ? FLAG_CUSTOM_BLOCK_SIZE : 0)));
+            writeZLong(out, (long) blockNumber - previousBlockNumber);
+            if (customName) {
+                out.writeString(fileBlock.getBlockName());
+            }
+            if (customBlockSize) {
+                out.writeVLong(fileBlock.getBlockSize());
+            }
+            out.writeVLong(fileBlock.getDataOffset());
+            out.writeVInt(fileBlock.getDataLength());
+            previousBlockNumber = blockNumber;
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Convert the given binary descriptor to a file descriptor.
+     * 
+     * @param descriptorBytes
+     * @param blockSize
+     * @return
+     * @throws IOException
+     */
+    public static FileDescriptor fromBinary(byte[] descriptorBytes,
+            int blockSize) throws IOException {
+        try {
+            ByteArrayDataInput in = new ByteArrayDataInput(descriptorBytes);
+            if (in.readByte() != BINARY_MAGIC) {
+                throw new IOException("not a binary file descriptor");
+            }
+            byte version = in.readByte();
+            if (version < BINARY_VERSION || version > CONTENT_ADDRESSED_VERSION) {
+                throw new IOException("unsupported file descriptor version "
+                        + version);
+            }
+            FileDescriptor fileDescriptor =
+                    new FileDescriptor(in.readString(), blockSize);
+            fileDescriptor.setLength(in.readVLong());
+            int descriptorFlags = in.readByte();
+            fileDescriptor.setDeleted((descriptorFlags & FLAG_DELETED) != 0);
+            fileDescriptor.setCompressed((descriptorFlags & FLAG_COMPRESSED) != 0);
+            fileDescriptor.setContentAddressed((descriptorFlags & FLAG_CONTENT_ADDRESSED) != 0);
+            if ((descriptorFlags & FLAG_CONTENT_ROW) != 0) {
+                fileDescriptor.setContentRow(in.readString());
+            }
+            long lastModified = in.readVLong();
+            fileDescriptor.setLastModified(lastModified);
+            fileDescriptor.setLastAccessed(lastModified + readZLong(in));
+            long descriptorBlockSize = in.readVLong();
+            if ((descriptorFlags & FLAG_APPEND_ONLY) != 0) {
+                fileDescriptor.setBlockSize(descriptorBlockSize);
+                fileDescriptor.setAppendOnly(true);
+                fileDescriptor.layOutFixedStride();
+                return fileDescriptor;
+            }
+            int count = in.readVInt();
+            List<FileBlock> blocks = new ArrayList<FileBlock>(count);
+            int blockNumber = 0;
+            for (int index = 0; index < count; index++) {
+                int flags = in.readByte();
+                blockNumber += (int) readZLong(in);
+                FileBlock fileBlock = new FileBlock();
+                if ((flags & FLAG_CUSTOM_NAME) != 0) {
+                    fileBlock.setBlockName(in.readString());
+                    fileBlock.setBlockNumber(blockNumber);
+                } else {
+                    fileBlock.setBlockName(blockNumber);
+                }
+                if ((flags & FLAG_CUSTOM_BLOCK_SIZE) != 0) {
+                    fileBlock.setBlockSize(in.readVLong());
+                } else {
+                    fileBlock.setBlockSize(descriptorBlockSize);
+                }
+                fileBlock.setDataOffset(in.readVLong());
+                fileBlock.setDataLength(in.readVInt());
+                blocks.add(fileBlock);
+            }
+            fileDescriptor.setBlocks(blocks);
+            return fileDescriptor;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("truncated file descriptor", e);
+        }
+    }
+
+    /**
+     * @return true if the given bytes hold a binary (rather than JSON)
+     *         descriptor
+     */
+    public static boolean isBinary(byte[] descriptorBytes) {
+        return descriptorBytes != null && descriptorBytes.length > 0
+                && descriptorBytes[0] == BINARY_MAGIC;
+    }
+
+    // zig-zag encode so that small negative deltas stay small.
+    private static void writeZLong(DataOutput out, long value)
+            throws IOException {
+        out.writeVLong((value << 1) ^ (value >> 63));
+    }
+
+    private static long readZLong(ByteArrayDataInput in) {
+        long value = in.readVLong();
+        return (value >>> 1) ^ -(value & 1);
     }
 
     /**
@@ -58,6 +283,18 @@ public class FileDescriptorUtils {
             jsonObject.put("name", fileDescriptor.getName());
             jsonObject.put("length", fileDescriptor.getLength());
             jsonObject.put("deleted", fileDescriptor.isDeleted());
+            if (fileDescriptor.isAppendOnly()) {
+                jsonObject.put("appendOnly", true);
+            }
+            if (fileDescriptor.isCompressed()) {
+                jsonObject.put("compressed", true);
+            }
+            if (fileDescriptor.hasContentRow()) {
+                jsonObject.put("contentRow", fileDescriptor.getContentRow());
+            }
+            if (fileDescriptor.isContentAddressed()) {
+                jsonObject.put("contentAddressed", true);
+            }
             jsonObject
                     .put("lastModified", fileDescriptor.getLastModified());
             jsonObject
@@ -90,11 +327,31 @@ public class FileDescriptorUtils {
      */
     public static FileDescriptor fromBytes(byte[] descriptorBytes, int blockSize)
             throws IOException {
+        return fromBytes(descriptorBytes, blockSize, false);
+    }
+
+    /**
+     * Convert the given bytes to a file descriptor.
+     * 
+     * @param descriptorBytes
+     * @param includeDeleted
+     *            whether to return the descriptor of a deleted file rather
+     *            than null
+     * @return
+     * @throws IOException
+     */
+    public static FileDescriptor fromBytes(byte[] descriptorBytes,
+            int blockSize, boolean includeDeleted) throws IOException {
         try {
             if (descriptorBytes == null) {
                 //logger.debug("descriptorBytes is null, returning null");
                 return null;
             }
+            if (isBinary(descriptorBytes)) {
+                FileDescriptor fileDescriptor =
+                        fromBinary(descriptorBytes, blockSize);
+                return (includeDeleted || !fileDescriptor.isDeleted() ? fileDescriptor : null);
+            }
             JSONTokener tokener =
                     new JSONTokener(new InputStreamReader(
                             new ByteArrayInputStream(descriptorBytes)));
@@ -103,7 +360,7 @@ public class FileDescriptorUtils {
             FileDescriptor fileDescriptor =
                     FileDescriptorUtils.fromJSON((JSONObject) obj, blockSize);
             //logger.debug("isDeleted flag? {}", fileDescriptor.isDeleted());
-            return (!fileDescriptor.isDeleted() ? fileDescriptor : null);
+            return (includeDeleted || !fileDescriptor.isDeleted() ? fileDescriptor : null);
         } catch (JSONException e) {
             e.printStackTrace();
             throw new IOException("Could not get descriptor for file.", e);
@@ -124,6 +381,10 @@ public class FileDescriptorUtils {
                     new FileDescriptor(jsonObject.getString("name"), blockSize);
             fileDescriptor.setLength(jsonObject.getLong("length"));
             fileDescriptor.setDeleted(jsonObject.getBoolean("deleted"));
+            fileDescriptor.setAppendOnly(jsonObject.optBoolean("appendOnly"));
+            fileDescriptor.setCompressed(jsonObject.optBoolean("compressed"));
+            fileDescriptor.setContentRow(jsonObject.optString("contentRow", null));
+            fileDescriptor.setContentAddressed(jsonObject.optBoolean("contentAddressed"));
             fileDescriptor.setLastModified(jsonObject
                     .getLong("lastModified"));
             fileDescriptor.setLastAccessed(jsonObject
@@ -176,38 +437,24 @@ public class FileDescriptorUtils {
             return null;
         }
 
-        long blocksSize = 0;
-        
-        for (FileBlock fileBlock : descriptor.getBlocks()) {
-            
-            blocksSize += fileBlock.getDataLength();
-            
-            //logger.info("total blocksSize {} currentblock {}", blocksSize, fileBlock.getBlockName());
-            
-            if (filePointer < blocksSize) {
-                long whichBlock = filePointer / descriptor.getBlockSize();
-                //logger.trace("filePointer {} blockSize {}", filePointer, descriptor.getBlockSize());
-                //logger.trace("whichBlock {}", whichBlock);
-                if (whichBlock > 0) {
-                    fileBlock.setBlockOffset(blocksSize - fileBlock.getDataLength());
-                    fileBlock.setDataPosition((int) (filePointer - fileBlock.getBlockOffset()));
-                    return fileBlock;
-                } else {
-                    // when the filePointer did not exceed the blockSize
-                    if (fileBlock.getDataOffset() == 0) {
-                        fileBlock.setDataPosition(fileBlock.getDataLength() - (Math.abs((int) (blocksSize - filePointer))));
-                        fileBlock.setBlockOffset(0);
-                        return fileBlock;
-                    } else {
-                        fileBlock.setDataPosition(fileBlock.getDataLength() - (Math.abs((int) (blocksSize - filePointer))));
-                        fileBlock.setBlockOffset(blocksSize - fileBlock.getDataLength());
-                        return fileBlock;
-                    }
-                }
-            }
+        int index = descriptor.findBlockIndex(filePointer);
+        if (index == -1) {
+            return null;
         }
-        
-        return  null;
+
+        FileBlock fileBlock = descriptor.getBlock(index);
+        long blockStart = descriptor.getBlockStart(index);
+        long whichBlock = filePointer / descriptor.getBlockSize();
+        //logger.trace("filePointer {} blockSize {}", filePointer, descriptor.getBlockSize());
+        //logger.trace("whichBlock {}", whichBlock);
+        fileBlock.setDataPosition((int) (filePointer - blockStart));
+        if (whichBlock == 0 && fileBlock.getDataOffset() == 0) {
+            // when the filePointer did not exceed the blockSize
+            fileBlock.setBlockOffset(0);
+        } else {
+            fileBlock.setBlockOffset(blockStart);
+        }
+        return fileBlock;
     }
 
 }
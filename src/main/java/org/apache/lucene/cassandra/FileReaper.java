@@ -0,0 +1,257 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.monitor.Counter;
+import org.apache.monitor.JmxMonitor;
+import org.apache.monitor.MonitorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>FileReaper</code> physically removes the files that were deleted
+ * from a directory. Deleting a file only flags its descriptor as deleted, and
+ * leaves its blocks in the row; the reaper periodically looks for such
+ * descriptors, deletes the blocks they left behind (see
+ * {@link ColumnOrientedFile#deleteFileBlocks(FileDescriptor, boolean)}),
+ * along with their content row if they have one, and finally the descriptor
+ * itself. If the directory keeps the blocks of its files by their hash, the
+ * reaper then collects the blocks that are no longer referenced (see
+ * {@link ContentAddressedBlocks#collect(long)}).
+ *
+ * <p>
+ * A file is only reaped once it has been deleted for a grace period, so that
+ * readers that still hold an old segment open can finish with it. Right
+ * before reaping a file, its descriptor is read again, and the file is
+ * skipped if it was re-created in the meantime. Files whose blocks a snapshot
+ * pins (see {@link DirectorySnapshots}) are left alone until it no longer
+ * does. The reaper paces itself to a maximum number of reclaimed bytes per
+ * second, so as not to flood the cluster with deletions, and publishes the
+ * number of files and bytes it reclaimed through the {@link JmxMonitor}.
+ * </p>
+ *
+ * <p>
+ * There is one reaper per directory (i.e. per keyspace and column family),
+ * started by {@link #start}. It is configured through the system properties
+ * <code>lucene.cassandra.reaper</code> (whether to run it at all),
+ * <code>lucene.cassandra.reaper.graceMillis</code>,
+ * <code>lucene.cassandra.reaper.intervalMillis</code> and
+ * <code>lucene.cassandra.reaper.bytesPerSecond</code> (0 for no limit).
+ * </p>
+ */
+public class FileReaper implements Runnable, MonitorType {
+
+    private static Logger logger = LoggerFactory.getLogger(FileReaper.class);
+
+    // Whether deleted files are reaped in the background.
+    public static final boolean DEFAULT_ENABLED = Boolean
+            .parseBoolean(System.getProperty("lucene.cassandra.reaper", "true"));
+
+    // How long a file stays deleted before its blocks are removed.
+    public static final long DEFAULT_GRACE_MILLIS = Long.getLong(
+            "lucene.cassandra.reaper.graceMillis", 10 * 60 * 1000L);
+
+    // How long the reaper waits between two passes over the directory.
+    public static final long DEFAULT_INTERVAL_MILLIS = Long.getLong(
+            "lucene.cassandra.reaper.intervalMillis", 5 * 60 * 1000L);
+
+    // The maximum number of bytes reclaimed per second.
+    public static final long DEFAULT_BYTES_PER_SECOND = Long.getLong(
+            "lucene.cassandra.reaper.bytesPerSecond", 4L * 1024 * 1024);
+
+    // The running reapers, keyed by keyspace and column family.
+    private static final ConcurrentMap<String, FileReaper> reapers =
+            new ConcurrentHashMap<String, FileReaper>();
+
+    private static ScheduledExecutorService executor = null;
+
+    private final String name;
+
+    private final ColumnOrientedDirectory columnOrientedDirectory;
+
+    private final ColumnOrientedFile columnOrientedFile;
+
+    private final ContentAddressedBlocks contentAddressedBlocks;
+
+    private final long graceMillis;
+
+    private final long bytesPerSecond;
+
+    private final Map<Counter, AtomicLong> counters =
+            new EnumMap<Counter, AtomicLong>(Counter.class);
+
+    /**
+     * Construct a reaper for the directory kept in the given store.
+     *
+     * @param blockStore
+     *            the store of the directory
+     * @param blockSize
+     *            the size of the file block
+     * @param graceMillis
+     *            how long a file stays deleted before it is reaped
+     * @param bytesPerSecond
+     *            the maximum number of bytes reclaimed per second, or 0 for
+     *            no limit
+     */
+    public FileReaper(BlockStore blockStore, int blockSize,
+            long graceMillis, long bytesPerSecond) {
+        this.name =
+                blockStore.getKeyspace() + "_"
+                        + blockStore.getColumnFamily();
+        this.columnOrientedDirectory =
+                new ColumnOrientedDirectory(blockStore, blockSize);
+        this.columnOrientedFile = new ColumnOrientedFile(blockStore);
+        this.contentAddressedBlocks =
+                ContentAddressedBlocks.getInstance(blockStore);
+        this.graceMillis = graceMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        counters.put(Counter.REAPED_FILES, new AtomicLong());
+        counters.put(Counter.REAPED_BYTES, new AtomicLong());
+    }
+
+    /**
+     * Start reaping the given directory in the background, unless it is being
+     * reaped already.
+     *
+     * @return the reaper of the directory, or null if reaping is turned off
+     * @throws IOException
+     *             if the directory cannot be reached
+     */
+    public static FileReaper start(String keyspace, String columnFamily,
+            int blockSize) throws IOException {
+        if (!DEFAULT_ENABLED) {
+            return null;
+        }
+        String key = keyspace + "/" + columnFamily;
+        FileReaper reaper = reapers.get(key);
+        if (reaper == null) {
+            BlockStore store =
+                    BlockStores.getStore(true, keyspace, columnFamily,
+                            blockSize);
+            FileReaper newReaper =
+                    new FileReaper(store, blockSize, DEFAULT_GRACE_MILLIS,
+                            DEFAULT_BYTES_PER_SECOND);
+            reaper = reapers.putIfAbsent(key, newReaper);
+            if (reaper == null) {
+                reaper = newReaper;
+                JmxMonitor.getInstance().getCassandraMonitor(reaper);
+                getExecutor().scheduleWithFixedDelay(reaper,
+                        DEFAULT_INTERVAL_MILLIS, DEFAULT_INTERVAL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        return reaper;
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor =
+                    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread =
+                                    new Thread(r, "cassandra-file-reaper");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    @Override
+    public void run() {
+        try {
+            reap();
+        } catch (IOException e) {
+            logger.warn("unable to reap deleted files of " + name, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.warn("unable to reap deleted files of " + name, e);
+        }
+    }
+
+    /**
+     * Remove the blocks and descriptors of the files that have been deleted
+     * for longer than the grace period.
+     *
+     * @return the number of bytes reclaimed
+     * @throws IOException
+     * @throws InterruptedException
+     *             if interrupted while pacing the deletions
+     */
+    public synchronized long reap() throws IOException, InterruptedException {
+        List<FileDescriptor> deleted =
+                columnOrientedDirectory.getDeletedFileDescriptors();
+        logger.debug("found {} deleted files in {}", deleted.size(), name);
+        long reclaimed = 0;
+        for (FileDescriptor fileDescriptor : deleted) {
+            if (System.currentTimeMillis() - fileDescriptor.getLastModified() < graceMillis) {
+                continue;
+            }
+            // the file may have been re-created since it was listed.
+            FileDescriptor current =
+                    columnOrientedDirectory
+                            .getFileDescriptorIncludingDeleted(fileDescriptor
+                                    .getName());
+            if (current == null || !current.isDeleted()
+                    || current.getLastModified() != fileDescriptor.getLastModified()) {
+                continue;
+            }
+            // the file is reaped once no snapshot refers to its blocks.
+            if (columnOrientedFile.isPinned(current.getContentRow())) {
+                continue;
+            }
+            long bytes = columnOrientedFile.deleteFileBlocks(current, false);
+            // files never drop their content row themselves.
+            columnOrientedFile.deleteContentRow(current);
+            columnOrientedDirectory.removeFileDescriptor(current.getName());
+            logger.debug("reaped {} bytes of {}", bytes, current.getName());
+            counters.get(Counter.REAPED_FILES).incrementAndGet();
+            counters.get(Counter.REAPED_BYTES).addAndGet(bytes);
+            reclaimed += bytes;
+            if (bytesPerSecond > 0 && bytes > 0) {
+                Thread.sleep(bytes * 1000 / bytesPerSecond);
+            }
+        }
+        if (contentAddressedBlocks.isEnabled()) {
+            long bytes = contentAddressedBlocks.collect(graceMillis);
+            logger.debug("collected {} bytes of blocks of {}", bytes, name);
+            counters.get(Counter.REAPED_BYTES).addAndGet(bytes);
+            reclaimed += bytes;
+            if (bytesPerSecond > 0 && bytes > 0) {
+                Thread.sleep(bytes * 1000 / bytesPerSecond);
+            }
+        }
+        return reclaimed;
+    }
+
+    public long getReapedFiles() {
+        return counters.get(Counter.REAPED_FILES).get();
+    }
+
+    public long getReapedBytes() {
+        return counters.get(Counter.REAPED_BYTES).get();
+    }
+
+    @Override
+    public String getMonitorName() {
+        return "FileReaper_" + name;
+    }
+
+    @Override
+    public Map<Counter, AtomicLong> getCounters() {
+        return counters;
+    }
+
+}
@@ -6,14 +6,48 @@ import org.apache.lucene.util.ThreadInterruptedException;
 
 public class IOUtils {
 
+    /**
+     * Close the given file, then throw priorE if it is not null, or else the
+     * exception the close threw, as
+     * {@link org.apache.lucene.util.IOUtils#closeWhileHandlingException(Exception, java.io.Closeable...)}
+     * does.
+     */
     public static void closeWhileHandlingException(IOException priorE,
             RandomAccessFile file) throws IOException {
-//        org.apache.lucene.util.IOUtils.closeWhileHandlingException(priorE, file.getFile());
-        
+        IOException closeE = null;
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            closeE = e;
+        }
+        rethrow(priorE, closeE);
     }
     
     public static void closeWhileHandlingException(IOException priorE, CassandraRandomAccessFile file) throws IOException {
-        
+        IOException closeE = null;
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            closeE = e;
+        }
+        rethrow(priorE, closeE);
+    }
+
+    private static void rethrow(IOException priorE, IOException closeE)
+            throws IOException {
+        if (priorE != null) {
+            if (closeE != null) {
+                priorE.addSuppressed(closeE);
+            }
+            throw priorE;
+        }
+        if (closeE != null) {
+            throw closeE;
+        }
     }
 
     /**
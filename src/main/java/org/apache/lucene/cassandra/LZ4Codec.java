@@ -0,0 +1,187 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compresses blocks in the LZ4 block format, which trades some compression
+ * for speed: a block is a run of sequences, each made of literals copied as
+ * they are and of a match that repeats bytes found up to 64KB before it.
+ *
+ * <p>
+ * This is a plain java implementation of the format, so that it does not
+ * need a native library; it finds matches through a single hash table of the
+ * last position of every 4 byte sequence, like the fast mode of the
+ * reference implementation.
+ * </p>
+ */
+class LZ4Codec extends BlockCodec {
+
+    // The number of bytes a match is at least made of.
+    private static final int MIN_MATCH = 4;
+
+    // The last bytes of a block are always literals.
+    private static final int LAST_LITERALS = 5;
+
+    // The last match has to start this many bytes before the end.
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_DISTANCE = 65535;
+
+    private static final int HASH_LOG = 12;
+
+    public byte getId() {
+        return 3;
+    }
+
+    public String getName() {
+        return "lz4";
+    }
+
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst,
+            int dstOff) {
+        int end = srcOff + srcLen;
+        int anchor = srcOff;
+        int op = dstOff;
+        if (srcLen > MF_LIMIT) {
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            int matchLimit = end - LAST_LITERALS;
+            int mfLimit = end - MF_LIMIT;
+            int ip = srcOff;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = table[hash];
+                table[hash] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE
+                        || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                // the match may start before the sequence that was hashed.
+                while (ip > anchor && ref > srcOff
+                        && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit
+                        && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref,
+                        matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        // the last sequence is made of literals only.
+        int literals = end - anchor;
+        int token = op++;
+        op = writeLength(literals, dst, token, 4, op);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    private static int writeSequence(byte[] src, int anchor, int literals,
+            int distance, int matchLength, byte[] dst, int op) {
+        int token = op++;
+        op = writeLength(literals, dst, token, 4, op);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) distance;
+        dst[op++] = (byte) (distance >>> 8);
+        return writeLength(matchLength - MIN_MATCH, dst, token, 0, op);
+    }
+
+    // put the length in the given half of the token, and what does not fit
+    // there in the bytes that follow.
+    private static int writeLength(int length, byte[] dst, int token,
+            int shift, int op) {
+        if (shift == 4) {
+            dst[token] = 0;
+        }
+        if (length < 15) {
+            dst[token] |= length << shift;
+            return op;
+        }
+        dst[token] |= 15 << shift;
+        length -= 15;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16
+                | (b[i + 3] & 0xFF) << 24;
+    }
+
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst,
+            int dstOff, int dstLen) throws IOException {
+        int ip = srcOff;
+        int end = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (op + literals > dstEnd || ip + literals > end) {
+                    throw new IOException("corrupt lz4 block");
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == end) {
+                    break;
+                }
+                int distance = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - distance;
+                if (distance == 0 || ref < dstOff || op + matchLength > dstEnd) {
+                    throw new IOException("corrupt lz4 block");
+                }
+                if (distance >= matchLength) {
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                } else {
+                    // the match overlaps the bytes it produces.
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[op + i] = dst[ref + i];
+                    }
+                }
+                op += matchLength;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("corrupt lz4 block", e);
+        }
+        if (op != dstEnd) {
+            throw new IOException("expected " + dstLen + " bytes, got "
+                    + (op - dstOff));
+        }
+    }
+
+}
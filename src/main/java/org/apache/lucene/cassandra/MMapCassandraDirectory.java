@@ -0,0 +1,169 @@
+package org.apache.lucene.cassandra;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.LockFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/** A {@link CassandraDirectory} that reads the way MMapDirectory
+ *  does: every input reads a {@link MappedBlocks} of its file,
+ *  whose blocks are faulted into the {@link PagePool} of the
+ *  directory once and then read in place, with no round trip
+ *  and no copy into a buffer of the input's own. Clones and
+ *  slices share the pages, and read concurrently.
+ *
+ *  <p>Only append-only files can be mapped; the files written
+ *  in the legacy block layout are read as by
+ *  {@link SimpleCassandraDirectory}. */
+public class MMapCassandraDirectory extends CassandraDirectory {
+
+    private static Logger logger = LoggerFactory.getLogger(MMapCassandraDirectory.class);
+
+    public MMapCassandraDirectory(CassandraFile path, IOContext mode, LockFactory lockFactory, String keyspace, String columnFamily, int blockSize, int bufferSize) throws IOException {
+        super(path, mode, lockFactory, keyspace, columnFamily, blockSize, bufferSize);
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context)
+            throws IOException {
+        ensureOpen();
+        logger.trace("openInput name {} context {}", name, context);
+        prewarmCommit(name);
+        final CassandraFile path = new CassandraFile(Util.getCassandraPath(directory), name, context, true, keyspace, columnFamily, blockSize);
+        if (path.getFD() == null || !path.getFD().isAppendOnly()) {
+            return new SimpleCassandraDirectory.CassandraSimpleFSIndexInput("CassandraSimpleFSIndexInput(path=\"" + path.getPath() + "\")", path, context);
+        }
+        return new CassandraMMapIndexInput("CassandraMMapIndexInput(path=\"" + path.getPath() + "\")", path.map(0, path.length()));
+    }
+
+    @Override
+    public IndexInputSlicer createSlicer(final String name,
+            final IOContext context) throws IOException {
+        ensureOpen();
+        logger.trace("createSlicer name {}", name);
+        final CassandraFile file = new CassandraFile(Util.getCassandraPath(getDirectory()), name, context, true, keyspace, columnFamily, blockSize);
+        if (file.getFD() == null || !file.getFD().isAppendOnly()) {
+            final CassandraRandomAccessFile descriptor = new CassandraRandomAccessFile(file, context, true, keyspace, columnFamily, blockSize);
+            return new IndexInputSlicer() {
+
+                @Override
+                public void close() throws IOException {
+                    descriptor.close();
+                }
+
+                @Override
+                public IndexInput openSlice(String sliceDescription, long offset, long length) {
+                    return new SimpleCassandraDirectory.CassandraSimpleFSIndexInput("CassandraSimpleFSIndexInput(" + sliceDescription + " in path=\"" + file.getPath() + "\" slice=" + offset + ":" + (offset+length) + ")", descriptor, offset,
+                            length, BufferedIndexInput.bufferSize(context));
+                }
+
+                @Override
+                @Deprecated
+                public IndexInput openFullSlice() throws IOException {
+                    return openSlice("full-slice", 0, descriptor.length());
+                }
+            };
+        }
+        final MappedBlocks blocks = file.map(0, file.length());
+        return new IndexInputSlicer() {
+
+            @Override
+            public void close() throws IOException {
+                file.close();
+            }
+
+            @Override
+            public IndexInput openSlice(String sliceDescription, long offset, long length) throws IOException {
+                return new CassandraMMapIndexInput("CassandraMMapIndexInput(" + sliceDescription + " in path=\"" + file.getPath() + "\" slice=" + offset + ":" + (offset+length) + ")", blocks.slice(offset, length));
+            }
+
+            @Override
+            @Deprecated
+            public IndexInput openFullSlice() throws IOException {
+                return openSlice("full-slice", 0, blocks.length());
+            }
+        };
+    }
+
+    /**
+     * Reads bytes straight from the pages of a {@link MappedBlocks}.
+     */
+    protected static class CassandraMMapIndexInput extends IndexInput {
+
+        /** the mapping this input reads, which is its own */
+        private MappedBlocks blocks;
+
+        private long pos = 0;
+
+        public CassandraMMapIndexInput(String resourceDesc, MappedBlocks blocks) {
+            super(resourceDesc);
+            this.blocks = blocks;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            return blocks.get(pos++);
+        }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) throws IOException {
+            blocks.get(pos, b, offset, len);
+            pos += len;
+        }
+
+        @Override
+        public long getFilePointer() {
+            return pos;
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            if (pos < 0 || pos > blocks.length()) {
+                throw new EOFException("seek past EOF: " + pos + " " + this);
+            }
+            this.pos = pos;
+        }
+
+        @Override
+        public long length() {
+            return blocks.length();
+        }
+
+        @Override
+        public CassandraMMapIndexInput clone() {
+            CassandraMMapIndexInput clone = (CassandraMMapIndexInput) super.clone();
+            clone.blocks = blocks.duplicate();
+            return clone;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the pages belong to the pool, there is nothing to release.
+        }
+    }
+
+}
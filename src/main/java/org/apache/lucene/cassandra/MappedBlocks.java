@@ -0,0 +1,183 @@
+package org.apache.lucene.cassandra;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a range of an append-only file, whose pages (i.e.
+ * blocks) are faulted in from Cassandra the first time they are touched and
+ * then served from the {@link PagePool} of the directory, like the pages of a
+ * memory mapped file. Once its pages are warm, reading a mapping costs no
+ * round trip at all.
+ *
+ * <p>
+ * A mapping holds on to the page it last read, so sequential reads look up
+ * the pool once per page rather than once per read. Mappings are not
+ * thread-safe; every thread reads through a {@link #duplicate()} of its own,
+ * all of which share the pages of the pool.
+ * </p>
+ */
+public class MappedBlocks {
+
+    private final ColumnOrientedFile columnOrientedFile;
+
+    private final FileDescriptor fd;
+
+    // The pool of the directory, or null if pooling is turned off.
+    private final PagePool pool;
+
+    // The position in the file at which this mapping starts.
+    private final long start;
+
+    private final long length;
+
+    private final long pageSize;
+
+    private int currentPageNumber = -1;
+
+    private ByteBuffer currentPage = null;
+
+    /**
+     * Map the given range of the file with the given descriptor.
+     *
+     * @throws IOException
+     *             if the file is not append-only, or the range is not within
+     *             the file
+     */
+    public MappedBlocks(ColumnOrientedFile columnOrientedFile,
+            FileDescriptor fd, PagePool pool, long start, long length)
+            throws IOException {
+        if (!fd.isAppendOnly()) {
+            throw new IOException("cannot map " + fd.getName()
+                    + ", its blocks are not laid out at a fixed stride");
+        }
+        if (start < 0 || length < 0 || start + length > fd.getLength()) {
+            throw new IOException("cannot map " + start + ":"
+                    + (start + length) + " of " + fd.getName() + " of length "
+                    + fd.getLength());
+        }
+        this.columnOrientedFile = columnOrientedFile;
+        this.fd = fd;
+        this.pool = pool;
+        this.start = start;
+        this.length = length;
+        this.pageSize = fd.getBlockSize();
+    }
+
+    /**
+     * @return the number of bytes mapped
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return the byte at the given index of this mapping
+     * @throws EOFException
+     *             if the index is not within this mapping
+     */
+    public byte get(long index) throws IOException {
+        if (index < 0 || index >= length) {
+            throw new EOFException("read past EOF: " + index + " of "
+                    + fd.getName() + " mapping of length " + length);
+        }
+        long pos = start + index;
+        ByteBuffer page = page((int) (pos / pageSize));
+        return page.get((int) (pos % pageSize));
+    }
+
+    /**
+     * Copy len bytes from the given index of this mapping into an array.
+     *
+     * @throws EOFException
+     *             if the bytes are not all within this mapping
+     */
+    public void get(long index, byte[] b, int off, int len) throws IOException {
+        get(index, ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Copy the bytes from the given index of this mapping into the remaining
+     * bytes of the given buffer, whose position is moved past them.
+     *
+     * @throws EOFException
+     *             if the bytes are not all within this mapping
+     */
+    public void get(long index, ByteBuffer dst) throws IOException {
+        int len = dst.remaining();
+        if (index < 0 || index + len > length) {
+            throw new EOFException("read past EOF: " + index + ":"
+                    + (index + len) + " of " + fd.getName()
+                    + " mapping of length " + length);
+        }
+        long pos = start + index;
+        while (dst.hasRemaining()) {
+            ByteBuffer src = page((int) (pos / pageSize)).duplicate();
+            src.position((int) (pos % pageSize));
+            if (src.remaining() > dst.remaining()) {
+                src.limit(src.position() + dst.remaining());
+            }
+            pos += src.remaining();
+            dst.put(src);
+        }
+    }
+
+    /**
+     * @return a mapping of the given range of this mapping, which shares its
+     *         pages
+     * @throws IOException
+     *             if the range is not within this mapping
+     */
+    public MappedBlocks slice(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IOException("cannot slice " + offset + ":"
+                    + (offset + length) + " of " + fd.getName()
+                    + " mapping of length " + this.length);
+        }
+        return new MappedBlocks(columnOrientedFile, fd, pool, start + offset,
+                length);
+    }
+
+    /**
+     * @return a mapping of the same range, for another thread to read
+     */
+    public MappedBlocks duplicate() {
+        try {
+            return slice(0, length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the given page, from the pool if it holds it, or else from
+     * Cassandra, in which case it joins the pool.
+     */
+    private ByteBuffer page(int pageNumber) throws IOException {
+        if (pageNumber == currentPageNumber) {
+            return currentPage;
+        }
+        String contentRow = fd.getContentRow();
+        long version = fd.getLastModified();
+        ByteBuffer page = pool == null ? null : pool.get(contentRow,
+                pageNumber, version);
+        if (page == null) {
+            ByteBuffer block =
+                    columnOrientedFile.readFileBlocks(fd, pageNumber,
+                            pageNumber)[0];
+            long expected = Math.min(pageSize, fd.getLength()
+                    - pageNumber * pageSize);
+            if (block == null || block.remaining() < expected) {
+                throw new IOException("block " + pageNumber + " of "
+                        + fd.getName() + " is missing or short");
+            }
+            page = pool == null ? block : pool.put(contentRow, pageNumber,
+                    version, block);
+        }
+        currentPage = page.slice();
+        currentPageNumber = pageNumber;
+        return currentPage;
+    }
+
+}
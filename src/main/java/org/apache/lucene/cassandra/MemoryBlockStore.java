@@ -0,0 +1,459 @@
+package org.apache.lucene.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.monitor.MetricGroup;
+import org.apache.monitor.MetricsRegistry;
+
+/**
+ * A {@link BlockStore} that keeps its rows in the memory of this JVM, so that
+ * the directory can be tested, benchmarked and soak-tested without a
+ * Cassandra cluster.
+ *
+ * <p>
+ * Rows and columns live in concurrent skip lists, in the order Cassandra would
+ * keep them with the ByteOrderedPartitioner, so reads never block and writers
+ * only contend on the row they write. Values are copied on the way in and on
+ * the way out, as if they had crossed the network. The mutations of a batch
+ * are applied row by row, and each row atomically.
+ * </p>
+ *
+ * <p>
+ * Every request may be delayed by a fixed latency, to model the round trip to
+ * a cluster. It is set through the system property
+ * <code>lucene.cassandra.store.memory.latencyMicros</code> for the stores
+ * handed out by {@link #getInstance}. The requests are recorded in the
+ * metrics of the directory under the same names as those of the
+ * {@link CassandraClient}.
+ * </p>
+ */
+public class MemoryBlockStore implements BlockStore {
+
+    // The latency added to every request of the shared stores.
+    public static final long DEFAULT_LATENCY_MICROS = Long.getLong(
+            "lucene.cassandra.store.memory.latencyMicros", 0L);
+
+    // The shared stores, keyed by keyspace and column family.
+    private static final ConcurrentMap<String, MemoryBlockStore> stores =
+            new ConcurrentHashMap<String, MemoryBlockStore>();
+
+    // Row keys and column names compare as unsigned bytes.
+    private static final Comparator<ByteBuffer> UNSIGNED =
+            new Comparator<ByteBuffer>() {
+                @Override
+                public int compare(ByteBuffer o1, ByteBuffer o2) {
+                    return ByteBufferUtil.compareUnsigned(o1, o2);
+                }
+            };
+
+    // The threads that run the asynchronous requests of every store.
+    private static ExecutorService executor = null;
+
+    private final String keyspace;
+
+    private final String columnFamily;
+
+    private final int blockSize;
+
+    private final long latencyNanos;
+
+    private final MetricGroup metrics;
+
+    private final ConcurrentNavigableMap<ByteBuffer, ConcurrentNavigableMap<ByteBuffer, byte[]>> rows =
+            new ConcurrentSkipListMap<ByteBuffer, ConcurrentNavigableMap<ByteBuffer, byte[]>>(
+                    UNSIGNED);
+
+    /**
+     * @param latencyMicros
+     *            the time every request takes, in microseconds
+     */
+    public MemoryBlockStore(String keyspace, String columnFamily,
+            int blockSize, long latencyMicros) {
+        this.keyspace = keyspace;
+        this.columnFamily = columnFamily;
+        this.blockSize = blockSize;
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.metrics = MetricsRegistry.getGroup(keyspace + "/" + columnFamily,
+                MetricsRegistry.ANY_CONTEXT);
+    }
+
+    /**
+     * Return the store shared by every directory of the given keyspace and
+     * column family in this JVM, creating it on first use.
+     */
+    public static MemoryBlockStore getInstance(String keyspace,
+            String columnFamily, int blockSize) {
+        String key = keyspace + "/" + columnFamily;
+        MemoryBlockStore store = stores.get(key);
+        if (store == null) {
+            MemoryBlockStore newStore =
+                    new MemoryBlockStore(keyspace, columnFamily, blockSize,
+                            DEFAULT_LATENCY_MICROS);
+            store = stores.putIfAbsent(key, newStore);
+            if (store == null) {
+                store = newStore;
+            }
+        }
+        return store;
+    }
+
+    @Override
+    public String getKeyspace() {
+        return keyspace;
+    }
+
+    @Override
+    public String getColumnFamily() {
+        return columnFamily;
+    }
+
+    @Override
+    public MetricGroup getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of rows in this store
+     */
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    /**
+     * Remove every row of this store.
+     */
+    public void clear() {
+        rows.clear();
+    }
+
+    // wait out the latency of a request that started at the given time.
+    private void delay(long start) {
+        long remaining;
+        while ((remaining = start + latencyNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void record(String name, long start) {
+        metrics.recordSince("client." + name, start);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor =
+                    Executors.newCachedThreadPool(new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread =
+                                    new Thread(r, "memory-block-store-"
+                                            + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    private static byte[] copy(byte[] value) {
+        return value == null ? null : value.clone();
+    }
+
+    private static ByteBuffer key(byte[] key) {
+        return ByteBuffer.wrap(key);
+    }
+
+    @Override
+    public byte[][] getKeys(List<byte[]> columnNames, int count, boolean getAll)
+            throws IOException {
+        long start = System.nanoTime();
+        delay(start);
+        List<byte[]> keys = new ArrayList<byte[]>();
+        int seen = 0;
+        for (Map.Entry<ByteBuffer, ConcurrentNavigableMap<ByteBuffer, byte[]>> row : rows
+                .entrySet()) {
+            if (seen++ >= count) {
+                break;
+            }
+            List<byte[]> values = new ArrayList<byte[]>();
+            for (byte[] columnName : columnNames) {
+                byte[] value = row.getValue().get(key(columnName));
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+            if (values.size() != 1) {
+                continue;
+            }
+            FileDescriptor fileDescriptor =
+                    FileDescriptorUtils.fromBytes(values.get(0), blockSize);
+            if ((fileDescriptor == null || fileDescriptor.isDeleted())
+                    && !getAll) {
+                continue;
+            }
+            keys.add(ByteBufferUtil.getArray(row.getKey()));
+        }
+        record("getKeys", start);
+        return keys.toArray(new byte[][] {});
+    }
+
+    @Override
+    public LinkedHashMap<String, byte[]> getColumnOfRows(byte[] columnName,
+            byte[] startKey, int count) {
+        long start = System.nanoTime();
+        delay(start);
+        LinkedHashMap<String, byte[]> values =
+                new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<ByteBuffer, ConcurrentNavigableMap<ByteBuffer, byte[]>> row : rows
+                .tailMap(key(startKey), true).entrySet()) {
+            if (values.size() >= count) {
+                break;
+            }
+            values.put(new String(ByteBufferUtil.getArray(row.getKey())),
+                    copy(row.getValue().get(key(columnName))));
+        }
+        record("getColumnOfRows", start);
+        return values;
+    }
+
+    @Override
+    public Map<byte[], byte[]> getColumns(byte[] key) {
+        long start = System.nanoTime();
+        delay(start);
+        Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
+        ConcurrentNavigableMap<ByteBuffer, byte[]> row = rows.get(key(key));
+        if (row != null) {
+            for (Map.Entry<ByteBuffer, byte[]> column : row.entrySet()) {
+                columns.put(ByteBufferUtil.getArray(column.getKey()),
+                        copy(column.getValue()));
+            }
+        }
+        record("getColumns", start);
+        return columns;
+    }
+
+    @Override
+    public Future<Map<byte[], byte[]>> getColumnsAsync(final byte[] key) {
+        return getExecutor().submit(new Callable<Map<byte[], byte[]>>() {
+            @Override
+            public Map<byte[], byte[]> call() {
+                return getColumns(key);
+            }
+        });
+    }
+
+    @Override
+    public Map<byte[], byte[]> getColumns(byte[] key, Set<byte[]> columnNames) {
+        long start = System.nanoTime();
+        delay(start);
+        Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
+        ConcurrentNavigableMap<ByteBuffer, byte[]> row = rows.get(key(key));
+        if (row != null) {
+            for (byte[] columnName : columnNames) {
+                byte[] value = row.get(key(columnName));
+                if (value != null) {
+                    columns.put(columnName, copy(value));
+                }
+            }
+        }
+        record("getColumns", start);
+        return columns;
+    }
+
+    @Override
+    public Future<Map<byte[], byte[]>> getColumnsAsync(final byte[] key,
+            final Set<byte[]> columnNames) {
+        return getExecutor().submit(new Callable<Map<byte[], byte[]>>() {
+            @Override
+            public Map<byte[], byte[]> call() {
+                return getColumns(key, columnNames);
+            }
+        });
+    }
+
+    @Override
+    public ByteBuffer[] getColumnValues(byte[] key, List<ByteBuffer> names) {
+        long start = System.nanoTime();
+        delay(start);
+        ByteBuffer[] values = new ByteBuffer[names.size()];
+        ConcurrentNavigableMap<ByteBuffer, byte[]> row = rows.get(key(key));
+        if (row != null) {
+            for (int i = 0; i < values.length; i++) {
+                byte[] value = row.get(names.get(i));
+                if (value != null) {
+                    values[i] = ByteBuffer.wrap(copy(value));
+                }
+            }
+        }
+        record("getColumnValues", start);
+        return values;
+    }
+
+    @Override
+    public BlockMap getColumns(byte[] key, byte[] startName, int count) {
+        long start = System.nanoTime();
+        delay(start);
+        BlockMap columns = new BlockMap();
+        ConcurrentNavigableMap<ByteBuffer, byte[]> row = rows.get(key(key));
+        if (row != null) {
+            for (Map.Entry<ByteBuffer, byte[]> column : row.tailMap(
+                    key(startName), true).entrySet()) {
+                if (columns.size() >= count) {
+                    break;
+                }
+                columns.put(ByteBufferUtil.getArray(column.getKey()),
+                        copy(column.getValue()));
+            }
+        }
+        record("getColumns", start);
+        return columns;
+    }
+
+    @Override
+    public byte[] getColumn(byte[] key, byte[] columnName) {
+        long start = System.nanoTime();
+        delay(start);
+        ConcurrentNavigableMap<ByteBuffer, byte[]> row = rows.get(key(key));
+        byte[] value = row == null ? null : copy(row.get(key(columnName)));
+        record("getColumn", start);
+        return value;
+    }
+
+    @Override
+    public Future<byte[]> getColumnAsync(final byte[] key,
+            final byte[] columnName) {
+        return getExecutor().submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return getColumn(key, columnName);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, byte[]> getColumnOfKeys(Collection<byte[]> keys,
+            byte[] columnName) {
+        long start = System.nanoTime();
+        delay(start);
+        Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+        for (byte[] key : keys) {
+            ConcurrentNavigableMap<ByteBuffer, byte[]> row = rows.get(key(key));
+            values.put(new String(key),
+                    row == null ? null : copy(row.get(key(columnName))));
+        }
+        record("getColumnOfKeys", start);
+        return values;
+    }
+
+    @Override
+    public void setColumns(ByteBuffer key, Map<byte[], byte[]> columnValues) {
+        long start = System.nanoTime();
+        delay(start);
+        mutate(key, columnValues);
+        record("setColumns", start);
+    }
+
+    @Override
+    public void setColumns(Map<ByteBuffer, Map<byte[], byte[]>> rows) {
+        long start = System.nanoTime();
+        delay(start);
+        for (Map.Entry<ByteBuffer, Map<byte[], byte[]>> row : rows.entrySet()) {
+            mutate(row.getKey(), row.getValue());
+        }
+        record("setColumns", start);
+    }
+
+    @Override
+    public Future<Void> setColumnsAsync(final ByteBuffer key,
+            final Map<byte[], byte[]> columnValues) {
+        return getExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                setColumns(key, columnValues);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Future<Void> setColumnsAsync(
+            final Map<ByteBuffer, Map<byte[], byte[]>> rows) {
+        return getExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                setColumns(rows);
+                return null;
+            }
+        });
+    }
+
+    // apply the mutations of one row; the row is locked so that a row being
+    // emptied and removed does not swallow a concurrent write to it.
+    private void mutate(ByteBuffer key, Map<byte[], byte[]> columnValues) {
+        ByteBuffer rowKey = ByteBuffer.wrap(ByteBufferUtil.getArray(key));
+        if (columnValues == null || columnValues.isEmpty()) {
+            rows.remove(rowKey);
+            return;
+        }
+        while (true) {
+            ConcurrentNavigableMap<ByteBuffer, byte[]> row = rows.get(rowKey);
+            if (row == null) {
+                ConcurrentNavigableMap<ByteBuffer, byte[]> newRow =
+                        new ConcurrentSkipListMap<ByteBuffer, byte[]>(UNSIGNED);
+                row = rows.putIfAbsent(rowKey, newRow);
+                if (row == null) {
+                    row = newRow;
+                }
+            }
+            synchronized (row) {
+                if (rows.get(rowKey) != row) {
+                    // removed in the meantime, start over with a new row.
+                    continue;
+                }
+                for (Map.Entry<byte[], byte[]> column : columnValues.entrySet()) {
+                    ByteBuffer name = ByteBuffer.wrap(column.getKey().clone());
+                    if (column.getValue() == null) {
+                        row.remove(name);
+                    } else {
+                        row.put(name, column.getValue().clone());
+                    }
+                }
+                if (row.isEmpty()) {
+                    rows.remove(rowKey, row);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * The shared stores live as long as the JVM, so this is a no-op.
+     */
+    @Override
+    public void close() {
+    }
+
+}
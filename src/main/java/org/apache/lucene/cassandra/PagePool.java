@@ -0,0 +1,255 @@
+package org.apache.lucene.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.monitor.MetricGroup;
+import org.apache.monitor.MetricsRegistry;
+
+/**
+ * The <code>PagePool</code> holds the pages of the {@link MappedBlocks} of a
+ * directory: the blocks of its append-only files, copied into direct buffers
+ * outside of the java heap, the way the operating system holds the pages of a
+ * memory mapped file.
+ *
+ * <p>
+ * There is one pool per directory (i.e. per keyspace and column family),
+ * shared by every mapping of every file in it. Page <i>i</i> of a file is its
+ * block <i>i</i>, tagged with the version (i.e. the last modified timestamp)
+ * of the descriptor it was read under. The pool is bounded by the total
+ * number of bytes it holds, and evicts the least recently used pages first;
+ * an evicted page is released once the mappings reading it move on.
+ * </p>
+ *
+ * <p>
+ * The pool is sized through the system property
+ * <code>lucene.cassandra.pagePool.size</code> (in bytes, 0 turns it off, in
+ * which case every mapping faults its pages in on its own). Hits, faults,
+ * evictions and the number of pooled bytes are recorded in the metrics of the
+ * directory, as <code>pagePool.*</code>.
+ * </p>
+ */
+public class PagePool {
+
+    // The maximum number of bytes a pool may hold.
+    public static final long DEFAULT_POOL_SIZE = Long.getLong(
+            "lucene.cassandra.pagePool.size", 64L * 1024 * 1024);
+
+    // The shared pools, keyed by keyspace and column family.
+    private static final ConcurrentMap<String, PagePool> pools =
+            new ConcurrentHashMap<String, PagePool>();
+
+    private final long capacity;
+
+    private final MetricGroup metrics;
+
+    // The pooled pages, least recently used first.
+    private final LinkedHashMap<Key, Page> pages =
+            new LinkedHashMap<Key, Page>(256, 0.75f, true);
+
+    // The keys of the pooled pages of every file, used to drop a whole file.
+    private final Map<String, Set<Key>> keysByFile =
+            new HashMap<String, Set<Key>>();
+
+    private long size = 0;
+
+    /**
+     * The number of a page within a file.
+     */
+    static final class Key {
+        final String fileName;
+
+        final int pageNumber;
+
+        Key(String fileName, int pageNumber) {
+            this.fileName = fileName;
+            this.pageNumber = pageNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fileName.hashCode() + pageNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return fileName.equals(other.fileName)
+                    && pageNumber == other.pageNumber;
+        }
+    }
+
+    /**
+     * The contents of a page, as of the given descriptor version.
+     */
+    static final class Page {
+        final long version;
+
+        final ByteBuffer data;
+
+        Page(long version, ByteBuffer data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Construct a page pool that holds up to the given number of bytes.
+     *
+     * @param capacity
+     *            the maximum number of bytes to hold
+     * @param metrics
+     *            the metrics to record hits, faults and evictions in
+     */
+    public PagePool(long capacity, MetricGroup metrics) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Return the pool shared by all the files in the given directory,
+     * creating it on first use.
+     *
+     * @return the shared pool, or null if pooling is turned off
+     */
+    public static PagePool getInstance(String keyspace, String columnFamily) {
+        if (DEFAULT_POOL_SIZE <= 0) {
+            return null;
+        }
+        String key = keyspace + "/" + columnFamily;
+        PagePool pool = pools.get(key);
+        if (pool == null) {
+            PagePool newPool =
+                    new PagePool(DEFAULT_POOL_SIZE, MetricsRegistry.getGroup(
+                            key, MetricsRegistry.ANY_CONTEXT));
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Return the given page, if it is pooled for the given descriptor
+     * version. The page is shared, and read-only.
+     *
+     * @return the page, or null on a miss
+     */
+    public synchronized ByteBuffer get(String fileName, int pageNumber,
+            long version) {
+        Page page = pages.get(new Key(fileName, pageNumber));
+        if (page == null || page.version != version) {
+            return null;
+        }
+        metrics.counter("pagePool.hits").incrementAndGet();
+        return page.data.duplicate();
+    }
+
+    /**
+     * Pool the remaining bytes of the given buffer as the given page, read
+     * under the given descriptor version, evicting the least recently used
+     * pages if need be.
+     *
+     * @return the pooled page, which is read-only
+     */
+    public ByteBuffer put(String fileName, int pageNumber, long version,
+            ByteBuffer data) {
+        // copy outside of the lock, a page is a whole block.
+        ByteBuffer copy = ByteBuffer.allocateDirect(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        ByteBuffer page = copy.asReadOnlyBuffer();
+        metrics.counter("pagePool.faults").incrementAndGet();
+        if (page.remaining() > capacity) {
+            return page;
+        }
+
+        synchronized (this) {
+            Key key = new Key(fileName, pageNumber);
+            Page previous = pages.put(key, new Page(version, page));
+            if (previous != null) {
+                size -= previous.data.remaining();
+            } else {
+                Set<Key> keys = keysByFile.get(fileName);
+                if (keys == null) {
+                    keys = new HashSet<Key>();
+                    keysByFile.put(fileName, keys);
+                }
+                keys.add(key);
+            }
+            size += page.remaining();
+
+            Iterator<Map.Entry<Key, Page>> iterator =
+                    pages.entrySet().iterator();
+            while (size > capacity && iterator.hasNext()) {
+                Map.Entry<Key, Page> eldest = iterator.next();
+                iterator.remove();
+                size -= eldest.getValue().data.remaining();
+                forgetKey(eldest.getKey());
+                metrics.counter("pagePool.evictions").incrementAndGet();
+            }
+            metrics.counter("pagePool.bytes").set(size);
+        }
+        return page.duplicate();
+    }
+
+    /**
+     * Drop every page of the given file, e.g. because it was deleted.
+     */
+    public synchronized void invalidate(String fileName) {
+        Set<Key> keys = keysByFile.remove(fileName);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            Page page = pages.remove(key);
+            if (page != null) {
+                size -= page.data.remaining();
+            }
+        }
+        metrics.counter("pagePool.bytes").set(size);
+    }
+
+    /**
+     * Drop every pooled page.
+     */
+    public synchronized void clear() {
+        pages.clear();
+        keysByFile.clear();
+        size = 0;
+        metrics.counter("pagePool.bytes").set(0);
+    }
+
+    private void forgetKey(Key key) {
+        Set<Key> keys = keysByFile.get(key.fileName);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByFile.remove(key.fileName);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes currently pooled
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+}
@@ -30,11 +30,9 @@ import org.slf4j.LoggerFactory;
 
 
 /** A straightforward implementation of {@link CassandraDirectory}
- *  using java.io.RandomAccessFile.  However, this class has
- *  poor concurrent performance (multiple threads will
- *  bottleneck) as it synchronizes when multiple threads
- *  read from the same file.  It's usually better to use
- *  {@link NIOFSDirectory} or {@link MMapDirectory} instead. */
+ *  using {@link CassandraRandomAccessFile}. Inputs read with
+ *  positional reads, so the clones and slices of an input, e.g.
+ *  one per search thread, read the same file concurrently. */
 public class SimpleCassandraDirectory extends CassandraDirectory {
 
     private static Logger logger = LoggerFactory.getLogger(SimpleCassandraDirectory.class);
@@ -57,6 +55,7 @@ public class SimpleCassandraDirectory extends CassandraDirectory {
             throws IOException {
         ensureOpen();
         logger.trace("openInput name {} context {}", name, context); 
+        prewarmCommit(name);
         final CassandraFile path = new CassandraFile(Util.getCassandraPath(directory), name, context, true, keyspace, columnFamily, blockSize);
         return new CassandraSimpleFSIndexInput("CassandraSimpleFSIndexInput(path=\"" + path.getPath() + "\")", path, context);
     }
@@ -97,8 +96,8 @@ public class SimpleCassandraDirectory extends CassandraDirectory {
     }
     
     /**
-     * Reads bytes with {@link RandomAccessFile#seek(long)} followed by
-     * {@link RandomAccessFile#read(byte[], int, int)}.  
+     * Reads bytes with
+     * {@link CassandraRandomAccessFile#read(long, byte[], int, int)}.
      */
     protected static class CassandraSimpleFSIndexInput extends BufferedIndexInput {
       /**
@@ -154,38 +153,27 @@ public class SimpleCassandraDirectory extends CassandraDirectory {
       @Override
       protected void readInternal(byte[] b, int offset, int len)
            throws IOException {
-          logger.trace("readInternal offset {} len {}", offset, len);
-          logger.trace("readInternal {}", file.file.getName());
-        synchronized (file) {
-          long position = off + getFilePointer();
-          logger.trace("position: {}", position);
-          file.seek(position);
-          int total = 0;
-
-          if (position + len > end) {
-              logger.trace("throwing");
-            throw new EOFException("read past EOF: " + this);
-          }
+        // positional reads share no file pointer, so clones and slices of
+        // this input read the file concurrently.
+        long position = off + getFilePointer();
+        if (position + len > end) {
+          throw new EOFException("read past EOF: " + this);
+        }
 
-          try {
-            while (total < len) {
-              final int toRead = Math.min(CHUNK_SIZE, len - total);
-              final int i = file.read(b, offset + total, toRead);
-              if (i < 0) { // be defensive here, even though we checked before hand, something could have changed
-                  logger.error("throwing");
-               throw new EOFException("read past EOF: " + this + " off: " + offset + " len: " + len + " total: " + total + " chunkLen: " + toRead + " end: " + end);
-              }
-              logger.trace("i > 0: " + (i>0));
-              
-              assert i > 0 : "RandomAccessFile.read with non zero-length toRead must always read at least one byte";
-              total += i;
+        int total = 0;
+        try {
+          while (total < len) {
+            final int toRead = Math.min(CHUNK_SIZE, len - total);
+            final int i = file.read(position + total, b, offset + total, toRead);
+            if (i < 0) { // be defensive here, even though we checked before hand, something could have changed
+              throw new EOFException("read past EOF: " + this + " off: " + offset + " len: " + len + " total: " + total + " chunkLen: " + toRead + " end: " + end);
             }
-            logger.trace("total == len: " + (total == len));
-            assert total == len;
-          } catch (IOException ioe) {
-              logger.error("throwing");
-            throw new IOException(ioe.getMessage() + ": " + this, ioe);
+            assert i > 0 : "RandomAccessFile.read with non zero-length toRead must always read at least one byte";
+            total += i;
           }
+          assert total == len;
+        } catch (IOException ioe) {
+          throw new IOException(ioe.getMessage() + ": " + this, ioe);
         }
       }
     
@@ -0,0 +1,376 @@
+package org.apache.lucene.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.monitor.Counter;
+import org.apache.monitor.MonitorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>TokenRing</code> keeps track of the hosts of a cluster, and of
+ * which of them hold the replicas of each range of tokens, so that a request
+ * for a row can be sent straight to a replica of that row instead of paying
+ * for a hop through a coordinator that has to forward it.
+ *
+ * <p>
+ * The ring starts out with the seed hosts, and is filled in from
+ * <code>describe_ring</code> once the first connection is open; after that,
+ * it is described again every so often to pick up changes in the topology.
+ * For every host, the ring keeps a moving average of the latency of the
+ * requests sent to it, and the time until which it is considered down after a
+ * transport error. {@link #getHosts(ByteBuffer)} orders the hosts accordingly:
+ * the live replicas of the row first, fastest first, then the other live
+ * hosts, and the hosts that are down last of all.
+ * </p>
+ *
+ * <p>
+ * The seeds are read from the system property
+ * <code>lucene.cassandra.hosts</code>, a comma separated list of
+ * <code>host</code> or <code>host:port</code>. Routing can be tuned through
+ * <code>lucene.cassandra.ring.tokenAware</code>,
+ * <code>lucene.cassandra.ring.refreshMillis</code> and
+ * <code>lucene.cassandra.ring.downMillis</code>.
+ * </p>
+ */
+public class TokenRing implements MonitorType {
+
+    private static Logger logger = LoggerFactory.getLogger(TokenRing.class);
+
+    // The hosts to connect to, in addition to the one a pool is created for.
+    public static final String DEFAULT_HOSTS = System.getProperty(
+            "lucene.cassandra.hosts", "");
+
+    // Whether requests for a row are sent to one of its replicas.
+    public static final boolean DEFAULT_TOKEN_AWARE = Boolean
+            .parseBoolean(System.getProperty(
+                    "lucene.cassandra.ring.tokenAware", "true"));
+
+    // How often the ring is described again.
+    public static final long DEFAULT_REFRESH_MILLIS = Long.getLong(
+            "lucene.cassandra.ring.refreshMillis", 60000L);
+
+    // How long a host is avoided after a transport error.
+    public static final long DEFAULT_DOWN_MILLIS = Long.getLong(
+            "lucene.cassandra.ring.downMillis", 10000L);
+
+    // The weight of the latest request in the moving average of the latency.
+    private static final int LATENCY_SMOOTHING = 8;
+
+    /**
+     * A host of the cluster, along with the latency of the requests sent to
+     * it and whether it is down.
+     */
+    public static class Host {
+        private final String address;
+
+        private final int port;
+
+        // the moving average of the latency, in nanoseconds.
+        private final AtomicLong latencyNanos = new AtomicLong();
+
+        private volatile long downUntil = 0;
+
+        Host(String address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos.get();
+        }
+
+        public boolean isDown() {
+            return System.currentTimeMillis() < downUntil;
+        }
+
+        @Override
+        public String toString() {
+            return address + ":" + port;
+        }
+    }
+
+    /**
+     * A range of tokens, and the hosts that hold its replicas.
+     */
+    static class ReplicaRange {
+        final Token<?> start;
+
+        final Token<?> end;
+
+        final List<Host> replicas;
+
+        ReplicaRange(Token<?> start, Token<?> end, List<Host> replicas) {
+            this.start = start;
+            this.end = end;
+            this.replicas = replicas;
+        }
+    }
+
+    // Orders the hosts that are up by their latency.
+    private static final Comparator<Host> BY_LATENCY = new Comparator<Host>() {
+        public int compare(Host o1, Host o2) {
+            long l1 = o1.getLatencyNanos(), l2 = o2.getLatencyNanos();
+            return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+        }
+    };
+
+    private final String keyspace;
+
+    private final String name;
+
+    private final int port;
+
+    private final boolean tokenAware;
+
+    private final long downMillis;
+
+    // Every host known to the ring, by host:port.
+    private final Map<String, Host> hosts = new LinkedHashMap<String, Host>();
+
+    private volatile IPartitioner<?> partitioner = null;
+
+    private volatile List<ReplicaRange> ranges =
+            Collections.<ReplicaRange> emptyList();
+
+    private final AtomicLong lastRefresh = new AtomicLong();
+
+    private final Map<Counter, AtomicLong> counters =
+            new EnumMap<Counter, AtomicLong>(Counter.class);
+
+    /**
+     * Construct a ring made of the given host and the seeds configured
+     * through <code>lucene.cassandra.hosts</code>.
+     *
+     * @param host
+     *            the host a pool is created for
+     * @param port
+     *            the port hosts listen on, unless a seed says otherwise
+     * @param keyspace
+     *            the keyspace whose replicas to look up
+     * @param columnFamily
+     *            the column family of the pool, to tell its metrics apart
+     */
+    public TokenRing(String host, int port, String keyspace,
+            String columnFamily) {
+        this(host, port, keyspace, columnFamily, DEFAULT_HOSTS,
+                DEFAULT_TOKEN_AWARE, DEFAULT_DOWN_MILLIS);
+    }
+
+    TokenRing(String host, int port, String keyspace, String columnFamily,
+            String seeds, boolean tokenAware, long downMillis) {
+        this.keyspace = keyspace;
+        this.name = keyspace + "_" + columnFamily;
+        this.port = port;
+        this.tokenAware = tokenAware;
+        this.downMillis = downMillis;
+        addHost(host, port);
+        for (String seed : seeds.split(",")) {
+            seed = seed.trim();
+            if (seed.length() == 0) {
+                continue;
+            }
+            int colon = seed.lastIndexOf(':');
+            if (colon > 0) {
+                addHost(seed.substring(0, colon),
+                        Integer.parseInt(seed.substring(colon + 1)));
+            } else {
+                addHost(seed, port);
+            }
+        }
+        counters.put(Counter.ROUTED_REQUESTS, new AtomicLong());
+        counters.put(Counter.HOST_FAILOVERS, new AtomicLong());
+    }
+
+    private synchronized Host addHost(String address, int port) {
+        String key = address + ":" + port;
+        Host host = hosts.get(key);
+        if (host == null) {
+            host = new Host(address, port);
+            hosts.put(key, host);
+        }
+        return host;
+    }
+
+    /**
+     * @return whether the ring is due to be described again
+     */
+    public boolean needsRefresh() {
+        return tokenAware
+                && System.currentTimeMillis() - lastRefresh.get() > DEFAULT_REFRESH_MILLIS;
+    }
+
+    /**
+     * Describe the ring through the given connection, and route requests by
+     * the token ranges it reports. Only one caller refreshes at a time; the
+     * others keep using the ranges they have.
+     *
+     * @param client
+     *            a connection to any host of the cluster
+     */
+    public void refresh(Cassandra.Client client) {
+        long last = lastRefresh.get();
+        if (!tokenAware
+                || !lastRefresh.compareAndSet(last, System.currentTimeMillis())) {
+            return;
+        }
+        try {
+            if (partitioner == null) {
+                partitioner =
+                        FBUtilities.newPartitioner(client
+                                .describe_partitioner());
+            }
+            Token.TokenFactory<?> tokenFactory = partitioner.getTokenFactory();
+            List<ReplicaRange> newRanges = new ArrayList<ReplicaRange>();
+            for (TokenRange tokenRange : client.describe_ring(keyspace)) {
+                List<Host> replicas = new ArrayList<Host>();
+                for (int i = 0; i < tokenRange.getEndpointsSize(); i++) {
+                    replicas.add(addHost(getRpcAddress(tokenRange, i), port));
+                }
+                newRanges.add(new ReplicaRange(tokenFactory
+                        .fromString(tokenRange.getStart_token()), tokenFactory
+                        .fromString(tokenRange.getEnd_token()), replicas));
+            }
+            ranges = newRanges;
+            logger.debug("{} is made of {} ranges on {}", new Object[] {
+                    keyspace, newRanges.size(), hosts.values() });
+        } catch (Exception e) {
+            // keep routing by the ranges we already know of.
+            logger.warn("unable to describe the ring of " + keyspace, e);
+        }
+    }
+
+    // the address clients should use to reach the i-th endpoint of the range.
+    private static String getRpcAddress(TokenRange tokenRange, int i) {
+        if (tokenRange.getRpc_endpointsSize() > i) {
+            String rpcAddress = tokenRange.getRpc_endpoints().get(i);
+            // the server listens on all of its interfaces.
+            if (!"0.0.0.0".equals(rpcAddress)) {
+                return rpcAddress;
+            }
+        }
+        return tokenRange.getEndpoints().get(i);
+    }
+
+    /**
+     * Return the hosts to send a request for the given row to, in the order
+     * in which they should be tried.
+     *
+     * @param key
+     *            the key of the row, or null for requests that span rows
+     * @return the live replicas of the row, fastest first, then the other
+     *         live hosts, fastest first, then the hosts that are down
+     */
+    public List<Host> getHosts(ByteBuffer key) {
+        List<Host> replicas = getReplicas(key);
+        List<Host> others;
+        synchronized (this) {
+            others = new ArrayList<Host>(hosts.values());
+        }
+        others.removeAll(replicas);
+
+        List<Host> down = new ArrayList<Host>();
+        List<Host> ordered = new ArrayList<Host>(others.size() + replicas.size());
+        addLiveHosts(replicas, ordered, down);
+        addLiveHosts(others, ordered, down);
+        ordered.addAll(down);
+        if (!replicas.isEmpty() && !ordered.get(0).isDown()
+                && replicas.contains(ordered.get(0))) {
+            counters.get(Counter.ROUTED_REQUESTS).incrementAndGet();
+        }
+        return ordered;
+    }
+
+    // add the live hosts of the group to ordered, fastest first, and the
+    // others to down.
+    private static void addLiveHosts(List<Host> group, List<Host> ordered,
+            List<Host> down) {
+        List<Host> up = new ArrayList<Host>();
+        for (Host host : group) {
+            if (host.isDown()) {
+                down.add(host);
+            } else {
+                up.add(host);
+            }
+        }
+        Collections.sort(up, BY_LATENCY);
+        ordered.addAll(up);
+    }
+
+    // the replicas of the given row, if the ring has been described.
+    private List<Host> getReplicas(ByteBuffer key) {
+        IPartitioner<?> partitioner = this.partitioner;
+        if (key == null || partitioner == null || !tokenAware) {
+            return Collections.emptyList();
+        }
+        Token<?> token = partitioner.getToken(key.duplicate());
+        for (ReplicaRange range : ranges) {
+            if (Range.contains(range.start, range.end, token)) {
+                return range.replicas;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Record the latency of a request that was sent to the given host.
+     */
+    public void recordLatency(Host host, long nanos) {
+        long average, updated;
+        do {
+            average = host.latencyNanos.get();
+            updated =
+                    average == 0 ? nanos : average + (nanos - average)
+                            / LATENCY_SMOOTHING;
+        } while (!host.latencyNanos.compareAndSet(average, updated));
+    }
+
+    /**
+     * Avoid the given host for a while, after it saw a transport error.
+     */
+    public void markDown(Host host) {
+        logger.warn("marking {} down for {} ms", host, downMillis);
+        host.downUntil = System.currentTimeMillis() + downMillis;
+        counters.get(Counter.HOST_FAILOVERS).incrementAndGet();
+    }
+
+    /**
+     * @return every host known to the ring
+     */
+    public synchronized List<Host> getAllHosts() {
+        return new ArrayList<Host>(hosts.values());
+    }
+
+    @Override
+    public String getMonitorName() {
+        return "TokenRing_" + name;
+    }
+
+    @Override
+    public Map<Counter, AtomicLong> getCounters() {
+        return counters;
+    }
+
+}
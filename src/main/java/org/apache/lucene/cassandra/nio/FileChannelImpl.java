@@ -15,13 +15,20 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.WritableByteChannel;
 
+import org.apache.lucene.cassandra.ACassandraRandomAccessFile;
 import org.apache.lucene.cassandra.FileDescriptor;
+import org.apache.lucene.cassandra.MappedBlocks;
+import org.apache.lucene.cassandra.PagePool;
 
 import sun.misc.IoTrace;
 
 // http://grepcode.com/file/repository.grepcode.com/java/root/jdk/openjdk/7u40-b43/sun/nio/ch/FileChannelImpl.java#FileChannelImpl
 public class FileChannelImpl extends FileChannel {
     
+    // Maximum number of bytes transferTo and transferFrom move at a time
+    private static final int TRANSFER_CHUNK_SIZE =
+            Integer.getInteger("lucene.cassandra.transfer.chunkSize", 1024 * 1024);
+
     // Memory allocation size for mapping buffers
     // TODO Fix below;
     //private static final long allocationGranularity;
@@ -244,6 +251,9 @@ public class FileChannelImpl extends FileChannel {
 
     @Override
     public long size() throws IOException {
+        ensureOpen();
+        if (parent instanceof ACassandraRandomAccessFile)
+            return ((ACassandraRandomAccessFile) parent).length();
         // TODO Auto-generated method stub
         return 0;
     }
@@ -277,18 +287,99 @@ public class FileChannelImpl extends FileChannel {
         }
     }
 
+    /**
+     * Transfers bytes from this channel's file to the given writable byte
+     * channel.
+     *
+     * <p> The bytes are moved in chunks of at most
+     * <code>lucene.cassandra.transfer.chunkSize</code> bytes, every one of
+     * them read with a positional read (i.e. with one request for the blocks
+     * that cover it) into a single buffer that is reused for the next chunk,
+     * so that the transfer of a large file does not hold more than a chunk
+     * on the heap.  Like {@link #read(ByteBuffer, long)}, this method does
+     * not modify this channel's position. </p>
+     *
+     * @return  The number of bytes, possibly zero, that were actually
+     *          transferred
+     *
+     * @see FileChannel#transferTo(long, long, WritableByteChannel)
+     */
     @Override
     public long transferTo(long position, long count, WritableByteChannel target)
             throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+        ensureOpen();
+        if (!target.isOpen())
+            throw new ClosedChannelException();
+        if (!readable)
+            throw new NonReadableChannelException();
+        if ((position < 0) || (count < 0))
+            throw new IllegalArgumentException();
+        long sz = size();
+        if (position > sz)
+            return 0;
+        long remaining = Math.min(count, sz - position);
+        ByteBuffer bb = ByteBuffer.allocate((int) Math.min(remaining, TRANSFER_CHUNK_SIZE));
+        long tw = 0;
+        while (tw < remaining) {
+            bb.clear();
+            bb.limit((int) Math.min(bb.capacity(), remaining - tw));
+            int nr = read(bb, position + tw);
+            if (nr <= 0)
+                break;
+            bb.flip();
+            while (bb.hasRemaining()) {
+                int nw = target.write(bb);
+                if (nw < 0)
+                    return tw;
+                tw += nw;
+            }
+        }
+        return tw;
     }
 
+    /**
+     * Transfers bytes into this channel's file from the given readable byte
+     * channel.
+     *
+     * <p> The bytes are moved in chunks of at most
+     * <code>lucene.cassandra.transfer.chunkSize</code> bytes, every one of
+     * them written with a positional write once it has been read, through a
+     * single buffer that is reused for the next chunk.  The transfer stops
+     * early if the source channel has no bytes left.  This method does not
+     * modify this channel's position. </p>
+     *
+     * @return  The number of bytes, possibly zero, that were actually
+     *          transferred
+     *
+     * @see FileChannel#transferFrom(ReadableByteChannel, long, long)
+     */
     @Override
     public long transferFrom(ReadableByteChannel src, long position, long count)
             throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+        ensureOpen();
+        if (!src.isOpen())
+            throw new ClosedChannelException();
+        if (!writable)
+            throw new NonWritableChannelException();
+        if ((position < 0) || (count < 0))
+            throw new IllegalArgumentException();
+        ByteBuffer bb = ByteBuffer.allocate((int) Math.min(count, TRANSFER_CHUNK_SIZE));
+        long tw = 0;
+        while (tw < count) {
+            bb.clear();
+            bb.limit((int) Math.min(bb.capacity(), count - tw));
+            int nr = src.read(bb);
+            if (nr <= 0)
+                break;
+            bb.flip();
+            while (bb.hasRemaining()) {
+                int nw = write(bb, position + tw);
+                if (nw <= 0)
+                    return tw;
+                tw += nw;
+            }
+        }
+        return tw;
     }
 
     /**
@@ -338,39 +429,74 @@ public class FileChannelImpl extends FileChannel {
     public int read(ByteBuffer dst, long position) throws IOException {
         if (dst == null)
             throw new NullPointerException();
-        if (position < 0)
-            throw new IllegalArgumentException("Negative position");
+        return (int) read(new long[] { position }, new ByteBuffer[] { dst }, 0, 1);
+    }
+
+    /**
+     * Reads a sequence of bytes from this channel into a subsequence of the
+     * given buffers, every one of them starting at its own file position.
+     *
+     * <p> Every buffer is filled with as many bytes as it has remaining or
+     * as the file has left from its position.  The blocks that cover all
+     * the ranges are fetched from Cassandra with one request, and copied
+     * straight into the buffers.  Like {@link #read(ByteBuffer, long)},
+     * this method does not modify this channel's position, and takes no
+     * lock, so any number of threads may read the channel at once. </p>
+     *
+     * @param  positions
+     *         The file position of every buffer; must be non-negative
+     *
+     * @param  dsts
+     *         The buffers into which bytes are to be transferred
+     *
+     * @param  offset
+     *         The offset within the buffer array of the first buffer into
+     *         which bytes are to be transferred
+     *
+     * @param  length
+     *         The maximum number of buffers to be accessed
+     *
+     * @return  The number of bytes read, possibly zero, or <tt>-1</tt> if
+     *          every position is greater than or equal to the file's
+     *          current size
+     *
+     * @throws  IllegalArgumentException
+     *          If a position is negative
+     *
+     * @throws  NonReadableChannelException
+     *          If this channel was not opened for reading
+     *
+     * @throws  IOException
+     *          If the channel is not that of a random access file, or some
+     *          other I/O error occurs
+     */
+    public long read(long[] positions, ByteBuffer[] dsts, int offset, int length)
+            throws IOException {
+        if ((offset < 0) || (length < 0) || (offset > dsts.length - length)
+                || (positions.length < dsts.length))
+            throw new IndexOutOfBoundsException();
+        for (int i = offset; i < offset + length; i++) {
+            if (dsts[i] == null)
+                throw new NullPointerException();
+            if (positions[i] < 0)
+                throw new IllegalArgumentException("Negative position");
+        }
         if (!readable)
             throw new NonReadableChannelException();
         ensureOpen();
-        if (nd.needsPositionLock()) {
-            synchronized (positionLock) {
-                return readInternal(dst, position);
-            }
-        } else {
-            return readInternal(dst, position);
-        }
-    }
-    
-    private int readInternal(ByteBuffer dst, long position) throws IOException {
-        assert !nd.needsPositionLock() || Thread.holdsLock(positionLock);
-        int n = 0;
-        int ti = -1;
+        if (!(parent instanceof ACassandraRandomAccessFile))
+            throw new IOException("cannot read " + path + ", it is not a random access file");
+        long n = 0;
         Object traceContext = IoTrace.fileReadBegin(path);
         try {
             begin();
-            ti = threads.add();
             if (!isOpen())
                 return -1;
-            do {
-                n = IOUtil.read(fd, dst, position, nd);
-            } while ((n == IOStatus.INTERRUPTED) && isOpen());
-            return IOStatus.normalize(n);
+            n = ((ACassandraRandomAccessFile) parent).read(positions, dsts, offset, length);
+            return n;
         } finally {
-            threads.remove(ti);
             IoTrace.fileReadEnd(traceContext, n > 0 ? n : 0);
             end(n > 0);
-            assert IOStatus.check(n);
         }
     }
 
@@ -457,11 +583,59 @@ public class FileChannelImpl extends FileChannel {
         }
     }
 
+    /**
+     * Maps a region of this channel's file into memory.
+     *
+     * <p> Only {@link MapMode#READ_ONLY} mappings are supported, of the
+     * append-only files of a {@link ACassandraRandomAccessFile}. The blocks
+     * of the region are read through a {@link MappedBlocks}, i.e. from the
+     * {@link PagePool} of the directory, and faulted into it on a miss.  As
+     * a {@link MappedByteBuffer} cannot be implemented outside of java.nio,
+     * the region is copied into a direct buffer of its own; readers that
+     * want their pages faulted in lazily, as they touch them, use
+     * {@link ACassandraRandomAccessFile#map(long, long)} instead. </p>
+     *
+     * @throws  UnsupportedOperationException
+     *          If the mode is not {@link MapMode#READ_ONLY}
+     *
+     * @throws  IOException
+     *          If the file is not append-only, the region is not within
+     *          the file, or some other I/O error occurs
+     */
     @Override
     public MappedByteBuffer map(MapMode mode, long position, long size)
             throws IOException {
-        // TODO Auto-generated method stub
-        return null;
+        ensureOpen();
+        if (mode == null)
+            throw new NullPointerException("Mode is null");
+        if (position < 0L)
+            throw new IllegalArgumentException("Negative position");
+        if (size < 0L)
+            throw new IllegalArgumentException("Negative size");
+        if (position + size < 0)
+            throw new IllegalArgumentException("Position + size overflow");
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Size exceeds Integer.MAX_VALUE");
+        if (mode != MapMode.READ_ONLY)
+            throw new UnsupportedOperationException("only READ_ONLY mappings are supported");
+        if (!readable)
+            throw new NonReadableChannelException();
+        if (!(parent instanceof ACassandraRandomAccessFile))
+            throw new IOException("cannot map " + path + ", it is not a random access file");
+
+        MappedBlocks blocks = ((ACassandraRandomAccessFile) parent).map(position, size);
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        boolean completed = false;
+        try {
+            begin();
+            blocks.get(0, buffer);
+            completed = true;
+        } finally {
+            end(completed);
+        }
+        buffer.flip();
+        // direct buffers are mapped buffers, of no file.
+        return (MappedByteBuffer) buffer.asReadOnlyBuffer();
     }
 
     @Override
@@ -29,13 +29,21 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cassandra.auth.IAuthenticator;
 import org.apache.cassandra.config.CFMetaData;
@@ -47,7 +55,6 @@ import org.apache.cassandra.thrift.CfDef;
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ColumnOrSuperColumn;
 import org.apache.cassandra.thrift.ColumnParent;
-import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.Deletion;
 import org.apache.cassandra.thrift.InvalidRequestException;
 import org.apache.cassandra.thrift.KeyRange;
@@ -57,13 +64,21 @@ import org.apache.cassandra.thrift.Mutation;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.cassandra.thrift.SliceRange;
 import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.cassandra.BlockCache;
+import org.apache.lucene.cassandra.ConsistencyLevels;
+import org.apache.lucene.cassandra.ConsistencyLevels.OperationType;
+import org.apache.lucene.cassandra.TokenRing;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.store.Directory.IndexInputSlicer;
+import org.apache.monitor.Counter;
+import org.apache.monitor.JmxMonitor;
+import org.apache.monitor.MonitorType;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -136,7 +151,7 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Karthick Sankarachary
  */
-public class CassandraDirectory extends Directory {
+public class CassandraDirectory extends Directory implements MonitorType {
 
     private static Logger logger = LoggerFactory
             .getLogger(CassandraDirectory.class);
@@ -148,10 +163,12 @@ public class CassandraDirectory extends Directory {
     public static final int DEFAULT_BUFFER_SIZE = 1 * DEFAULT_BLOCK_SIZE;
 
     // The default host where the cassandra server is located.
-    public static final String DEFAULT_CASSANDRA_HOST = "localhost";
+    public static final String DEFAULT_CASSANDRA_HOST = System.getProperty(
+            "lucene.cassandra.host", "localhost");
 
     // The default port where the cassandra server is listening.
-    public static final int DEFAULT_CASSANDRA_PORT = 9160;
+    public static final int DEFAULT_CASSANDRA_PORT = Integer.getInteger(
+            "lucene.cassandra.port", 9160);
 
     // The default flag indicating whether the cassandra server is framed.
     public static final boolean DEFAULT_CASSANDRA_FRAMED = true;
@@ -162,6 +179,38 @@ public class CassandraDirectory extends Directory {
     // The default column family
     public static final String DEFAULT_CASSANDRA_COLUMN_FAMILY = "index1";
 
+    // Whether index outputs defer writing the file descriptor until close.
+    public static final boolean DEFAULT_WRITE_BEHIND = Boolean
+            .parseBoolean(System.getProperty("lucene.cassandra.writeBehind",
+                    "true"));
+
+    // When set, a deferred descriptor is only written on close, so a
+    // partially written file never becomes visible.
+    public static final boolean DEFAULT_CRASH_SAFE = Boolean
+            .parseBoolean(System.getProperty(
+                    "lucene.cassandra.writeBehind.crashSafe", "true"));
+
+    // How often a deferred descriptor is written when crash safety is off.
+    public static final long DEFAULT_DESCRIPTOR_INTERVAL_MILLIS = Long
+            .getLong("lucene.cassandra.writeBehind.descriptorIntervalMillis",
+                    1000L);
+
+    // The largest read-ahead window, in blocks, for merges and other inputs
+    // that are read once from start to end.
+    public static final int DEFAULT_MERGE_READ_AHEAD_BLOCKS = Integer
+            .getInteger("lucene.cassandra.readAhead.mergeBlocks", 8);
+
+    // The largest read-ahead window, in blocks, for all other inputs.
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = Integer.getInteger(
+            "lucene.cassandra.readAhead.readBlocks", 2);
+
+    // The number of threads that prefetch blocks for all directories.
+    public static final int DEFAULT_READ_AHEAD_THREADS = Integer.getInteger(
+            "lucene.cassandra.readAhead.threads", 4);
+
+    // The threads that prefetch blocks for sequential index inputs.
+    private static ExecutorService readAheadExecutor = null;
+
     // The name of every column that holds a file block starts with this prefix.
     protected static final String BLOCK_COLUMN_NAME_PREFIX = "BLOCK-";
 
@@ -198,6 +247,13 @@ public class CassandraDirectory extends Directory {
 
     protected ColumnOrientedDirectory columnOrientedDirectory;
 
+    // The client-side cache of recently read blocks, if enabled.
+    protected BlockCache blockCache;
+
+    // The read-ahead counters of this directory, published over JMX.
+    protected final Map<Counter, AtomicLong> counters =
+            new EnumMap<Counter, AtomicLong>(Counter.class);
+
     /**
      * Construct a Cassandra-based directory that maps to the given column
      * family, which is located in the default keyspace.
@@ -306,7 +362,46 @@ public class CassandraDirectory extends Directory {
         this.bufferSize = bufferSize;
         this.cassandraClient = new CassandraClient(host, port, framed);
         this.columnOrientedDirectory = new ColumnOrientedDirectory();
+        this.blockCache = BlockCache.getInstance(keyspace, columnFamily);
         this.lockFactory = new SimpleFSLockFactory("lock");
+        counters.put(Counter.READ_AHEAD_BLOCKS, new AtomicLong());
+        counters.put(Counter.READ_AHEAD_HITS, new AtomicLong());
+        counters.put(Counter.READ_AHEAD_WASTED, new AtomicLong());
+        JmxMonitor.getInstance().getCassandraMonitor(this);
+    }
+
+    @Override
+    public String getMonitorName() {
+        return "CassandraDirectory_" + keyspace + "_" + columnFamily;
+    }
+
+    @Override
+    public Map<Counter, AtomicLong> getCounters() {
+        return counters;
+    }
+
+    /**
+     * @return the shared executor that runs the read-ahead of index inputs
+     */
+    protected static synchronized ExecutorService getReadAheadExecutor() {
+        if (readAheadExecutor == null) {
+            readAheadExecutor =
+                    Executors.newFixedThreadPool(DEFAULT_READ_AHEAD_THREADS,
+                            new ThreadFactory() {
+                                private final AtomicInteger count =
+                                        new AtomicInteger();
+
+                                public Thread newThread(Runnable runnable) {
+                                    Thread thread =
+                                            new Thread(runnable,
+                                                    "cassandra-read-ahead-"
+                                                            + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+        }
+        return readAheadExecutor;
     }
     
     @Override
@@ -372,7 +467,7 @@ public class CassandraDirectory extends Directory {
             throws IOException {
         ensureOpen();
         logger.trace("openInput " + fileName);
-        return new CassandraIndexInput(fileName, bufferSize);
+        return new CassandraIndexInput(fileName, bufferSize, context);
     }
 
     /**
@@ -483,6 +578,9 @@ public class CassandraDirectory extends Directory {
         if (fileDescriptor != null) {
             fileDescriptor.setDeleted(true);
             columnOrientedDirectory.setFileDescriptor(fileDescriptor);
+            if (blockCache != null) {
+                blockCache.invalidate(fileName);
+            }
         }
     }
 
@@ -1578,11 +1676,37 @@ public class CassandraDirectory extends Directory {
          */
         public void writeFileBlocks(FileDescriptor fileDescriptor,
                 BlockMap blocksToBeWritten) throws IOException {
+            writeFileBlocks(fileDescriptor, blocksToBeWritten, true);
+        }
+
+        /**
+         * Write the given blocks in the file referenced by the given
+         * descriptor, optionally leaving the stored descriptor untouched.
+         * 
+         * @param fileDescriptor
+         *            the descriptor of the file being written to
+         * @param blocksToBeWritten
+         *            the map of block names to values
+         * @param includeDescriptor
+         *            whether to write the descriptor along with the blocks
+         * @throws IOException
+         */
+        public void writeFileBlocks(FileDescriptor fileDescriptor,
+                BlockMap blocksToBeWritten, boolean includeDescriptor)
+                throws IOException {
             logger.trace("writeFileBlocks {}", fileDescriptor.getName());
             // System.out.println("The file descriptor saved was " +
             // FileDescriptorUtils.toJSON(fileDescriptor));
-            blocksToBeWritten.put(descriptorColumn,
-                    FileDescriptorUtils.toString(fileDescriptor));
+            if (blockCache != null) {
+                for (byte[] blockName : blocksToBeWritten.keySet()) {
+                    blockCache.invalidate(fileDescriptor.getName(),
+                            new String(blockName));
+                }
+            }
+            if (includeDescriptor) {
+                blocksToBeWritten.put(descriptorColumn,
+                        FileDescriptorUtils.toString(fileDescriptor));
+            }
             cassandraClient.setColumns(
                     ByteBufferUtil.bytes(fileDescriptor.getName()),
                     blocksToBeWritten);
@@ -1602,11 +1726,36 @@ public class CassandraDirectory extends Directory {
         public BlockMap readFileBlocks(FileDescriptor fileDescriptor,
                 Set<byte[]> blockNames) throws IOException {
             logger.trace("readFileBlocks {}", fileDescriptor.getName());
-            Map<byte[], byte[]> columns =
-                    cassandraClient.getColumns(fileDescriptor.getName()
-                            .getBytes(), blockNames);
+            String fileName = fileDescriptor.getName();
+            long version = fileDescriptor.getLastModified();
             BlockMap blockMap = new BlockMap();
+            Set<byte[]> missingBlockNames = blockNames;
+            if (blockCache != null) {
+                missingBlockNames = new TreeSet<byte[]>(BYTE_ARRAY_COMPARATOR);
+                for (byte[] blockName : blockNames) {
+                    byte[] data =
+                            blockCache.get(fileName, new String(blockName),
+                                    version);
+                    if (data != null) {
+                        blockMap.put(blockName, data);
+                    } else {
+                        missingBlockNames.add(blockName);
+                    }
+                }
+                if (missingBlockNames.isEmpty()) {
+                    return blockMap;
+                }
+            }
+            Map<byte[], byte[]> columns =
+                    cassandraClient.getColumns(fileName.getBytes(),
+                            missingBlockNames);
             blockMap.putAll(columns);
+            if (blockCache != null) {
+                for (Map.Entry<byte[], byte[]> column : columns.entrySet()) {
+                    blockCache.put(fileName, new String(column.getKey()),
+                            version, column.getValue());
+                }
+            }
             return blockMap;
         }
 
@@ -1641,6 +1790,12 @@ public class CassandraDirectory extends Directory {
         // A flag indicating whether or not this stream is open.
         private volatile boolean isOpen;
 
+        // Whether the descriptor has changes that were not written yet.
+        private boolean descriptorDirty;
+
+        // When the descriptor was last written to the column family.
+        private long lastDescriptorWrite = System.currentTimeMillis();
+
         protected ColumnOrientedFile columnOrientedFile;
 
         public CassandraIndexOutput(String fileName, int bufferSize)
@@ -1662,6 +1817,11 @@ public class CassandraDirectory extends Directory {
             if (isOpen) {
                 try {
                     super.close();
+                    if (descriptorDirty) {
+                        columnOrientedDirectory
+                                .setFileDescriptor(fileDescriptor);
+                        descriptorDirty = false;
+                    }
                 } finally {
                     isOpen = false;
                     if (fragments != null) {
@@ -1796,7 +1956,20 @@ public class CassandraDirectory extends Directory {
             }
             fileDescriptor.setLastAccessed(now);
             fileDescriptor.setLastModified(now);
-            columnOrientedFile.writeFileBlocks(fileDescriptor, blocksToFlush);
+            // In write-behind mode only the data goes out here; the
+            // descriptor follows on close, or periodically if partially
+            // written files are allowed to be visible.
+            boolean includeDescriptor =
+                    !DEFAULT_WRITE_BEHIND
+                            || (!DEFAULT_CRASH_SAFE && now - lastDescriptorWrite >= DEFAULT_DESCRIPTOR_INTERVAL_MILLIS);
+            columnOrientedFile.writeFileBlocks(fileDescriptor, blocksToFlush,
+                    includeDescriptor);
+            if (includeDescriptor) {
+                lastDescriptorWrite = now;
+                descriptorDirty = false;
+            } else {
+                descriptorDirty = true;
+            }
         }
 
         /**
@@ -1856,6 +2029,25 @@ public class CassandraDirectory extends Directory {
 
         protected ColumnOrientedFile columnOrientedFile;
 
+        // The largest number of blocks to prefetch at once.
+        protected int maxReadAheadBlocks;
+
+        // The number of blocks to prefetch next, which grows while the reads
+        // remain sequential and drops to zero on a random seek.
+        protected int readAheadBlocks;
+
+        // The block that the next read starts from if it is sequential.
+        protected FileBlock expectedBlock;
+
+        // The prefetched blocks that have not been read yet.
+        protected BlockMap prefetchedBlocks;
+
+        // The names of the blocks that are being prefetched right now.
+        protected Set<byte[]> inFlightBlockNames;
+
+        // The prefetch that is running in the background, if any.
+        protected Future<BlockMap> inFlight;
+
         /**
          * Construct a type of {@link IndexInput} that understands how to read
          * from the Cassandra-based file of the given name. It uses a read-ahead
@@ -1870,6 +2062,23 @@ public class CassandraDirectory extends Directory {
          */
         public CassandraIndexInput(String fileName, int bufferSize)
                 throws IOException {
+            this(fileName, bufferSize, IOContext.DEFAULT);
+        }
+
+        /**
+         * Construct an index input whose read-ahead is sized for the given
+         * context, i.e. more aggressive for merges than for searches.
+         * 
+         * @param fileName
+         *            the name of the file to read
+         * @param bufferSize
+         *            the size of the input buffer
+         * @param context
+         *            the context the file is opened in
+         * @throws IOException
+         */
+        public CassandraIndexInput(String fileName, int bufferSize,
+                IOContext context) throws IOException {
 
             super("lucene-cassandra-desc", bufferSize);
             logger.trace("initializing CassandraIndexInput {}", fileName);
@@ -1886,14 +2095,25 @@ public class CassandraDirectory extends Directory {
             }
             fileLength = fileDescriptor.getLength();
             columnOrientedFile = new ColumnOrientedFile();
+            if (context.context == IOContext.Context.MERGE || context.readOnce) {
+                // merges read every file from start to end, so start
+                // prefetching right away.
+                maxReadAheadBlocks = DEFAULT_MERGE_READ_AHEAD_BLOCKS;
+                readAheadBlocks = 1;
+                expectedBlock = currentBlock;
+            } else {
+                maxReadAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+            }
+            resetReadAhead();
         }
 
         /**
-         * There's nothing to close.
+         * Drop any prefetched blocks, as there is nothing else to close.
          */
         @Override
         public void close() throws IOException {
             logger.trace("close");
+            discardReadAhead();
         }
 
         /**
@@ -1939,6 +2159,8 @@ public class CassandraDirectory extends Directory {
                 //return;
             }
 
+            // the block this read starts from, before the loop moves on.
+            FileBlock firstBlock = currentBlock;
             do {
                 byte[] columnName = currentBlock.getBlockName().getBytes();
                 if (!blockNames.contains(columnName)) {
@@ -1957,9 +2179,11 @@ public class CassandraDirectory extends Directory {
 
             logger.trace("blockNames size {}", blockNames.size());
 
-            BlockMap blockMap =
-                    columnOrientedFile.readFileBlocks(fileDescriptor,
-                            blockNames);
+            BlockMap blockMap = takePrefetchedBlocks(firstBlock, blockNames);
+            if (!blockNames.isEmpty()) {
+                blockMap.putAll(columnOrientedFile.readFileBlocks(
+                        fileDescriptor, blockNames));
+            }
             bytesToBeRead = length;
             for (FileBlock blockToBeRead : blocksToBeRead) {
                 logger.info("reading length {}", blockToBeRead.getDataLength());
@@ -2004,6 +2228,125 @@ public class CassandraDirectory extends Directory {
                 }
                 logger.info("using block {}", currentBlock.getBlockNumber());
             }
+
+            expectedBlock = currentBlock;
+            scheduleReadAhead();
+        }
+
+        /**
+         * Take the given blocks out of the prefetch buffer, waiting for the
+         * prefetch in flight if it covers any of them. The names of the blocks
+         * that were found are removed from the given set. A read that does not
+         * continue where the previous one ended turns read-ahead off until
+         * reads become sequential again.
+         * 
+         * @param firstBlock
+         *            the block the read starts from
+         * @param blockNames
+         *            the names of the blocks to be read
+         * @return the blocks that were prefetched
+         */
+        protected BlockMap takePrefetchedBlocks(FileBlock firstBlock,
+                Set<byte[]> blockNames) {
+            BlockMap blockMap = new BlockMap();
+            if (expectedBlock == null || firstBlock != expectedBlock) {
+                discardReadAhead();
+                readAheadBlocks = 0;
+                return blockMap;
+            }
+            readAheadBlocks =
+                    Math.min(Math.max(1, readAheadBlocks * 2),
+                            maxReadAheadBlocks);
+
+            if (inFlight != null) {
+                boolean needed = false;
+                for (byte[] blockName : blockNames) {
+                    if (inFlightBlockNames.contains(blockName)) {
+                        needed = true;
+                        break;
+                    }
+                }
+                if (needed || inFlight.isDone()) {
+                    try {
+                        prefetchedBlocks.putAll(inFlight.get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        logger.debug("read-ahead failed, reading directly",
+                                e.getCause());
+                    }
+                    inFlight = null;
+                    inFlightBlockNames.clear();
+                }
+            }
+
+            Iterator<byte[]> iterator = blockNames.iterator();
+            while (iterator.hasNext()) {
+                byte[] blockName = iterator.next();
+                byte[] data = prefetchedBlocks.remove(blockName);
+                if (data != null) {
+                    blockMap.put(blockName, data);
+                    iterator.remove();
+                    counters.get(Counter.READ_AHEAD_HITS).incrementAndGet();
+                }
+            }
+            return blockMap;
+        }
+
+        /**
+         * Start fetching the blocks that follow the current block in the
+         * background, in a single request, unless a prefetch is still in
+         * flight or read-ahead is off.
+         */
+        protected void scheduleReadAhead() {
+            if (readAheadBlocks == 0 || inFlight != null) {
+                return;
+            }
+            final Set<byte[]> blockNames =
+                    new TreeSet<byte[]>(BYTE_ARRAY_COMPARATOR);
+            FileBlock block = currentBlock;
+            for (int i = 0; block != null && i < readAheadBlocks; i++) {
+                byte[] blockName = block.getBlockName().getBytes();
+                if (!prefetchedBlocks.containsKey(blockName)) {
+                    blockNames.add(blockName);
+                }
+                block = fileDescriptor.getNextBlock(block);
+            }
+            if (blockNames.isEmpty()) {
+                return;
+            }
+            counters.get(Counter.READ_AHEAD_BLOCKS).addAndGet(blockNames.size());
+            inFlightBlockNames.addAll(blockNames);
+            inFlight = getReadAheadExecutor().submit(new Callable<BlockMap>() {
+                public BlockMap call() throws Exception {
+                    return columnOrientedFile.readFileBlocks(fileDescriptor,
+                            blockNames);
+                }
+            });
+        }
+
+        /**
+         * Throw away the prefetched blocks that were never read, and count
+         * them as wasted.
+         */
+        protected void discardReadAhead() {
+            int wasted = prefetchedBlocks.size();
+            if (inFlight != null) {
+                inFlight.cancel(false);
+                wasted += inFlightBlockNames.size();
+                inFlight = null;
+                inFlightBlockNames.clear();
+            }
+            prefetchedBlocks.clear();
+            if (wasted > 0) {
+                counters.get(Counter.READ_AHEAD_WASTED).addAndGet(wasted);
+            }
+        }
+
+        private void resetReadAhead() {
+            prefetchedBlocks = new BlockMap();
+            inFlightBlockNames = new TreeSet<byte[]>(BYTE_ARRAY_COMPARATOR);
+            inFlight = null;
         }
 
         /**
@@ -2020,13 +2363,18 @@ public class CassandraDirectory extends Directory {
             }
         }
 
-        /*
+        /**
+         * Clones read independently of this input, so they start without any
+         * prefetched blocks of their own.
+         */
         @Override
         public CassandraIndexInput clone() {
             CassandraIndexInput clone = (CassandraIndexInput) super.clone();
-            return clone();
+            clone.resetReadAhead();
+            clone.readAheadBlocks = 0;
+            clone.expectedBlock = null;
+            return clone;
         }
-        */
         
         
     }
@@ -2046,9 +2394,25 @@ public class CassandraDirectory extends Directory {
      * </p>
      */
     public class CassandraClient {
-        // The underlying thrift client to delegate requests to.
+        // The underlying thrift client to delegate requests to. Requests are
+        // serialized on this client, as index inputs may prefetch blocks from
+        // a background thread.
         protected Cassandra.Client thriftClient;
 
+        // The consistency level of every class of operation.
+        protected ConsistencyLevels consistencyLevels = new ConsistencyLevels();
+
+        // The hosts to fail over to, as host:port, the given one first.
+        protected List<String> hosts = new ArrayList<String>();
+
+        // The index of the host currently connected to.
+        protected int currentHost;
+
+        // The transport of the current connection.
+        protected TTransport transport;
+
+        private final boolean framed;
+
         /**
          * Construct a Cassandra client that knows how to get/set rows/columns
          * from the given keyspace and column family, residing in the given
@@ -2070,7 +2434,42 @@ public class CassandraDirectory extends Directory {
             logger.trace(String
                     .format("initialize cassandra client with host %s port %s framed %s",
                             host, port, framed));
-            TSocket socket = new TSocket(host, port);
+            this.framed = framed;
+            hosts.add(host + ":" + port);
+            for (String seed : TokenRing.DEFAULT_HOSTS.split(",")) {
+                seed = seed.trim();
+                if (seed.length() > 0) {
+                    seed = seed.indexOf(':') > 0 ? seed : seed + ":" + port;
+                    if (!hosts.contains(seed)) {
+                        hosts.add(seed);
+                    }
+                }
+            }
+            IOException failure = null;
+            for (currentHost = 0; currentHost < hosts.size(); currentHost++) {
+                try {
+                    connect(hosts.get(currentHost));
+                    return;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            throw failure;
+        }
+
+        /**
+         * Open a connection to the given host, creating the keyspace and
+         * column family if they do not exist yet.
+         * 
+         * @param hostAndPort
+         *            the host to connect to, as host:port
+         * @throws IOException
+         */
+        protected void connect(String hostAndPort) throws IOException {
+            int colon = hostAndPort.lastIndexOf(':');
+            TSocket socket =
+                    new TSocket(hostAndPort.substring(0, colon),
+                            Integer.parseInt(hostAndPort.substring(colon + 1)));
             TTransport transport =
                     framed ? new TFramedTransport(socket) : socket;
             try {
@@ -2087,6 +2486,7 @@ public class CassandraDirectory extends Directory {
                 for (KsDef ks : keyspaces) {
                     if (ks.name.equals(keyspace)) {
                         createKeyspace = false;
+                        consistencyLevels.initConsistencyLevels(ks);
                         for (CfDef cf : ks.getCf_defs()) {
                             if (cf.getName().equals(columnFamily)) {
                                 createColumnFamily = false;
@@ -2106,6 +2506,7 @@ public class CassandraDirectory extends Directory {
                                     cfDefs);
                     ksDef.putToStrategy_options("replication_factor", "1");
                     thriftClient.system_add_keyspace(ksDef);
+                    consistencyLevels.initConsistencyLevels(ksDef);
                 }
                 thriftClient.set_keyspace(keyspace);
                 try {
@@ -2117,13 +2518,44 @@ public class CassandraDirectory extends Directory {
                     e.printStackTrace();
                 }
                 thriftClient.login(new AuthenticationRequest(credentials));
+                this.transport = transport;
             } catch (Exception e) {
+                transport.close();
                 e.printStackTrace();
                 throw new IOException("Unable to open connection to keyspace "
                         + keyspace, e);
             }
         }
 
+
+        /**
+         * Connect to the next host that can be reached, after the current one
+         * failed a request with a transport error.
+         * 
+         * @param attempt
+         *            the number of times the request has been failed over
+         * @param cause
+         *            the transport error the request failed with
+         * @return true if the request should be sent again
+         */
+        protected boolean failover(int attempt, TTransportException cause) {
+            if (attempt + 1 >= hosts.size()) {
+                return false;
+            }
+            logger.warn("lost connection to " + hosts.get(currentHost), cause);
+            transport.close();
+            for (int i = 1; i < hosts.size(); i++) {
+                currentHost = (currentHost + 1) % hosts.size();
+                try {
+                    connect(hosts.get(currentHost));
+                    return true;
+                } catch (IOException e) {
+                    logger.warn("unable to fail over to {}", hosts.get(currentHost));
+                }
+            }
+            return false;
+        }
+
         /**
          * Return the keys that define the given column names.
          * 
@@ -2132,44 +2564,51 @@ public class CassandraDirectory extends Directory {
          * @return the rows that contain those columns
          * @throws IOException
          */
-        public byte[][] getKeys(List<byte[]> columnNames) throws IOException {
+        public synchronized byte[][] getKeys(List<byte[]> columnNames) throws IOException {
             logger.trace("getKeys");
-            try {
-                List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
-                for (byte[] b : columnNames) {
-                    converter.add(ByteBuffer.wrap(b));
-                }
-                List<KeySlice> keySlices =
-                        thriftClient
-                                .get_range_slices(
-                                        new ColumnParent()
-                                                .setColumn_family(columnFamily),
-                                        new SlicePredicate()
-                                                .setColumn_names(converter),
-                                        new KeyRange().setStart_key(
-                                                "".getBytes()).setEnd_key(
-                                                "".getBytes()),
-                                        ConsistencyLevel.ONE);
-                List<byte[]> keys = new ArrayList<byte[]>();
-                for (KeySlice keySlice : keySlices) {
-                    List<ColumnOrSuperColumn> coscs = keySlice.getColumns();
-                    if (coscs != null && coscs.size() == 1) {
-                        ColumnOrSuperColumn cosc = coscs.get(0);
-                        Column column = cosc.getColumn();
-                        FileDescriptor fileDescriptor =
-                                FileDescriptorUtils
-                                        .fromBytes(column.getValue());
-                        if (fileDescriptor == null
-                                || fileDescriptor.isDeleted()) {
-                            continue;
+            for (int attempt = 0;; attempt++) {
+                try {
+                    List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
+                    for (byte[] b : columnNames) {
+                        converter.add(ByteBuffer.wrap(b));
+                    }
+                    List<KeySlice> keySlices =
+                            thriftClient
+                                    .get_range_slices(
+                                            new ColumnParent()
+                                                    .setColumn_family(columnFamily),
+                                            new SlicePredicate()
+                                                    .setColumn_names(converter),
+                                            new KeyRange().setStart_key(
+                                                    "".getBytes()).setEnd_key(
+                                                    "".getBytes()),
+                                            consistencyLevels.get(OperationType.LISTING));
+                    List<byte[]> keys = new ArrayList<byte[]>();
+                    for (KeySlice keySlice : keySlices) {
+                        List<ColumnOrSuperColumn> coscs = keySlice.getColumns();
+                        if (coscs != null && coscs.size() == 1) {
+                            ColumnOrSuperColumn cosc = coscs.get(0);
+                            Column column = cosc.getColumn();
+                            FileDescriptor fileDescriptor =
+                                    FileDescriptorUtils
+                                            .fromBytes(column.getValue());
+                            if (fileDescriptor == null
+                                    || fileDescriptor.isDeleted()) {
+                                continue;
+                            }
+                            keys.add(ByteBufferUtil.getArray(keySlice.key));
                         }
-                        keys.add(ByteBufferUtil.getArray(keySlice.key));
                     }
+                    return keys.toArray(new byte[][] {});
+                } catch (TTransportException e) {
+                    if (!failover(attempt, e)) {
+                        throw new IOException("Lost connection to "
+                                + hosts.get(currentHost), e);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    throw new IOException("Unable to list all files in " + keyspace);
                 }
-                return keys.toArray(new byte[][] {});
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new IOException("Unable to list all files in " + keyspace);
             }
         }
 
@@ -2183,30 +2622,37 @@ public class CassandraDirectory extends Directory {
          * @return the values for those columns in that row
          * @throws IOException
          */
-        public Map<byte[], byte[]> getColumns(byte[] key,
+        public synchronized Map<byte[], byte[]> getColumns(byte[] key,
                 Set<byte[]> columnNames) throws IOException {
             logger.trace("getColumns key {}", new String(key));
-            try {
-                List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
-                for (byte[] b : columnNames) {
-                    converter.add(ByteBuffer.wrap(b));
-                }
-                List<ColumnOrSuperColumn> coscs =
-                        thriftClient
-                                .get_slice(ByteBuffer.wrap(key),
-                                        new ColumnParent(columnFamily),
-                                        new SlicePredicate()
-                                                .setColumn_names(converter),
-                                        ConsistencyLevel.ONE);
-                Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
-                for (ColumnOrSuperColumn cosc : coscs) {
-                    Column column = cosc.getColumn();
-                    columns.put(column.getName(), column.getValue());
+            for (int attempt = 0;; attempt++) {
+                try {
+                    List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
+                    for (byte[] b : columnNames) {
+                        converter.add(ByteBuffer.wrap(b));
+                    }
+                    List<ColumnOrSuperColumn> coscs =
+                            thriftClient
+                                    .get_slice(ByteBuffer.wrap(key),
+                                            new ColumnParent(columnFamily),
+                                            new SlicePredicate()
+                                                    .setColumn_names(converter),
+                                            consistencyLevels.get(OperationType.BLOCK_READ));
+                    Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
+                    for (ColumnOrSuperColumn cosc : coscs) {
+                        Column column = cosc.getColumn();
+                        columns.put(column.getName(), column.getValue());
+                    }
+                    return columns;
+                } catch (TTransportException e) {
+                    if (!failover(attempt, e)) {
+                        throw new IOException("Lost connection to "
+                                + hosts.get(currentHost), e);
+                    }
+                } catch (Exception e) {
+                    throw new IOException("Could not read from columns for file "
+                            + key, e);
                 }
-                return columns;
-            } catch (Exception e) {
-                throw new IOException("Could not read from columns for file "
-                        + key, e);
             }
         }
 
@@ -2220,31 +2666,38 @@ public class CassandraDirectory extends Directory {
          * @return the value for that column in this row
          * @throws IOException
          */
-        public byte[] getColumn(byte[] fileName, byte[] columnName)
+        public synchronized byte[] getColumn(byte[] fileName, byte[] columnName)
                 throws IOException {
             logger.trace("getColumn fileName {} columnName {} ", new String(
                     fileName), new String(columnName));
-            try {
-                List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
-                converter.add(ByteBuffer.wrap(columnName));
-                List<ColumnOrSuperColumn> coscs =
-                        thriftClient
-                                .get_slice(
-                                        ByteBuffer.wrap(fileName),
-                                        new ColumnParent()
-                                                .setColumn_family(columnFamily),
-                                        new SlicePredicate()
-                                                .setColumn_names(converter),
-                                        ConsistencyLevel.ONE);
-                if (!coscs.isEmpty()) {
-                    ColumnOrSuperColumn cosc = coscs.get(0);
-                    Column column = cosc.getColumn();
-                    return column.getValue();
+            for (int attempt = 0;; attempt++) {
+                try {
+                    List<ByteBuffer> converter = new ArrayList<ByteBuffer>();
+                    converter.add(ByteBuffer.wrap(columnName));
+                    List<ColumnOrSuperColumn> coscs =
+                            thriftClient
+                                    .get_slice(
+                                            ByteBuffer.wrap(fileName),
+                                            new ColumnParent()
+                                                    .setColumn_family(columnFamily),
+                                            new SlicePredicate()
+                                                    .setColumn_names(converter),
+                                            consistencyLevels.get(OperationType.DESCRIPTOR_READ));
+                    if (!coscs.isEmpty()) {
+                        ColumnOrSuperColumn cosc = coscs.get(0);
+                        Column column = cosc.getColumn();
+                        return column.getValue();
+                    }
+                    return null;
+                } catch (TTransportException e) {
+                    if (!failover(attempt, e)) {
+                        throw new IOException("Lost connection to "
+                                + hosts.get(currentHost), e);
+                    }
+                } catch (Exception e) {
+                    throw new IOException("Unable to read file descriptor for "
+                            + fileName, e);
                 }
-                return null;
-            } catch (Exception e) {
-                throw new IOException("Unable to read file descriptor for "
-                        + fileName, e);
             }
         }
 
@@ -2257,7 +2710,7 @@ public class CassandraDirectory extends Directory {
          *            the values for the columns being updated
          * @throws IOException
          */
-        protected void setColumns(ByteBuffer key,
+        protected synchronized void setColumns(ByteBuffer key,
                 Map<byte[], byte[]> columnValues) throws IOException {
             logger.trace("setColumns");
             Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap =
@@ -2360,11 +2813,30 @@ public class CassandraDirectory extends Directory {
                     mutationList.add(mutation);
                 }
             }
-            try {
-                thriftClient.batch_mutate(mutationMap, ConsistencyLevel.ONE);
-            } catch (Exception e) {
-                throw new IOException("Unable to mutate columns for file "
-                        + key, e);
+            // writes that carry a descriptor or delete a file go at their own level.
+            OperationType type = OperationType.BLOCK_WRITE;
+            if (columnValues == null || columnValues.isEmpty()) {
+                type = OperationType.DESCRIPTOR_WRITE;
+            } else {
+                for (byte[] column : columnValues.keySet()) {
+                    if (Arrays.equals(descriptorColumn.getBytes(), column)) {
+                        type = OperationType.DESCRIPTOR_WRITE;
+                    }
+                }
+            }
+            for (int attempt = 0;; attempt++) {
+                try {
+                    thriftClient.batch_mutate(mutationMap, consistencyLevels.get(type));
+                    return;
+                } catch (TTransportException e) {
+                    if (!failover(attempt, e)) {
+                        throw new IOException("Lost connection to "
+                                + hosts.get(currentHost), e);
+                    }
+                } catch (Exception e) {
+                    throw new IOException("Unable to mutate columns for file "
+                            + key, e);
+                }
             }
         }
     }
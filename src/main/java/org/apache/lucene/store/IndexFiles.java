@@ -7,11 +7,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Date;
+import java.util.Map;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.cassandra.ACassandraFile;
-import org.apache.lucene.cassandra.ACassandraRandomAccessFile;
 import org.apache.lucene.cassandra.FSFile;
 import org.apache.lucene.cassandra.FSRandomAccessFile;
 import org.apache.lucene.cassandra.OpentrackerInfoStream;
@@ -29,6 +28,9 @@ import org.apache.lucene.index.MergePolicy;
 import org.apache.lucene.index.NoMergePolicy;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.monitor.Histogram;
+import org.apache.monitor.MetricGroup;
+import org.apache.monitor.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -286,30 +288,7 @@ public class IndexFiles {
             Date end = new Date();
             System.out.println(end.getTime() - start.getTime()
                     + " total milliseconds");
-            logger.error("write/ ms {}/ {} ms",
-                    ACassandraFile.writeCount, ACassandraFile.writeTime);
-            logger.error("read/ ms {}/ {} ms",
-                    ACassandraRandomAccessFile.readCount, ACassandraRandomAccessFile.readTime);
-            logger.error("seek/ ms {}/ {} ms",
-                    ACassandraRandomAccessFile.seekCount, ACassandraRandomAccessFile.seekTime);
-            logger.error("create/ ms {}/ {} ms",
-                    ACassandraFile.createCount, ACassandraFile.createTime);
-            logger.error("delete/ ms {}/ {} ms",
-                    ACassandraFile.deleteCount, ACassandraFile.deleteTime);
-            logger.error("emptyList/ ms {}/ {} ms",
-                    ACassandraFile.emptyListCount, ACassandraFile.emptyListTime);
-            logger.error("exists/ ms {}/ {} ms",
-                    ACassandraFile.existsCount, ACassandraFile.existsTime);
-            logger.error("list/ ms {}/ {} ms",
-                    ACassandraFile.listCount, ACassandraFile.listTime);
-            logger.error("getACF/ ms {}/ {} ms",
-                    ACassandraFile.getACFCount, ACassandraFile.getACFTime);
-            logger.error("getDNC/ ms {}/ {} ms",
-                    ACassandraFile.getDNCount, ACassandraFile.getDNTime);
-            logger.error("getRAF/ ms {}/ {} ms",
-                    ACassandraFile.getRAFCount, ACassandraFile.getRAFTime);
-            logger.error("write file/ ms {}/ {} ms",
-                    ACassandraFile.writeCount, ACassandraFile.writeTime);
+            logMetrics();
             logger.error("getDNC file/ ms {}/ {} ms",
                     FSFile.getDNCount, FSFile.getDNTime);
             logger.error("write file/ ms {}/ {} ms",
@@ -331,6 +310,19 @@ public class IndexFiles {
         }
     }
 
+    // log the number and total time of the operations on the index so far.
+    private static void logMetrics() {
+        for (MetricGroup group : MetricsRegistry.getGroups()) {
+            for (Map.Entry<String, Histogram> histogram : group
+                    .getHistograms().entrySet()) {
+                logger.error("{} {} {}/ {} ms", new Object[] {
+                        group.getDirectory() + "/" + group.getContext(),
+                        histogram.getKey(), histogram.getValue().getCount(),
+                        histogram.getValue().getSum() / 1000000 });
+            }
+        }
+    }
+
     /**
      * Indexes the given file using the given writer, or if a directory is
      * given, recurses over files and directories found under the give
@@ -461,14 +453,7 @@ public class IndexFiles {
                         logger.error("use memory {}/{} byte",
                                 (runtime.totalMemory() - runtime.freeMemory()),
                                 runtime.totalMemory());
-                        logger.error("write/ ms {}/ {} ms",
-                                ACassandraFile.writeCount, ACassandraFile.writeTime);
-                        logger.error("read/ ms {}/ {} ms",
-                                ACassandraRandomAccessFile.readCount, ACassandraRandomAccessFile.readTime);
-                        logger.error("seek/ ms {}/ {} ms",
-                                ACassandraRandomAccessFile.seekCount, ACassandraRandomAccessFile.seekTime);
-                        logger.error("sync/ ms {}/ {} ms",
-                                ACassandraRandomAccessFile.syncCount, ACassandraRandomAccessFile.syncTime);
+                        logMetrics();
 
                     }
                 }
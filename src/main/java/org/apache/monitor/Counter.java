@@ -3,6 +3,24 @@ package org.apache.monitor;
 public enum Counter {
     
     METRIC_MODE_MERGE,
-    METRIC_TOTAL_MODE_MERGE
+    METRIC_TOTAL_MODE_MERGE,
+    BLOCK_CACHE_HITS,
+    BLOCK_CACHE_MISSES,
+    BLOCK_CACHE_EVICTIONS,
+    BLOCK_CACHE_BYTES,
+    READ_AHEAD_BLOCKS,
+    READ_AHEAD_HITS,
+    READ_AHEAD_WASTED,
+    DESCRIPTOR_CACHE_HITS,
+    DESCRIPTOR_CACHE_MISSES,
+    REAPED_FILES,
+    REAPED_BYTES,
+    ROUTED_REQUESTS,
+    HOST_FAILOVERS,
+    COMPRESSED_BLOCKS,
+    COMPRESSION_INPUT_BYTES,
+    COMPRESSION_OUTPUT_BYTES,
+    COMPRESSION_NANOS,
+    DECOMPRESSION_NANOS
 
 }
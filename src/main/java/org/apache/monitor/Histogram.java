@@ -0,0 +1,134 @@
+package org.apache.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, typically latencies in
+ * nanoseconds or sizes in bytes.
+ *
+ * <p>
+ * Like HdrHistogram, values are counted in buckets whose width grows with the
+ * value: every power of two is split into 16 buckets, so a percentile is
+ * reported within about 6% of the real value, whatever its magnitude, in a
+ * fixed 960 counters. Recording a value is a few atomic increments and never
+ * blocks.
+ * </p>
+ */
+public class Histogram {
+
+    // the number of buckets each power of two is split into.
+    private static final int SUB_BUCKETS = 16;
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int BUCKETS = SUB_BUCKETS * 60;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record the given value, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(getBucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    // values under 16 have a bucket of their own, larger values share one
+    // with the values of the same 4 leading bits.
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) (value >>> shift)
+                - SUB_BUCKETS;
+    }
+
+    // the largest value counted in the given bucket.
+    static long getBucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of the values recorded
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if there are none
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Return the value under which the given percentage of the recorded values
+     * lie, as the upper limit of the bucket it falls in.
+     *
+     * @param percentile
+     *            a percentage between 0 and 100
+     * @return the value at that percentile, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        // the buckets are not read atomically, so count them again.
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank =
+                Math.max(1, (long) Math.ceil(total
+                        * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketLimit(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+}
@@ -28,7 +28,7 @@ public class JmxMonitor {
         monitors = new HashMap<String, OpentrackerClientMonitor>();
     }
     
-    public static JmxMonitor getInstance() {
+    public static synchronized JmxMonitor getInstance() {
         if (monitorInstance == null) {
             monitorInstance = new JmxMonitor();
         }
@@ -91,7 +91,7 @@ public class JmxMonitor {
         return null;
     }
     
-    public OpentrackerClientMonitor getCassandraMonitor(MonitorType monitorType) {
+    public synchronized OpentrackerClientMonitor getCassandraMonitor(MonitorType monitorType) {
         OpentrackerClientMonitor opentrackerClientMonitor = monitors.get(monitorType.getMonitorName());
         if (opentrackerClientMonitor == null) {
             opentrackerClientMonitor = new OpentrackerClientMonitor(monitorType);
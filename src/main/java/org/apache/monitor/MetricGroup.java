@@ -0,0 +1,199 @@
+package org.apache.monitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * The counters and histograms of a directory, for the files opened in one
+ * IOContext (see {@link MetricsRegistry}).
+ *
+ * <p>
+ * Metrics are created on first use and published as the attributes of a
+ * single MBean: a counter as an attribute of its own name, a histogram as
+ * the attributes <code>&lt;name&gt;.count</code>, <code>.mean</code>,
+ * <code>.p50</code>, <code>.p99</code> and <code>.max</code>.
+ * </p>
+ */
+public class MetricGroup implements DynamicMBean {
+
+    private static final String[] HISTOGRAM_ATTRIBUTES = { "count", "mean",
+            "p50", "p99", "max" };
+
+    private final String directory;
+
+    private final String context;
+
+    private final ConcurrentMap<String, AtomicLong> counters =
+            new ConcurrentSkipListMap<String, AtomicLong>();
+
+    private final ConcurrentMap<String, Histogram> histograms =
+            new ConcurrentSkipListMap<String, Histogram>();
+
+    MetricGroup(String directory, String context) {
+        this.directory = directory;
+        this.context = context;
+    }
+
+    /**
+     * @return the directory, as keyspace/columnFamily
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the IOContext the metrics are recorded for
+     */
+    public String getContext() {
+        return context;
+    }
+
+    /**
+     * @return the counter of the given name, created on first use
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return the histogram of the given name, created on first use
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the counters of this group, by name
+     */
+    public Map<String, AtomicLong> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    /**
+     * @return the histograms of this group, by name
+     */
+    public Map<String, Histogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Record the time elapsed since the given {@link System#nanoTime()} in
+     * the histogram of the given name.
+     */
+    public void recordSince(String name, long startNanos) {
+        histogram(name).record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+            throws AttributeNotFoundException {
+        AtomicLong counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        int dot = attribute.lastIndexOf('.');
+        Histogram histogram =
+                dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+        if (histogram != null) {
+            String statistic = attribute.substring(dot + 1);
+            if (statistic.equals("count")) {
+                return histogram.getCount();
+            } else if (statistic.equals("mean")) {
+                return histogram.getMean();
+            } else if (statistic.equals("p50")) {
+                return histogram.getValueAtPercentile(50);
+            } else if (statistic.equals("p99")) {
+                return histogram.getValueAtPercentile(99);
+            } else if (statistic.equals("max")) {
+                return histogram.getMax();
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the JMX specification expects.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params,
+            String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // metrics are created on first use, so the info is built every time.
+        List<MBeanAttributeInfo> attributes =
+                new ArrayList<MBeanAttributeInfo>();
+        for (String name : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true,
+                    false, false));
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            for (String statistic : HISTOGRAM_ATTRIBUTES) {
+                String name = entry.getKey() + "." + statistic;
+                attributes.add(new MBeanAttributeInfo(name, statistic
+                        .equals("mean") ? "double" : "long", name, true,
+                        false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "metrics of " + directory
+                + " in context " + context,
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                new MBeanConstructorInfo[0], new MBeanOperationInfo[0],
+                new MBeanNotificationInfo[0]);
+    }
+
+}
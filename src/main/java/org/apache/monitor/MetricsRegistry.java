@@ -0,0 +1,101 @@
+package org.apache.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The registry of the {@link MetricGroup}s of this JVM, tagged by directory
+ * and by the IOContext of the files they are recorded for.
+ *
+ * <p>
+ * Every group is registered with the {@link JmxMonitor} when it is first
+ * used, under <code>org.apache.service_Metrics_&lt;directory&gt;_&lt;context&gt;</code>.
+ * Operations that are not about a single file, such as the requests of a
+ * client, are recorded in the group of context {@link #ANY_CONTEXT}.
+ * </p>
+ */
+public final class MetricsRegistry {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(MetricsRegistry.class);
+
+    // the context of the metrics that are not about a single file.
+    public static final String ANY_CONTEXT = "all";
+
+    private static final ConcurrentMap<String, MetricGroup> groups =
+            new ConcurrentHashMap<String, MetricGroup>();
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Return the metrics of the given directory and context, creating and
+     * registering them on first use.
+     *
+     * @param directory
+     *            the directory, as keyspace/columnFamily
+     * @param context
+     *            the IOContext, or {@link #ANY_CONTEXT}
+     */
+    public static MetricGroup getGroup(String directory, String context) {
+        String key = directory + "/" + context;
+        MetricGroup group = groups.get(key);
+        if (group == null) {
+            MetricGroup newGroup = new MetricGroup(directory, context);
+            group = groups.putIfAbsent(key, newGroup);
+            if (group == null) {
+                group = newGroup;
+                register(group);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * @return the metrics of the given directory, for files opened in the
+     *         given context (null for files opened without one)
+     */
+    public static MetricGroup getGroup(String keyspace, String columnFamily,
+            Object context) {
+        return getGroup(keyspace + "/" + columnFamily, context == null
+                ? "default" : context.toString().toLowerCase());
+    }
+
+    /**
+     * @return every group used so far
+     */
+    public static List<MetricGroup> getGroups() {
+        return new ArrayList<MetricGroup>(groups.values());
+    }
+
+    private static void register(MetricGroup group) {
+        String name =
+                "org.apache.service_Metrics_"
+                        + group.getDirectory().replace('/', '_') + "_"
+                        + group.getContext();
+        try {
+            JmxMonitor.getInstance().registerMonitor(name, "metrics", group);
+        } catch (MalformedObjectNameException e) {
+            logger.error("", e);
+        } catch (InstanceAlreadyExistsException e) {
+            logger.error("", e);
+        } catch (MBeanRegistrationException e) {
+            logger.error("", e);
+        } catch (NotCompliantMBeanException e) {
+            logger.error("", e);
+        } catch (NullPointerException e) {
+            logger.error("", e);
+        }
+    }
+
+}
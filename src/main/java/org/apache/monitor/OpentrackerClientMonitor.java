@@ -35,12 +35,114 @@ public class OpentrackerClientMonitor implements OpentrackerClientMonitorMBean {
 
     @Override
     public long getMetricModeMerge() {
-        return counters.get(Counter.METRIC_MODE_MERGE).longValue();
+        return getValue(Counter.METRIC_MODE_MERGE);
     }
 
     @Override
     public double getTotalMetricModeMerge() {
-        return counters.get(Counter.METRIC_TOTAL_MODE_MERGE).doubleValue();
+        return getValue(Counter.METRIC_TOTAL_MODE_MERGE);
+    }
+
+    @Override
+    public long getBlockCacheHits() {
+        return getValue(Counter.BLOCK_CACHE_HITS);
+    }
+
+    @Override
+    public long getBlockCacheMisses() {
+        return getValue(Counter.BLOCK_CACHE_MISSES);
+    }
+
+    @Override
+    public long getBlockCacheEvictions() {
+        return getValue(Counter.BLOCK_CACHE_EVICTIONS);
+    }
+
+    @Override
+    public long getBlockCacheBytes() {
+        return getValue(Counter.BLOCK_CACHE_BYTES);
+    }
+
+    @Override
+    public long getReadAheadBlocks() {
+        return getValue(Counter.READ_AHEAD_BLOCKS);
+    }
+
+    @Override
+    public long getReadAheadHits() {
+        return getValue(Counter.READ_AHEAD_HITS);
+    }
+
+    @Override
+    public long getReadAheadWasted() {
+        return getValue(Counter.READ_AHEAD_WASTED);
+    }
+
+    @Override
+    public long getDescriptorCacheHits() {
+        return getValue(Counter.DESCRIPTOR_CACHE_HITS);
+    }
+
+    @Override
+    public long getDescriptorCacheMisses() {
+        return getValue(Counter.DESCRIPTOR_CACHE_MISSES);
+    }
+
+    @Override
+    public long getReapedFiles() {
+        return getValue(Counter.REAPED_FILES);
+    }
+
+    @Override
+    public long getReapedBytes() {
+        return getValue(Counter.REAPED_BYTES);
+    }
+
+    @Override
+    public long getRoutedRequests() {
+        return getValue(Counter.ROUTED_REQUESTS);
+    }
+
+    @Override
+    public long getHostFailovers() {
+        return getValue(Counter.HOST_FAILOVERS);
+    }
+
+    @Override
+    public long getCompressedBlocks() {
+        return getValue(Counter.COMPRESSED_BLOCKS);
+    }
+
+    @Override
+    public long getCompressionInputBytes() {
+        return getValue(Counter.COMPRESSION_INPUT_BYTES);
+    }
+
+    @Override
+    public long getCompressionOutputBytes() {
+        return getValue(Counter.COMPRESSION_OUTPUT_BYTES);
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long input = getValue(Counter.COMPRESSION_INPUT_BYTES);
+        return input == 0 ? 1.0 : (double) getValue(Counter.COMPRESSION_OUTPUT_BYTES) / input;
+    }
+
+    @Override
+    public long getCompressionNanos() {
+        return getValue(Counter.COMPRESSION_NANOS);
+    }
+
+    @Override
+    public long getDecompressionNanos() {
+        return getValue(Counter.DECOMPRESSION_NANOS);
+    }
+
+    // not every monitor type registers every counter.
+    private long getValue(Counter counterType) {
+        AtomicLong counter = counters.get(counterType);
+        return counter == null ? 0 : counter.longValue();
     }
 
 }
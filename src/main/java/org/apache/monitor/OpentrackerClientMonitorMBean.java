@@ -6,4 +6,42 @@ public interface OpentrackerClientMonitorMBean {
     
     public double getTotalMetricModeMerge();
 
+    public long getBlockCacheHits();
+
+    public long getBlockCacheMisses();
+
+    public long getBlockCacheEvictions();
+
+    public long getBlockCacheBytes();
+
+    public long getReadAheadBlocks();
+
+    public long getReadAheadHits();
+
+    public long getReadAheadWasted();
+
+    public long getDescriptorCacheHits();
+
+    public long getDescriptorCacheMisses();
+
+    public long getReapedFiles();
+
+    public long getReapedBytes();
+
+    public long getRoutedRequests();
+
+    public long getHostFailovers();
+
+    public long getCompressedBlocks();
+
+    public long getCompressionInputBytes();
+
+    public long getCompressionOutputBytes();
+
+    public double getCompressionRatio();
+
+    public long getCompressionNanos();
+
+    public long getDecompressionNanos();
+
 }
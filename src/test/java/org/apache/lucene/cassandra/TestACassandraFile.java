@@ -3,6 +3,7 @@ package org.apache.lucene.cassandra;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -283,6 +284,67 @@ public class TestACassandraFile extends OpentrackerTestBase {
      * Note: This default to always lucene0 and index0, which is not good.
      * Putting in here and to improve and change in the future.
      */
+    @Test
+    public void testReadRanges() {
+        try {
+            ACassandraFile writeFile =
+                    new ACassandraFile("/", "removeMe.txt", IOContext.DEFAULT,
+                            true, keyspace, columnFamily, 4);
+            byte[] b = { 70, 69, 68, 67, 66, 65 };
+            writeFile.write(b, 0, b.length);
+            writeFile.close();
+
+            ACassandraFile readFile =
+                    new ACassandraFile("/", "removeMe.txt", IOContext.READ,
+                            true, keyspace, columnFamily, 4);
+            assertEquals(70, readFile.read());
+            ByteBuffer[] dsts = { ByteBuffer.allocate(2), ByteBuffer.allocate(4) };
+            assertEquals(3, readFile.read(new long[] { 3, 5 }, dsts, 0, 2));
+            assertEquals(ByteBuffer.wrap(new byte[] { 67, 66 }), dsts[0].flip());
+            assertEquals(ByteBuffer.wrap(new byte[] { 65 }), dsts[1].flip());
+            // the file pointer has not moved.
+            assertEquals(69, readFile.read());
+            readFile.close();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail("fail is not expected");
+        }
+    }
+
+    @Test
+    public void testWriteAppendOnly() {
+        try {
+            ACassandraFile writeFile =
+                    new ACassandraFile("/", "removeMe.txt", IOContext.DEFAULT,
+                            true, keyspace, columnFamily, 4);
+            writeFile.getFileDescriptor().setAppendOnly(true);
+            byte[] b = { 70, 69, 68, 67, 66, 65 };
+            writeFile.write(b, 0, 3);
+            writeFile.write(b, 3, 3);
+            writeFile.write(64, true);
+            writeFile.close();
+
+            ACassandraFile readFile =
+                    new ACassandraFile("/", "removeMe.txt", IOContext.READ,
+                            true, keyspace, columnFamily, 4);
+            // the file is still laid out in fixed strides.
+            FileDescriptor fd = readFile.getFileDescriptor();
+            assertTrue(fd.isAppendOnly());
+            assertEquals(7, fd.getLength());
+            assertEquals(2, fd.getBlockCount());
+            for (int expected : new int[] { 70, 69, 68, 67, 66, 65, 64 }) {
+                assertEquals(expected, readFile.read());
+            }
+            assertEquals(-1, readFile.read());
+            readFile.close();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail("fail is not expected");
+        }
+    }
+
     @Test
     public void testACassandraFile() {
 
@@ -355,15 +417,21 @@ public class TestACassandraFile extends OpentrackerTestBase {
         // boolean frameMode, String keyspace, String columnFamily, int
         // blockSize) ==
 
-        // prepare data
-        ACassandraFile testFile =
-                new ACassandraFile("/test/dummy/", "removeMeMe.txt",
-                        IOContext.DEFAULT, true, keyspace, columnFamily,
-                        blockSize);
-        testFile.close();
-        assertEquals("/test/dummy", testFile.getParent(true));
-        assertEquals("removeMeMe.txt", testFile.getName());
-        assertEquals("/test/dummy/removeMeMe.txt", testFile.getAbsolutePath());
+        try {
+            // prepare data
+            ACassandraFile testFile =
+                    new ACassandraFile("/test/dummy/", "removeMeMe.txt",
+                            IOContext.DEFAULT, true, keyspace, columnFamily,
+                            blockSize);
+            testFile.close();
+            assertEquals("/test/dummy", testFile.getParent(true));
+            assertEquals("removeMeMe.txt", testFile.getName());
+            assertEquals("/test/dummy/removeMeMe.txt",
+                    testFile.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail("exception is not expected");
+        }
 
         // == ACassandraFile(String directory, String name, IOContext mode,
         // boolean frameMode, String keyspace, String columnFamily, int
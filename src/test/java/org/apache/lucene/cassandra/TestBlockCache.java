@@ -0,0 +1,91 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+public class TestBlockCache {
+
+    @Test
+    public void testGetPut() {
+        BlockCache cache = new BlockCache("test", 1024, false);
+        assertNull(cache.get("/test/_0.tim", "BLOCK-0", 1));
+        cache.put("/test/_0.tim", "BLOCK-0", 1, "123".getBytes());
+        assertArrayEquals("123".getBytes(), cache.get("/test/_0.tim", "BLOCK-0", 1));
+        // a different descriptor version is a miss.
+        assertNull(cache.get("/test/_0.tim", "BLOCK-0", 2));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(3, cache.getSize());
+    }
+
+    @Test
+    public void testOffHeap() {
+        BlockCache cache = new BlockCache("test", 1024, true);
+        byte[] data = "hello world".getBytes();
+        cache.put("/test/_0.doc", "BLOCK-3", 7, data);
+        data[0] = 'j';
+        assertArrayEquals("hello world".getBytes(), cache.get("/test/_0.doc", "BLOCK-3", 7));
+    }
+
+    @Test
+    public void testEviction() {
+        BlockCache cache = new BlockCache("test", 10, false);
+        cache.put("/test/a", "BLOCK-0", 1, new byte[4]);
+        cache.put("/test/a", "BLOCK-1", 1, new byte[4]);
+        // touch BLOCK-0 so that BLOCK-1 is the least recently used.
+        assertNotNull(cache.get("/test/a", "BLOCK-0", 1));
+        cache.put("/test/b", "BLOCK-0", 1, new byte[4]);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(8, cache.getSize());
+        assertNotNull(cache.get("/test/a", "BLOCK-0", 1));
+        assertNull(cache.get("/test/a", "BLOCK-1", 1));
+        assertNotNull(cache.get("/test/b", "BLOCK-0", 1));
+    }
+
+    @Test
+    public void testInvalidate() {
+        BlockCache cache = new BlockCache("test", 1024, false);
+        cache.put("/test/a", "BLOCK-0", 1, new byte[4]);
+        cache.put("/test/a", "BLOCK-1", 1, new byte[4]);
+        cache.put("/test/b", "BLOCK-0", 1, new byte[4]);
+
+        cache.invalidate("/test/a", "BLOCK-1");
+        assertNull(cache.get("/test/a", "BLOCK-1", 1));
+        assertNotNull(cache.get("/test/a", "BLOCK-0", 1));
+
+        cache.invalidate("/test/a");
+        assertNull(cache.get("/test/a", "BLOCK-0", 1));
+        assertNotNull(cache.get("/test/b", "BLOCK-0", 1));
+        assertEquals(4, cache.getSize());
+    }
+
+    @Test
+    public void testGetBuffer() {
+        BlockCache cache = new BlockCache("test", 1 << 20, false);
+        cache.put("/test/_0.tim", "BLOCK-0", 1, ByteBuffer.wrap(new byte[16384]));
+        ByteBuffer block = cache.getBuffer("/test/_0.tim", "BLOCK-0", 1);
+        assertEquals(16384, block.remaining());
+        // the cached block itself is handed out, not a copy of it.
+        assertSame(block.array(), cache.getBuffer("/test/_0.tim", "BLOCK-0", 1).array());
+        assertNull(cache.getBuffer("/test/_0.tim", "BLOCK-0", 2));
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 1000; i++) {
+            cache.getBuffer("/test/_0.tim", "BLOCK-0", 1);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            cache.getBuffer("/test/_0.tim", "BLOCK-0", 1);
+        }
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000 * 1024);
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.monitor.Counter;
+import org.junit.Test;
+
+public class TestBlockCompression {
+
+    // a block that compresses well, like the stored fields of similar
+    // documents.
+    private static byte[] repetitiveBlock(int length) {
+        byte[] block = new byte[length];
+        byte[] text = "{\"title\":\"lucene on cassandra\",\"id\":".getBytes();
+        for (int i = 0; i < length; i++) {
+            block[i] = i % 64 < text.length ? text[i % 64] : (byte) (i / 64);
+        }
+        return block;
+    }
+
+    private static byte[] randomBlock(int length) {
+        byte[] block = new byte[length];
+        new Random(42).nextBytes(block);
+        return block;
+    }
+
+    private static void assertRoundTrip(BlockCompression compression,
+            byte[] block) throws IOException {
+        byte[] value = compression.encode(block);
+        assertArrayEquals(block, compression.decode(value));
+        ByteBuffer decoded = compression.decode(ByteBuffer.wrap(value));
+        byte[] data = new byte[decoded.remaining()];
+        decoded.get(data);
+        assertArrayEquals(block, data);
+    }
+
+    @Test
+    public void testCodecs() throws IOException {
+        for (String name : new String[] { "deflate", "lz4", "snappy", "none" }) {
+            BlockCompression compression =
+                    new BlockCompression("test", BlockCodec.forName(name), 16);
+            assertRoundTrip(compression, repetitiveBlock(16384));
+            assertRoundTrip(compression, repetitiveBlock(100));
+            assertRoundTrip(compression, randomBlock(16384));
+            assertRoundTrip(compression, randomBlock(13));
+            assertRoundTrip(compression, new byte[0]);
+        }
+    }
+
+    @Test
+    public void testCompresses() throws IOException {
+        for (BlockCodec codec : new BlockCodec[] { BlockCodec.DEFLATE,
+                BlockCodec.LZ4 }) {
+            BlockCompression compression =
+                    new BlockCompression("test", codec, 1024);
+            byte[] value = compression.encode(repetitiveBlock(16384));
+            assertEquals(codec.getId(), value[0]);
+            assertTrue(codec + " " + value.length, value.length < 16384 / 2);
+            assertEquals(1, compression.getCounters()
+                    .get(Counter.COMPRESSED_BLOCKS).get());
+            assertTrue(compression.getCompressionRatio() < 0.5);
+        }
+    }
+
+    @Test
+    public void testStoredAsIs() throws IOException {
+        BlockCompression compression =
+                new BlockCompression("test", BlockCodec.LZ4, 1024);
+        // too small to be worth it.
+        assertEquals(0, compression.encode(repetitiveBlock(1000))[0]);
+        // does not compress.
+        assertEquals(0, compression.encode(randomBlock(16384))[0]);
+        assertEquals(0, compression.getCounters()
+                .get(Counter.COMPRESSED_BLOCKS).get());
+    }
+
+    @Test
+    public void testMixedCodecs() throws IOException {
+        byte[] block = repetitiveBlock(16384);
+        byte[] deflated =
+                new BlockCompression("test", BlockCodec.DEFLATE, 0)
+                        .encode(block);
+        // blocks are read back whatever codec the directory uses now.
+        BlockCompression compression =
+                new BlockCompression("test", BlockCodec.LZ4, 0);
+        assertArrayEquals(block, compression.decode(deflated));
+    }
+
+    @Test
+    public void testUnknownCodec() {
+        BlockCompression compression =
+                new BlockCompression("test", BlockCodec.LZ4, 0);
+        try {
+            compression.decode(new byte[] { (byte) 200, 1, 0 });
+            fail("an unknown codec is not expected to decode");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDescriptorFlag() throws IOException {
+        FileDescriptor fd = new FileDescriptor("_0.fdt", 16384);
+        fd.setCompressed(true);
+        byte[] b = FileDescriptorUtils.toBinary(fd);
+        assertEquals(FileDescriptorUtils.CODEC_VERSION, b[1]);
+        assertTrue(FileDescriptorUtils.fromBytes(b, 16384).isCompressed());
+        assertTrue(FileDescriptorUtils.fromJSON(
+                FileDescriptorUtils.toJSON(fd), 16384).isCompressed());
+    }
+
+}
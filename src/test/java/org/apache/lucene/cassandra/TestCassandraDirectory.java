@@ -7,6 +7,8 @@ import java.io.IOException;
 import net.opentracker.test.OpentrackerTestBase;
 
 import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -81,9 +83,14 @@ public class TestCassandraDirectory extends  OpentrackerTestBase {
     @Test
     public void testListAll() {
         try {
+            // files of other directories share the column family.
+            CassandraFile other = new CassandraFile("/other/", "otherFile", IOContext.DEFAULT, true, keyspace, columnFamily, blockSize);
+            other.close();
+            CassandraFile nested = new CassandraFile("/test/nested/", "nestedFile", IOContext.DEFAULT, true, keyspace, columnFamily, blockSize);
+            nested.close();
             String[] files = cassandraDirectory.listAll();
             assertEquals(1, files.length);
-            assertEquals("/test/testFile", files[0]);
+            assertEquals("testFile", files[0]);
         } catch (IOException e) {
             e.printStackTrace();
             fail("fail not expected");
@@ -126,6 +133,26 @@ public class TestCassandraDirectory extends  OpentrackerTestBase {
         }
     }
 
+    @Test
+    public void testCloseOutput() throws IOException {
+        // more than a block, the last of which is only written on close.
+        byte[] data = new byte[blockSize + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        IndexOutput output = cassandraDirectory.createOutput("closeMe", IOContext.DEFAULT);
+        output.writeBytes(data, data.length);
+        output.close();
+
+        // the file opened afresh sees what reached the store.
+        IndexInput input = cassandraDirectory.openInput("closeMe", IOContext.READ);
+        assertEquals(data.length, input.length());
+        byte[] read = new byte[data.length];
+        input.readBytes(read, 0, read.length);
+        assertArrayEquals(data, read);
+        input.close();
+    }
+
     @Test
     public void testDeleteFile() {
         try {
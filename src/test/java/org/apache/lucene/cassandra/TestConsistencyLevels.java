@@ -0,0 +1,70 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KsDef;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.cassandra.ConsistencyLevels.OperationType;
+import org.junit.Test;
+
+public class TestConsistencyLevels {
+
+    @Test
+    public void testNetworkTopologyStrategy() {
+        ConsistencyLevels levels = new ConsistencyLevels();
+        KsDef ksDef = new KsDef();
+        ksDef.setStrategy_class("org.apache.cassandra.locator.NetworkTopologyStrategy");
+        levels.initConsistencyLevels(ksDef);
+        assertEquals(ConsistencyLevel.LOCAL_QUORUM, levels.get(OperationType.BLOCK_READ));
+        assertEquals(ConsistencyLevel.LOCAL_QUORUM, levels.get(OperationType.DESCRIPTOR_READ));
+    }
+
+    @Test
+    public void testSimpleStrategy() {
+        ConsistencyLevels levels = new ConsistencyLevels();
+        levels.set(OperationType.LISTING, ConsistencyLevel.LOCAL_QUORUM);
+        KsDef ksDef = new KsDef();
+        ksDef.setStrategy_class("org.apache.cassandra.locator.SimpleStrategy");
+        levels.initConsistencyLevels(ksDef);
+        // LOCAL_QUORUM is rejected by keyspaces that are not network aware.
+        assertEquals(ConsistencyLevel.QUORUM, levels.get(OperationType.LISTING));
+        assertEquals(ConsistencyLevel.QUORUM, levels.get(OperationType.BLOCK_WRITE));
+        assertEquals(ConsistencyLevel.QUORUM, levels.get(OperationType.DESCRIPTOR_WRITE));
+    }
+
+    @Test
+    public void testRetryLevel() {
+        ConsistencyLevels levels = new ConsistencyLevels();
+        assertNull(levels.getRetryLevel(OperationType.BLOCK_READ));
+        levels.set(OperationType.BLOCK_READ, ConsistencyLevel.ONE);
+        assertEquals(ConsistencyLevel.QUORUM, levels.getRetryLevel(OperationType.BLOCK_READ));
+        levels.set(OperationType.DESCRIPTOR_READ, ConsistencyLevel.ONE);
+        assertEquals(ConsistencyLevel.QUORUM, levels.getRetryLevel(OperationType.BLOCK_READ));
+        levels.set(OperationType.DESCRIPTOR_READ, ConsistencyLevel.ALL);
+        assertEquals(ConsistencyLevel.ALL, levels.getRetryLevel(OperationType.BLOCK_READ));
+    }
+
+    @Test
+    public void testWriteType() {
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        Map<byte[], byte[]> blocks = new HashMap<byte[], byte[]>();
+        blocks.put("BLOCK-0".getBytes(), new byte[16]);
+        rows.put(ByteBufferUtil.bytes("/dir/_0.cfs"), blocks);
+        assertEquals(OperationType.BLOCK_WRITE, CassandraClient.getWriteType(rows));
+        // the descriptor goes in the same batch as the blocks.
+        Map<byte[], byte[]> descriptor = new HashMap<byte[], byte[]>();
+        descriptor.put("DESCRIPTOR".getBytes(), new byte[1]);
+        rows.put(ByteBufferUtil.bytes("/dir/_1.cfs"), descriptor);
+        assertEquals(OperationType.DESCRIPTOR_WRITE, CassandraClient.getWriteType(rows));
+        // deleting a row deletes the file.
+        rows.put(ByteBufferUtil.bytes("/dir/_1.cfs"), null);
+        assertEquals(OperationType.DESCRIPTOR_WRITE, CassandraClient.getWriteType(rows));
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestContentAddressedBlocks {
+
+    private MemoryBlockStore files;
+
+    private MemoryBlockStore blocks;
+
+    private ContentAddressedBlocks contentAddressedBlocks;
+
+    private ColumnOrientedFile file;
+
+    @Before
+    public void setUp() {
+        files = new MemoryBlockStore("ks", "dedup", 16, 0);
+        blocks = new MemoryBlockStore("ks", "dedup_blocks", 16, 0);
+        contentAddressedBlocks = new ContentAddressedBlocks(files, blocks, true);
+        file = new ColumnOrientedFile(files);
+        file.setContentAddressedBlocks(contentAddressedBlocks);
+    }
+
+    private FileDescriptor writeFile(String name, String... values)
+            throws IOException {
+        FileDescriptor descriptor = new FileDescriptor(name, 16);
+        descriptor.setContentRow(ColumnOrientedDirectory.newContentRow(name));
+        descriptor.setContentAddressed(true);
+        descriptor.setAppendOnly(true);
+        BlockMap blockMap = new BlockMap();
+        long length = 0;
+        for (int i = 0; i < values.length; i++) {
+            blockMap.put(FileBlock.createBlockName(i), values[i].getBytes());
+            length += values[i].length();
+        }
+        descriptor.setLength(length);
+        descriptor.layOutFixedStride();
+        file.writeFileBlocks(descriptor, blockMap);
+        return descriptor;
+    }
+
+    @Test
+    public void testDedup() throws IOException {
+        FileDescriptor first = writeFile("/dir/_0.cfs", "0123456789abcdef", "ghij");
+        FileDescriptor second = writeFile("/dir/_1.cfs", "0123456789abcdef", "klmn");
+        // the first block of both files is stored once.
+        assertEquals(3, blocks.getRowCount());
+        assertArrayEquals(ContentAddressedBlocks.hash("ghij".getBytes()).getBytes(),
+                files.getColumn(first.getContentRow().getBytes(), "BLOCK-1".getBytes()));
+
+        first = file.getFileDescriptor("/dir/_0.cfs", 16);
+        assertTrue(first.isContentAddressed());
+        ByteBuffer[] read = file.readFileBlocks(first, 0, 1);
+        assertEquals(ByteBufferUtil.bytes("0123456789abcdef"), read[0]);
+        assertEquals(ByteBufferUtil.bytes("ghij"), read[1]);
+        ByteBuffer range = ByteBuffer.allocate(6);
+        file.readFileRanges(second, new long[] { 14 }, new ByteBuffer[] { range }, 0, 1);
+        assertEquals(ByteBufferUtil.bytes("efklmn"), range.flip());
+
+        // copies only add references.
+        FileDescriptor copy = file.copyFile(second, "/dir/_2.cfs");
+        assertEquals(3, blocks.getRowCount());
+        assertEquals(ByteBufferUtil.bytes("klmn"), file.readFileBlocks(copy, 1, 1)[0]);
+        String hash = ContentAddressedBlocks.hash("klmn".getBytes());
+        assertEquals(3, blocks.getColumns(hash.getBytes()).size());
+    }
+
+    @Test
+    public void testCollect() throws IOException {
+        FileDescriptor first = writeFile("/dir/_0.cfs", "0123456789abcdef", "ghij");
+        FileDescriptor second = writeFile("/dir/_1.cfs", "0123456789abcdef");
+        // the last block of the first file is written over.
+        BlockMap blockMap = new BlockMap();
+        blockMap.put("BLOCK-1", "ghijkl".getBytes());
+        first.setLength(22);
+        file.writeFileBlocks(first, blockMap);
+        // the three blocks, and the candidates row listing the one written
+        // over.
+        assertEquals(4, blocks.getRowCount());
+
+        // the first pass drops the stale reference, the next one the block.
+        assertEquals(0, contentAddressedBlocks.collect(0));
+        assertEquals(4, contentAddressedBlocks.collect(0));
+        assertEquals(2, blocks.getRowCount());
+
+        // blocks referenced by another file stay.
+        file.deleteContentRow(first);
+        assertEquals(0, contentAddressedBlocks.collect(0));
+        assertEquals(6, contentAddressedBlocks.collect(0));
+        assertEquals(1, blocks.getRowCount());
+        assertEquals(ByteBufferUtil.bytes("0123456789abcdef"),
+                file.readFileBlocks(second, 0, 0)[0]);
+
+        // nothing is collected within the grace period.
+        file.deleteContentRow(second);
+        assertEquals(0, contentAddressedBlocks.collect(60000));
+        assertEquals(0, contentAddressedBlocks.collect(0));
+        assertEquals(16, contentAddressedBlocks.collect(0));
+        // the candidates row is empty, and thus gone.
+        assertEquals(0, blocks.getRowCount());
+    }
+
+    @Test
+    public void testCollectOnlyCandidates() throws IOException {
+        FileDescriptor first = writeFile("/dir/_0.cfs", "0123456789abcdef", "ghij");
+        writeFile("/dir/_1.cfs", "0123456789abcdef", "klmn");
+        // no reference is checked while no block lost one.
+        long checks = files.getMetrics().histogram("client.getColumn").getCount();
+        assertEquals(0, contentAddressedBlocks.collect(0));
+        assertEquals(0, contentAddressedBlocks.collect(0));
+        assertEquals(checks, files.getMetrics().histogram("client.getColumn").getCount());
+
+        // blocks orphaned before candidates were listed are swept up.
+        files.setColumns(ByteBufferUtil.bytes(first.getContentRow()), null);
+        assertEquals(3, contentAddressedBlocks.sweep());
+        assertEquals(0, contentAddressedBlocks.collect(0));
+        assertEquals(4, contentAddressedBlocks.collect(0));
+        assertEquals(2, blocks.getRowCount());
+    }
+
+    @Test
+    public void testCollectRace() throws IOException {
+        // the block is written again by another file right before it is
+        // deleted, with an older timestamp than the deletion.
+        final MemoryBlockStore racingBlocks =
+                new MemoryBlockStore("ks", "race_blocks", 16, 0) {
+                    @Override
+                    public void setColumns(ByteBuffer key,
+                            Map<byte[], byte[]> columnValues) {
+                        for (Map.Entry<byte[], byte[]> column : columnValues.entrySet()) {
+                            if ("DATA".equals(new String(column.getKey()))
+                                    && column.getValue() == null) {
+                                try {
+                                    writeFile("/dir/_1.cfs", "ghij");
+                                } catch (IOException e) {
+                                    throw new IllegalStateException(e);
+                                }
+                            }
+                        }
+                        super.setColumns(key, columnValues);
+                    }
+                };
+        contentAddressedBlocks = new ContentAddressedBlocks(files, racingBlocks, true);
+        file.setContentAddressedBlocks(contentAddressedBlocks);
+        FileDescriptor first = writeFile("/dir/_0.cfs", "ghij");
+        file.deleteContentRow(first);
+        assertEquals(0, contentAddressedBlocks.collect(0));
+
+        // the block is put back, rather than lost.
+        assertEquals(0, contentAddressedBlocks.collect(0));
+        FileDescriptor second = file.getFileDescriptor("/dir/_1.cfs", 16);
+        assertEquals(ByteBufferUtil.bytes("ghij"), file.readFileBlocks(second, 0, 0)[0]);
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestDescriptorCache {
+
+    @Test
+    public void testGetPut() {
+        DescriptorCache cache = new DescriptorCache("test", 60000, 16);
+        assertNull(cache.get("/test/_0.tim"));
+        FileDescriptor fd = new FileDescriptor("/test/_0.tim", 16384);
+        cache.put("/test/_0.tim", fd);
+        assertSame(fd, cache.get("/test/_0.tim").getDescriptor());
+        // a deleted file is cached as missing.
+        cache.put("/test/_0.tim", null);
+        assertNotNull(cache.get("/test/_0.tim"));
+        assertFalse(cache.get("/test/_0.tim").exists());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testLoadDoesNotOverwrite() {
+        DescriptorCache cache = new DescriptorCache("test", 60000, 16);
+        FileDescriptor fd = new FileDescriptor("/test/_0.doc", 16384);
+        cache.put("/test/_0.doc", fd);
+        // a load that raced with the write through is dropped.
+        cache.load("/test/_0.doc", null);
+        assertSame(fd, cache.get("/test/_0.doc").getDescriptor());
+        cache.invalidate("/test/_0.doc");
+        cache.load("/test/_0.doc", null);
+        assertFalse(cache.get("/test/_0.doc").exists());
+    }
+
+    @Test
+    public void testOlderVersionIsIgnored() {
+        DescriptorCache cache = new DescriptorCache("test", 60000, 16);
+        FileDescriptor newer = new FileDescriptor("/test/_0.fdt", 16384);
+        newer.setLastModified(2000);
+        FileDescriptor older = new FileDescriptor("/test/_0.fdt", 16384);
+        older.setLastModified(1000);
+        cache.put("/test/_0.fdt", newer);
+        cache.put("/test/_0.fdt", older);
+        assertSame(newer, cache.get("/test/_0.fdt").getDescriptor());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        DescriptorCache cache = new DescriptorCache("test", 10, 16);
+        cache.put("/test/_0.fdx", new FileDescriptor("/test/_0.fdx", 16384));
+        Thread.sleep(50);
+        assertNull(cache.get("/test/_0.fdx"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testMaxEntries() {
+        DescriptorCache cache = new DescriptorCache("test", 60000, 2);
+        cache.put("/test/a", null);
+        cache.put("/test/b", null);
+        // touch a so that b is the least recently used.
+        assertNotNull(cache.get("/test/a"));
+        cache.put("/test/c", null);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("/test/b"));
+        assertNotNull(cache.get("/test/a"));
+    }
+
+}
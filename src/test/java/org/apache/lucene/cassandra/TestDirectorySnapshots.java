@@ -0,0 +1,160 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDirectorySnapshots {
+
+    private MemoryBlockStore store;
+
+    private ColumnOrientedDirectory directory;
+
+    private ColumnOrientedFile file;
+
+    private DirectorySnapshots snapshots;
+
+    @Before
+    public void setUp() {
+        store = new MemoryBlockStore("ks", "snapshots", 16, 0);
+        directory = new ColumnOrientedDirectory(store, 16);
+        file = new ColumnOrientedFile(store);
+        snapshots = new DirectorySnapshots(store, 16);
+    }
+
+    private static FileDescriptor newFile(String fileName) {
+        FileDescriptor descriptor = new FileDescriptor(fileName, 16);
+        descriptor.setContentRow(ColumnOrientedDirectory.newContentRow(fileName));
+        return descriptor;
+    }
+
+    private void write(FileDescriptor descriptor, String value)
+            throws IOException {
+        descriptor.setLength(value.length());
+        descriptor.layOutFixedStride();
+        BlockMap blocks = new BlockMap();
+        blocks.put("BLOCK-0", value.getBytes());
+        file.writeFileBlocks(descriptor, blocks);
+    }
+
+    private String read(String fileName) throws IOException {
+        return ByteBufferUtil.string(file.readFileBlocks(
+                file.getFileDescriptor(fileName, 16), 0, 0)[0]);
+    }
+
+    @Test
+    public void testRestore() throws IOException {
+        FileDescriptor segment = newFile("/dir/_0.cfs");
+        segment.setAppendOnly(true);
+        write(segment, "0123456789abcdef");
+        FileDescriptor segments = newFile("/dir/segments_1");
+        write(segments, "klmn");
+
+        Map<String, FileDescriptor> taken = snapshots.create("first",
+                Arrays.asList("/dir/_0.cfs", "/dir/segments_1"));
+        assertEquals(segment.getContentRow(),
+                taken.get("/dir/_0.cfs").getContentRow());
+        assertEquals(Arrays.asList("first"), snapshots.list());
+        try {
+            snapshots.create("first", Collections.<String> emptyList());
+            fail("taking a snapshot twice is not expected");
+        } catch (IOException e) {
+        }
+
+        // the blocks of pinned content rows outlive their file.
+        file.deleteContentRow(segment);
+        assertEquals(0, file.deleteFileBlocks(segment, false));
+        directory.removeFileDescriptor("/dir/_0.cfs");
+        FileDescriptor rewritten = newFile("/dir/segments_1");
+        write(rewritten, "zzzz");
+        directory.setFileDescriptor(rewritten);
+        assertNull(file.getFileDescriptor("/dir/_0.cfs", 16));
+
+        snapshots.restore("first");
+        assertEquals("0123456789abcdef", read("/dir/_0.cfs"));
+        assertEquals("klmn", read("/dir/segments_1"));
+        assertTrue(store.getColumns(rewritten.getContentRow().getBytes())
+                .isEmpty());
+        assertTrue(Arrays.asList(directory.getFileNames()).containsAll(
+                Arrays.asList("/dir/_0.cfs", "/dir/segments_1")));
+        // restoring again changes nothing.
+        snapshots.restore("first");
+        assertEquals("klmn", read("/dir/segments_1"));
+
+        // the restored files still refer to the content rows.
+        snapshots.delete("first");
+        assertTrue(snapshots.list().isEmpty());
+        assertNull(snapshots.get("first"));
+        assertEquals("0123456789abcdef", read("/dir/_0.cfs"));
+    }
+
+    @Test
+    public void testPinLegacyRow() throws IOException, InterruptedException {
+        // a file written before content rows existed.
+        FileDescriptor segments = new FileDescriptor("/dir/segments_2", 16);
+        write(segments, "klmn");
+        Map<String, FileDescriptor> taken = snapshots.create("legacy",
+                Arrays.asList("/dir/segments_2"));
+        // its own row is pinned rather than copied.
+        assertFalse(taken.get("/dir/segments_2").hasContentRow());
+        assertTrue(file.isPinned("/dir/segments_2"));
+
+        // the reaper leaves the deleted file alone while it is pinned.
+        FileDescriptor deleted = file.getFileDescriptor("/dir/segments_2", 16);
+        deleted.setDeleted(true);
+        deleted.setLastModified(0);
+        directory.setFileDescriptor(deleted);
+        new FileReaper(store, 16, 0, 0).reap();
+        assertNotNull(directory.getFileDescriptorIncludingDeleted("/dir/segments_2"));
+
+        // a file re-created under that name does not write over the blocks.
+        FileDescriptor recreated =
+                directory.getFileDescriptor("/dir/segments_2", true);
+        assertTrue(recreated.hasContentRow());
+        write(recreated, "zzzz");
+        assertEquals("zzzz", read("/dir/segments_2"));
+        assertArrayEquals("klmn".getBytes(), store.getColumn(
+                "/dir/segments_2".getBytes(), "BLOCK-0".getBytes()));
+
+        snapshots.restore("legacy");
+        assertEquals("klmn", read("/dir/segments_2"));
+        assertTrue(store.getColumns(recreated.getContentRow().getBytes())
+                .isEmpty());
+
+        // once unpinned, the row goes the way of any deleted file.
+        snapshots.delete("legacy");
+        assertFalse(file.isPinned("/dir/segments_2"));
+        deleted = file.getFileDescriptor("/dir/segments_2", 16);
+        deleted.setDeleted(true);
+        deleted.setLastModified(0);
+        directory.setFileDescriptor(deleted);
+        new FileReaper(store, 16, 0, 0).reap();
+        assertNull(directory.getFileDescriptorIncludingDeleted("/dir/segments_2"));
+        assertTrue(store.getColumns("/dir/segments_2".getBytes()).isEmpty());
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        FileDescriptor segment = newFile("/dir/_1.cfs");
+        write(segment, "0123456789abcdef");
+        snapshots.create("second", Arrays.asList("/dir/_1.cfs"));
+        snapshots.create("third", Arrays.asList("/dir/_1.cfs"));
+        file.deleteContentRow(segment);
+        directory.removeFileDescriptor("/dir/_1.cfs");
+
+        // the content row goes with the last snapshot that pins it.
+        snapshots.delete("second");
+        assertFalse(store.getColumns(segment.getContentRow().getBytes()).isEmpty());
+        snapshots.delete("third");
+        assertTrue(store.getColumns(segment.getContentRow().getBytes()).isEmpty());
+        assertFalse(file.isPinned(segment.getContentRow()));
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.monitor.MetricGroup;
+import org.apache.monitor.MetricsRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedBlocks {
+
+    private static final int BLOCK_SIZE = 16;
+
+    private MemoryBlockStore store;
+
+    private ColumnOrientedFile file;
+
+    private FileDescriptor descriptor;
+
+    private MetricGroup metrics;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new MemoryBlockStore("ks", "mapped", BLOCK_SIZE, 0);
+        file = new ColumnOrientedFile(store);
+        metrics = MetricsRegistry.getGroup("ks/mapped", "test");
+        descriptor = new FileDescriptor("/dir/_0.tim", BLOCK_SIZE);
+        descriptor.setAppendOnly(true);
+        descriptor.setLength(40);
+        descriptor.layOutFixedStride();
+        BlockMap blocks = new BlockMap();
+        for (int block = 0; block < 3; block++) {
+            byte[] data = new byte[block < 2 ? BLOCK_SIZE : 8];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (block * BLOCK_SIZE + i);
+            }
+            blocks.put(FileBlock.createBlockName(block), data);
+        }
+        file.writeFileBlocks(descriptor, blocks);
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        PagePool pool = new PagePool(1024, metrics);
+        MappedBlocks mapped = new MappedBlocks(file, descriptor, pool, 0, 40);
+        assertEquals(40, mapped.length());
+        assertEquals(17, mapped.get(17));
+
+        // reads across pages.
+        byte[] b = new byte[30];
+        mapped.get(5, b, 0, 30);
+        for (int i = 0; i < b.length; i++) {
+            assertEquals(5 + i, b[i]);
+        }
+        assertEquals(40, pool.getSize());
+
+        // slices read relative to their start, and share the pages.
+        MappedBlocks slice = mapped.slice(10, 20);
+        assertEquals(20, slice.length());
+        ByteBuffer dst = ByteBuffer.allocate(20);
+        slice.get(0, dst);
+        assertEquals(0, dst.remaining());
+        assertEquals(29, dst.get(19));
+        assertEquals(40, pool.getSize());
+
+        try {
+            slice.get(15, new byte[6], 0, 6);
+            fail("reads past the end of the slice are not expected");
+        } catch (EOFException e) {
+        }
+    }
+
+    @Test
+    public void testPool() throws IOException {
+        // room for two pages only.
+        PagePool pool = new PagePool(2 * BLOCK_SIZE, metrics);
+        long evictions = metrics.counter("pagePool.evictions").get();
+        MappedBlocks mapped = new MappedBlocks(file, descriptor, pool, 0, 40);
+        mapped.get(0);
+        mapped.get(20);
+        assertEquals(2 * BLOCK_SIZE, pool.getSize());
+        assertNotNull(pool.get(descriptor.getName(), 0,
+                descriptor.getLastModified()));
+        mapped.get(35);
+        assertEquals(BLOCK_SIZE + 8, pool.getSize());
+        assertEquals(evictions + 1, metrics.counter("pagePool.evictions").get());
+
+        // pages of another version of the file are not picked up.
+        assertNull(pool.get(descriptor.getName(), 2,
+                descriptor.getLastModified() + 1));
+
+        // nor those of a deleted file.
+        pool.invalidate(descriptor.getName());
+        assertEquals(0, pool.getSize());
+        assertEquals(0, mapped.duplicate().get(0));
+    }
+
+    @Test
+    public void testUnmappable() throws IOException {
+        try {
+            new MappedBlocks(file, descriptor, null, 30, 20);
+            fail("mapping past the end of the file is not expected");
+        } catch (IOException e) {
+        }
+        descriptor.setAppendOnly(false);
+        try {
+            new MappedBlocks(file, descriptor, null, 0, 40);
+            fail("mapping a file of the legacy layout is not expected");
+        } catch (IOException e) {
+        }
+    }
+
+}
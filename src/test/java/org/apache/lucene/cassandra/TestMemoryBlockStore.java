@@ -0,0 +1,288 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+public class TestMemoryBlockStore {
+
+    private static Map<byte[], byte[]> columns(String... namesAndValues) {
+        Map<byte[], byte[]> columns = new HashMap<byte[], byte[]>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            columns.put(namesAndValues[i].getBytes(),
+                    namesAndValues[i + 1] == null ? null
+                            : namesAndValues[i + 1].getBytes());
+        }
+        return columns;
+    }
+
+    @Test
+    public void testColumns() throws IOException {
+        MemoryBlockStore store = new MemoryBlockStore("ks", "cf", 16384, 0);
+        store.setColumns(ByteBufferUtil.bytes("/a"),
+                columns("BLOCK-0", "zero", "BLOCK-1", "one", "DESCRIPTOR", "d"));
+        assertArrayEquals("one".getBytes(),
+                store.getColumn("/a".getBytes(), "BLOCK-1".getBytes()));
+        assertNull(store.getColumn("/a".getBytes(), "BLOCK-2".getBytes()));
+        assertNull(store.getColumn("/b".getBytes(), "BLOCK-0".getBytes()));
+        assertEquals(3, store.getColumns("/a".getBytes()).size());
+
+        Set<byte[]> names = new HashSet<byte[]>();
+        names.add("BLOCK-0".getBytes());
+        names.add("BLOCK-2".getBytes());
+        Map<byte[], byte[]> values = store.getColumns("/a".getBytes(), names);
+        assertEquals(1, values.size());
+        assertArrayEquals("zero".getBytes(), values.values().iterator().next());
+
+        ByteBuffer[] buffers =
+                store.getColumnValues("/a".getBytes(), Arrays.asList(
+                        ByteBufferUtil.bytes("BLOCK-1"),
+                        ByteBufferUtil.bytes("BLOCK-2"),
+                        ByteBufferUtil.bytes("BLOCK-0")));
+        assertEquals(ByteBufferUtil.bytes("one"), buffers[0]);
+        assertNull(buffers[1]);
+        assertEquals(ByteBufferUtil.bytes("zero"), buffers[2]);
+
+        // values are copies, both ways.
+        store.getColumn("/a".getBytes(), "BLOCK-0".getBytes())[0] = 'x';
+        assertArrayEquals("zero".getBytes(),
+                store.getColumn("/a".getBytes(), "BLOCK-0".getBytes()));
+
+        // pages come in column name order.
+        BlockMap page = store.getColumns("/a".getBytes(), new byte[0], 2);
+        assertEquals(Arrays.asList("BLOCK-0", "BLOCK-1"), names(page));
+        page = store.getColumns("/a".getBytes(), "BLOCK-1".getBytes(), 2);
+        assertEquals(Arrays.asList("BLOCK-1", "DESCRIPTOR"), names(page));
+
+        // null values delete their column, no columns at all the row.
+        store.setColumns(ByteBufferUtil.bytes("/a"), columns("BLOCK-1", null));
+        assertNull(store.getColumn("/a".getBytes(), "BLOCK-1".getBytes()));
+        assertEquals(2, store.getColumns("/a".getBytes()).size());
+        store.setColumns(ByteBufferUtil.bytes("/a"), new HashMap<byte[], byte[]>());
+        assertEquals(0, store.getRowCount());
+    }
+
+    private static List<String> names(BlockMap columns) {
+        List<String> names = new ArrayList<String>();
+        for (byte[] name : columns.keySet()) {
+            names.add(new String(name));
+        }
+        return names;
+    }
+
+    @Test
+    public void testRows() throws IOException {
+        MemoryBlockStore store = new MemoryBlockStore("ks", "cf", 16384, 0);
+        Map<ByteBuffer, Map<byte[], byte[]>> rows =
+                new HashMap<ByteBuffer, Map<byte[], byte[]>>();
+        for (String key : new String[] { "/c", "/a", "/d", "/b" }) {
+            rows.put(ByteBufferUtil.bytes(key), columns("DESCRIPTOR", key));
+        }
+        rows.put(ByteBufferUtil.bytes("/e"), columns("BLOCK-0", "e"));
+        store.setColumns(rows);
+
+        LinkedHashMap<String, byte[]> page =
+                store.getColumnOfRows("DESCRIPTOR".getBytes(), new byte[0], 3);
+        assertEquals(Arrays.asList("/a", "/b", "/c"),
+                new ArrayList<String>(page.keySet()));
+        page = store.getColumnOfRows("DESCRIPTOR".getBytes(), "/c".getBytes(), 3);
+        assertEquals(Arrays.asList("/c", "/d", "/e"),
+                new ArrayList<String>(page.keySet()));
+        assertNull(page.get("/e"));
+
+        Map<String, byte[]> values =
+                store.getColumnOfKeys(Arrays.asList("/d".getBytes(),
+                        "/x".getBytes()), "DESCRIPTOR".getBytes());
+        assertArrayEquals("/d".getBytes(), values.get("/d"));
+        assertTrue(values.containsKey("/x"));
+        assertNull(values.get("/x"));
+    }
+
+    @Test
+    public void testFiles() throws IOException {
+        MemoryBlockStore store = new MemoryBlockStore("ks", "files", 16, 0);
+        ColumnOrientedDirectory directory = new ColumnOrientedDirectory(store, 16);
+        ColumnOrientedFile file = new ColumnOrientedFile(store);
+
+        FileDescriptor descriptor = new FileDescriptor("/dir/_0.cfs", 16);
+        descriptor.setLength(20);
+        descriptor.layOutFixedStride();
+        BlockMap blocks = new BlockMap();
+        blocks.put("BLOCK-0", "0123456789abcdef".getBytes());
+        blocks.put("BLOCK-1", "ghij".getBytes());
+        file.writeFileBlocks(descriptor, blocks);
+
+        assertEquals(20, file.getFileDescriptor("/dir/_0.cfs", 16).getLength());
+        assertTrue(Arrays.asList(directory.getFileNames()).contains(
+                "/dir/_0.cfs"));
+        ByteBuffer[] read = file.readFileBlocks(
+                file.getFileDescriptor("/dir/_0.cfs", 16), 0, 1);
+        assertEquals(ByteBufferUtil.bytes("ghij"), read[1]);
+
+        byte[][] keys =
+                store.getKeys(Arrays.asList("DESCRIPTOR".getBytes()), 100, false);
+        assertEquals(1, keys.length);
+        assertEquals("/dir/_0.cfs", new String(keys[0]));
+    }
+
+    @Test
+    public void testRebuildManifest() throws IOException {
+        final ColumnOrientedDirectory[] deleter = new ColumnOrientedDirectory[1];
+        MemoryBlockStore store = new MemoryBlockStore("ks", "rebuild", 16, 0) {
+            @Override
+            public void setColumns(ByteBuffer key,
+                    Map<byte[], byte[]> columnValues) {
+                // a file is deleted while the rebuild lists it.
+                if (deleter[0] != null && key.equals(ByteBufferUtil.bytes("__MANIFEST__"))) {
+                    try {
+                        deleter[0].removeFileDescriptor("/dir/_1.cfs");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    deleter[0] = null;
+                }
+                super.setColumns(key, columnValues);
+            }
+        };
+        ColumnOrientedDirectory directory = new ColumnOrientedDirectory(store, 16);
+        directory.setFileDescriptor(new FileDescriptor("/dir/_0.cfs", 16));
+        directory.setFileDescriptor(new FileDescriptor("/dir/_1.cfs", 16));
+        // a directory written before the manifest existed.
+        store.setColumns(ByteBufferUtil.bytes("__MANIFEST__"),
+                new HashMap<byte[], byte[]>());
+
+        deleter[0] = directory;
+        assertEquals(Arrays.asList("/dir/_0.cfs"),
+                Arrays.asList(directory.getFileNames()));
+        assertNull(deleter[0]);
+        assertEquals(Arrays.asList("/dir/_0.cfs"),
+                Arrays.asList(directory.getFileNames()));
+    }
+
+    @Test
+    public void testFileRanges() throws IOException {
+        MemoryBlockStore store = new MemoryBlockStore("ks", "ranges", 16, 0);
+        ColumnOrientedFile file = new ColumnOrientedFile(store);
+        FileDescriptor descriptor = new FileDescriptor("/dir/_0.cfs", 16);
+        descriptor.setAppendOnly(true);
+        descriptor.setLength(40);
+        descriptor.layOutFixedStride();
+        BlockMap blocks = new BlockMap();
+        blocks.put("BLOCK-0", "0123456789abcdef".getBytes());
+        blocks.put("BLOCK-1", "ghijklmnopqrstuv".getBytes());
+        blocks.put("BLOCK-2", "wxyzABCD".getBytes());
+        file.writeFileBlocks(descriptor, blocks);
+
+        // a range across two blocks, one within a block, one cut short by
+        // the end of the file and one past it.
+        ByteBuffer[] dsts = { ByteBuffer.allocate(6), ByteBuffer.allocate(3),
+                ByteBuffer.allocateDirect(10), ByteBuffer.allocate(2) };
+        long[] positions = { 13, 2, 36, 40 };
+        long reads = store.getMetrics()
+                .histogram("client.getColumnValues").getCount();
+        assertEquals(13, file.readFileRanges(descriptor, positions, dsts, 0, 4));
+        assertEquals(reads + 1, store.getMetrics()
+                .histogram("client.getColumnValues").getCount());
+        assertEquals(ByteBufferUtil.bytes("defghi"), dsts[0].flip());
+        assertEquals(ByteBufferUtil.bytes("234"), dsts[1].flip());
+        assertEquals(ByteBufferUtil.bytes("ABCD"), dsts[2].flip());
+        assertEquals(0, dsts[3].position());
+
+        assertEquals(-1, file.readFileRanges(descriptor, positions,
+                new ByteBuffer[] { null, null, null, ByteBuffer.allocate(2) },
+                3, 1));
+    }
+
+    @Test
+    public void testCopyAndRename() throws IOException {
+        MemoryBlockStore store = new MemoryBlockStore("ks", "copies", 16, 0);
+        ColumnOrientedDirectory directory = new ColumnOrientedDirectory(store, 16);
+        ColumnOrientedFile file = new ColumnOrientedFile(store);
+        // one block per chunk.
+        file.setBatchBytes(16);
+
+        FileDescriptor descriptor = new FileDescriptor("/dir/_0.cfs", 16);
+        descriptor.setContentRow(ColumnOrientedDirectory.newContentRow("/dir/_0.cfs"));
+        descriptor.setAppendOnly(true);
+        descriptor.setLength(20);
+        descriptor.layOutFixedStride();
+        BlockMap blocks = new BlockMap();
+        blocks.put("BLOCK-0", "0123456789abcdef".getBytes());
+        blocks.put("BLOCK-1", "ghij".getBytes());
+        file.writeFileBlocks(descriptor, blocks);
+        assertNull(store.getColumn("/dir/_0.cfs".getBytes(), "BLOCK-0".getBytes()));
+        assertNotNull(store.getColumn(descriptor.getContentRow().getBytes(),
+                "BLOCK-0".getBytes()));
+
+        FileDescriptor copy = file.copyFile(descriptor, "/dir/_1.cfs");
+        assertFalse(copy.getContentRow().equals(descriptor.getContentRow()));
+        copy = file.getFileDescriptor("/dir/_1.cfs", 16);
+        assertEquals(20, copy.getLength());
+        assertEquals(ByteBufferUtil.bytes("ghij"), file.readFileBlocks(copy, 0, 1)[1]);
+
+        // renaming a file with a content row of its own writes no block.
+        long writes = store.getMetrics().counter("block.writes").get();
+        assertTrue(file.renameFile(descriptor, new FileDescriptor("/dir/_2.cfs", 16)));
+        assertEquals(writes, store.getMetrics().counter("block.writes").get());
+        FileDescriptor renamed = file.getFileDescriptor("/dir/_2.cfs", 16);
+        assertEquals(descriptor.getContentRow(), renamed.getContentRow());
+        assertEquals(ByteBufferUtil.bytes("0123456789abcdef"),
+                file.readFileBlocks(renamed, 0, 1)[0]);
+        assertNull(file.getFileDescriptor("/dir/_0.cfs", 16));
+
+        // files without one are copied over.
+        FileDescriptor legacy = new FileDescriptor("/dir/_3.cfs", 16);
+        legacy.setLength(4);
+        legacy.layOutFixedStride();
+        blocks = new BlockMap();
+        blocks.put("BLOCK-0", "klmn".getBytes());
+        file.writeFileBlocks(legacy, blocks);
+        assertTrue(file.renameFile(legacy, new FileDescriptor("/dir/_4.cfs", 16)));
+        renamed = file.getFileDescriptor("/dir/_4.cfs", 16);
+        assertEquals(ByteBufferUtil.bytes("klmn"), file.readFileBlocks(renamed, 0, 0)[0]);
+
+        assertEquals(new HashSet<String>(Arrays.asList("/dir/_1.cfs",
+                "/dir/_2.cfs", "/dir/_4.cfs")), new HashSet<String>(
+                Arrays.asList(directory.getFileNames())));
+        // the manifest, a descriptor and content row per file, and the row
+        // of the copy of the legacy file, which keeps its blocks.
+        assertEquals(6, store.getRowCount());
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore("ks", "slow", 16384, 20000);
+        long start = System.nanoTime();
+        store.getColumn("/a".getBytes(), "DESCRIPTOR".getBytes());
+        assertTrue(System.nanoTime() - start >= 20000000L);
+
+        // asynchronous requests wait out their latency side by side.
+        start = System.nanoTime();
+        List<Future<Void>> writes = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 8; i++) {
+            writes.add(store.setColumnsAsync(ByteBufferUtil.bytes("/" + i),
+                    columns("BLOCK-0", "x")));
+        }
+        for (Future<Void> write : writes) {
+            CassandraClient.await(write);
+        }
+        assertTrue(System.nanoTime() - start < 8 * 20000000L);
+        assertEquals(8, store.getRowCount());
+        assertEquals(1, store.getMetrics().getHistograms()
+                .get("client.getColumn").getCount());
+    }
+
+}
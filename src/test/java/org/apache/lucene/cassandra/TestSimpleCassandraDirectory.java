@@ -3,12 +3,19 @@ package org.apache.lucene.cassandra;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.opentracker.test.OpentrackerTestBase;
 
 import org.apache.lucene.store.Directory.IndexInputSlicer;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -89,4 +96,45 @@ public class TestSimpleCassandraDirectory extends OpentrackerTestBase {
         }
     }
 
+    @Test
+    public void testConcurrentClones() throws Exception {
+        // several blocks of bytes that each tell their own position.
+        final int length = 4 * blockSize + 100;
+        IndexOutput output = scd.createOutput("clones", IOContext.DEFAULT);
+        for (int i = 0; i < length; i++) {
+            output.writeByte((byte) i);
+        }
+        output.close();
+
+        final IndexInput input = scd.openInput("clones", IOContext.READ);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> reads = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                final int start = t * 1000;
+                reads.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        IndexInput clone = input.clone();
+                        for (int round = 0; round < 20; round++) {
+                            clone.seek(start + round * 101);
+                            byte[] content = new byte[blockSize];
+                            clone.readBytes(content, 0, content.length);
+                            for (int i = 0; i < content.length; i++) {
+                                assertEquals((byte) (start + round * 101 + i),
+                                        content[i]);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> read : reads) {
+                read.get();
+            }
+        } finally {
+            executor.shutdown();
+            input.close();
+        }
+    }
+
 }
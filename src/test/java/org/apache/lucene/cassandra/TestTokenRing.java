@@ -0,0 +1,54 @@
+package org.apache.lucene.cassandra;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.apache.lucene.cassandra.TokenRing.Host;
+import org.apache.monitor.Counter;
+import org.junit.Test;
+
+public class TestTokenRing {
+
+    @Test
+    public void testSeeds() {
+        TokenRing ring =
+                new TokenRing("localhost", 9160, "lucene1", "index1",
+                        "host1, host2:9161,localhost", true, 60000);
+        List<Host> hosts = ring.getAllHosts();
+        assertEquals(3, hosts.size());
+        assertEquals("localhost:9160", hosts.get(0).toString());
+        assertEquals("host1:9160", hosts.get(1).toString());
+        assertEquals("host2:9161", hosts.get(2).toString());
+    }
+
+    @Test
+    public void testFastestHostFirst() {
+        TokenRing ring =
+                new TokenRing("host1", 9160, "lucene1", "index1", "host2",
+                        true, 60000);
+        List<Host> hosts = ring.getAllHosts();
+        ring.recordLatency(hosts.get(0), 5000000);
+        ring.recordLatency(hosts.get(1), 1000000);
+        assertEquals("host2", ring.getHosts(null).get(0).getAddress());
+        // a slow request moves the average, but only by so much.
+        ring.recordLatency(hosts.get(1), 9000000);
+        assertEquals(2000000, hosts.get(1).getLatencyNanos());
+        assertEquals("host2", ring.getHosts(null).get(0).getAddress());
+    }
+
+    @Test
+    public void testDownHostLast() {
+        TokenRing ring =
+                new TokenRing("host1", 9160, "lucene1", "index1", "host2",
+                        true, 60000);
+        Host host1 = ring.getAllHosts().get(0);
+        ring.markDown(host1);
+        assertTrue(host1.isDown());
+        List<Host> hosts = ring.getHosts(null);
+        assertEquals("host2", hosts.get(0).getAddress());
+        assertSame(host1, hosts.get(1));
+        assertEquals(1, ring.getCounters().get(Counter.HOST_FAILOVERS).get());
+    }
+
+}
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import net.opentracker.test.OpentrackerTestBase;
 
@@ -173,6 +174,23 @@ public class TestCassandraClient extends OpentrackerTestBase {
         }
     }
 
+    @Test
+    public void testAsync() {
+        ByteBuffer key = ByteBufferUtil.bytes("asyncFile");
+        Map<byte[], byte[]> columns = new LinkedHashMap<byte[], byte[]>();
+        columns.put("column1".getBytes(), "column1 value".getBytes());
+
+        try {
+            Future<Void> write = cc.setColumnsAsync(key, columns);
+            CassandraClient.await(write);
+            Future<byte[]> read = cc.getColumnAsync("asyncFile".getBytes(), "column1".getBytes());
+            assertArrayEquals("column1 value".getBytes(), CassandraClient.await(read));
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail("exception is not expected.");
+        }
+    }
+
     @Test
     public void testTruncate() {
         try {
@@ -23,10 +23,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.TestCase;
 
+import org.apache.monitor.Counter;
+
 @Deprecated
 public class TestCassandraDirectory extends TestCase {
 
@@ -268,6 +272,53 @@ public class TestCassandraDirectory extends TestCase {
         }
     }
 
+    public void testReadAhead() throws IOException {
+        // ten blocks of bytes that each tell their own position.
+        IndexOutput indexOutput =
+                cassandraDirectory.createOutput("readAhead", IOContext.DEFAULT);
+        for (int i = 0; i < 100; i++) {
+            indexOutput.writeByte((byte) i);
+        }
+        indexOutput.close();
+        Map<Counter, AtomicLong> counters = cassandraDirectory.getCounters();
+        long hits = counters.get(Counter.READ_AHEAD_HITS).get();
+
+        CassandraDirectory.CassandraIndexInput indexInput =
+                (CassandraDirectory.CassandraIndexInput) cassandraDirectory
+                        .openInput("readAhead", IOContext.DEFAULT);
+        for (int i = 0; i < 60; i++) {
+            assertEquals("The sequential read returned the wrong byte.",
+                    (byte) i, indexInput.readByte());
+        }
+        assertTrue("Sequential reads should have been prefetched.",
+                counters.get(Counter.READ_AHEAD_HITS).get() > hits);
+        assertTrue("The read-ahead window should have grown.",
+                indexInput.readAheadBlocks > 0);
+
+        // clones start without a window or prefetched blocks of their own,
+        // and leave those of the original alone.
+        CassandraDirectory.CassandraIndexInput clone = indexInput.clone();
+        assertEquals(0, clone.readAheadBlocks);
+        assertTrue(clone.prefetchedBlocks.isEmpty());
+        clone.seek(70);
+        for (int i = 70; i < 80; i++) {
+            assertEquals("The clone returned the wrong byte.", (byte) i,
+                    clone.readByte());
+        }
+        assertTrue(indexInput.readAheadBlocks > 0);
+
+        // a random seek resets the window.
+        indexInput.seek(20);
+        for (int i = 20; i < 30; i++) {
+            assertEquals("The read after the seek returned the wrong byte.",
+                    (byte) i, indexInput.readByte());
+        }
+        assertEquals("The read-ahead window should have been reset.", 0,
+                indexInput.readAheadBlocks);
+        clone.close();
+        indexInput.close();
+    }
+
     protected String[] writeStrings(String[] dataSample) throws IOException {
         cassandraDirectory.deleteFile("sampleFile");
         IndexOutput indexOutput =
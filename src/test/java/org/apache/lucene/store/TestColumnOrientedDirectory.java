@@ -3,12 +3,16 @@ package org.apache.lucene.store;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 
 import net.opentracker.test.OpentrackerTestBase;
 
 import org.apache.lucene.cassandra.CassandraClient;
+import org.apache.lucene.cassandra.CassandraFile;
 import org.apache.lucene.cassandra.ColumnOrientedDirectory;
 import org.apache.lucene.cassandra.FileDescriptor;
+import org.apache.lucene.cassandra.FileReaper;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -74,6 +78,78 @@ public class TestColumnOrientedDirectory extends OpentrackerTestBase {
         }
     }
 
+    @Test
+    public void testManifest() {
+        try {
+            FileDescriptor fd = new FileDescriptor("tests.manifest", blockSize);
+            fd.setLength(42);
+            cod.setFileDescriptor(fd);
+            Map<String, ColumnOrientedDirectory.ManifestEntry> manifest = cod.getManifest();
+            assertTrue(manifest.containsKey("tests.manifest"));
+            assertEquals(42, manifest.get("tests.manifest").getLength());
+            assertEquals(fd.getLastModified(), manifest.get("tests.manifest").getLastModified());
+
+            fd.setDeleted(true);
+            cod.setFileDescriptor(fd);
+            assertFalse(Arrays.asList(cod.getFileNames()).contains("tests.manifest"));
+        } catch (IOException e) {
+            fail("exception is not expected");
+        }
+    }
+
+    @Test
+    public void testReapDeletedFiles() {
+        try {
+            CassandraFile file = new CassandraFile("/", "tests.reaped", IOContext.DEFAULT, frameMode, keyspace, columnFamily, blockSize);
+            byte[] b = "reap me".getBytes();
+            file.write(b, 0, b.length);
+            file.close();
+            FileDescriptor fd = cod.getFileDescriptor("/tests.reaped");
+            byte[] row = fd.getContentRow().getBytes();
+            byte[] block = fd.getFirstBlock().getBlockName().getBytes();
+
+            // deleting a file only flags its descriptor.
+            file = new CassandraFile("/", "tests.reaped", IOContext.DEFAULT, frameMode, keyspace, columnFamily, blockSize);
+            assertTrue(file.delete());
+            file.close();
+            assertNull(cod.getFileDescriptor("/tests.reaped"));
+            assertTrue(cod.getFileDescriptorIncludingDeleted("/tests.reaped").isDeleted());
+            assertNotNull(client.getColumn(row, block));
+
+            // the blocks survive the grace period.
+            FileReaper reaper = new FileReaper(client, blockSize, 60000, 0);
+            reaper.reap();
+            assertNotNull(cod.getFileDescriptorIncludingDeleted("/tests.reaped"));
+            assertNotNull(client.getColumn(row, block));
+
+            reaper = new FileReaper(client, blockSize, 0, 0);
+            reaper.reap();
+            assertNull(cod.getFileDescriptorIncludingDeleted("/tests.reaped"));
+            assertNull(client.getColumn(row, block));
+            assertTrue(reaper.getReapedFiles() > 0);
+        } catch (Exception e) {
+            fail("exception is not expected");
+        }
+    }
+
+    @Test
+    public void testGetFileDescriptors() {
+        try {
+            FileDescriptor fd = new FileDescriptor("tests.bulk", blockSize);
+            fd.setLength(7);
+            cod.setFileDescriptor(fd);
+            Map<String, FileDescriptor> fds =
+                    cod.getFileDescriptors(Arrays.asList("tests.bulk", "tests.gen", "notexists"));
+            assertEquals(3, fds.size());
+            assertEquals(7, fds.get("tests.bulk").getLength());
+            assertNotNull(fds.get("tests.gen"));
+            assertTrue(fds.containsKey("notexists"));
+            assertNull(fds.get("notexists"));
+        } catch (IOException e) {
+            fail("exception is not expected");
+        }
+    }
+
     @Test
     public void testGetFileDescriptorString() {
         try {
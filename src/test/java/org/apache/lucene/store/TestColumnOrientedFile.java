@@ -311,4 +311,43 @@ public class TestColumnOrientedFile extends OpentrackerTestBase {
 
     }
 
+    @Test
+    public void testBufferFileBlocks() {
+        try {
+            ColumnOrientedFile writer = new ColumnOrientedFile(client);
+            writer.setWriteBehind(true);
+            writer.setCrashSafe(true);
+
+            BlockMap blocksToFlush = new BlockMap();
+            blocksToFlush.put("BLOCK-0", "123");
+            FileDescriptor fileDescriptor =
+                    new FileDescriptor("writeBehind.txt", blockSize);
+            FileBlock fileBlock = fileDescriptor.createBlock();
+            fileBlock.setDataLength("123".length());
+            fileDescriptor.addLastBlock(fileBlock);
+            fileDescriptor.setLength("123".length());
+
+            writer.bufferFileBlocks(fileDescriptor, blocksToFlush);
+            assertTrue(writer.hasPendingWrites());
+            // the descriptor is not visible before the sync.
+            assertNull(cof.getFileDescriptor("writeBehind.txt", blockSize));
+
+            // the writer itself sees its pending blocks.
+            Set<byte[]> blockNames = new HashSet<byte[]>();
+            blockNames.add("BLOCK-0".getBytes());
+            BlockMap bm = writer.readFileBlocks(fileDescriptor, blockNames);
+            assertEquals("313233", Util.bytesToHex(bm.get("BLOCK-0")));
+
+            writer.syncFileBlocks();
+            assertFalse(writer.hasPendingWrites());
+            FileDescriptor actual =
+                    cof.getFileDescriptor("writeBehind.txt", blockSize);
+            assertEquals(3, actual.getLength());
+            assertEquals(1, actual.getBlocks().size());
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail("exception is not expected");
+        }
+    }
+
 }
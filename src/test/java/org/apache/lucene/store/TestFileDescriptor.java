@@ -232,4 +232,45 @@ public class TestFileDescriptor {
         }
     }
 
+    @Test
+    public void testFindBlockIndex() {
+        FileDescriptor fd = new FileDescriptor("testrow", 16384);
+        for (int i = 0; i < 100; i++) {
+            FileBlock fb = fd.createBlock();
+            fb.setDataLength(100);
+            fd.addLastBlock(fb);
+        }
+        fd.setLength(100 * 100);
+
+        assertEquals(0, fd.findBlockIndex(0));
+        assertEquals(0, fd.findBlockIndex(99));
+        assertEquals(1, fd.findBlockIndex(100));
+        assertEquals(99, fd.findBlockIndex(9999));
+        assertEquals(-1, fd.findBlockIndex(10000));
+        assertEquals(-1, fd.findBlockIndex(-1));
+        assertEquals(5000, fd.getBlockStart(50));
+
+        // growing a block shifts the blocks after it.
+        fd.getBlock(10).setDataLength(150);
+        assertEquals(10, fd.findBlockIndex(1149));
+        assertEquals(11, fd.findBlockIndex(1150));
+
+        // inserting in the middle keeps next block lookups consistent.
+        FileBlock fb = fd.createBlock();
+        fb.setDataLength(50);
+        fd.insertBlock(fd.getBlock(10), fb, true);
+        assertEquals(11, fd.indexOf(fb));
+        assertSame(fb, fd.getNextBlock(fd.getBlock(10)));
+        assertSame(fd.getBlock(12), fd.getNextBlock(fb));
+        assertSame(fd.getBlock(10), fd.getPreviousBlock(fb));
+        assertEquals(11, fd.findBlockIndex(1150));
+        assertEquals(12, fd.findBlockIndex(1200));
+
+        fd.removeBlock(fb);
+        assertEquals(-1, fd.indexOf(fb));
+        assertEquals(11, fd.findBlockIndex(1150));
+        assertNull(fd.getPreviousBlock(fd.getFirstBlock()));
+        assertNull(fd.getNextBlock(fd.getLastBlock()));
+    }
+
 }
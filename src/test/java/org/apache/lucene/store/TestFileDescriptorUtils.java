@@ -244,4 +244,125 @@ public class TestFileDescriptorUtils {
         }
     }
 
+    @Test
+    public void testBinaryRoundTrip() {
+        try {
+            FileDescriptor fd = new FileDescriptor("_1.tim", 16384);
+            fd.setLength(40000);
+            fd.setLastModified(1395043055774l);
+            fd.setLastAccessed(1395043055700l);
+            FileBlock fb = fd.createBlock();
+            fb.setDataLength(16384);
+            fd.addLastBlock(fb);
+            fb = fd.createBlock();
+            fb.setDataLength(907);
+            fd.addLastBlock(fb);
+            // a fragment whose block number goes backwards.
+            fb = new FileBlock();
+            fb.setBlockName(0);
+            fb.setBlockSize(16384);
+            fb.setDataOffset(907);
+            fb.setDataLength(15477);
+            fd.addLastBlock(fb);
+            fb = new FileBlock();
+            fb.setBlockName("CUSTOM-7");
+            fb.setBlockNumber(7);
+            fb.setBlockSize(8192);
+            fb.setDataLength(7232);
+            fd.addLastBlock(fb);
+
+            byte[] b = FileDescriptorUtils.toBinary(fd);
+            assertTrue(FileDescriptorUtils.isBinary(b));
+            FileDescriptor actual = FileDescriptorUtils.fromBytes(b, 16384);
+
+            assertEquals("_1.tim", actual.getName());
+            assertEquals(40000, actual.getLength());
+            assertEquals(false, actual.isDeleted());
+            assertEquals(1395043055774l, actual.getLastModified());
+            assertEquals(1395043055700l, actual.getLastAccessed());
+            assertEquals(4, actual.getBlocks().size());
+            for (int i = 0; i < 4; i++) {
+                FileBlock expected = fd.getBlocks().get(i);
+                FileBlock block = actual.getBlocks().get(i);
+                assertEquals(expected.getBlockName(), block.getBlockName());
+                assertEquals(expected.getBlockNumber(), block.getBlockNumber());
+                assertEquals(expected.getBlockSize(), block.getBlockSize());
+                assertEquals(expected.getDataOffset(), block.getDataOffset());
+                assertEquals(expected.getDataLength(), block.getDataLength());
+            }
+            assertEquals(FileDescriptorUtils.toString(fd), FileDescriptorUtils.toString(actual));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception is not expected ");
+        }
+    }
+
+    @Test
+    public void testBinaryDeleted() {
+        try {
+            FileDescriptor fd = new FileDescriptor("_1.tim", 16384);
+            fd.setDeleted(true);
+            byte[] b = FileDescriptorUtils.toBinary(fd);
+            assertNull(FileDescriptorUtils.fromBytes(b, 16384));
+            assertTrue(FileDescriptorUtils.fromBinary(b, 16384).isDeleted());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception is not expected ");
+        }
+    }
+
+    @Test
+    public void testBinaryIsSmallerThanJSON() {
+        try {
+            FileDescriptor fd = new FileDescriptor("_0.cfs", 16384);
+            for (int i = 0; i < 1000; i++) {
+                FileBlock fb = fd.createBlock();
+                fb.setDataLength(16384);
+                fd.addLastBlock(fb);
+            }
+            fd.setLength(1000 * 16384);
+            byte[] json = FileDescriptorUtils.toString(fd).getBytes();
+            byte[] binary = FileDescriptorUtils.toBinary(fd);
+            assertTrue(binary.length * 10 < json.length);
+            assertEquals(1000, FileDescriptorUtils.fromBytes(binary, 16384).getBlocks().size());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception is not expected ");
+        }
+    }
+
+    @Test
+    public void testBinaryAppendOnly() {
+        try {
+            FileDescriptor fd = new FileDescriptor("_0.fdt", 16384);
+            fd.setAppendOnly(true);
+            fd.setLength(2 * 16384 + 100);
+            fd.layOutFixedStride();
+            assertEquals(3, fd.getBlockCount());
+            byte[] b = FileDescriptorUtils.toBinary(fd);
+            assertEquals(FileDescriptorUtils.FIXED_STRIDE_VERSION, b[1]);
+
+            FileDescriptor copy = FileDescriptorUtils.fromBytes(b, 16384);
+            assertTrue(copy.isAppendOnly());
+            assertEquals(3, copy.getBlockCount());
+            assertEquals("BLOCK-2", copy.getBlock(2).getBlockName());
+            assertEquals(100, copy.getBlock(2).getDataLength());
+            assertEquals(2 * 16384, copy.getBlockStart(2));
+
+            // appending only touches the last block onwards.
+            copy.setLength(3 * 16384 + 1);
+            copy.layOutFixedStride();
+            assertEquals(4, copy.getBlockCount());
+            assertEquals(16384, copy.getBlock(2).getDataLength());
+            assertEquals(4, copy.createBlock().getBlockNumber());
+
+            copy = FileDescriptorUtils.fromJSON(FileDescriptorUtils.toJSON(copy), 16384);
+            assertTrue(copy.isAppendOnly());
+            assertEquals(4, copy.getBlockCount());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception is not expected ");
+        }
+    }
+
 }
@@ -0,0 +1,93 @@
+package org.apache.monitor;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TestMetrics {
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int bucket = Histogram.getBucket(value);
+            long limit = Histogram.getBucketLimit(bucket);
+            assertTrue(value <= limit);
+            assertTrue(limit - value <= value / 16);
+            if (limit != previous) {
+                assertEquals(previous + 1, value);
+                previous = limit;
+            }
+        }
+        assertEquals(Long.MAX_VALUE,
+                Histogram.getBucketLimit(Histogram.getBucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500.0, histogram.getMean(), 0.001);
+        assertEquals(1000000, histogram.getMax());
+        long p50 = histogram.getValueAtPercentile(50);
+        assertTrue(p50 + "", p50 >= 500000 && p50 <= 500000 * 1.07);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 + "", p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        histogram.record(j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99999, histogram.getMax());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        MetricGroup group = MetricsRegistry.getGroup("lucene0/test", "read");
+        assertSame(group, MetricsRegistry.getGroup("lucene0", "test", "READ"));
+        group.counter("block.readBytes").addAndGet(16384);
+        group.histogram("client.getColumns").record(2000000);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = null;
+        for (ObjectName candidate : server.queryNames(null, null)) {
+            if (candidate.getDomain().equals(
+                    "org.apache.service_Metrics_lucene0_test_read")) {
+                name = candidate;
+            }
+        }
+        assertNotNull(name);
+        assertEquals(16384L, server.getAttribute(name, "block.readBytes"));
+        assertEquals(1L, server.getAttribute(name, "client.getColumns.count"));
+        assertEquals(2000000L,
+                server.getAttribute(name, "client.getColumns.max"));
+        assertEquals(6, server.getMBeanInfo(name).getAttributes().length);
+    }
+
+}